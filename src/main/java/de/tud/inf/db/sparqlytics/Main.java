@@ -17,15 +17,31 @@
 package de.tud.inf.db.sparqlytics;
 
 import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.io.ResultCoalescer;
+import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.olap.ExecutionStrategies;
+import de.tud.inf.db.sparqlytics.olap.ExecutionStrategy;
 import de.tud.inf.db.sparqlytics.parser.ParseException;
 import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
 import de.tud.inf.db.sparqlytics.parser.TokenMgrError;
+import de.tud.inf.db.sparqlytics.repository.RepositorySnapshot;
+import de.tud.inf.db.sparqlytics.server.Server;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
 import jena.cmd.CmdException;
 import jena.cmd.TerminationException;
 import jena.cmd.ArgDecl;
 import jena.cmd.CmdGeneral;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
 
 /**
  * The application's main class.
@@ -58,10 +74,105 @@ public class Main extends CmdGeneral {
     private final ArgDecl outputFormatDecl =
             new ArgDecl(ArgDecl.HasValue, "--outputFormat");
 
+    /**
+     * The execution strategy argument declaration.
+     */
+    private final ArgDecl strategyDecl =
+            new ArgDecl(ArgDecl.HasValue, "--strategy");
+
+    /**
+     * The argument declaration for merging compute operations.
+     */
+    private final ArgDecl mergeDecl =
+            new ArgDecl(ArgDecl.NoValue, "--merge");
+
+    /**
+     * The argument declaration for the output buffer capacity.
+     */
+    private final ArgDecl outputBufferDecl =
+            new ArgDecl(ArgDecl.HasValue, "--outputBuffer");
+
+    /**
+     * The argument declaration for the result archive.
+     */
+    private final ArgDecl archiveDecl =
+            new ArgDecl(ArgDecl.HasValue, "--archive");
+
+    /**
+     * The argument declaration for the page size in interactive mode.
+     */
+    private final ArgDecl pageSizeDecl =
+            new ArgDecl(ArgDecl.HasValue, "--pageSize");
+
+    /**
+     * The argument declaration for generating RDF output on the client.
+     */
+    private final ArgDecl clientConstructDecl =
+            new ArgDecl(ArgDecl.NoValue, "--clientConstruct");
+
+    /**
+     * The argument declaration for the script defining the repository.
+     */
+    private final ArgDecl repositoryDecl =
+            new ArgDecl(ArgDecl.HasValue, "--repository");
+
+    /**
+     * The argument declaration for binding parameters.
+     */
+    private final ArgDecl parameterDecl =
+            new ArgDecl(ArgDecl.HasValue, "--parameter");
+
+    /**
+     * The argument declaration for the port of the server.
+     */
+    private final ArgDecl serverDecl =
+            new ArgDecl(ArgDecl.HasValue, "--server");
+
+    /**
+     * The argument declaration for the number of worker threads.
+     */
+    private final ArgDecl threadsDecl =
+            new ArgDecl(ArgDecl.HasValue, "--threads");
+
+    /**
+     * The argument declaration for the number of rows up to which sessions
+     * of the server may share results.
+     */
+    private final ArgDecl coalescingLimitDecl =
+            new ArgDecl(ArgDecl.HasValue, "--coalescingLimit");
+
+    /**
+     * The argument declaration for the maximum number of server sessions.
+     */
+    private final ArgDecl maxSessionsDecl =
+            new ArgDecl(ArgDecl.HasValue, "--maxSessions");
+
+    /**
+     * The argument declaration for the time after which idle server sessions
+     * are closed.
+     */
+    private final ArgDecl sessionTimeoutDecl =
+            new ArgDecl(ArgDecl.HasValue, "--sessionTimeout");
+
     private Reader input;
     private boolean interactive;
     private File output;
     private ResultsFormat resultsFormat;
+    private ExecutionStrategy strategy;
+    private boolean merge;
+    private boolean clientConstruct;
+    private int outputBuffer = Session.DEFAULT_OUTPUT_BUFFER_CAPACITY;
+    private File archive;
+    private final List<Pair<File, ResultsFormat>> additionalOutputs =
+            new ArrayList<>();
+    private int pageSize = Session.DEFAULT_PAGE_SIZE;
+    private File repository;
+    private final Map<String, Node> parameters = new LinkedHashMap<>();
+    private int port = -1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int coalescingLimit = ResultCoalescer.DEFAULT_BUFFER_LIMIT;
+    private int maxSessions = Server.DEFAULT_MAX_SESSIONS;
+    private long sessionTimeout = Server.DEFAULT_SESSION_TIMEOUT;
 
     /**
      * Creates a new instance for processing the given command line arguments.
@@ -74,9 +185,48 @@ public class Main extends CmdGeneral {
         add(inputDecl, "--input <file>", "The file to read commands from. " +
                 "Reads from standard input if not specified.");
         add(outputDecl, "--output <file>", "The file to write results to. " +
-                "Writes to standard output if not specified.");
-        add(outputFormatDecl, "--outputFormat <fmt>",
-                "The output format to use.");
+                "Writes to standard output if not specified. May be repeated " +
+                "for writing every result to several files.");
+        add(outputFormatDecl, "--outputFormat <fmt>", "The output format " +
+                "to use, one per output.");
+        add(strategyDecl, "--strategy <name>", "The strategy for computing " +
+                "measures: endpoint (default), split, starjoin or client.");
+        add(mergeDecl, "--merge", "Merges consecutive compute operations " +
+                "over the same cube state into a single computation.");
+        add(clientConstructDecl, "--clientConstruct", "Generates RDF " +
+                "output on the client from the rows of SELECT queries " +
+                "instead of sending CONSTRUCT queries.");
+        add(outputBufferDecl, "--outputBuffer <chunks>", "The number of " +
+                "64 KiB chunks buffered while writing results in the " +
+                "background, or 0 for writing synchronously.");
+        add(archiveDecl, "--archive <file>", "The archive to append all " +
+                "results to as indexed records instead of writing them to " +
+                "the output.");
+        add(pageSizeDecl, "--pageSize <rows>", "The number of rows per " +
+                "page printed in interactive mode, or 0 for printing " +
+                "results completely.");
+        add(repositoryDecl, "--repository <file>", "The script defining " +
+                "dimensions, measures and cubes, which is loaded from a " +
+                "binary snapshot next to it unless it has changed.");
+        add(parameterDecl, "--parameter <name>=<term>", "Binds the " +
+                "parameter $name in slice values and dice predicates to " +
+                "the given RDF term in SPARQL syntax. May be repeated.");
+        add(serverDecl, "--server <port>", "Runs a server at the given " +
+                "port, which executes the statements posted to " +
+                "/sessions/<id> and returns their results. Requires " +
+                "--repository.");
+        add(threadsDecl, "--threads <n>", "The number of worker threads " +
+                "of the server, by default one per processor.");
+        add(coalescingLimitDecl, "--coalescingLimit <rows>", "The number " +
+                "of rows up to which sessions of the server share the " +
+                "result of an identical SELECT query sent by another " +
+                "session.");
+        add(maxSessionsDecl, "--maxSessions <n>", "The maximum number of " +
+                "open sessions of the server, by default " +
+                Server.DEFAULT_MAX_SESSIONS + ".");
+        add(sessionTimeoutDecl, "--sessionTimeout <minutes>", "The time " +
+                "after which idle sessions of the server are closed, by " +
+                "default " + Server.DEFAULT_SESSION_TIMEOUT + " minutes.");
     }
 
     @Override
@@ -102,59 +252,276 @@ public class Main extends CmdGeneral {
             input = new InputStreamReader(System.in);
             interactive = true;
         }
-        if (hasArg(outputDecl)) {
-            output = new File(getValue(outputDecl));
-            if (output.isFile() && !output.canWrite()) {
-                throw new CmdException("The output file cannot be written to");
-            } else if (!output.isDirectory()) {
-                resultsFormat = ResultsFormat.guessSyntax(output.getName());
+        //The i-th output format belongs to the i-th output
+        List<String> outputs = getValues(outputDecl);
+        List<String> outputFormats = getValues(outputFormatDecl);
+        if (outputFormats.size() > Math.max(1, outputs.size())) {
+            throw new CmdException("More output formats than outputs");
+        }
+        for (int i = 0; i < Math.max(1, outputs.size()); i++) {
+            File file = null;
+            ResultsFormat format = null;
+            if (i < outputs.size()) {
+                file = new File(outputs.get(i));
+                if (file.isFile() && !file.canWrite()) {
+                    throw new CmdException("The output file cannot be written to");
+                } else if (!file.isDirectory()) {
+                    format = ResultsFormat.guessSyntax(file.getName());
+                }
+            }
+            if (i < outputFormats.size()) {
+                String temp = outputFormats.get(i);
+                format = ResultsFormat.lookup(temp);
+                if (format == null) {
+                    throw new CmdException("Unsupported output format: " + temp);
+                }
+            }
+            if (i == 0) {
+                output = file;
+                resultsFormat = format;
+            } else {
+                additionalOutputs.add(Pair.of(file, format));
             }
         }
-        if (hasArg(outputFormatDecl)) {
-            String temp = getValue(outputFormatDecl);
-            resultsFormat = ResultsFormat.lookup(temp);
-            if (resultsFormat == null) {
-                throw new CmdException("Unsupported output format: " + temp);
+        if (hasArg(strategyDecl)) {
+            try {
+                strategy = ExecutionStrategies.create(getValue(strategyDecl));
+            } catch (IllegalArgumentException ex) {
+                throw new CmdException(ex.getMessage());
+            }
+        }
+        merge = hasArg(mergeDecl);
+        clientConstruct = hasArg(clientConstructDecl);
+        if (hasArg(outputBufferDecl)) {
+            String temp = getValue(outputBufferDecl);
+            try {
+                outputBuffer = Integer.parseInt(temp);
+            } catch (NumberFormatException ex) {
+                outputBuffer = -1;
+            }
+            if (outputBuffer < 0) {
+                throw new CmdException("Invalid output buffer capacity: " +
+                        temp);
+            }
+        }
+        if (hasArg(archiveDecl)) {
+            archive = new File(getValue(archiveDecl));
+        }
+        if (hasArg(repositoryDecl)) {
+            repository = new File(getValue(repositoryDecl));
+            if (!repository.isFile()) {
+                throw new CmdException("The repository script does not exist");
+            }
+        }
+        for (String parameter : getValues(parameterDecl)) {
+            int index = parameter.indexOf('=');
+            if (index <= 0) {
+                throw new CmdException("Invalid parameter: " + parameter);
+            }
+            try {
+                parameters.put(parameter.substring(0, index),
+                        NodeFactoryExtra.parseNode(parameter.substring(index + 1)));
+            } catch (RuntimeException ex) {
+                throw new CmdException("Invalid parameter value: " +
+                        parameter.substring(index + 1));
+            }
+        }
+        if (hasArg(serverDecl)) {
+            String temp = getValue(serverDecl);
+            try {
+                port = Integer.parseInt(temp);
+            } catch (NumberFormatException ex) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                throw new CmdException("Invalid port: " + temp);
+            }
+            if (repository == null) {
+                throw new CmdException("The server requires a repository " +
+                        "script, as sessions cannot modify the repository");
+            }
+        }
+        if (hasArg(threadsDecl)) {
+            String temp = getValue(threadsDecl);
+            try {
+                threads = Integer.parseInt(temp);
+            } catch (NumberFormatException ex) {
+                threads = -1;
+            }
+            if (threads <= 0) {
+                throw new CmdException("Invalid number of threads: " + temp);
+            }
+        }
+        if (hasArg(coalescingLimitDecl)) {
+            String temp = getValue(coalescingLimitDecl);
+            try {
+                coalescingLimit = Integer.parseInt(temp);
+            } catch (NumberFormatException ex) {
+                coalescingLimit = -1;
+            }
+            if (coalescingLimit < 0) {
+                throw new CmdException("Invalid coalescing limit: " + temp);
+            }
+        }
+        if (hasArg(maxSessionsDecl)) {
+            String temp = getValue(maxSessionsDecl);
+            try {
+                maxSessions = Integer.parseInt(temp);
+            } catch (NumberFormatException ex) {
+                maxSessions = -1;
+            }
+            if (maxSessions <= 0) {
+                throw new CmdException("Invalid number of sessions: " + temp);
+            }
+        }
+        if (hasArg(sessionTimeoutDecl)) {
+            String temp = getValue(sessionTimeoutDecl);
+            try {
+                sessionTimeout = Long.parseLong(temp);
+            } catch (NumberFormatException ex) {
+                sessionTimeout = -1;
+            }
+            if (sessionTimeout <= 0) {
+                throw new CmdException("Invalid session timeout: " + temp);
+            }
+        }
+        if (hasArg(pageSizeDecl)) {
+            String temp = getValue(pageSizeDecl);
+            try {
+                pageSize = Integer.parseInt(temp);
+            } catch (NumberFormatException ex) {
+                pageSize = -1;
+            }
+            if (pageSize < 0) {
+                throw new CmdException("Invalid page size: " + temp);
             }
         }
     }
 
     @Override
     protected void exec() {
+        if (port >= 0) {
+            serve();
+            return;
+        }
         //Start processing
         SPARQLyticsParser parser = new SPARQLyticsParser(input);
         parser.setInteractive(interactive);
-        parser.getSession().setSink(output);
-        parser.getSession().setResultsFormat(resultsFormat);
-        if (interactive) {
-            //Interactive mode
-            try {
-                parser.CubeDefinition();
-            } catch (ParseException | TokenMgrError | RuntimeException ex) {
-                System.err.println(ex.getLocalizedMessage());
-                throw (TerminationException)
-                        new TerminationException(1).initCause(ex);
-            }
-            boolean keepGoing = true;
-            do {
+        Session session = parser.getSession();
+        session.setSink(output);
+        session.setResultsFormat(resultsFormat);
+        session.setExecutionStrategy(strategy);
+        session.setOutputBufferCapacity(outputBuffer);
+        session.setConstructOnClient(clientConstruct);
+        for (Map.Entry<String, Node> parameter : parameters.entrySet()) {
+            parser.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        for (Pair<File, ResultsFormat> additionalOutput : additionalOutputs) {
+            session.addOutput(additionalOutput.getLeft(),
+                    additionalOutput.getRight());
+        }
+        try {
+            if (repository != null) {
                 try {
-                    keepGoing = parser.OLAPOperation();
-                } catch (ParseException | TokenMgrError ex) {
+                    RepositorySnapshot.load(repository,
+                            getSnapshotFile(repository)).apply(parser);
+                } catch (ParseException | NamingException | TokenMgrError ex) {
                     System.err.println(ex.getLocalizedMessage());
+                    throw (TerminationException)
+                            new TerminationException(1).initCause(ex);
+                }
+            }
+            session.setArchive(archive);
+            if (interactive) {
+                //Interactive mode
+                session.setPageSize(pageSize);
+                try {
+                    if (repository == null) {
+                        parser.CubeDefinition();
+                    } else {
+                        parser.CubeSelection();
+                    }
+                } catch (ParseException | TokenMgrError | RuntimeException ex) {
+                    System.err.println(ex.getLocalizedMessage());
+                    throw (TerminationException)
+                            new TerminationException(1).initCause(ex);
+                }
+                boolean keepGoing = true;
+                do {
+                    try {
+                        keepGoing = parser.OLAPOperation();
+                    } catch (ParseException | TokenMgrError ex) {
+                        System.err.println(ex.getLocalizedMessage());
+                    }
+                } while (keepGoing);
+            } else {
+                //Batch mode
+                session.setBatching(merge);
+                try {
+                    parser.Start();
+                } catch (Exception | TokenMgrError ex) {
+                    ex.printStackTrace(System.err);
+                    throw (TerminationException)
+                            new TerminationException(1).initCause(ex);
                 }
-            } while (keepGoing);
-        } else {
-            //Batch mode
-            try {
-                parser.Start();
-            } catch (Exception | TokenMgrError ex) {
-                ex.printStackTrace(System.err);
-                throw (TerminationException)
-                        new TerminationException(1).initCause(ex);
             }
+            session.close();
+        } catch (IOException ex) {
+            System.err.println(ex.getLocalizedMessage());
+            throw (TerminationException)
+                    new TerminationException(1).initCause(ex);
         }
     }
 
+    /**
+     * Runs the server until the process is terminated.
+     */
+    private void serve() {
+        try {
+            final Server server = new Server(new InetSocketAddress(port),
+                    threads);
+            if (repository != null) {
+                server.setSnapshot(RepositorySnapshot.load(repository,
+                        getSnapshotFile(repository)));
+            }
+            server.setExecutionStrategy(strategy);
+            server.setResultsFormat(resultsFormat);
+            server.setCoalescingLimit(coalescingLimit);
+            server.setMaxSessions(maxSessions);
+            server.setSessionTimeout(sessionTimeout, TimeUnit.MINUTES);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        server.close();
+                    } catch (IOException ex) {
+                        System.err.println(ex.getLocalizedMessage());
+                    }
+                }
+            });
+            server.start();
+            System.err.println("Accepting statements at " + server.getURL() +
+                    "<id>");
+            server.awaitClose();
+        } catch (IOException | ParseException | NamingException |
+                TokenMgrError | InterruptedException ex) {
+            System.err.println(ex.getLocalizedMessage());
+            throw (TerminationException)
+                    new TerminationException(1).initCause(ex);
+        }
+    }
+
+    /**
+     * Returns the file storing the snapshot of the repository defined by the
+     * given script.
+     *
+     * @param script the script defining the repository
+     * @return the snapshot file next to the script
+     */
+    public static File getSnapshotFile(File script) {
+        return new File(script.getPath() + ".snapshot");
+    }
+
     @Override
     public boolean isDebug() {
         return super.isDebug();
@@ -0,0 +1,399 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes to another channel in a background thread, so that producing the
+ * output, for example from a result that is still being received, does not
+ * wait for a slow disk or a full pipe. The written bytes are copied into a
+ * ring buffer of chunks of fixed size, which the background thread drains in
+ * order. If all chunks are filled, writing blocks until the background thread
+ * has drained one, which bounds the memory used. The time spent blocking and
+ * the maximum number of queued chunks are recorded. Errors of the other
+ * channel are reported by the next call to {@link #write}, {@link #flush} or
+ * {@link #close}, so that no further bytes are accepted once writing failed. This class is meant to be used by a single producer thread.
+ *
+ * @author Michael Rudolf
+ */
+public class AsyncOutputChannel implements WritableByteChannel {
+    /**
+     * The channel to write to in the background.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * The ring buffer of chunks.
+     */
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Guards the state shared with the background thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signals that a chunk has been queued or that this channel is closed.
+     */
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Signals that a chunk has been drained or that writing failed.
+     */
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * The background thread draining the chunks.
+     */
+    private final Thread consumer;
+
+    /**
+     * The index of the next chunk to drain.
+     */
+    private int head;
+
+    /**
+     * The number of queued chunks.
+     */
+    private int count;
+
+    /**
+     * The chunk being filled or {@code null} if none has been acquired.
+     */
+    private ByteBuffer current;
+
+    /**
+     * Indicates whether this channel has been closed for writing.
+     */
+    private boolean closed;
+
+    /**
+     * The error of the other channel or {@code null}.
+     */
+    private IOException failure;
+
+    /**
+     * The number of times writing blocked on a full ring buffer.
+     */
+    private long stalls;
+
+    /**
+     * The total time writing blocked on a full ring buffer in nanoseconds.
+     */
+    private long stallTime;
+
+    /**
+     * The maximum number of queued chunks.
+     */
+    private int maxDepth;
+
+    /**
+     * Creates a new channel and starts the background thread.
+     *
+     * @param channel   the channel to write to in the background
+     * @param capacity  the number of chunks in the ring buffer
+     * @param chunkSize the size of each chunk in bytes
+     *
+     * @throws NullPointerException     if the channel is {@code null}
+     * @throws IllegalArgumentException if the capacity or the chunk size is
+     *                                  not positive
+     */
+    public AsyncOutputChannel(final WritableByteChannel channel,
+            final int capacity, final int chunkSize) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "Capacity must be positive: " + capacity);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Chunk size must be positive: " + chunkSize);
+        }
+        this.channel = channel;
+        chunks = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            chunks[i] = ByteBuffer.allocate(chunkSize);
+        }
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "sparqlytics-output");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        checkFailure();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (current == null) {
+                current = acquire();
+            }
+            if (src.remaining() <= current.remaining()) {
+                current.put(src);
+            } else {
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + current.remaining());
+                current.put(slice);
+                src.position(slice.position());
+            }
+            if (!current.hasRemaining()) {
+                publish();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Queues the chunk being filled, so that the background thread writes it
+     * without waiting for it to become full.
+     *
+     * @throws IOException if writing to the other channel failed
+     */
+    public void flush() throws IOException {
+        checkFailure();
+        publishPartial();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Waits for the background thread to write all queued chunks and closes
+     * the other channel.
+     *
+     * @throws IOException if writing to or closing the other channel failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            publishPartial();
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                consumer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns the number of times writing blocked because all chunks were
+     * queued.
+     *
+     * @return the number of stalls
+     */
+    public long getStalls() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total time writing blocked because all chunks were queued.
+     *
+     * @return the stall time in nanoseconds
+     */
+    public long getStallTime() {
+        lock.lock();
+        try {
+            return stallTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the maximum number of chunks queued at the same time.
+     *
+     * @return the maximum queue depth
+     */
+    public int getMaxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a free chunk to fill.
+     *
+     * @return the chunk to fill
+     * @throws IOException if writing to the other channel failed or the
+     *                     thread was interrupted
+     */
+    private ByteBuffer acquire() throws IOException {
+        lock.lock();
+        try {
+            if (count == chunks.length && failure == null) {
+                stalls++;
+                long start = System.nanoTime();
+                try {
+                    while (count == chunks.length && failure == null) {
+                        notFull.await();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } finally {
+                    stallTime += System.nanoTime() - start;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return chunks[(head + count) % chunks.length];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throws the error of the other channel, if writing to it failed.
+     *
+     * @throws IOException if writing to the other channel failed
+     */
+    private void checkFailure() throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the chunk being filled, unless it is empty.
+     */
+    private void publishPartial() {
+        if (current != null && current.position() > 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Queues the chunk being filled.
+     */
+    private void publish() {
+        lock.lock();
+        try {
+            count++;
+            maxDepth = Math.max(maxDepth, count);
+            current = null;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the queued chunks to the other channel until this channel is
+     * closed or writing fails. Runs in the background thread.
+     */
+    private void drain() {
+        while (true) {
+            ByteBuffer chunk;
+            lock.lock();
+            try {
+                while (count == 0 && !closed) {
+                    notEmpty.await();
+                }
+                if (count == 0) {
+                    return;
+                }
+                chunk = chunks[head];
+            } catch (InterruptedException ex) {
+                fail(new InterruptedIOException());
+                return;
+            } finally {
+                lock.unlock();
+            }
+            chunk.flip();
+            try {
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            } catch (IOException ex) {
+                fail(ex);
+                return;
+            }
+            lock.lock();
+            try {
+                chunk.clear();
+                head = (head + 1) % chunks.length;
+                count--;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records the given error and wakes up a blocked writer.
+     *
+     * @param ex the error of the other channel
+     */
+    private void fail(final IOException ex) {
+        lock.lock();
+        try {
+            failure = ex;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
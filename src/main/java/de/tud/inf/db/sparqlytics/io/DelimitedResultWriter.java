@@ -0,0 +1,556 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+
+/**
+ * Writes SELECT query results as comma- or tab-separated values. The RDF
+ * terms are encoded into a reusable byte buffer directly, which is written to
+ * the channel when it is full, so that no strings or writers are allocated
+ * per row. The output matches the one of Jena's formatters, except for the
+ * labels of blank nodes in tab-separated values. This class is not safe for
+ * concurrent use.
+ *
+ * @author Michael Rudolf
+ */
+public class DelimitedResultWriter implements AutoCloseable {
+    /**
+     * The size of the buffer for writing to the channel.
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The URI of the XML schema string datatype.
+     */
+    private static final String XSD_STRING = XSDDatatype.XSDstring.getURI();
+
+    /**
+     * The URI of the XML schema integer datatype.
+     */
+    private static final String XSD_INTEGER = XSDDatatype.XSDinteger.getURI();
+
+    /**
+     * The URI of the XML schema decimal datatype.
+     */
+    private static final String XSD_DECIMAL = XSDDatatype.XSDdecimal.getURI();
+
+    /**
+     * The URI of the XML schema double datatype.
+     */
+    private static final String XSD_DOUBLE = XSDDatatype.XSDdouble.getURI();
+
+    /**
+     * The URI of the XML schema boolean datatype.
+     */
+    private static final String XSD_BOOLEAN = XSDDatatype.XSDboolean.getURI();
+
+    /**
+     * The channel to write to.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * Holds the encoded bytes not yet written to the channel.
+     */
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+
+    /**
+     * Wraps {@link #bytes} for writing them to the channel.
+     */
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    /**
+     * The number of encoded bytes in {@link #bytes}.
+     */
+    private int position;
+
+    /**
+     * Holds the characters of the string being encoded.
+     */
+    private char[] chars = new char[256];
+
+    /**
+     * Indicates whether tab-separated values are written instead of
+     * comma-separated values.
+     */
+    private final boolean tsv;
+
+    /**
+     * The result variables.
+     */
+    private final Var[] variables;
+
+    /**
+     * Maps blank nodes to the numbers of their labels.
+     */
+    private final Map<Node, Integer> blankNodes = new HashMap<>();
+
+    /**
+     * The number of rows written.
+     */
+    private long rows;
+
+    /**
+     * Creates a new writer and writes the header.
+     *
+     * @param channel   the channel to write to
+     * @param variables the result variables
+     * @param format    the results format, which has to be CSV or TSV
+     *
+     * @throws NullPointerException     if any argument is {@code null}
+     * @throws IllegalArgumentException if the format is not supported
+     * @throws RuntimeException         if the header cannot be written
+     */
+    public DelimitedResultWriter(final WritableByteChannel channel,
+            final List<Var> variables, final ResultsFormat format) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        if (!supports(format)) {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+        this.channel = channel;
+        this.variables = variables.toArray(new Var[variables.size()]);
+        tsv = format == ResultsFormat.FMT_RS_TSV;
+        for (int i = 0; i < this.variables.length; i++) {
+            if (i > 0) {
+                put(tsv ? '\t' : ',');
+            }
+            if (tsv) {
+                put('?');
+            }
+            put(this.variables[i].getVarName());
+        }
+        endLine();
+    }
+
+    /**
+     * Checks whether the given results format is supported by this class.
+     *
+     * @param format the results format to check
+     * @return whether the format is CSV or TSV
+     */
+    public static boolean supports(final ResultsFormat format) {
+        return format == ResultsFormat.FMT_RS_CSV ||
+                format == ResultsFormat.FMT_RS_TSV;
+    }
+
+    /**
+     * Writes the given row.
+     *
+     * @param row the row to write
+     *
+     * @throws RuntimeException if the row cannot be written
+     */
+    public void write(final Binding row) {
+        for (int i = 0; i < variables.length; i++) {
+            if (i > 0) {
+                put(tsv ? '\t' : ',');
+            }
+            Node node = row.get(variables[i]);
+            if (node != null) {
+                if (tsv) {
+                    putTSV(node);
+                } else {
+                    putCSV(node);
+                }
+            }
+        }
+        endLine();
+        rows++;
+    }
+
+    /**
+     * Returns the number of rows written so far.
+     *
+     * @return the number of written rows
+     */
+    public long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     *
+     * @throws RuntimeException if the bytes cannot be written
+     */
+    public void flush() {
+        buffer.limit(position).position(0);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            position = 0;
+        }
+    }
+
+    /**
+     * Writes the buffered bytes and closes the channel.
+     *
+     * @throws RuntimeException if the bytes cannot be written or the channel
+     *                          cannot be closed
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * Encodes the given node as a comma-separated value.
+     *
+     * @param node the node to encode
+     */
+    private void putCSV(final Node node) {
+        if (node.isBlank()) {
+            putBlankNode(node);
+            return;
+        }
+        int length = load(node.isURI() ? node.getURI() :
+                node.getLiteralLexicalForm());
+        boolean quote = length == 0;
+        for (int i = 0; i < length && !quote; i++) {
+            char c = chars[i];
+            quote = c == '"' || c == ',' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            putChars(0, length);
+            return;
+        }
+        put('"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (chars[i] == '"') {
+                putChars(start, i + 1);
+                start = i;
+            }
+        }
+        putChars(start, length);
+        put('"');
+    }
+
+    /**
+     * Encodes the given node as a tab-separated value in Turtle syntax.
+     *
+     * @param node the node to encode
+     */
+    private void putTSV(final Node node) {
+        if (node.isBlank()) {
+            putBlankNode(node);
+            return;
+        } else if (node.isURI()) {
+            put('<');
+            put(node.getURI());
+            put('>');
+            return;
+        }
+        String lexicalForm = node.getLiteralLexicalForm();
+        String language = node.getLiteralLanguage();
+        String datatype = node.getLiteralDatatypeURI();
+        if (language != null && !language.isEmpty()) {
+            putQuoted(lexicalForm);
+            put('@');
+            put(language);
+        } else if (datatype == null || datatype.equals(XSD_STRING)) {
+            putQuoted(lexicalForm);
+        } else if ((datatype.equals(XSD_INTEGER) &&
+                isInteger(lexicalForm)) ||
+                (datatype.equals(XSD_DECIMAL) && isDecimal(lexicalForm)) ||
+                (datatype.equals(XSD_DOUBLE) && isDouble(lexicalForm)) ||
+                (datatype.equals(XSD_BOOLEAN) &&
+                (lexicalForm.equals("true") || lexicalForm.equals("false")))) {
+            put(lexicalForm);
+        } else {
+            putQuoted(lexicalForm);
+            put('^');
+            put('^');
+            put('<');
+            put(datatype);
+            put('>');
+        }
+    }
+
+    /**
+     * Encodes the label of the given blank node, numbering blank nodes in
+     * the order of their first occurrence.
+     *
+     * @param node the blank node to encode
+     */
+    private void putBlankNode(final Node node) {
+        Integer number = blankNodes.get(node);
+        if (number == null) {
+            number = blankNodes.size();
+            blankNodes.put(node, number);
+        }
+        put('_');
+        put(':');
+        put('b');
+        putNumber(number);
+    }
+
+    /**
+     * Encodes the given string as a quoted Turtle string.
+     *
+     * @param string the string to encode
+     */
+    private void putQuoted(final String string) {
+        int length = load(string);
+        put('"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            char escaped;
+            switch (c) {
+                case '"':
+                case '\\':
+                    escaped = c;
+                    break;
+                case '\n':
+                    escaped = 'n';
+                    break;
+                case '\r':
+                    escaped = 'r';
+                    break;
+                case '\t':
+                    escaped = 't';
+                    break;
+                case '\f':
+                    escaped = 'f';
+                    break;
+                default:
+                    continue;
+            }
+            putChars(start, i);
+            put('\\');
+            put(escaped);
+            start = i + 1;
+        }
+        putChars(start, length);
+        put('"');
+    }
+
+    /**
+     * Encodes the given non-negative number in decimal digits.
+     *
+     * @param number the number to encode
+     */
+    private void putNumber(final int number) {
+        int divisor = 1;
+        while (divisor <= number / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            put((char)('0' + number / divisor % 10));
+        }
+    }
+
+    /**
+     * Terminates the current line.
+     */
+    private void endLine() {
+        if (!tsv) {
+            put('\r');
+        }
+        put('\n');
+    }
+
+    /**
+     * Encodes the given string in UTF-8.
+     *
+     * @param string the string to encode
+     */
+    private void put(final String string) {
+        putChars(0, load(string));
+    }
+
+    /**
+     * Copies the characters of the given string into {@link #chars}.
+     *
+     * @param string the string to copy
+     * @return the number of copied characters
+     */
+    private int load(final String string) {
+        int length = string.length();
+        if (length > chars.length) {
+            chars = new char[Math.max(length, 2 * chars.length)];
+        }
+        string.getChars(0, length, chars, 0);
+        return length;
+    }
+
+    /**
+     * Encodes the given range of {@link #chars} in UTF-8. Runs of ASCII
+     * characters are copied in a tight loop. A high surrogate is encoded
+     * together with the following low surrogate, and unpaired surrogates are
+     * replaced by a question mark.
+     *
+     * @param start the index of the first character to encode
+     * @param end   the index after the last character to encode
+     */
+    private void putChars(final int start, final int end) {
+        int i = start;
+        while (i < end) {
+            int limit = Math.min(end, i + bytes.length - position);
+            int p = position;
+            while (i < limit && chars[i] < 0x80) {
+                bytes[p++] = (byte)chars[i++];
+            }
+            position = p;
+            if (i == end) {
+                return;
+            }
+            if (bytes.length - position < 4) {
+                flush();
+            }
+            char c = chars[i++];
+            if (c < 0x80) {
+                bytes[position++] = (byte)c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte)(0xC0 | c >> 6);
+                bytes[position++] = (byte)(0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i < end &&
+                        Character.isLowSurrogate(chars[i])) {
+                    int codePoint = Character.toCodePoint(c, chars[i++]);
+                    bytes[position++] = (byte)(0xF0 | codePoint >> 18);
+                    bytes[position++] = (byte)(0x80 | codePoint >> 12 & 0x3F);
+                    bytes[position++] = (byte)(0x80 | codePoint >> 6 & 0x3F);
+                    bytes[position++] = (byte)(0x80 | codePoint & 0x3F);
+                } else {
+                    bytes[position++] = '?';
+                }
+            } else {
+                bytes[position++] = (byte)(0xE0 | c >> 12);
+                bytes[position++] = (byte)(0x80 | c >> 6 & 0x3F);
+                bytes[position++] = (byte)(0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    /**
+     * Encodes the given ASCII character.
+     *
+     * @param c the character to encode
+     */
+    private void put(final char c) {
+        if (position == bytes.length) {
+            flush();
+        }
+        bytes[position++] = (byte)c;
+    }
+
+    /**
+     * Checks whether the given lexical form is a Turtle integer.
+     *
+     * @param lexicalForm the lexical form to check
+     * @return whether the lexical form can be written without datatype
+     */
+    private static boolean isInteger(final String lexicalForm) {
+        int start = skipSign(lexicalForm, 0);
+        return skipDigits(lexicalForm, start) == lexicalForm.length() &&
+                start < lexicalForm.length();
+    }
+
+    /**
+     * Checks whether the given lexical form is a Turtle decimal.
+     *
+     * @param lexicalForm the lexical form to check
+     * @return whether the lexical form can be written without datatype
+     */
+    private static boolean isDecimal(final String lexicalForm) {
+        int dot = skipDigits(lexicalForm, skipSign(lexicalForm, 0));
+        if (dot == lexicalForm.length() || lexicalForm.charAt(dot) != '.') {
+            return false;
+        }
+        int end = skipDigits(lexicalForm, dot + 1);
+        return end > dot + 1 && end == lexicalForm.length();
+    }
+
+    /**
+     * Checks whether the given lexical form is a Turtle double.
+     *
+     * @param lexicalForm the lexical form to check
+     * @return whether the lexical form can be written without datatype
+     */
+    private static boolean isDouble(final String lexicalForm) {
+        int start = skipSign(lexicalForm, 0);
+        int end = skipDigits(lexicalForm, start);
+        int digits = end - start;
+        if (end < lexicalForm.length() && lexicalForm.charAt(end) == '.') {
+            int fraction = skipDigits(lexicalForm, end + 1);
+            digits += fraction - end - 1;
+            end = fraction;
+        }
+        if (digits == 0 || end == lexicalForm.length() ||
+                (lexicalForm.charAt(end) != 'e' &&
+                lexicalForm.charAt(end) != 'E')) {
+            return false;
+        }
+        int exponent = skipSign(lexicalForm, end + 1);
+        int exponentEnd = skipDigits(lexicalForm, exponent);
+        return exponentEnd > exponent && exponentEnd == lexicalForm.length();
+    }
+
+    /**
+     * Returns the index after an optional sign at the given index.
+     *
+     * @param string    the string to check
+     * @param start     the index of the optional sign
+     * @return the index of the first character after the sign
+     */
+    private static int skipSign(final String string, final int start) {
+        return start < string.length() && (string.charAt(start) == '+' ||
+                string.charAt(start) == '-') ? start + 1 : start;
+    }
+
+    /**
+     * Returns the index after the digits starting at the given index.
+     *
+     * @param string    the string to check
+     * @param start     the index to start at
+     * @return the index of the first character that is not a digit
+     */
+    private static int skipDigits(final String string, final int start) {
+        int end = start;
+        while (end < string.length() && string.charAt(end) >= '0' &&
+                string.charAt(end) <= '9') {
+            end++;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,107 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+/**
+ * Interfaces for streams of items with backpressure, in which a subscriber
+ * receives no more items than it has requested. They mirror
+ * {@code java.util.concurrent.Flow} of Java 9 with the same methods and the
+ * same rules, which is not available on the Java 8 runtime targeted by this
+ * project, so that they can be adapted to it one to one.
+ *
+ * @author Michael Rudolf
+ */
+public final class Flow {
+    /**
+     * Prevents instantiation.
+     */
+    private Flow() {
+    }
+
+    /**
+     * Produces items for subscribers.
+     *
+     * @param <T> the type of the produced items
+     */
+    public static interface Publisher<T> {
+        /**
+         * Adds the given subscriber, which first receives its subscription
+         * through {@link Subscriber#onSubscribe}. If the subscriber cannot
+         * be added, it receives {@link Subscriber#onError} instead.
+         *
+         * @param subscriber the subscriber to add
+         * @throws NullPointerException if the parameter is {@code null}
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives items from a publisher. The methods are called one after the
+     * other, never concurrently.
+     *
+     * @param <T> the type of the received items
+     */
+    public static interface Subscriber<T> {
+        /**
+         * Receives the subscription, before any other method is called.
+         *
+         * @param subscription the subscription for requesting items
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Receives the next item, which has been requested before.
+         *
+         * @param item the next item
+         */
+        void onNext(T item);
+
+        /**
+         * Receives the error that ended the stream. No other method is
+         * called afterwards.
+         *
+         * @param throwable the error
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Signals that all items have been received. No other method is
+         * called afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * Links a publisher with a subscriber.
+     */
+    public static interface Subscription {
+        /**
+         * Requests the given number of further items. The requests add up,
+         * and {@link Long#MAX_VALUE} requests all items. A non-positive
+         * number ends the stream with {@link Subscriber#onError}.
+         *
+         * @param n the number of further items
+         */
+        void request(long n);
+
+        /**
+         * Stops sending items, possibly after some items that are already
+         * under way.
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,522 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.resultset.ResultSetException;
+
+/**
+ * Reads SELECT query results in the SPARQL JSON format. The JSON document is
+ * tokenized on the raw bytes and the bindings are read one at a time, so that
+ * the result is never held in memory as a whole. Strings are decoded into a
+ * reusable buffer, and the node of the previous row is reused if a variable
+ * is bound to the same term again. The head with the result variables has to
+ * precede the results.
+ *
+ * @author Michael Rudolf
+ */
+public class JSONResultReader extends ResultReader {
+    /**
+     * The term type of IRIs.
+     */
+    private static final int URI = 0;
+
+    /**
+     * The term type of blank nodes.
+     */
+    private static final int BNODE = 1;
+
+    /**
+     * The term type of literals.
+     */
+    private static final int LITERAL = 2;
+
+    /**
+     * The result variables.
+     */
+    private final List<Var> variables;
+
+    /**
+     * The term types of the previous row per variable.
+     */
+    private final int[] previousTypes;
+
+    /**
+     * The values of the terms of the previous row per variable.
+     */
+    private final String[] previousValues;
+
+    /**
+     * The language tags of the terms of the previous row per variable.
+     */
+    private final String[] previousLanguages;
+
+    /**
+     * The datatypes of the terms of the previous row per variable.
+     */
+    private final String[] previousDatatypes;
+
+    /**
+     * The nodes of the previous row per variable.
+     */
+    private final Node[] previousNodes;
+
+    /**
+     * Maps blank node labels to the blank nodes created for them.
+     */
+    private final Map<String, Node> blankNodes = new HashMap<>();
+
+    /**
+     * Holds the string read last.
+     */
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * Indicates whether the next binding is the first one.
+     */
+    private boolean first = true;
+
+    /**
+     * Indicates whether all bindings have been read.
+     */
+    private boolean done;
+
+    /**
+     * Creates a new reader for the given stream and reads the head up to the
+     * first binding.
+     *
+     * @param in the stream to read the result from
+     *
+     * @throws NullPointerException if the stream is {@code null}
+     * @throws ResultSetException   if the beginning of the result is
+     *                              malformed or the head is missing
+     */
+    public JSONResultReader(final InputStream in) {
+        super(in);
+        List<Var> header = null;
+        expect('{');
+        boolean bindings = false;
+        for (boolean firstMember = true; !bindings && member(firstMember);
+                firstMember = false) {
+            if (isText("head")) {
+                header = readHead();
+            } else if (isText("results")) {
+                expect('{');
+                for (boolean firstResult = true; member(firstResult);
+                        firstResult = false) {
+                    if (isText("bindings")) {
+                        if (header == null) {
+                            throw new ResultSetException(
+                                    "Results before head");
+                        }
+                        expect('[');
+                        bindings = true;
+                        break;
+                    }
+                    skipValue();
+                }
+            } else {
+                skipValue();
+            }
+        }
+        if (header == null) {
+            throw new ResultSetException("Missing head");
+        }
+        done = !bindings;
+        variables = Collections.unmodifiableList(header);
+        previousTypes = new int[header.size()];
+        previousValues = new String[header.size()];
+        previousLanguages = new String[header.size()];
+        previousDatatypes = new String[header.size()];
+        previousNodes = new Node[header.size()];
+    }
+
+    @Override
+    public List<Var> getVariables() {
+        return variables;
+    }
+
+    @Override
+    protected Binding readRow() {
+        if (done) {
+            return null;
+        }
+        skipWhitespace();
+        int c = read();
+        if (c == ']') {
+            finishObject();
+            finishObject();
+            done = true;
+            return null;
+        }
+        if (!first) {
+            if (c != ',') {
+                throw unexpected(c);
+            }
+            skipWhitespace();
+            c = read();
+        }
+        if (c != '{') {
+            throw unexpected(c);
+        }
+        first = false;
+        BindingMap row = BindingFactory.create();
+        for (boolean firstMember = true; member(firstMember);
+                firstMember = false) {
+            int index = -1;
+            for (int i = 0; i < variables.size() && index < 0; i++) {
+                if (isText(variables.get(i).getVarName())) {
+                    index = i;
+                }
+            }
+            Var var = index < 0 ? Var.alloc(text.toString()) :
+                    variables.get(index);
+            row.add(var, readTerm(index));
+        }
+        return row;
+    }
+
+    /**
+     * Reads the head object and returns the result variables.
+     *
+     * @return the result variables
+     */
+    private List<Var> readHead() {
+        List<Var> header = new ArrayList<>();
+        expect('{');
+        for (boolean firstMember = true; member(firstMember);
+                firstMember = false) {
+            if (isText("vars")) {
+                expect('[');
+                skipWhitespace();
+                if (peek() == ']') {
+                    read();
+                    continue;
+                }
+                int c;
+                do {
+                    expect('"');
+                    readString();
+                    header.add(Var.alloc(text.toString()));
+                    skipWhitespace();
+                    c = read();
+                } while (c == ',');
+                if (c != ']') {
+                    throw unexpected(c);
+                }
+            } else {
+                skipValue();
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Reads an RDF term object and reuses the node of the previous row if the
+     * variable was bound to the same term.
+     *
+     * @param index the index of the variable the term is bound to, or
+     *              {@code -1} if it is not a result variable
+     * @return the node for the term
+     */
+    private Node readTerm(final int index) {
+        int type = -1;
+        String value = null;
+        String language = null;
+        String datatype = null;
+        expect('{');
+        for (boolean firstMember = true; member(firstMember);
+                firstMember = false) {
+            if (isText("type")) {
+                expect('"');
+                readString();
+                if (isText("uri")) {
+                    type = URI;
+                } else if (isText("bnode")) {
+                    type = BNODE;
+                } else if (isText("literal") || isText("typed-literal")) {
+                    type = LITERAL;
+                } else {
+                    throw new ResultSetException("Unknown term type: " + text);
+                }
+            } else if (isText("value")) {
+                expect('"');
+                readString();
+                value = text.toString();
+            } else if (isText("xml:lang")) {
+                expect('"');
+                readString();
+                language = text.toString();
+            } else if (isText("datatype")) {
+                expect('"');
+                readString();
+                datatype = text.toString();
+            } else {
+                skipValue();
+            }
+        }
+        if (type < 0 || value == null) {
+            throw new ResultSetException("Incomplete term");
+        }
+        if (index >= 0 && previousNodes[index] != null &&
+                type == previousTypes[index] &&
+                value.equals(previousValues[index]) &&
+                Objects.equals(language, previousLanguages[index]) &&
+                Objects.equals(datatype, previousDatatypes[index])) {
+            return previousNodes[index];
+        }
+        Node node;
+        switch (type) {
+            case URI:
+                node = NodeFactory.createURI(value);
+                break;
+            case BNODE:
+                node = blankNodes.get(value);
+                if (node == null) {
+                    node = NodeFactory.createBlankNode();
+                    blankNodes.put(value, node);
+                }
+                break;
+            default:
+                if (datatype != null) {
+                    node = NodeFactory.createLiteral(value,
+                            TypeMapper.getInstance().getSafeTypeByName(datatype));
+                } else if (language != null && !language.isEmpty()) {
+                    node = NodeFactory.createLiteral(value, language);
+                } else {
+                    node = NodeFactory.createLiteral(value);
+                }
+        }
+        if (index >= 0) {
+            previousTypes[index] = type;
+            previousValues[index] = value;
+            previousLanguages[index] = language;
+            previousDatatypes[index] = datatype;
+            previousNodes[index] = node;
+        }
+        return node;
+    }
+
+    /**
+     * Advances to the next member of an object and reads its name into
+     * {@link #text}.
+     *
+     * @param firstMember whether no member of the object has been read yet
+     * @return whether a member follows or the object has been closed instead
+     */
+    private boolean member(final boolean firstMember) {
+        skipWhitespace();
+        int c = read();
+        if (c == '}') {
+            return false;
+        }
+        if (!firstMember) {
+            if (c != ',') {
+                throw unexpected(c);
+            }
+            skipWhitespace();
+            c = read();
+        }
+        if (c != '"') {
+            throw unexpected(c);
+        }
+        readString();
+        expect(':');
+        return true;
+    }
+
+    /**
+     * Skips the remaining members of an object after at least one member has
+     * been read, including the closing brace.
+     */
+    private void finishObject() {
+        while (member(false)) {
+            skipValue();
+        }
+    }
+
+    /**
+     * Skips a JSON value.
+     */
+    private void skipValue() {
+        skipWhitespace();
+        int c = read();
+        switch (c) {
+            case '{':
+                for (boolean firstMember = true; member(firstMember);
+                        firstMember = false) {
+                    skipValue();
+                }
+                break;
+            case '[':
+                skipWhitespace();
+                if (peek() == ']') {
+                    read();
+                    break;
+                }
+                do {
+                    skipValue();
+                    skipWhitespace();
+                    c = read();
+                } while (c == ',');
+                if (c != ']') {
+                    throw unexpected(c);
+                }
+                break;
+            case '"':
+                readString();
+                break;
+            default:
+                if (c < 0) {
+                    throw unexpected(c);
+                }
+                for (c = peek(); c >= 0 && (Character.isLetterOrDigit(c) ||
+                        c == '+' || c == '-' || c == '.'); c = peek()) {
+                    read();
+                }
+        }
+    }
+
+    /**
+     * Reads the remainder of a string after the opening quote into
+     * {@link #text}, decoding UTF-8 and resolving escape sequences.
+     */
+    private void readString() {
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c < 0) {
+                throw unexpected(c);
+            } else if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'b':
+                        text.append('\b');
+                        break;
+                    case 'f':
+                        text.append('\f');
+                        break;
+                    case 'n':
+                        text.append('\n');
+                        break;
+                    case 'r':
+                        text.append('\r');
+                        break;
+                    case 't':
+                        text.append('\t');
+                        break;
+                    case 'u':
+                        int unit = 0;
+                        for (int i = 0; i < 4; i++) {
+                            c = read();
+                            int digit = c < 0 ? -1 : Character.digit(c, 16);
+                            if (digit < 0) {
+                                throw unexpected(c);
+                            }
+                            unit = unit << 4 | digit;
+                        }
+                        text.append((char)unit);
+                        break;
+                    default:
+                        if (c < 0) {
+                            throw unexpected(c);
+                        }
+                        text.append((char)c);
+                }
+            } else if (c < 0x80) {
+                text.append((char)c);
+            } else {
+                int continuation = c >= 0xF0 ? 3 : c >= 0xE0 ? 2 : 1;
+                int codePoint = c & (0x3F >> continuation);
+                for (int i = 0; i < continuation; i++) {
+                    codePoint = codePoint << 6 | (read() & 0x3F);
+                }
+                text.appendCodePoint(codePoint);
+            }
+        }
+    }
+
+    /**
+     * Skips whitespace and consumes the given character.
+     *
+     * @param expected the character to consume
+     *
+     * @throws ResultSetException if another character follows
+     */
+    private void expect(final char expected) {
+        skipWhitespace();
+        int c = read();
+        if (c != expected) {
+            throw unexpected(c);
+        }
+    }
+
+    /**
+     * Skips whitespace.
+     */
+    private void skipWhitespace() {
+        for (int c = peek(); c == ' ' || c == '\t' || c == '\n' || c == '\r';
+                c = peek()) {
+            read();
+        }
+    }
+
+    /**
+     * Checks whether the string read last equals the given string.
+     *
+     * @param string the string to compare with
+     * @return whether the strings are equal
+     */
+    private boolean isText(final String string) {
+        if (text.length() != string.length()) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (text.charAt(i) != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates an exception for an unexpected character.
+     *
+     * @param c the unexpected character or {@code -1} at the end of the
+     *          stream
+     * @return the created exception
+     */
+    private static ResultSetException unexpected(final int c) {
+        return new ResultSetException(c < 0 ? "Unexpected end of JSON" :
+                "Unexpected character in JSON: " + (char)c);
+    }
+}
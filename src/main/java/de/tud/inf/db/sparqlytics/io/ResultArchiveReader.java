@@ -0,0 +1,433 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the records of an archive written by a {@link ResultArchiveWriter}.
+ * The index is read completely when the archive is opened, while the bodies
+ * of the records are read from the data file on demand.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultArchiveReader implements AutoCloseable {
+    /**
+     * The data file.
+     */
+    private final FileChannel data;
+
+    /**
+     * The index entries of the records in the order they were written.
+     */
+    private final List<Entry> entries;
+
+    /**
+     * The index entries grouped by the hash of the cube state they were
+     * computed in.
+     */
+    private final Map<Long, List<Entry>> entriesByState = new HashMap<>();
+
+    /**
+     * Opens the archive with the given data file for reading. The index is
+     * expected in the file returned by
+     * {@link ResultArchiveWriter#getIndexFile}.
+     *
+     * @param file the data file of the archive
+     * @throws NullPointerException if the argument is {@code null}
+     * @throws IOException          if the archive cannot be read or is
+     *                              corrupt
+     */
+    public ResultArchiveReader(final File file) throws IOException {
+        data = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (data.size() < Long.SIZE / Byte.SIZE ||
+                    read(data, 0, Long.SIZE / Byte.SIZE).getLong() !=
+                    ResultArchiveWriter.DATA_MAGIC) {
+                throw new IOException("Not a result archive");
+            }
+            entries = Collections.unmodifiableList(readIndex(
+                    ResultArchiveWriter.getIndexFile(file)));
+            for (Entry entry : entries) {
+                List<Entry> group = entriesByState.get(
+                        entry.getCubeStateHash());
+                if (group == null) {
+                    group = new ArrayList<>(1);
+                    entriesByState.put(entry.getCubeStateHash(), group);
+                }
+                group.add(entry);
+            }
+        } catch (IOException | RuntimeException ex) {
+            data.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Helper method for reading the entries from the given index file.
+     *
+     * @param file the index file
+     * @return the entries of the index
+     * @throws IOException if the index cannot be read or is corrupt
+     */
+    private List<Entry> readIndex(final File file) throws IOException {
+        try (FileChannel index = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long size = index.size();
+            if (size < Long.SIZE / Byte.SIZE || read(index, 0,
+                    Long.SIZE / Byte.SIZE).getLong() !=
+                    ResultArchiveWriter.INDEX_MAGIC) {
+                throw new IOException("Missing or invalid archive index");
+            }
+            long count = (size - Long.SIZE / Byte.SIZE) /
+                    ResultArchiveWriter.INDEX_ENTRY_SIZE;
+            if (count > Integer.MAX_VALUE / ResultArchiveWriter.INDEX_ENTRY_SIZE) {
+                throw new IOException("Archive index too large");
+            }
+            ByteBuffer buffer = read(index, Long.SIZE / Byte.SIZE,
+                    (int)count * ResultArchiveWriter.INDEX_ENTRY_SIZE);
+            List<Entry> result = new ArrayList<>((int)count);
+            long dataSize = data.size();
+            while (buffer.hasRemaining()) {
+                long statement = buffer.getLong();
+                long cubeStateHash = buffer.getLong();
+                long offset = buffer.getLong();
+                long bodyOffset = buffer.getLong();
+                long length = buffer.getLong();
+                long typeOffset = offset + 3 * Long.SIZE / Byte.SIZE;
+                if (offset < Long.SIZE / Byte.SIZE || length < 0 ||
+                        bodyOffset < typeOffset + 2 ||
+                        bodyOffset + length > dataSize ||
+                        read(data, offset, Long.SIZE / Byte.SIZE).getLong() !=
+                        length) {
+                    throw new IOException("Corrupt archive record at offset " +
+                            offset);
+                }
+                int typeLength = read(data, typeOffset, 2).getShort() & 0xffff;
+                if (typeOffset + 2 + typeLength != bodyOffset) {
+                    throw new IOException("Corrupt archive record at offset " +
+                            offset);
+                }
+                ByteBuffer type = read(data, typeOffset + 2, typeLength);
+                result.add(new Entry(statement, cubeStateHash,
+                        new String(type.array(), StandardCharsets.UTF_8),
+                        offset, bodyOffset, length));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns the index entries of all records in the order they were
+     * written.
+     *
+     * @return the index entries
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the index entries of the records produced by the statement with
+     * the given number.
+     *
+     * @param statement the number of the statement
+     * @return the index entries of the statement's records
+     */
+    public List<Entry> getEntries(final long statement) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.getStatement() == statement) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index entries of the records computed in the cube state
+     * with the given hash, in the order they were written. The lookup takes
+     * constant time, so that the results of a state returned to by undoing
+     * or checking out a branch are found right away.
+     *
+     * @param cubeStateHash the hash of the cube state
+     * @return the index entries of the records computed in that state
+     *
+     * @see de.tud.inf.db.sparqlytics.model.SessionState#getHash
+     */
+    public List<Entry> getEntriesByState(final long cubeStateHash) {
+        List<Entry> result = entriesByState.get(cubeStateHash);
+        return result == null ? Collections.<Entry>emptyList() :
+                Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Opens a channel for reading the body of the given record. Channels of
+     * several records may be used at the same time.
+     *
+     * @param entry the index entry of the record
+     * @return a channel reading the body of the record
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public ReadableByteChannel openChannel(final Entry entry) {
+        return new BodyChannel(entry.getBodyOffset(), entry.getLength());
+    }
+
+    /**
+     * Opens a buffered stream for reading the body of the given record.
+     *
+     * @param entry the index entry of the record
+     * @return a stream reading the body of the record
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public InputStream openStream(final Entry entry) {
+        return new BufferedInputStream(Channels.newInputStream(
+                openChannel(entry)), ResultArchiveWriter.BUFFER_SIZE);
+    }
+
+    /**
+     * Opens a reader for the rows of the given record, which has to contain a
+     * SPARQL result set.
+     *
+     * @param entry the index entry of the record
+     * @return a reader for the rows of the record, which has to be closed
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public ResultReader openResult(final Entry entry) {
+        return ResultReader.create(openStream(entry), entry.getMediaType());
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * Helper method for reading the given number of bytes at the given
+     * offset of the given file.
+     *
+     * @param file      the file to read from
+     * @param offset    the offset to read at
+     * @param length    the number of bytes to read
+     * @return a buffer containing the read bytes
+     * @throws IOException if the bytes cannot be read
+     */
+    private static ByteBuffer read(final FileChannel file, final long offset,
+            final int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * An entry of the archive index, describing a single record.
+     */
+    public static class Entry {
+        /**
+         * The number of the statement that produced the record.
+         */
+        private final long statement;
+
+        /**
+         * The hash of the cube state the record was computed in.
+         */
+        private final long cubeStateHash;
+
+        /**
+         * The media type of the body of the record.
+         */
+        private final String mediaType;
+
+        /**
+         * The offset of the record in the data file.
+         */
+        private final long offset;
+
+        /**
+         * The offset of the body of the record in the data file.
+         */
+        private final long bodyOffset;
+
+        /**
+         * The length of the body of the record.
+         */
+        private final long length;
+
+        /**
+         * Creates a new index entry.
+         *
+         * @param statement     the number of the statement that produced the
+         *                      record
+         * @param cubeStateHash the hash of the cube state the record was
+         *                      computed in
+         * @param mediaType     the media type of the body of the record
+         * @param offset        the offset of the record in the data file
+         * @param bodyOffset    the offset of the body in the data file
+         * @param length        the length of the body
+         */
+        protected Entry(final long statement, final long cubeStateHash,
+                final String mediaType, final long offset,
+                final long bodyOffset, final long length) {
+            this.statement = statement;
+            this.cubeStateHash = cubeStateHash;
+            this.mediaType = mediaType;
+            this.offset = offset;
+            this.bodyOffset = bodyOffset;
+            this.length = length;
+        }
+
+        /**
+         * Returns the number of the statement that produced the record.
+         *
+         * @return the statement number
+         */
+        public long getStatement() {
+            return statement;
+        }
+
+        /**
+         * Returns the hash of the cube state the record was computed in.
+         *
+         * @return the cube state hash
+         */
+        public long getCubeStateHash() {
+            return cubeStateHash;
+        }
+
+        /**
+         * Returns the media type of the body of the record.
+         *
+         * @return the media type
+         */
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        /**
+         * Returns the offset of the record in the data file.
+         *
+         * @return the offset of the record
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the offset of the body of the record in the data file.
+         *
+         * @return the offset of the body
+         */
+        public long getBodyOffset() {
+            return bodyOffset;
+        }
+
+        /**
+         * Returns the length of the body of the record.
+         *
+         * @return the length of the body
+         */
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Channel reading a range of the data file using positional reads, which
+     * do not interfere with other channels.
+     */
+    private class BodyChannel implements ReadableByteChannel {
+        /**
+         * The offset of the next byte to read.
+         */
+        private long position;
+
+        /**
+         * The number of bytes left to read.
+         */
+        private long remaining;
+
+        /**
+         * Whether this channel is open.
+         */
+        private boolean open = true;
+
+        /**
+         * Creates a new channel reading the given range of the data file.
+         *
+         * @param position  the offset of the first byte to read
+         * @param length    the number of bytes to read
+         */
+        BodyChannel(final long position, final long length) {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            } else if (remaining == 0) {
+                return -1;
+            }
+            int limit = dst.limit();
+            if (dst.remaining() > remaining) {
+                dst.limit(dst.position() + (int)remaining);
+            }
+            try {
+                int read = data.read(dst, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of archive");
+                }
+                position += read;
+                remaining -= read;
+                return read;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
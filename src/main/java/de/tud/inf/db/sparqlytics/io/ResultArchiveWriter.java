@@ -0,0 +1,452 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends results to a single archive file instead of creating a file per
+ * result. The archive consists of a data file holding length-prefixed
+ * records and an index file with one entry of fixed size per record. A
+ * record starts with the length of its body, the number of the statement
+ * that produced it, the hash of the cube state it was computed in, and its
+ * media type, followed by the body. An index entry repeats the statement
+ * number and the cube state hash together with the offsets of the record
+ * and of its body and the length of the body, so that a
+ * {@link ResultArchiveReader} can locate records without scanning the data
+ * file.
+ * <p>
+ * Records are written one at a time through the channel returned by
+ * {@link #beginRecord}. The bytes are collected in a buffer and written to
+ * the data file in large blocks. When the record channel is closed, the
+ * length prefix is filled in and the index entry is appended, so that the
+ * archive is complete after every record. Opening an existing archive
+ * discards a record whose index entry is missing, for example because the
+ * writing process has been killed, and appends after the last complete
+ * record.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultArchiveWriter implements AutoCloseable {
+    /**
+     * The magic number at the start of the data file.
+     */
+    public static final long DATA_MAGIC = 0x5350524c41524331L;
+
+    /**
+     * The magic number at the start of the index file.
+     */
+    public static final long INDEX_MAGIC = 0x5350524c49445831L;
+
+    /**
+     * The size of an index entry in bytes.
+     */
+    public static final int INDEX_ENTRY_SIZE = 5 * Long.SIZE / Byte.SIZE;
+
+    /**
+     * The size of the buffer for writing records.
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The data file.
+     */
+    private final FileChannel data;
+
+    /**
+     * The index file.
+     */
+    private final FileChannel index;
+
+    /**
+     * Collects the bytes to write to the data file.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Holds an index entry or a length prefix.
+     */
+    private final ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+
+    /**
+     * The offset in the data file at which the next byte will be written,
+     * including the buffered bytes.
+     */
+    private long position;
+
+    /**
+     * The number of records in the archive.
+     */
+    private long recordCount;
+
+    /**
+     * The record currently being written or {@code null}.
+     */
+    private RecordChannel record;
+
+    /**
+     * Whether this writer has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Opens the archive with the given data file for appending, creating it
+     * if it does not exist yet. The index is kept in the file returned by
+     * {@link #getIndexFile}.
+     *
+     * @param file the data file of the archive
+     * @throws NullPointerException if the argument is {@code null}
+     * @throws IOException          if the archive cannot be opened or the
+     *                              file is not an archive
+     */
+    public ResultArchiveWriter(final File file) throws IOException {
+        data = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            index = FileChannel.open(getIndexFile(file).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException ex) {
+            data.close();
+            throw ex;
+        }
+        try {
+            recover();
+        } catch (IOException | RuntimeException ex) {
+            index.close();
+            data.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the index file belonging to the given data file.
+     *
+     * @param file the data file of an archive
+     * @return the index file of the archive
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public static File getIndexFile(final File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    /**
+     * Helper method for initializing a new archive or for positioning this
+     * writer after the last complete record of an existing archive.
+     *
+     * @throws IOException if the files cannot be accessed or are not an
+     *                     archive
+     */
+    private void recover() throws IOException {
+        if (data.size() == 0) {
+            index.truncate(0);
+            writeLong(data, DATA_MAGIC, 0);
+            writeLong(index, INDEX_MAGIC, 0);
+            position = Long.SIZE / Byte.SIZE;
+            recordCount = 0;
+        } else {
+            if (data.size() < Long.SIZE / Byte.SIZE ||
+                    readLong(data, 0) != DATA_MAGIC) {
+                throw new IOException("Not a result archive");
+            }
+            if (index.size() < Long.SIZE / Byte.SIZE ||
+                    readLong(index, 0) != INDEX_MAGIC) {
+                throw new IOException("Missing or invalid archive index");
+            }
+            position = Long.SIZE / Byte.SIZE;
+            recordCount = (index.size() - Long.SIZE / Byte.SIZE) /
+                    INDEX_ENTRY_SIZE;
+            while (recordCount > 0) {
+                long offset = Long.SIZE / Byte.SIZE +
+                        (recordCount - 1) * INDEX_ENTRY_SIZE;
+                long end = readLong(index, offset + 3 * Long.SIZE / Byte.SIZE) +
+                        readLong(index, offset + 4 * Long.SIZE / Byte.SIZE);
+                if (end <= data.size()) {
+                    position = end;
+                    break;
+                }
+                recordCount--;
+            }
+            index.truncate(Long.SIZE / Byte.SIZE +
+                    recordCount * INDEX_ENTRY_SIZE);
+            data.truncate(position);
+        }
+        data.position(position);
+        index.position(index.size());
+    }
+
+    /**
+     * Starts a new record. The body of the record is written to the returned
+     * channel, and the record is completed by closing the channel.
+     *
+     * @param statement     the number of the statement producing the record
+     * @param cubeStateHash the hash of the cube state the record was computed
+     *                      in
+     * @param mediaType     the media type of the body
+     * @return a channel for writing the body of the record
+     * @throws NullPointerException     if the media type is {@code null}
+     * @throws IllegalArgumentException if the media type is too long
+     * @throws IllegalStateException    if the previous record has not been
+     *                                  completed
+     * @throws IOException              if an error occurs while writing
+     */
+    public WritableByteChannel beginRecord(final long statement,
+            final long cubeStateHash, final String mediaType)
+            throws IOException {
+        byte[] type = mediaType.getBytes(StandardCharsets.UTF_8);
+        if (type.length > 0xffff) {
+            throw new IllegalArgumentException("Media type too long");
+        }
+        if (closed) {
+            throw new ClosedChannelException();
+        } else if (record != null) {
+            throw new IllegalStateException("Previous record not completed");
+        }
+        long offset = position;
+        putLong(0);
+        putLong(statement);
+        putLong(cubeStateHash);
+        put(ByteBuffer.allocate(2).putShort(0, (short)type.length));
+        put(ByteBuffer.wrap(type));
+        record = new RecordChannel(statement, cubeStateHash, offset, position);
+        return record;
+    }
+
+    /**
+     * Returns the number of complete records in the archive.
+     *
+     * @return the number of records
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the offset in the data file at which the next record starts,
+     * as long as no record is being written.
+     *
+     * @return the offset of the next record
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Completes the current record, if any, and closes the archive.
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (record != null) {
+                record.close();
+            }
+        } finally {
+            closed = true;
+            try {
+                index.close();
+            } finally {
+                data.close();
+            }
+        }
+    }
+
+    /**
+     * Helper method for appending a long value to the data file.
+     *
+     * @param value the value to append
+     * @throws IOException if an error occurs while writing
+     */
+    private void putLong(final long value) throws IOException {
+        if (buffer.remaining() < Long.SIZE / Byte.SIZE) {
+            drain();
+        }
+        buffer.putLong(value);
+        position += Long.SIZE / Byte.SIZE;
+    }
+
+    /**
+     * Helper method for appending the remaining bytes of the given buffer to
+     * the data file. Large buffers are written directly instead of being
+     * copied.
+     *
+     * @param src the bytes to append
+     * @return the number of appended bytes
+     * @throws IOException if an error occurs while writing
+     */
+    private int put(final ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (buffer.position() == 0 && length >= buffer.capacity()) {
+            while (src.hasRemaining()) {
+                data.write(src);
+            }
+        } else {
+            while (src.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                if (src.remaining() <= buffer.remaining()) {
+                    buffer.put(src);
+                } else {
+                    int limit = src.limit();
+                    src.limit(src.position() + buffer.remaining());
+                    buffer.put(src);
+                    src.limit(limit);
+                }
+            }
+        }
+        position += length;
+        return length;
+    }
+
+    /**
+     * Helper method for writing the buffered bytes to the data file.
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            data.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Helper method for writing a long value at the given offset of the given
+     * file.
+     *
+     * @param file      the file to write to
+     * @param value     the value to write
+     * @param offset    the offset to write at
+     * @throws IOException if an error occurs while writing
+     */
+    private void writeLong(final FileChannel file, final long value,
+            final long offset) throws IOException {
+        entry.clear();
+        entry.putLong(value).flip();
+        while (entry.hasRemaining()) {
+            file.write(entry, offset + entry.position());
+        }
+    }
+
+    /**
+     * Helper method for reading a long value at the given offset of the given
+     * file.
+     *
+     * @param file      the file to read from
+     * @param offset    the offset to read at
+     * @return the read value
+     * @throws IOException if an error occurs while reading
+     */
+    private long readLong(final FileChannel file, final long offset)
+            throws IOException {
+        entry.clear();
+        entry.limit(Long.SIZE / Byte.SIZE);
+        while (entry.hasRemaining()) {
+            if (file.read(entry, offset + entry.position()) < 0) {
+                throw new IOException("Unexpected end of archive");
+            }
+        }
+        return entry.getLong(0);
+    }
+
+    /**
+     * Channel for writing the body of a record.
+     */
+    private class RecordChannel implements WritableByteChannel {
+        /**
+         * The number of the statement producing the record.
+         */
+        private final long statement;
+
+        /**
+         * The hash of the cube state the record was computed in.
+         */
+        private final long cubeStateHash;
+
+        /**
+         * The offset of the record in the data file.
+         */
+        private final long offset;
+
+        /**
+         * The offset of the body of the record in the data file.
+         */
+        private final long bodyOffset;
+
+        /**
+         * Creates a new channel for the record at the given offset.
+         *
+         * @param statement     the number of the statement producing the
+         *                      record
+         * @param cubeStateHash the hash of the cube state the record was
+         *                      computed in
+         * @param offset        the offset of the record
+         * @param bodyOffset    the offset of the body of the record
+         */
+        RecordChannel(final long statement, final long cubeStateHash,
+                final long offset, final long bodyOffset) {
+            this.statement = statement;
+            this.cubeStateHash = cubeStateHash;
+            this.offset = offset;
+            this.bodyOffset = bodyOffset;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+            return put(src);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return record == this;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!isOpen()) {
+                return;
+            }
+            record = null;
+            drain();
+            long length = position - bodyOffset;
+            writeLong(data, length, offset);
+            entry.clear();
+            entry.putLong(statement).putLong(cubeStateHash).putLong(offset).
+                    putLong(bodyOffset).putLong(length).flip();
+            while (entry.hasRemaining()) {
+                index.write(entry);
+            }
+            recordCount++;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * Lets concurrent requests for the same result share a single execution.
+ * The first request for a key executes the query, while requests for the same
+ * key arriving before the result has been received completely wait for that
+ * execution and replay its rows. The rows are buffered while they are
+ * received, so that every request reads the result from the first row on,
+ * and every request may pull further rows from the endpoint, so that the
+ * slowest reader does not hold back the others. Once the result has been
+ * received completely, later requests execute the query again.
+ * <p>
+ * To bound the memory used for results that nobody shares, a result stops
+ * accepting further requests once more rows than the buffer limit have been
+ * received. As soon as a single reader is left, rows are no longer buffered.
+ * This class is safe for concurrent use, while every returned reader is meant
+ * to be used by a single thread.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultCoalescer {
+    /**
+     * The default number of rows up to which further requests may share a
+     * result.
+     */
+    public static final int DEFAULT_BUFFER_LIMIT = 100000;
+
+    /**
+     * The results being received by key.
+     */
+    private final ConcurrentMap<Object, Flight> flights =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The number of rows up to which further requests may share a result.
+     */
+    private final int bufferLimit;
+
+    /**
+     * Creates a new coalescer with the default buffer limit.
+     */
+    public ResultCoalescer() {
+        this(DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * Creates a new coalescer with the given buffer limit.
+     *
+     * @param bufferLimit the number of rows up to which further requests may
+     *                    share a result
+     * @throws IllegalArgumentException if the buffer limit is negative
+     */
+    public ResultCoalescer(final int bufferLimit) {
+        if (bufferLimit < 0) {
+            throw new IllegalArgumentException(
+                    "Negative buffer limit: " + bufferLimit);
+        }
+        this.bufferLimit = bufferLimit;
+    }
+
+    /**
+     * Opens a reader for the result with the given key. If the result is
+     * being received already, the returned reader shares it. Otherwise, the
+     * given execution is called in the current thread and its result is
+     * offered to concurrent requests for the same key. Failures of the
+     * execution are thrown to all requests sharing it.
+     *
+     * @param key       identifies the result, such as the endpoint together
+     *                  with the query
+     * @param execution executes the query and returns a reader for its result
+     * @return a reader for the result, which has to be closed
+     * @throws NullPointerException if any parameter is {@code null}
+     */
+    public ResultReader open(final Object key,
+            final Callable<? extends ResultReader> execution) {
+        if (execution == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key);
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null) {
+                    return created.start(execution);
+                }
+            }
+            ResultReader reader = flight.join();
+            if (reader != null) {
+                return reader;
+            }
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Returns the number of results that currently accept further requests.
+     *
+     * @return the number of shareable results
+     */
+    public int getShareableCount() {
+        return flights.size();
+    }
+
+    /**
+     * Helper method for rethrowing the given unchecked exception or error.
+     *
+     * @param failure the exception or error to rethrow
+     * @return never returns normally
+     */
+    private static RuntimeException rethrow(final Throwable failure) {
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw (RuntimeException) failure;
+    }
+
+    /**
+     * A result that is being received and the rows buffered so far.
+     */
+    private class Flight {
+        /**
+         * The key identifying the result.
+         */
+        private final Object key;
+
+        /**
+         * Guards the state of this result.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Signals that the result has been started, that a row has been
+         * received or that the result has ended.
+         */
+        private final Condition changed = lock.newCondition();
+
+        /**
+         * The buffered rows, starting at the row with index {@link #offset}.
+         */
+        private final List<Binding> rows = new ArrayList<>();
+
+        /**
+         * The index of the first buffered row.
+         */
+        private int offset;
+
+        /**
+         * The reader receiving the result or {@code null} while executing.
+         */
+        private ResultReader source;
+
+        /**
+         * The variables of the result.
+         */
+        private List<Var> variables;
+
+        /**
+         * The exception or error raised while receiving the result or
+         * {@code null}.
+         */
+        private Throwable failure;
+
+        /**
+         * Indicates whether the result has ended, either after its last row
+         * or because of a failure.
+         */
+        private boolean complete;
+
+        /**
+         * Indicates whether a reader is pulling the next row from the source.
+         */
+        private boolean fetching;
+
+        /**
+         * Indicates whether further requests may share this result.
+         */
+        private boolean shareable = true;
+
+        /**
+         * The number of open readers, including the one that executes the
+         * query.
+         */
+        private int participants = 1;
+
+        /**
+         * Creates a new result with the given key.
+         *
+         * @param key the key identifying the result
+         */
+        public Flight(final Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Executes the query in the current thread and offers the result to
+         * other requests.
+         *
+         * @param execution executes the query
+         * @return a reader for the result
+         */
+        public ResultReader start(
+                final Callable<? extends ResultReader> execution) {
+            ResultReader reader;
+            List<Var> vars;
+            try {
+                reader = execution.call();
+                vars = reader.getVariables();
+            } catch (Exception ex) {
+                RuntimeException wrapped = ex instanceof RuntimeException ?
+                        (RuntimeException) ex : new RuntimeException(ex);
+                end(wrapped);
+                throw wrapped;
+            } catch (Error ex) {
+                end(ex);
+                throw ex;
+            }
+            lock.lock();
+            try {
+                source = reader;
+                variables = vars;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return new Replay(this);
+        }
+
+        /**
+         * Joins this result, waiting until the query has been executed.
+         *
+         * @return a reader for the result or {@code null} if this result no
+         *         longer accepts further requests
+         */
+        public ResultReader join() {
+            lock.lock();
+            try {
+                if (!shareable) {
+                    return null;
+                }
+                participants++;
+                while (source == null && failure == null) {
+                    changed.awaitUninterruptibly();
+                }
+                if (source == null) {
+                    participants--;
+                    throw rethrow(failure);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return new Replay(this);
+        }
+
+        /**
+         * Returns the row with the given index, pulling rows from the source
+         * as necessary.
+         *
+         * @param index the index of the row
+         * @return the row or {@code null} if the result has fewer rows
+         */
+        public Binding get(final int index) {
+            while (true) {
+                lock.lock();
+                try {
+                    if (index < offset + rows.size()) {
+                        Binding row = rows.get(index - offset);
+                        if (!shareable && participants == 1) {
+                            //Nobody else will read the rows up to this one
+                            rows.subList(0, index + 1 - offset).clear();
+                            offset = index + 1;
+                        }
+                        return row;
+                    } else if (complete) {
+                        if (failure != null) {
+                            throw rethrow(failure);
+                        }
+                        return null;
+                    } else if (fetching) {
+                        changed.awaitUninterruptibly();
+                        continue;
+                    }
+                    fetching = true;
+                } finally {
+                    lock.unlock();
+                }
+                fetch();
+            }
+        }
+
+        /**
+         * Helper method for pulling the next row from the source.
+         */
+        private void fetch() {
+            Binding row = null;
+            Throwable error = null;
+            try {
+                if (source.hasNext()) {
+                    row = source.next();
+                }
+            } catch (RuntimeException | Error ex) {
+                error = ex;
+            }
+            if (row == null) {
+                end(error);
+                return;
+            }
+            boolean seal;
+            lock.lock();
+            try {
+                fetching = false;
+                rows.add(row);
+                seal = shareable && offset + rows.size() > bufferLimit;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (seal) {
+                seal();
+            }
+        }
+
+        /**
+         * Stops accepting further requests for this result.
+         */
+        private void seal() {
+            flights.remove(key, this);
+            lock.lock();
+            try {
+                shareable = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Ends this result after its last row or because of the given
+         * failure and closes the source.
+         *
+         * @param failure the exception or error that ended the result or
+         *                {@code null}
+         */
+        private void end(final Throwable failure) {
+            seal();
+            ResultReader reader;
+            lock.lock();
+            try {
+                this.failure = failure;
+                complete = true;
+                fetching = false;
+                reader = source;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+        }
+
+        /**
+         * Leaves this result. The source is closed early once all readers
+         * have left.
+         */
+        public void leave() {
+            boolean abort;
+            lock.lock();
+            try {
+                participants--;
+                abort = participants == 0 && !complete;
+                if (abort) {
+                    //Keep late requests from replaying a truncated result
+                    shareable = false;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (abort) {
+                end(null);
+            }
+        }
+    }
+
+    /**
+     * Reads the rows of a shared result.
+     */
+    private static class Replay extends ResultReader {
+        /**
+         * The shared result.
+         */
+        private final Flight flight;
+
+        /**
+         * The index of the next row.
+         */
+        private int position;
+
+        /**
+         * Indicates whether this reader has left the shared result.
+         */
+        private boolean closed;
+
+        /**
+         * Creates a new reader for the given shared result.
+         *
+         * @param flight the shared result
+         */
+        public Replay(final Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public List<Var> getVariables() {
+            return flight.variables;
+        }
+
+        @Override
+        protected Binding readRow() {
+            Binding row = flight.get(position);
+            if (row != null) {
+                position++;
+            }
+            return row;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (!closed) {
+                closed = true;
+                flight.leave();
+            }
+        }
+    }
+}
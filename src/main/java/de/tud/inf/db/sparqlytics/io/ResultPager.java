@@ -0,0 +1,325 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+
+/**
+ * Pages through a result on the console. A background thread reads the rows
+ * of the result into a buffer while they are received, so that the first
+ * page can be printed as soon as its rows are available, and the following
+ * and preceding pages are printed from the buffer without querying the
+ * SPARQL endpoint again. Every page is printed as a separate result in the
+ * given results format, followed by a line stating the range of rows shown.
+ * The methods of this class are meant to be called by a single thread.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultPager implements AutoCloseable {
+    /**
+     * The variables of the result.
+     */
+    private final List<String> variables;
+
+    /**
+     * The results format to print the pages in.
+     */
+    private final ResultsFormat format;
+
+    /**
+     * The stream to print the pages to.
+     */
+    private final PrintStream out;
+
+    /**
+     * The number of rows per page.
+     */
+    private final int pageSize;
+
+    /**
+     * The rows received so far.
+     */
+    private final List<Binding> rows = new ArrayList<>();
+
+    /**
+     * Guards the state shared with the background thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signals that rows have been received or that the result is complete.
+     */
+    private final Condition received = lock.newCondition();
+
+    /**
+     * Whether all rows have been received.
+     */
+    private boolean complete;
+
+    /**
+     * The error that occurred while receiving the rows or {@code null}.
+     */
+    private RuntimeException failure;
+
+    /**
+     * Whether this pager has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The index of the page printed last, or -1 if no page has been printed
+     * yet.
+     */
+    private int page = -1;
+
+    /**
+     * Creates a new pager that starts reading the given result in the
+     * background. No page is printed until {@link #next} is called.
+     *
+     * @param result    the result to page through
+     * @param source    the resource to close once the result has been read
+     *                  or {@code null}
+     * @param format    the results format to print the pages in
+     * @param out       the stream to print the pages to, which is not closed
+     * @param pageSize  the number of rows per page
+     * @throws NullPointerException     if the result, the format or the
+     *                                  stream is {@code null}
+     * @throws IllegalArgumentException if the page size is not positive
+     */
+    public ResultPager(final ResultSet result, final AutoCloseable source,
+            final ResultsFormat format, final OutputStream out,
+            final int pageSize) {
+        if (format == null || out == null) {
+            throw new NullPointerException();
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Page size must be positive: " + pageSize);
+        }
+        variables = new ArrayList<>(result.getResultVars());
+        this.format = format;
+        try {
+            this.out = new PrintStream(out, false,
+                    StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+        this.pageSize = pageSize;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive(result, source);
+            }
+        }, "sparqlytics-pager");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Reads the rows of the given result into the buffer until the result is
+     * exhausted or this pager is closed, and closes the given resource
+     * afterwards.
+     *
+     * @param result the result to read
+     * @param source the resource to close or {@code null}
+     */
+    protected void receive(final ResultSet result, final AutoCloseable source) {
+        RuntimeException error = null;
+        try {
+            while (!closed && result.hasNext()) {
+                Binding row = result.nextBinding();
+                lock.lock();
+                try {
+                    rows.add(row);
+                    if (rows.size() % pageSize == 0) {
+                        received.signalAll();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (RuntimeException ex) {
+            error = ex;
+        } finally {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (Exception ex) {
+                    if (error == null) {
+                        error = new RuntimeException(ex);
+                    }
+                }
+            }
+            lock.lock();
+            try {
+                complete = true;
+                failure = error;
+                received.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Prints the next page, waiting until its rows have been received. The
+     * first call prints the first page.
+     *
+     * @return whether there was a next page to print
+     * @throws RuntimeException if receiving the rows failed
+     */
+    public boolean next() {
+        int available = await((page + 2) * pageSize);
+        if (page >= 0 && available <= (page + 1) * pageSize) {
+            out.println("No more rows.");
+            out.flush();
+            return false;
+        }
+        page++;
+        print(available);
+        return true;
+    }
+
+    /**
+     * Prints the previous page.
+     *
+     * @return whether there was a previous page to print
+     */
+    public boolean previous() {
+        if (page <= 0) {
+            out.println("No previous rows.");
+            out.flush();
+            return false;
+        }
+        page--;
+        print(await((page + 1) * pageSize));
+        return true;
+    }
+
+    /**
+     * Returns the number of rows received so far.
+     *
+     * @return the number of buffered rows
+     */
+    public int getRowCount() {
+        lock.lock();
+        try {
+            return rows.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether all rows have been received.
+     *
+     * @return whether the result is complete
+     */
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return complete;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops reading the result. Rows that are being received are discarded
+     * by the background thread, which closes the resource passed to the
+     * constructor.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Helper method for waiting until the given number of rows has been
+     * received or the result is complete.
+     *
+     * @param count the number of rows to wait for
+     * @return the number of rows received
+     * @throws RuntimeException if receiving the rows failed
+     */
+    private int await(final int count) {
+        lock.lock();
+        try {
+            while (!complete && rows.size() < count) {
+                received.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return rows.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Helper method for printing the current page.
+     *
+     * @param available the number of rows received
+     */
+    private void print(final int available) {
+        int from = page * pageSize;
+        int to = Math.min(from + pageSize, available);
+        List<Binding> selection;
+        boolean more;
+        lock.lock();
+        try {
+            selection = new ArrayList<>(rows.subList(from, to));
+            more = !complete || rows.size() > to;
+        } finally {
+            lock.unlock();
+        }
+        ResultSetFormatter.output(out, new ResultSetStream(variables, null,
+                selection.iterator()), format);
+        StringBuilder status = new StringBuilder("Rows ");
+        if (to > from) {
+            status.append(from + 1).append('-').append(to);
+        } else {
+            status.append("none");
+        }
+        if (isComplete()) {
+            status.append(" of ").append(getRowCount());
+        } else {
+            status.append(" of at least ").append(getRowCount());
+        }
+        if (more) {
+            status.append(", NEXT; for more");
+        }
+        if (page > 0) {
+            status.append(", PREV; for previous");
+        }
+        out.println(status.append('.'));
+        out.flush();
+    }
+}
@@ -0,0 +1,259 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * Publishes the rows of a result to a single subscriber, reading them only as
+ * far as the subscriber has requested. The result is opened once the
+ * subscriber has requested the first row, and it is closed after the last row,
+ * after an error or when the subscription is cancelled. Rows are read and
+ * passed to the subscriber by tasks of the given executor, one task at a time,
+ * so that a subscriber that requests no further rows holds no thread while it
+ * processes the rows received so far.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultPublisher implements Flow.Publisher<Binding> {
+    /**
+     * Opens the result to publish.
+     */
+    private final Callable<? extends ResultReader> source;
+
+    /**
+     * Runs the tasks reading and passing the rows.
+     */
+    private final Executor executor;
+
+    /**
+     * Indicates whether a subscriber has been added.
+     */
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Creates a new publisher for the result opened by the given source.
+     *
+     * @param source   opens the result to publish
+     * @param executor runs the tasks reading and passing the rows
+     * @throws NullPointerException if any parameter is {@code null}
+     */
+    public ResultPublisher(final Callable<? extends ResultReader> source,
+            final Executor executor) {
+        if (source == null || executor == null) {
+            throw new NullPointerException();
+        }
+        this.source = source;
+        this.executor = executor;
+    }
+
+    /**
+     * Adds the given subscriber. A result can only be published once, so
+     * further subscribers receive an {@link IllegalStateException}.
+     *
+     * @param subscriber the subscriber to add
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    @Override
+    public void subscribe(final Flow.Subscriber<? super Binding> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        } else if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(final long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException(
+                    "The result has been published already"));
+            return;
+        }
+        RowSubscription subscription = new RowSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.subscribed();
+    }
+
+    /**
+     * Passes the requested rows to a subscriber.
+     */
+    private class RowSubscription implements Flow.Subscription, Runnable {
+        /**
+         * The subscriber to pass the rows to.
+         */
+        private final Flow.Subscriber<? super Binding> subscriber;
+
+        /**
+         * The number of rows requested but not passed yet.
+         */
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * Counts the signals that have not been handled by a task yet. It
+         * starts at one for the subscription itself, so that no task runs
+         * before the subscriber has received the subscription.
+         */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        /**
+         * Indicates whether the subscription has been cancelled.
+         */
+        private volatile boolean cancelled;
+
+        /**
+         * Indicates whether a non-positive number of rows has been requested.
+         */
+        private volatile boolean invalid;
+
+        /**
+         * The reader of the result or {@code null} if it is not open.
+         */
+        private ResultReader reader;
+
+        /**
+         * Indicates whether the subscriber has received its last signal.
+         */
+        private boolean done;
+
+        /**
+         * Creates a new subscription for the given subscriber.
+         *
+         * @param subscriber the subscriber to pass the rows to
+         */
+        public RowSubscription(
+                final Flow.Subscriber<? super Binding> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                invalid = true;
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            signal();
+        }
+
+        /**
+         * Signals that the subscriber has received the subscription.
+         */
+        public void subscribed() {
+            if (pending.decrementAndGet() != 0) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Helper method for scheduling a task unless one is pending already.
+         */
+        private void signal() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Handles all pending signals.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    emit();
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Helper method for passing as many rows as have been requested.
+         */
+        private void emit() {
+            try {
+                if (cancelled) {
+                    finish();
+                    return;
+                } else if (invalid) {
+                    finish();
+                    subscriber.onError(new IllegalArgumentException(
+                            "Non-positive number of requested rows"));
+                    return;
+                }
+                long limit = requested.get();
+                if (limit == 0) {
+                    return;
+                } else if (reader == null) {
+                    reader = source.call();
+                }
+                long emitted = 0;
+                while (emitted != limit) {
+                    if (cancelled) {
+                        finish();
+                        return;
+                    } else if (!reader.hasNext()) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    subscriber.onNext(reader.next());
+                    emitted++;
+                }
+                if (limit != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+            } catch (Exception ex) {
+                if (!done) {
+                    finish();
+                    subscriber.onError(ex);
+                }
+            }
+        }
+
+        /**
+         * Helper method for closing the result after the last signal.
+         */
+        private void finish() {
+            done = true;
+            if (reader != null) {
+                ResultReader temp = reader;
+                reader = null;
+                temp.close();
+            }
+        }
+    }
+}
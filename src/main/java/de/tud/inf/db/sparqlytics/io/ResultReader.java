@@ -0,0 +1,294 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.ResultSetMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.resultset.ResultSetLang;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * Reads the rows of a SELECT query result from a stream while they are
+ * received. The bytes are read through a reusable NIO buffer and turned into
+ * bindings directly, without going through an intermediate result set. This
+ * class is not safe for concurrent use.
+ *
+ * @author Michael Rudolf
+ */
+public abstract class ResultReader implements Iterator<Binding>, AutoCloseable {
+    /**
+     * The value of the accept header preferring the results formats that are
+     * cheapest to parse.
+     */
+    public static final String ACCEPT = WebContent.contentTypeTextTSV + ", " +
+            WebContent.contentTypeResultsJSON + ";q=0.9, " +
+            WebContent.contentTypeResultsXML + ";q=0.8";
+
+    /**
+     * The size of the buffer for reading from the stream.
+     */
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The stream to read the result from.
+     */
+    private final InputStream in;
+
+    /**
+     * The channel reading from the stream.
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * Holds the bytes read from the channel but not yet consumed.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Indicates whether the end of the stream has been reached.
+     */
+    private boolean eof;
+
+    /**
+     * The next row or {@code null} if it has not been read yet.
+     */
+    private Binding next;
+
+    /**
+     * Indicates whether all rows have been read.
+     */
+    private boolean finished;
+
+    /**
+     * Creates a new reader for the given stream.
+     *
+     * @param in the stream to read the result from
+     *
+     * @throws NullPointerException if the stream is {@code null}
+     */
+    protected ResultReader(final InputStream in) {
+        if (in == null) {
+            throw new NullPointerException();
+        }
+        this.in = in;
+        channel = Channels.newChannel(in);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    /**
+     * Creates a new reader that does not read from a stream, such as a
+     * reader replaying rows that have been read already. Such readers must
+     * not call {@link #peek} or {@link #read}.
+     */
+    protected ResultReader() {
+        in = null;
+        channel = null;
+        buffer = null;
+    }
+
+    /**
+     * Creates a reader for a result in the given content type. Tab-separated
+     * values and SPARQL JSON results are parsed by dedicated readers, all
+     * other formats are parsed by Jena.
+     *
+     * @param in            the stream to read the result from
+     * @param contentType   the content type of the result, possibly with
+     *                      parameters, or {@code null} for SPARQL XML results
+     * @return the created reader
+     *
+     * @throws org.apache.jena.sparql.resultset.ResultSetException if the
+     *          beginning of the result is malformed
+     */
+    public static ResultReader create(final InputStream in,
+            final String contentType) {
+        String type = getMediaType(contentType);
+        switch (type) {
+            case WebContent.contentTypeTextTSV:
+                return new TSVResultReader(in);
+            case WebContent.contentTypeResultsJSON:
+                return new JSONResultReader(in);
+            default:
+                Lang lang = RDFLanguages.contentTypeToLang(type);
+                if (lang == null) {
+                    lang = ResultSetLang.SPARQLResultSetXML;
+                }
+                return new ResultSetReader(in, ResultSetMgr.read(in, lang));
+        }
+    }
+
+    /**
+     * Returns the media type of the given content type without parameters.
+     *
+     * @param contentType the content type, may be {@code null}
+     * @return the media type in lower case, which is empty if the content type
+     *         is {@code null}
+     */
+    public static String getMediaType(final String contentType) {
+        return contentType == null ? "" :
+                contentType.split(";", 2)[0].trim().toLowerCase();
+    }
+
+    /**
+     * Returns the variables of the result in the order given by the result.
+     *
+     * @return the result variables
+     */
+    public abstract List<Var> getVariables();
+
+    /**
+     * Reads the next row from the stream.
+     *
+     * @return the next row or {@code null} if all rows have been read
+     *
+     * @throws org.apache.jena.sparql.resultset.ResultSetException if the
+     *          result is malformed
+     */
+    protected abstract Binding readRow();
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            next = readRow();
+            finished = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public Binding next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Binding row = next;
+        next = null;
+        return row;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Closes the stream, if any.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        next = null;
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the next byte without consuming it.
+     *
+     * @return the next byte or {@code -1} at the end of the stream
+     */
+    protected int peek() {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get(buffer.position()) & 0xFF;
+    }
+
+    /**
+     * Consumes the next byte.
+     *
+     * @return the consumed byte or {@code -1} at the end of the stream
+     */
+    protected int read() {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * Helper method for refilling the empty buffer from the channel.
+     *
+     * @return whether bytes are available
+     */
+    private boolean fill() {
+        if (eof) {
+            return false;
+        }
+        buffer.clear();
+        try {
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0);
+            eof = read < 0;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            buffer.flip();
+        }
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Reads the rows of a result set parsed by Jena.
+     */
+    private static class ResultSetReader extends ResultReader {
+        /**
+         * The result set to read the rows from.
+         */
+        private final ResultSet result;
+
+        /**
+         * Creates a new reader for the given result set.
+         *
+         * @param in        the stream that the result set is parsed from
+         * @param result    the result set to read the rows from
+         */
+        public ResultSetReader(final InputStream in, final ResultSet result) {
+            super(in);
+            this.result = result;
+        }
+
+        @Override
+        public List<Var> getVariables() {
+            return Var.varList(result.getResultVars());
+        }
+
+        @Override
+        protected Binding readRow() {
+            return result.hasNext() ? result.nextBinding() : null;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.resultset.ResultSetException;
+
+/**
+ * Reads SELECT query results in the SPARQL tab-separated values format. The
+ * fields are split on the raw bytes, and a field is only decoded and parsed
+ * if it differs from the field in the same column of the previous row.
+ * Otherwise, the node of the previous row is reused, which avoids most of the
+ * work for the repeated level members of aggregated results.
+ *
+ * @author Michael Rudolf
+ */
+public class TSVResultReader extends ResultReader {
+    /**
+     * The result variables.
+     */
+    private final List<Var> variables;
+
+    /**
+     * The bytes of the field currently being read.
+     */
+    private byte[] field = new byte[256];
+
+    /**
+     * The number of bytes of the field currently being read.
+     */
+    private int fieldLength;
+
+    /**
+     * The bytes of the fields of the previous row per column.
+     */
+    private final byte[][] previousFields;
+
+    /**
+     * The lengths of the fields of the previous row per column, or {@code -1}
+     * if there is no previous row.
+     */
+    private final int[] previousLengths;
+
+    /**
+     * The nodes of the previous row per column.
+     */
+    private final Node[] previousNodes;
+
+    /**
+     * Maps blank node labels to the blank nodes created for them.
+     */
+    private final Map<String, Node> blankNodes = new HashMap<>();
+
+    /**
+     * Creates a new reader for the given stream and reads the header.
+     *
+     * @param in the stream to read the result from
+     *
+     * @throws NullPointerException if the stream is {@code null}
+     * @throws ResultSetException   if the header is malformed
+     */
+    public TSVResultReader(final InputStream in) {
+        super(in);
+        List<Var> header = new ArrayList<>();
+        int end;
+        do {
+            end = readField();
+            String name = decode(field, fieldLength);
+            if (name.isEmpty() && header.isEmpty() && end != '\t') {
+                break;
+            }
+            if (name.length() < 2 ||
+                    (name.charAt(0) != '?' && name.charAt(0) != '$')) {
+                throw new ResultSetException("Malformed variable: " + name);
+            }
+            header.add(Var.alloc(name.substring(1)));
+        } while (end == '\t');
+        variables = Collections.unmodifiableList(header);
+        previousFields = new byte[header.size()][];
+        previousLengths = new int[header.size()];
+        Arrays.fill(previousLengths, -1);
+        previousNodes = new Node[header.size()];
+    }
+
+    @Override
+    public List<Var> getVariables() {
+        return variables;
+    }
+
+    @Override
+    protected Binding readRow() {
+        if (peek() < 0) {
+            return null;
+        }
+        BindingMap row = BindingFactory.create();
+        int end = '\t';
+        for (int i = 0; i < previousNodes.length; i++) {
+            if (end != '\t') {
+                throw new ResultSetException("Too few fields in row");
+            }
+            end = readField();
+            int length = fieldLength;
+            Node node;
+            if (length == previousLengths[i] && equals(field,
+                    previousFields[i], length)) {
+                node = previousNodes[i];
+            } else {
+                node = parseTerm(decode(field, length));
+                if (previousFields[i] == null ||
+                        previousFields[i].length < length) {
+                    previousFields[i] = new byte[field.length];
+                }
+                System.arraycopy(field, 0, previousFields[i], 0, length);
+                previousLengths[i] = length;
+                previousNodes[i] = node;
+            }
+            if (node != null) {
+                row.add(variables.get(i), node);
+            }
+        }
+        if (end == '\t') {
+            throw new ResultSetException("Too many fields in row");
+        }
+        return row;
+    }
+
+    /**
+     * Reads the bytes of the next field into {@link #field} and sets
+     * {@link #fieldLength}. A carriage return before a line feed is dropped.
+     *
+     * @return the byte terminating the field, which is a tab, a line feed, or
+     *         {@code -1} at the end of the stream
+     */
+    private int readField() {
+        int length = 0;
+        int b;
+        while ((b = read()) >= 0 && b != '\t' && b != '\n') {
+            if (length == field.length) {
+                field = Arrays.copyOf(field, length * 2);
+            }
+            field[length++] = (byte)b;
+        }
+        if (b != '\t' && length > 0 && field[length - 1] == '\r') {
+            length--;
+        }
+        fieldLength = length;
+        return b;
+    }
+
+    /**
+     * Parses the given RDF term in Turtle syntax.
+     *
+     * @param term the term to parse
+     * @return the parsed node or {@code null} if the term is empty
+     *
+     * @throws ResultSetException if the term is malformed
+     */
+    protected Node parseTerm(final String term) {
+        if (term.isEmpty()) {
+            return null;
+        }
+        char first = term.charAt(0);
+        if (first == '<') {
+            if (term.length() < 2 || term.charAt(term.length() - 1) != '>') {
+                throw new ResultSetException("Malformed IRI: " + term);
+            }
+            return NodeFactory.createURI(
+                    unescape(term, 1, term.length() - 1));
+        } else if (first == '"' || first == '\'') {
+            int end = 1;
+            while (end < term.length() && term.charAt(end) != first) {
+                end += term.charAt(end) == '\\' ? 2 : 1;
+            }
+            if (end >= term.length()) {
+                throw new ResultSetException("Malformed literal: " + term);
+            }
+            String lexicalForm = unescape(term, 1, end);
+            if (end + 1 == term.length()) {
+                return NodeFactory.createLiteral(lexicalForm);
+            } else if (term.charAt(end + 1) == '@') {
+                return NodeFactory.createLiteral(lexicalForm,
+                        term.substring(end + 2));
+            } else if (term.startsWith("^^<", end + 1) &&
+                    term.charAt(term.length() - 1) == '>') {
+                return NodeFactory.createLiteral(lexicalForm,
+                        TypeMapper.getInstance().getSafeTypeByName(unescape(
+                                term, end + 4, term.length() - 1)));
+            }
+            throw new ResultSetException("Malformed literal: " + term);
+        } else if (term.startsWith("_:")) {
+            String label = term.substring(2);
+            Node node = blankNodes.get(label);
+            if (node == null) {
+                node = NodeFactory.createBlankNode();
+                blankNodes.put(label, node);
+            }
+            return node;
+        } else if (term.equals("true") || term.equals("false")) {
+            return NodeFactory.createLiteral(term, XSDDatatype.XSDboolean);
+        }
+        XSDDatatype datatype = XSDDatatype.XSDinteger;
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (c == '.' && datatype == XSDDatatype.XSDinteger) {
+                datatype = XSDDatatype.XSDdecimal;
+            } else if (c == 'e' || c == 'E') {
+                datatype = XSDDatatype.XSDdouble;
+            } else if ((c < '0' || c > '9') && c != '+' && c != '-') {
+                throw new ResultSetException("Unsupported term: " + term);
+            }
+        }
+        return NodeFactory.createLiteral(term, datatype);
+    }
+
+    /**
+     * Resolves the escape sequences in the given range of the given string.
+     *
+     * @param string    the string containing the escape sequences
+     * @param start     the index of the first character of the range
+     * @param end       the index after the last character of the range
+     * @return the unescaped characters of the range
+     *
+     * @throws ResultSetException if an escape sequence is malformed
+     */
+    protected static String unescape(final String string, final int start,
+            final int end) {
+        int escape = string.indexOf('\\', start);
+        if (escape < 0 || escape >= end) {
+            return string.substring(start, end);
+        }
+        StringBuilder builder = new StringBuilder(end - start);
+        builder.append(string, start, escape);
+        for (int i = escape; i < end; i++) {
+            char c = string.charAt(i);
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (++i == end) {
+                throw new ResultSetException("Malformed escape sequence");
+            }
+            c = string.charAt(i);
+            switch (c) {
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'u':
+                case 'U':
+                    int digits = c == 'u' ? 4 : 8;
+                    if (i + digits >= end) {
+                        throw new ResultSetException(
+                                "Malformed escape sequence");
+                    }
+                    try {
+                        builder.appendCodePoint(Integer.parseInt(
+                                string.substring(i + 1, i + 1 + digits), 16));
+                    } catch (IllegalArgumentException ex) {
+                        throw new ResultSetException(
+                                "Malformed escape sequence");
+                    }
+                    i += digits;
+                    break;
+                default:
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes the given UTF-8 bytes.
+     *
+     * @param bytes     the bytes to decode
+     * @param length    the number of bytes to decode
+     * @return the decoded string
+     */
+    private static String decode(final byte[] bytes, final int length) {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the leading bytes of the given arrays.
+     *
+     * @param first     the first array
+     * @param second    the second array, may be {@code null}
+     * @param length    the number of bytes to compare
+     * @return whether the leading bytes are equal
+     */
+    private static boolean equals(final byte[] first, final byte[] second,
+            final int length) {
+        if (second == null) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (first[i] != second[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
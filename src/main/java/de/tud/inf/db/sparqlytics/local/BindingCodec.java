@@ -0,0 +1,174 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+
+/**
+ * Writes rows to and reads rows from the temporary files used for spilling.
+ * A row is written as a marker followed by the RDF terms bound to a fixed
+ * list of variables.
+ *
+ * @author Michael Rudolf
+ */
+final class BindingCodec {
+    /**
+     * Prevents instantiation.
+     */
+    private BindingCodec() {
+    }
+
+    /**
+     * Writes the terms that the given row binds to the given variables.
+     *
+     * @param out       the stream to write to
+     * @param variables the variables to write the terms of
+     * @param row       the row to write
+     * @throws IOException if the row cannot be written
+     */
+    static void write(final DataOutputStream out, final List<Var> variables,
+            final Binding row) throws IOException {
+        out.writeBoolean(true);
+        for (Var var : variables) {
+            writeNode(out, row.get(var));
+        }
+    }
+
+    /**
+     * Reads a row binding the given variables.
+     *
+     * @param in        the stream to read from
+     * @param variables the variables to bind
+     * @return the read row or {@code null} at the end of the stream
+     * @throws IOException if the row cannot be read
+     */
+    static Binding read(final DataInputStream in, final List<Var> variables)
+            throws IOException {
+        try {
+            in.readBoolean();
+        } catch (EOFException ex) {
+            return null;
+        }
+        BindingMap row = BindingFactory.create();
+        for (Var var : variables) {
+            Node node = readNode(in);
+            if (node != null) {
+                row.add(var, node);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Helper method for writing an RDF term.
+     *
+     * @param out   the stream to write to
+     * @param node  the RDF term to write or {@code null} if unbound
+     * @throws IOException if the term cannot be written
+     */
+    private static void writeNode(final DataOutputStream out, final Node node)
+            throws IOException {
+        if (node == null) {
+            out.writeByte(0);
+        } else if (node.isURI()) {
+            out.writeByte(1);
+            writeString(out, node.getURI());
+        } else if (node.isBlank()) {
+            out.writeByte(2);
+            writeString(out, node.getBlankNodeLabel());
+        } else if (node.isLiteral()) {
+            out.writeByte(3);
+            writeString(out, node.getLiteralLexicalForm());
+            writeString(out, node.getLiteralLanguage());
+            String datatype = node.getLiteralDatatypeURI();
+            writeString(out, datatype == null ? "" : datatype);
+        } else {
+            throw new IllegalArgumentException("Cannot spill " + node);
+        }
+    }
+
+    /**
+     * Helper method for reading an RDF term.
+     *
+     * @param in the stream to read from
+     * @return the read RDF term or {@code null} if unbound
+     * @throws IOException if the term cannot be read
+     */
+    private static Node readNode(final DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case 0:
+                return null;
+            case 1:
+                return NodeFactory.createURI(readString(in));
+            case 2:
+                return NodeFactory.createBlankNode(readString(in));
+            case 3:
+                String lexicalForm = readString(in);
+                String language = readString(in);
+                String datatype = readString(in);
+                if (!language.isEmpty()) {
+                    return NodeFactory.createLiteral(lexicalForm, language);
+                } else if (datatype.isEmpty()) {
+                    return NodeFactory.createLiteral(lexicalForm);
+                }
+                return NodeFactory.createLiteral(lexicalForm,
+                        TypeMapper.getInstance().getSafeTypeByName(datatype));
+            default:
+                throw new IOException("Corrupt spill file");
+        }
+    }
+
+    /**
+     * Helper method for writing a string of arbitrary length.
+     *
+     * @param out       the stream to write to
+     * @param string    the string to write
+     * @throws IOException if the string cannot be written
+     */
+    private static void writeString(final DataOutputStream out,
+            final String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Helper method for reading a string of arbitrary length.
+     *
+     * @param in the stream to read from
+     * @return the read string
+     * @throws IOException if the string cannot be read
+     */
+    private static String readString(final DataInputStream in)
+            throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
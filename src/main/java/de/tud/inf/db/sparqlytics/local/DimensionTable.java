@@ -0,0 +1,319 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jena.atlas.lib.Sink;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * An immutable table mapping join keys to the level members of a dimension.
+ * Nodes are stored as dictionary identifiers and the rows are grouped by their
+ * join key in primitive arrays, so that the rows matching a fact can be
+ * enumerated without allocating objects. Once built, a table may be shared
+ * between threads.
+ *
+ * @author Michael Rudolf
+ */
+public class DimensionTable {
+    /**
+     * Builds a dimension table from the rows it receives.
+     */
+    public static class Builder implements Sink<Binding> {
+        /**
+         * The variables forming the join key.
+         */
+        private final List<Var> keyVariables;
+
+        /**
+         * The variables holding the level members.
+         */
+        private final List<Var> memberVariables;
+
+        /**
+         * The dictionaries for the join key variables.
+         */
+        private final NodeDictionary[] keyDictionaries;
+
+        /**
+         * The dictionaries for the level member variables.
+         */
+        private final NodeDictionary[] memberDictionaries;
+
+        /**
+         * Assigns ordinals to the join keys.
+         */
+        private final TupleIndex keys;
+
+        /**
+         * The join key ordinal per received row.
+         */
+        private int[] rowKeys = new int[64];
+
+        /**
+         * The level members per received row, one row after another.
+         */
+        private int[] rowMembers;
+
+        /**
+         * The number of received rows.
+         */
+        private int rowCount;
+
+        /**
+         * Creates a new builder for a table with the given join key and level
+         * member variables.
+         *
+         * @param keyVariables      the variables forming the join key
+         * @param memberVariables   the variables holding the level members
+         *
+         * @throws NullPointerException if any argument is {@code null}
+         */
+        public Builder(final List<Var> keyVariables,
+                final List<Var> memberVariables) {
+            this.keyVariables = new ArrayList<>(keyVariables);
+            this.memberVariables = new ArrayList<>(memberVariables);
+            keyDictionaries = new NodeDictionary[keyVariables.size()];
+            for (int i = 0; i < keyDictionaries.length; i++) {
+                keyDictionaries[i] = new NodeDictionary();
+            }
+            memberDictionaries = new NodeDictionary[memberVariables.size()];
+            for (int i = 0; i < memberDictionaries.length; i++) {
+                memberDictionaries[i] = new NodeDictionary();
+            }
+            keys = new TupleIndex(keyVariables.size());
+            rowMembers = new int[rowKeys.length * memberVariables.size()];
+        }
+
+        /**
+         * Adds the given row to the table. Rows with an unbound join key
+         * variable are ignored.
+         *
+         * @param binding the row to add
+         */
+        @Override
+        public void send(final Binding binding) {
+            int[] key = new int[keyDictionaries.length];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = keyDictionaries[i].encode(
+                        binding.get(keyVariables.get(i)));
+                if (key[i] == NodeDictionary.UNBOUND) {
+                    return;
+                }
+            }
+            if (rowCount == rowKeys.length) {
+                rowKeys = Arrays.copyOf(rowKeys, rowCount << 1);
+                rowMembers = Arrays.copyOf(rowMembers,
+                        rowKeys.length * memberDictionaries.length);
+            }
+            rowKeys[rowCount] = keys.add(key);
+            int offset = rowCount * memberDictionaries.length;
+            for (int i = 0; i < memberDictionaries.length; i++) {
+                rowMembers[offset + i] = memberDictionaries[i].encode(
+                        binding.get(memberVariables.get(i)));
+            }
+            rowCount++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Creates the table from the rows received so far.
+         *
+         * @return the created table
+         */
+        public DimensionTable build() {
+            //Sort the rows by join key ordinal using a counting sort
+            int width = memberDictionaries.length;
+            int[] offsets = new int[keys.size() + 1];
+            for (int row = 0; row < rowCount; row++) {
+                offsets[rowKeys[row] + 1]++;
+            }
+            for (int key = 0; key < keys.size(); key++) {
+                offsets[key + 1] += offsets[key];
+            }
+            int[] next = Arrays.copyOf(offsets, keys.size());
+            int[] members = new int[rowCount * width];
+            for (int row = 0; row < rowCount; row++) {
+                System.arraycopy(rowMembers, row * width, members,
+                        next[rowKeys[row]]++ * width, width);
+            }
+            return new DimensionTable(keyVariables, keyDictionaries,
+                    memberDictionaries, keys, offsets, members);
+        }
+    }
+
+    /**
+     * The variables forming the join key.
+     */
+    private final List<Var> keyVariables;
+
+    /**
+     * The dictionaries for the join key variables.
+     */
+    private final NodeDictionary[] keyDictionaries;
+
+    /**
+     * The dictionaries for the level member variables.
+     */
+    private final NodeDictionary[] memberDictionaries;
+
+    /**
+     * Assigns ordinals to the join keys.
+     */
+    private final TupleIndex keys;
+
+    /**
+     * The index of the first row per join key ordinal, followed by the total
+     * number of rows.
+     */
+    private final int[] offsets;
+
+    /**
+     * The level members of the rows, one row after another.
+     */
+    private final int[] members;
+
+    /**
+     * Creates a new table from the data collected by a builder.
+     *
+     * @param keyVariables          the variables forming the join key
+     * @param keyDictionaries       the dictionaries for the join key variables
+     * @param memberDictionaries    the dictionaries for the level members
+     * @param keys                  assigns ordinals to the join keys
+     * @param offsets               the index of the first row per join key
+     * @param members               the level members of the rows
+     */
+    private DimensionTable(final List<Var> keyVariables,
+            final NodeDictionary[] keyDictionaries,
+            final NodeDictionary[] memberDictionaries, final TupleIndex keys,
+            final int[] offsets, final int[] members) {
+        this.keyVariables = keyVariables;
+        this.keyDictionaries = keyDictionaries;
+        this.memberDictionaries = memberDictionaries;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.members = members;
+    }
+
+    /**
+     * Returns the variables forming the join key.
+     *
+     * @return the join key variables
+     */
+    public List<Var> getKeyVariables() {
+        return keyVariables;
+    }
+
+    /**
+     * Returns the number of level member columns.
+     *
+     * @return the number of level member columns
+     */
+    public int getWidth() {
+        return memberDictionaries.length;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows
+     */
+    public int getRowCount() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * Returns the ordinal of the join key of the given fact.
+     *
+     * @param fact the fact binding the join key variables
+     * @return the ordinal of the join key or {@code -1} if no row matches
+     */
+    public int findKey(final Binding fact) {
+        int[] key = new int[keyDictionaries.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = keyDictionaries[i].find(fact.get(keyVariables.get(i)));
+            if (key[i] == NodeDictionary.UNBOUND) {
+                return -1;
+            }
+        }
+        return keys.find(key);
+    }
+
+    /**
+     * Returns the index of the first row with the given join key.
+     *
+     * @param key the ordinal of the join key
+     * @return the index of the first matching row
+     */
+    public int getFirstRow(final int key) {
+        return offsets[key];
+    }
+
+    /**
+     * Returns the index after the last row with the given join key.
+     *
+     * @param key the ordinal of the join key
+     * @return the index after the last matching row
+     */
+    public int getEndRow(final int key) {
+        return offsets[key + 1];
+    }
+
+    /**
+     * Returns the identifier of a level member in the given row.
+     *
+     * @param row       the index of the row
+     * @param column    the level member column
+     * @return the identifier of the level member, possibly
+     *         {@link NodeDictionary#UNBOUND}
+     */
+    public int getMember(final int row, final int column) {
+        return members[row * memberDictionaries.length + column];
+    }
+
+    /**
+     * Returns the number of distinct level members in the given column.
+     *
+     * @param column the level member column
+     * @return the number of distinct level members
+     */
+    public int getMemberCount(final int column) {
+        return memberDictionaries[column].size();
+    }
+
+    /**
+     * Returns the level member with the given identifier.
+     *
+     * @param column    the level member column
+     * @param member    the identifier of the level member
+     * @return the level member or {@code null} if it is unbound
+     */
+    public Node decode(final int column, final int member) {
+        return memberDictionaries[column].decode(member);
+    }
+}
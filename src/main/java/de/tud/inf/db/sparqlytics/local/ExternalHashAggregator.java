@@ -0,0 +1,388 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.jena.atlas.lib.Sink;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+/**
+ * Aggregates rows into groups identified by the values of key variables
+ * within a memory budget. As long as the estimated size of the groups fits
+ * into the budget, rows are aggregated by a {@link HashAggregator}. Once the
+ * budget is exceeded, no more groups are created in memory: rows of existing
+ * groups are still aggregated, while rows of new groups are hash partitioned
+ * by their key and written to temporary files. After all rows have been
+ * added, the spilled partitions are aggregated one after the other, spilling
+ * recursively with a different hash function if necessary.
+ * <p>
+ * Since the accumulators of SPARQL aggregates cannot be merged, the spilled
+ * runs consist of the variables of the rows needed for the aggregation rather
+ * than of partial aggregates. Every group is therefore aggregated completely
+ * either in memory or from a single partition, which makes the results
+ * identical to aggregating all rows in memory. This class is not safe for
+ * concurrent modification.
+ *
+ * @author Michael Rudolf
+ */
+public class ExternalHashAggregator {
+    /**
+     * The number of partitions to spill rows into.
+     */
+    public static final int PARTITIONS = 16;
+
+    /**
+     * The depth of recursive partitioning, at which the budget is ignored.
+     */
+    private static final int MAX_DEPTH = 4;
+
+    /**
+     * The estimated number of bytes occupied by a group without its
+     * accumulators.
+     */
+    private static final long GROUP_SIZE = 64;
+
+    /**
+     * The estimated number of bytes occupied by an accumulator.
+     */
+    private static final long ACCUMULATOR_SIZE = 64;
+
+    /**
+     * The estimated number of bytes occupied by a dictionary entry without
+     * the characters of the node.
+     */
+    private static final long NODE_SIZE = 96;
+
+    /**
+     * The variables identifying the group of a row.
+     */
+    private final List<Var> keyVariables;
+
+    /**
+     * The variables to bind the aggregated values to, mapped to their
+     * aggregators.
+     */
+    private final Map<Var, Aggregator> aggregators;
+
+    /**
+     * The variables of spilled rows, i.e., the key variables followed by the
+     * variables mentioned by the aggregators.
+     */
+    private final List<Var> spillVariables;
+
+    /**
+     * The number of bytes the groups may occupy in memory.
+     */
+    private final long memoryBudget;
+
+    /**
+     * The depth of recursive partitioning.
+     */
+    private final int depth;
+
+    /**
+     * Encodes the members of the group keys.
+     */
+    private final NodeDictionary dictionary = new NodeDictionary();
+
+    /**
+     * Aggregates the rows of the groups in memory.
+     */
+    private final HashAggregator groups;
+
+    /**
+     * The key of the current row.
+     */
+    private final int[] key;
+
+    /**
+     * The estimated number of bytes occupied by the groups in memory.
+     */
+    private long memoryUsage;
+
+    /**
+     * The files of the spilled partitions, {@code null} until spilling.
+     */
+    private Path[] partitionFiles;
+
+    /**
+     * The streams writing to the spilled partitions.
+     */
+    private DataOutputStream[] partitions;
+
+    /**
+     * The number of bytes spilled by this aggregator and its partitions.
+     */
+    private long spilledBytes;
+
+    /**
+     * The number of partitions spilled by this aggregator and its
+     * partitions.
+     */
+    private int spilledPartitions;
+
+    /**
+     * Creates a new aggregator.
+     *
+     * @param keyVariables  the variables identifying the group of a row
+     * @param aggregators   the variables to bind the aggregated values to,
+     *                      mapped to their aggregators
+     * @param memoryBudget  the number of bytes the groups may occupy in
+     *                      memory
+     *
+     * @throws NullPointerException     if any argument is {@code null}
+     * @throws IllegalArgumentException if the memory budget is negative
+     */
+    public ExternalHashAggregator(final List<Var> keyVariables,
+            final Map<Var, Aggregator> aggregators, final long memoryBudget) {
+        this(keyVariables, aggregators, memoryBudget, 0);
+    }
+
+    /**
+     * Creates a new aggregator at the given depth of recursive partitioning.
+     *
+     * @param keyVariables  the variables identifying the group of a row
+     * @param aggregators   the variables to bind the aggregated values to,
+     *                      mapped to their aggregators
+     * @param memoryBudget  the number of bytes the groups may occupy in
+     *                      memory
+     * @param depth         the depth of recursive partitioning
+     */
+    private ExternalHashAggregator(final List<Var> keyVariables,
+            final Map<Var, Aggregator> aggregators, final long memoryBudget,
+            final int depth) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException(
+                    "Negative memory budget: " + memoryBudget);
+        }
+        this.keyVariables = new ArrayList<>(keyVariables);
+        this.aggregators = new LinkedHashMap<>(aggregators);
+        Set<Var> vars = new LinkedHashSet<>(keyVariables);
+        for (Aggregator aggregator : aggregators.values()) {
+            if (aggregator.getExprList() != null) {
+                vars.addAll(aggregator.getExprList().getVarsMentioned());
+            }
+        }
+        this.spillVariables = new ArrayList<>(vars);
+        this.memoryBudget = memoryBudget;
+        this.depth = depth;
+        this.groups = new HashAggregator(keyVariables.size(),
+                new ArrayList<>(aggregators.values()));
+        this.key = new int[keyVariables.size()];
+    }
+
+    /**
+     * Adds the given row to its group.
+     *
+     * @param row   the row to add
+     * @param env   the environment for evaluating the aggregated expressions
+     *
+     * @throws RuntimeException if the row cannot be spilled
+     */
+    public void add(final Binding row, final FunctionEnv env) {
+        if (partitions != null) {
+            //Only aggregate rows of existing groups in memory
+            for (int i = 0; i < key.length; i++) {
+                Node member = row.get(keyVariables.get(i));
+                key[i] = dictionary.find(member);
+                if (member != null && key[i] == NodeDictionary.UNBOUND) {
+                    spill(row);
+                    return;
+                }
+            }
+            int group = groups.find(key);
+            if (group < 0) {
+                spill(row);
+            } else {
+                groups.accumulate(group, row, env);
+            }
+            return;
+        }
+        for (int i = 0; i < key.length; i++) {
+            Node member = row.get(keyVariables.get(i));
+            int size = dictionary.size();
+            key[i] = dictionary.encode(member);
+            if (dictionary.size() > size) {
+                memoryUsage += NODE_SIZE + 2 * member.toString().length();
+            }
+        }
+        int size = groups.size();
+        int group = groups.group(key);
+        if (groups.size() > size) {
+            memoryUsage += GROUP_SIZE + ACCUMULATOR_SIZE * aggregators.size();
+        }
+        groups.accumulate(group, row, env);
+        if (memoryUsage > memoryBudget && depth < MAX_DEPTH) {
+            partitionFiles = new Path[PARTITIONS];
+            partitions = new DataOutputStream[PARTITIONS];
+        }
+    }
+
+    /**
+     * Sends the aggregated groups to the given sink, aggregating the spilled
+     * partitions first, and deletes the temporary files. The sink is neither
+     * flushed nor closed. This aggregator must not be used afterwards.
+     *
+     * @param sink  the sink to send the groups to
+     * @param env   the environment for evaluating the aggregated expressions
+     *
+     * @throws RuntimeException if the spilled partitions cannot be read
+     */
+    public void drain(final Sink<Binding> sink, final FunctionEnv env) {
+        List<Var> valueVariables = new ArrayList<>(aggregators.keySet());
+        for (int group = 0; group < groups.size(); group++) {
+            BindingMap binding = BindingFactory.create();
+            for (int i = 0; i < key.length; i++) {
+                Node member = dictionary.decode(groups.getKey(group, i));
+                if (member != null) {
+                    binding.add(keyVariables.get(i), member);
+                }
+            }
+            for (int i = 0; i < valueVariables.size(); i++) {
+                NodeValue value = groups.getValue(group, i);
+                if (value != null) {
+                    binding.add(valueVariables.get(i), value.asNode());
+                }
+            }
+            sink.send(binding);
+        }
+        if (partitions == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < PARTITIONS; i++) {
+                if (partitions[i] != null) {
+                    partitions[i].close();
+                    spilledBytes += Files.size(partitionFiles[i]);
+                    spilledPartitions++;
+                    ExternalHashAggregator partition = new ExternalHashAggregator(
+                            keyVariables, aggregators, memoryBudget, depth + 1);
+                    try (DataInputStream in = new DataInputStream(
+                            new BufferedInputStream(Files.newInputStream(
+                                    partitionFiles[i])))) {
+                        for (Binding row = BindingCodec.read(in, spillVariables);
+                                row != null;
+                                row = BindingCodec.read(in, spillVariables)) {
+                            partition.add(row, env);
+                        }
+                    }
+                    Files.delete(partitionFiles[i]);
+                    partitionFiles[i] = null;
+                    partition.drain(sink, env);
+                    spilledBytes += partition.spilledBytes;
+                    spilledPartitions += partition.spilledPartitions;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes and deletes all remaining temporary files, for example after a
+     * failure. Calling this method more than once has no effect.
+     */
+    public void close() {
+        if (partitions == null) {
+            return;
+        }
+        for (int i = 0; i < PARTITIONS; i++) {
+            try {
+                if (partitions[i] != null) {
+                    partitions[i].close();
+                }
+                if (partitionFiles[i] != null) {
+                    Files.deleteIfExists(partitionFiles[i]);
+                    partitionFiles[i] = null;
+                }
+            } catch (IOException ex) {
+                //Continue deleting the other files
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes spilled to temporary files, which is only
+     * known after draining.
+     *
+     * @return the number of spilled bytes
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Returns the number of partitions spilled to temporary files, which is
+     * only known after draining.
+     *
+     * @return the number of spilled partitions
+     */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * Helper method for writing the given row to the partition of its key.
+     *
+     * @param row the row to spill
+     */
+    protected void spill(final Binding row) {
+        int hash = depth * 0x9E3779B9;
+        for (Var var : keyVariables) {
+            Node member = row.get(var);
+            hash = 31 * hash + (member == null ? 0 : member.hashCode());
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        int partition = (hash & Integer.MAX_VALUE) % PARTITIONS;
+        try {
+            if (partitions[partition] == null) {
+                partitionFiles[partition] = Files.createTempFile(
+                        "sparqlytics-spill-", ".bin");
+                partitions[partition] = new DataOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(
+                                partitionFiles[partition])));
+            }
+            BindingCodec.write(partitions[partition], spillVariables, row);
+        } catch (IOException ex) {
+            close();
+            throw new RuntimeException(ex);
+        }
+    }
+}
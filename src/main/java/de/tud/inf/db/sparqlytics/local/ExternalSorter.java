@@ -0,0 +1,406 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.apache.jena.atlas.lib.Sink;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * Sorts rows with a bounded buffer and applies an offset and a limit. If a
+ * limit is given and the rows to retain fit into the buffer, only these rows
+ * are kept in a heap. Otherwise, full buffers are sorted and written to
+ * temporary files as runs, which are merged when the sorted rows are
+ * iterated. Rows comparing equal keep the order in which they were sent, as
+ * with a stable in-memory sort. This class is not safe for concurrent
+ * modification.
+ *
+ * @author Michael Rudolf
+ */
+public class ExternalSorter implements Sink<Binding>, AutoCloseable {
+    /**
+     * The variables bound by the rows.
+     */
+    private final List<Var> variables;
+
+    /**
+     * Orders the rows.
+     */
+    private final Comparator<Binding> comparator;
+
+    /**
+     * The number of leading sorted rows to skip.
+     */
+    private final long offset;
+
+    /**
+     * The maximum number of sorted rows to return, or {@code -1} for all.
+     */
+    private final long limit;
+
+    /**
+     * The maximum number of rows to keep in memory.
+     */
+    private final int bufferSize;
+
+    /**
+     * The buffered rows in the order they were sent, or {@code null} when
+     * retaining the top rows in {@link #heap}.
+     */
+    private final List<Binding> buffer;
+
+    /**
+     * The top rows with the greatest one at the head, or {@code null} when
+     * buffering all rows.
+     */
+    private final PriorityQueue<Sequenced> heap;
+
+    /**
+     * The number of rows sent so far.
+     */
+    private long sequence;
+
+    /**
+     * The files of the sorted runs.
+     */
+    private final List<Path> runs = new ArrayList<>();
+
+    /**
+     * The streams reading the runs while merging.
+     */
+    private final List<DataInputStream> inputs = new ArrayList<>();
+
+    /**
+     * The number of runs written.
+     */
+    private int spilledRuns;
+
+    /**
+     * The number of bytes written to runs.
+     */
+    private long spilledBytes;
+
+    /**
+     * Creates a new sorter.
+     *
+     * @param variables     the variables bound by the rows
+     * @param comparator    orders the rows
+     * @param offset        the number of leading sorted rows to skip
+     * @param limit         the maximum number of sorted rows to return, or a
+     *                      negative number for all
+     * @param bufferSize    the maximum number of rows to keep in memory
+     *
+     * @throws NullPointerException     if the variables or the comparator
+     *                                  are {@code null}
+     * @throws IllegalArgumentException if the offset is negative or the
+     *                                  buffer size is not positive
+     */
+    public ExternalSorter(final List<Var> variables,
+            final Comparator<Binding> comparator, final long offset,
+            final long limit, final int bufferSize) {
+        if (comparator == null) {
+            throw new NullPointerException();
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Negative offset: " + offset);
+        }
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Buffer size must be positive: " + bufferSize);
+        }
+        this.variables = new ArrayList<>(variables);
+        this.comparator = comparator;
+        this.offset = offset;
+        this.limit = limit < 0 ? -1 : limit;
+        this.bufferSize = bufferSize;
+        if (this.limit >= 0 && offset + this.limit <= bufferSize) {
+            buffer = null;
+            heap = new PriorityQueue<>(
+                    (int) Math.max(1, offset + this.limit),
+                    Collections.reverseOrder(new SequencedComparator()));
+        } else {
+            buffer = new ArrayList<>();
+            heap = null;
+        }
+    }
+
+    @Override
+    public void send(final Binding row) {
+        if (heap != null) {
+            long retained = offset + limit;
+            if (retained > 0) {
+                heap.add(new Sequenced(row, sequence));
+                if (heap.size() > retained) {
+                    heap.poll();
+                }
+            }
+        } else {
+            if (buffer.size() >= bufferSize) {
+                writeRun();
+            }
+            buffer.add(row);
+        }
+        sequence++;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Returns an iterator over the sorted rows after applying the offset and
+     * the limit. Rows must not be sent afterwards. The temporary files are
+     * deleted once the iterator is exhausted or this sorter is closed.
+     *
+     * @return an iterator over the sorted rows
+     *
+     * @throws RuntimeException if the runs cannot be read
+     */
+    public Iterator<Binding> iterator() {
+        final Iterator<Binding> sorted;
+        if (heap != null) {
+            List<Sequenced> top = new ArrayList<>(heap);
+            heap.clear();
+            Collections.sort(top, new SequencedComparator());
+            List<Binding> rows = new ArrayList<>(top.size());
+            for (Sequenced row : top) {
+                rows.add(row.binding);
+            }
+            sorted = rows.iterator();
+        } else if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            sorted = new ArrayList<>(buffer).iterator();
+            buffer.clear();
+        } else {
+            if (!buffer.isEmpty()) {
+                writeRun();
+            }
+            sorted = merge();
+        }
+        return new Iterator<Binding>() {
+            private long skipped;
+
+            private long returned;
+
+            @Override
+            public boolean hasNext() {
+                while (skipped < offset && sorted.hasNext()) {
+                    sorted.next();
+                    skipped++;
+                }
+                boolean hasNext = (limit < 0 || returned < limit) &&
+                        sorted.hasNext();
+                if (!hasNext) {
+                    close();
+                }
+                return hasNext;
+            }
+
+            @Override
+            public Binding next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                returned++;
+                return sorted.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Closes and deletes all temporary files. Calling this method more than
+     * once has no effect.
+     */
+    @Override
+    public void close() {
+        for (DataInputStream in : inputs) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                //Continue closing the other streams
+            }
+        }
+        inputs.clear();
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException ex) {
+                //Continue deleting the other files
+            }
+        }
+        runs.clear();
+    }
+
+    /**
+     * Returns the number of runs written to temporary files.
+     *
+     * @return the number of spilled runs
+     */
+    public int getSpilledRuns() {
+        return spilledRuns;
+    }
+
+    /**
+     * Returns the number of bytes written to temporary files.
+     *
+     * @return the number of spilled bytes
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Helper method for sorting the buffer and writing it as a run.
+     *
+     * @throws RuntimeException if the run cannot be written
+     */
+    protected void writeRun() {
+        Collections.sort(buffer, comparator);
+        try {
+            Path run = Files.createTempFile("sparqlytics-sort-", ".bin");
+            runs.add(run);
+            spilledRuns++;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(run)))) {
+                for (Binding row : buffer) {
+                    BindingCodec.write(out, variables, row);
+                }
+            }
+            spilledBytes += Files.size(run);
+        } catch (IOException ex) {
+            close();
+            throw new RuntimeException(ex);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Helper method for merging the runs.
+     *
+     * @return an iterator over the merged rows
+     *
+     * @throws RuntimeException if the runs cannot be read
+     */
+    private Iterator<Binding> merge() {
+        final PriorityQueue<Sequenced> heads = new PriorityQueue<>(
+                runs.size(), new SequencedComparator());
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                inputs.add(new DataInputStream(new BufferedInputStream(
+                        Files.newInputStream(runs.get(i)))));
+                Binding head = BindingCodec.read(inputs.get(i), variables);
+                if (head != null) {
+                    heads.add(new Sequenced(head, i));
+                }
+            }
+        } catch (IOException ex) {
+            close();
+            throw new RuntimeException(ex);
+        }
+        return new Iterator<Binding>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Binding next() {
+                Sequenced head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    Binding next = BindingCodec.read(
+                            inputs.get((int) head.sequence), variables);
+                    if (next != null) {
+                        heads.add(new Sequenced(next, head.sequence));
+                    }
+                } catch (IOException ex) {
+                    close();
+                    throw new RuntimeException(ex);
+                }
+                return head.binding;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * A row with a sequence number for breaking ties, which is either the
+     * position at which it was sent or the index of the run it was read from.
+     */
+    private static class Sequenced {
+        /**
+         * The row.
+         */
+        final Binding binding;
+
+        /**
+         * The sequence number of the row.
+         */
+        final long sequence;
+
+        /**
+         * Creates a new row with a sequence number.
+         *
+         * @param binding   the row
+         * @param sequence  the sequence number of the row
+         */
+        Sequenced(final Binding binding, final long sequence) {
+            this.binding = binding;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Orders rows by the comparator of the sorter, breaking ties by their
+     * sequence numbers.
+     */
+    private class SequencedComparator implements Comparator<Sequenced> {
+        @Override
+        public int compare(final Sequenced first, final Sequenced second) {
+            int result = comparator.compare(first.binding, second.binding);
+            if (result == 0) {
+                result = Long.compare(first.sequence, second.sequence);
+            }
+            return result;
+        }
+    }
+}
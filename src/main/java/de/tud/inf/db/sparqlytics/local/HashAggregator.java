@@ -0,0 +1,152 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.Accumulator;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+/**
+ * Aggregates rows into groups identified by tuples of integers, typically the
+ * dictionary identifiers of the dimension members of a row. Groups are
+ * located through a {@link TupleIndex} and hold one accumulator per
+ * aggregator, which evaluates its expression against the accumulated rows.
+ * This class is not safe for concurrent modification.
+ *
+ * @author Michael Rudolf
+ */
+public class HashAggregator {
+    /**
+     * Assigns ordinals to the group keys.
+     */
+    private final TupleIndex groups;
+
+    /**
+     * The aggregators to compute per group.
+     */
+    private final List<Aggregator> aggregators;
+
+    /**
+     * The accumulators per group ordinal.
+     */
+    private final List<Accumulator[]> accumulators = new ArrayList<>();
+
+    /**
+     * Creates a new aggregator for group keys of the given width.
+     *
+     * @param width         the number of integers per group key
+     * @param aggregators   the aggregators to compute per group
+     *
+     * @throws NullPointerException if the argument {@code aggregators} is
+     *                              {@code null}
+     * @throws IllegalArgumentException if the width is negative
+     */
+    public HashAggregator(final int width, final List<Aggregator> aggregators) {
+        this.groups = new TupleIndex(width);
+        this.aggregators = new ArrayList<>(aggregators);
+    }
+
+    /**
+     * Returns the ordinal of the group with the given key, creating the group
+     * if it does not exist yet.
+     *
+     * @param key the key of the group
+     * @return the ordinal of the group
+     *
+     * @throws IllegalArgumentException if the key has the wrong width
+     */
+    public int group(final int[] key) {
+        int group = groups.add(key);
+        if (group == accumulators.size()) {
+            Accumulator[] accs = new Accumulator[aggregators.size()];
+            for (int i = 0; i < accs.length; i++) {
+                accs[i] = aggregators.get(i).createAccumulator();
+            }
+            accumulators.add(accs);
+        }
+        return group;
+    }
+
+    /**
+     * Returns the ordinal of the group with the given key.
+     *
+     * @param key the key of the group
+     * @return the ordinal of the group or {@code -1} if it does not exist
+     *
+     * @throws IllegalArgumentException if the key has the wrong width
+     */
+    public int find(final int[] key) {
+        return groups.find(key);
+    }
+
+    /**
+     * Accumulates the given row into the group with the given ordinal for all
+     * aggregators.
+     *
+     * @param group     the ordinal of the group
+     * @param binding   the row to accumulate
+     * @param env       the environment for evaluating expressions
+     *
+     * @throws IndexOutOfBoundsException if there is no such group
+     */
+    public void accumulate(final int group, final Binding binding,
+            final FunctionEnv env) {
+        for (Accumulator acc : accumulators.get(group)) {
+            acc.accumulate(binding, env);
+        }
+    }
+
+    /**
+     * Returns the number of groups.
+     *
+     * @return the number of groups
+     */
+    public int size() {
+        return groups.size();
+    }
+
+    /**
+     * Returns an integer of the key of the group with the given ordinal.
+     *
+     * @param group     the ordinal of the group
+     * @param position  the position of the integer in the key
+     * @return the integer at the given position
+     *
+     * @throws IndexOutOfBoundsException if either argument is out of range
+     */
+    public int getKey(final int group, final int position) {
+        return groups.get(group, position);
+    }
+
+    /**
+     * Returns the aggregated value of an aggregator for the group with the
+     * given ordinal.
+     *
+     * @param group         the ordinal of the group
+     * @param aggregator    the position of the aggregator
+     * @return the aggregated value or {@code null} if the aggregation failed
+     *
+     * @throws IndexOutOfBoundsException if either argument is out of range
+     */
+    public NodeValue getValue(final int group, final int aggregator) {
+        return accumulators.get(group)[aggregator].getValue();
+    }
+}
@@ -0,0 +1,102 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.jena.graph.Node;
+
+/**
+ * Assigns dense integer identifiers to RDF nodes, so that nodes can be stored
+ * in primitive arrays and compared cheaply. Identifiers are assigned in the
+ * order in which nodes are first encoded, starting at zero. This class is not
+ * safe for concurrent modification.
+ *
+ * @author Michael Rudolf
+ */
+public class NodeDictionary {
+    /**
+     * The identifier representing an unbound node.
+     */
+    public static final int UNBOUND = -1;
+
+    /**
+     * Maps nodes to their identifiers.
+     */
+    private final Map<Node, Integer> identifiers = new HashMap<>();
+
+    /**
+     * Maps identifiers to their nodes.
+     */
+    private final List<Node> nodes = new ArrayList<>();
+
+    /**
+     * Returns the identifier of the given node, assigning a new one if the
+     * node has not been encoded before.
+     *
+     * @param node the node to encode, may be {@code null}
+     * @return the identifier of the node or {@link #UNBOUND} if the node is
+     *         {@code null}
+     */
+    public int encode(final Node node) {
+        if (node == null) {
+            return UNBOUND;
+        }
+        Integer identifier = identifiers.get(node);
+        if (identifier == null) {
+            identifier = nodes.size();
+            identifiers.put(node, identifier);
+            nodes.add(node);
+        }
+        return identifier;
+    }
+
+    /**
+     * Returns the identifier of the given node without assigning a new one.
+     *
+     * @param node the node to look up, may be {@code null}
+     * @return the identifier of the node or {@link #UNBOUND} if the node is
+     *         {@code null} or has not been encoded before
+     */
+    public int find(final Node node) {
+        Integer identifier = node == null ? null : identifiers.get(node);
+        return identifier == null ? UNBOUND : identifier;
+    }
+
+    /**
+     * Returns the node with the given identifier.
+     *
+     * @param identifier the identifier of the node
+     * @return the node or {@code null} if the identifier is {@link #UNBOUND}
+     *
+     * @throws IndexOutOfBoundsException if no node has the given identifier
+     */
+    public Node decode(final int identifier) {
+        return identifier == UNBOUND ? null : nodes.get(identifier);
+    }
+
+    /**
+     * Returns the number of encoded nodes.
+     *
+     * @return the number of encoded nodes
+     */
+    public int size() {
+        return nodes.size();
+    }
+}
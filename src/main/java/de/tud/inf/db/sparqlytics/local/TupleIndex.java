@@ -0,0 +1,246 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense ordinals to tuples of integers of a fixed width. The tuples
+ * are stored in a single primitive array and located through an open
+ * addressing hash table with linear probing, avoiding an object per tuple.
+ * This class is not safe for concurrent modification.
+ *
+ * @author Michael Rudolf
+ */
+public class TupleIndex {
+    /**
+     * The maximum ratio of tuples to hash table slots before growing.
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * The number of integers per tuple.
+     */
+    private final int width;
+
+    /**
+     * The stored tuples, one after another in order of their ordinals.
+     */
+    private int[] tuples;
+
+    /**
+     * The hash codes of the stored tuples in order of their ordinals.
+     */
+    private int[] hashes;
+
+    /**
+     * The hash table slots holding the ordinal plus one of a tuple, zero
+     * marking an empty slot. The length is always a power of two.
+     */
+    private int[] slots;
+
+    /**
+     * The number of stored tuples.
+     */
+    private int size;
+
+    /**
+     * Creates a new empty index for tuples of the given width.
+     *
+     * @param width the number of integers per tuple
+     *
+     * @throws IllegalArgumentException if the width is negative
+     */
+    public TupleIndex(final int width) {
+        this(width, 16);
+    }
+
+    /**
+     * Creates a new empty index for tuples of the given width with room for
+     * the given number of tuples.
+     *
+     * @param width         the number of integers per tuple
+     * @param expectedSize  the expected number of tuples
+     *
+     * @throws IllegalArgumentException if either argument is negative
+     */
+    public TupleIndex(final int width, final int expectedSize) {
+        if (width < 0 || expectedSize < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.width = width;
+        int capacity = Math.max(16, expectedSize);
+        tuples = new int[capacity * width];
+        hashes = new int[capacity];
+        slots = new int[Integer.highestOneBit(
+                Math.max(2, (int)(capacity / LOAD_FACTOR)) - 1) << 1];
+    }
+
+    /**
+     * Returns the number of integers per tuple.
+     *
+     * @return the width of the tuples
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the number of stored tuples.
+     *
+     * @return the number of stored tuples
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ordinal of the given tuple, storing it if it has not been
+     * stored before. Ordinals are assigned consecutively starting at zero.
+     *
+     * @param tuple the tuple to look up, is copied when stored
+     * @return the ordinal of the tuple
+     *
+     * @throws IllegalArgumentException if the tuple has the wrong width
+     */
+    public int add(final int[] tuple) {
+        checkWidth(tuple);
+        int hash = hash(tuple);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        for (int entry = slots[slot]; entry != 0; entry = slots[slot]) {
+            if (hashes[entry - 1] == hash && matches(entry - 1, tuple)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size << 1);
+            tuples = Arrays.copyOf(tuples, hashes.length * width);
+        }
+        int ordinal = size++;
+        System.arraycopy(tuple, 0, tuples, ordinal * width, width);
+        hashes[ordinal] = hash;
+        slots[slot] = ordinal + 1;
+        if (size > slots.length * LOAD_FACTOR) {
+            rehash(slots.length << 1);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Returns the ordinal of the given tuple without storing it.
+     *
+     * @param tuple the tuple to look up
+     * @return the ordinal of the tuple or {@code -1} if it is not stored
+     *
+     * @throws IllegalArgumentException if the tuple has the wrong width
+     */
+    public int find(final int[] tuple) {
+        checkWidth(tuple);
+        int hash = hash(tuple);
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        for (int entry = slots[slot]; entry != 0; entry = slots[slot]) {
+            if (hashes[entry - 1] == hash && matches(entry - 1, tuple)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns an integer of the tuple with the given ordinal.
+     *
+     * @param ordinal   the ordinal of the tuple
+     * @param position  the position of the integer in the tuple
+     * @return the integer at the given position
+     *
+     * @throws IndexOutOfBoundsException if either argument is out of range
+     */
+    public int get(final int ordinal, final int position) {
+        if (ordinal < 0 || ordinal >= size || position < 0 || position >= width) {
+            throw new IndexOutOfBoundsException();
+        }
+        return tuples[ordinal * width + position];
+    }
+
+    /**
+     * Ensures that the given tuple has the width of this index.
+     *
+     * @param tuple the tuple to check
+     *
+     * @throws IllegalArgumentException if the tuple has the wrong width
+     */
+    private void checkWidth(final int[] tuple) {
+        if (tuple.length != width) {
+            throw new IllegalArgumentException("Expected tuple of width " +
+                    width + " instead of " + tuple.length);
+        }
+    }
+
+    /**
+     * Returns whether the tuple with the given ordinal equals the given tuple.
+     *
+     * @param ordinal   the ordinal of the stored tuple
+     * @param tuple     the tuple to compare with
+     * @return whether both tuples are equal
+     */
+    private boolean matches(final int ordinal, final int[] tuple) {
+        int offset = ordinal * width;
+        for (int i = 0; i < width; i++) {
+            if (tuples[offset + i] != tuple[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Redistributes the stored tuples over the given number of slots.
+     *
+     * @param capacity the new number of slots, a power of two
+     */
+    private void rehash(final int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            int slot = hashes[ordinal] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = ordinal + 1;
+        }
+    }
+
+    /**
+     * Computes a well-distributed hash code for the given tuple.
+     *
+     * @param tuple the tuple to hash
+     * @return the hash code of the tuple
+     */
+    private static int hash(final int[] tuple) {
+        int hash = Arrays.hashCode(tuple);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
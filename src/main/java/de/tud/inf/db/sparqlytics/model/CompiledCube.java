@@ -0,0 +1,267 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.model;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled layout of a cube, which assigns dense ordinals to its dimensions,
+ * levels and measures. Dimensions and measures are numbered in the order of
+ * their names. The levels of all dimensions are numbered consecutively, so
+ * that state per dimension or per level can be kept in plain arrays.
+ *
+ * @author Michael Rudolf
+ */
+public final class CompiledCube {
+    /**
+     * Orders named objects by their names.
+     */
+    private static final Comparator<NamedObject> BY_NAME =
+            new Comparator<NamedObject>() {
+                @Override
+                public int compare(NamedObject o1, NamedObject o2) {
+                    return o1.getName().compareTo(o2.getName());
+                }
+            };
+
+    /**
+     * The compiled cube.
+     */
+    private final Cube cube;
+
+    /**
+     * The dimensions by their ordinals.
+     */
+    private final Dimension[] dimensions;
+
+    /**
+     * The measures by their ordinals.
+     */
+    private final Measure[] measures;
+
+    /**
+     * The ordinal of the first level of every dimension, followed by the
+     * total number of levels.
+     */
+    private final int[] levelOffsets;
+
+    /**
+     * The levels by their ordinals.
+     */
+    private final Level[] levels;
+
+    /**
+     * The level ordinals ordered by the names of their dimensions and then by
+     * their own names.
+     */
+    private final int[] sortedLevels;
+
+    /**
+     * The ordinals of the dimensions by identity.
+     */
+    private final Map<Dimension, Integer> dimensionOrdinals =
+            new IdentityHashMap<>();
+
+    /**
+     * The ordinals of the dimensions by name, for dimensions that are equal
+     * but not identical to those of the cube.
+     */
+    private final Map<Dimension, Integer> equalDimensionOrdinals =
+            new HashMap<>();
+
+    /**
+     * Compiles the given cube.
+     *
+     * @param cube the cube to compile
+     */
+    CompiledCube(final Cube cube) {
+        this.cube = cube;
+        dimensions = cube.getDimensions().toArray(new Dimension[0]);
+        Arrays.sort(dimensions, BY_NAME);
+        measures = cube.getMeasures().toArray(new Measure[0]);
+        Arrays.sort(measures, BY_NAME);
+        levelOffsets = new int[dimensions.length + 1];
+        for (int i = 0; i < dimensions.length; i++) {
+            dimensionOrdinals.put(dimensions[i], i);
+            equalDimensionOrdinals.put(dimensions[i], i);
+            levelOffsets[i + 1] = levelOffsets[i] +
+                    dimensions[i].getLevels().size();
+        }
+        levels = new Level[levelOffsets[dimensions.length]];
+        sortedLevels = new int[levels.length];
+        for (int i = 0; i < dimensions.length; i++) {
+            List<Level> dimensionLevels = dimensions[i].getLevels();
+            Level[] sorted = dimensionLevels.toArray(new Level[0]);
+            Arrays.sort(sorted, BY_NAME);
+            for (int j = 0; j < sorted.length; j++) {
+                levels[levelOffsets[i] + j] = dimensionLevels.get(j);
+                sortedLevels[levelOffsets[i] + j] = levelOffsets[i] +
+                        dimensionLevels.indexOf(sorted[j]);
+            }
+        }
+    }
+
+    /**
+     * Returns the compiled cube.
+     *
+     * @return the cube
+     */
+    public Cube getCube() {
+        return cube;
+    }
+
+    /**
+     * Returns the number of dimensions.
+     *
+     * @return the number of dimensions
+     */
+    public int getDimensionCount() {
+        return dimensions.length;
+    }
+
+    /**
+     * Returns the dimension with the given ordinal.
+     *
+     * @param ordinal the ordinal of the dimension
+     * @return the dimension
+     * @throws ArrayIndexOutOfBoundsException if the ordinal is invalid
+     */
+    public Dimension getDimension(final int ordinal) {
+        return dimensions[ordinal];
+    }
+
+    /**
+     * Returns the ordinal of the given dimension.
+     *
+     * @param dimension the dimension to look up
+     * @return the ordinal of the dimension, or {@code -1} if the cube does not
+     *         contain the dimension
+     */
+    public int getOrdinal(final Dimension dimension) {
+        Integer ordinal = dimensionOrdinals.get(dimension);
+        if (ordinal == null) {
+            ordinal = equalDimensionOrdinals.get(dimension);
+        }
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Returns the number of measures.
+     *
+     * @return the number of measures
+     */
+    public int getMeasureCount() {
+        return measures.length;
+    }
+
+    /**
+     * Returns the measure with the given ordinal.
+     *
+     * @param ordinal the ordinal of the measure
+     * @return the measure
+     * @throws ArrayIndexOutOfBoundsException if the ordinal is invalid
+     */
+    public Measure getMeasure(final int ordinal) {
+        return measures[ordinal];
+    }
+
+    /**
+     * Returns the total number of levels in all dimensions.
+     *
+     * @return the number of levels
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Returns the level with the given ordinal.
+     *
+     * @param ordinal the ordinal of the level
+     * @return the level
+     * @throws ArrayIndexOutOfBoundsException if the ordinal is invalid
+     */
+    public Level getLevel(final int ordinal) {
+        return levels[ordinal];
+    }
+
+    /**
+     * Returns the ordinal of the dimension that the level with the given
+     * ordinal belongs to.
+     *
+     * @param levelOrdinal the ordinal of the level
+     * @return the ordinal of its dimension
+     */
+    public int getDimensionOfLevel(final int levelOrdinal) {
+        //Every dimension has at least one level, so the offsets are distinct
+        int index = Arrays.binarySearch(levelOffsets, levelOrdinal);
+        return index < 0 ? -index - 2 : index;
+    }
+
+    /**
+     * Returns the ordinal of the given level in the dimension with the given
+     * ordinal.
+     *
+     * @param dimensionOrdinal  the ordinal of the dimension
+     * @param level             the level to look up
+     * @return the ordinal of the level, or {@code -1} if the dimension does
+     *         not contain the level
+     */
+    public int getOrdinal(final int dimensionOrdinal, final Level level) {
+        int end = levelOffsets[dimensionOrdinal + 1];
+        for (int i = levelOffsets[dimensionOrdinal]; i < end; i++) {
+            if (levels[i] == level) {
+                return i;
+            }
+        }
+        for (int i = levelOffsets[dimensionOrdinal]; i < end; i++) {
+            if (levels[i].equals(level)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the ordinal of the level with the given index among the levels
+     * of the dimension with the given ordinal, where index zero denotes the
+     * finest level.
+     *
+     * @param dimensionOrdinal  the ordinal of the dimension
+     * @param index             the index of the level in the dimension
+     * @return the ordinal of the level
+     */
+    public int getLevelOrdinal(final int dimensionOrdinal, final int index) {
+        return levelOffsets[dimensionOrdinal] + index;
+    }
+
+    /**
+     * Returns the ordinal of the level at the given position when ordering all
+     * levels by the names of their dimensions and then by their own names.
+     *
+     * @param position the position in that order
+     * @return the ordinal of the level
+     */
+    public int getSortedLevel(final int position) {
+        return sortedLevels[position];
+    }
+}
@@ -16,7 +16,7 @@
 
 package de.tud.inf.db.sparqlytics.model;
 
-import de.tud.inf.db.sparqlytics.repository.FixedRepository;
+import de.tud.inf.db.sparqlytics.repository.IndexedRepository;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -41,7 +41,12 @@ public class Cube extends NamedObject {
     /**
      * The measures in this cube.
      */
-    private final FixedRepository impl;
+    private final IndexedRepository impl;
+
+    /**
+     * The compiled layout of this cube, which is created on first use.
+     */
+    private volatile CompiledCube compiled;
 
     /**
      * Creates a new cube with the given name, fact selection pattern,
@@ -93,7 +98,7 @@ public class Cube extends NamedObject {
                         "pattern variables in cube \"" + name + "\"");
             }
         }
-        this.impl = new FixedRepository(Collections.<Cube>emptySet(),
+        this.impl = new IndexedRepository(Collections.<Cube>emptySet(),
                 dimensions, measures);
     }
 
@@ -147,4 +152,19 @@ public class Cube extends NamedObject {
     public Measure findMeasure(final String name) {
         return impl.findMeasure(name);
     }
+
+    /**
+     * Returns the compiled layout of this cube, which assigns dense ordinals
+     * to its dimensions, levels and measures.
+     *
+     * @return the compiled layout
+     */
+    public CompiledCube compile() {
+        CompiledCube result = compiled;
+        if (result == null) {
+            result = new CompiledCube(this);
+            compiled = result;
+        }
+        return result;
+    }
 }
@@ -35,6 +35,12 @@ public class Filter {
      */
     private final Expr predicate;
 
+    /**
+     * The textual form of the variable and the predicate, which is created on
+     * first use.
+     */
+    private String key;
+
     /**
      * Creates a new filter using the given variable in the given predicate.
      *
@@ -68,4 +74,19 @@ public class Filter {
     public Expr getPredicate() {
         return predicate;
     }
+
+    /**
+     * Returns the variable and the predicate in textual form, separated by a
+     * null character.
+     *
+     * @return the textual form of this filter
+     */
+    String getKey() {
+        String result = key;
+        if (result == null) {
+            result = variable.toString() + '\u0000' + predicate;
+            key = result;
+        }
+        return result;
+    }
 }
@@ -16,6 +16,14 @@
 
 package de.tud.inf.db.sparqlytics.model;
 
+import de.tud.inf.db.sparqlytics.io.ResultArchiveReader;
+import de.tud.inf.db.sparqlytics.io.ResultArchiveWriter;
+import de.tud.inf.db.sparqlytics.io.ResultCoalescer;
+import de.tud.inf.db.sparqlytics.io.ResultPager;
+import de.tud.inf.db.sparqlytics.olap.Compute;
+import de.tud.inf.db.sparqlytics.olap.ComputeAtLevels;
+import de.tud.inf.db.sparqlytics.olap.ComputeBatch;
+import de.tud.inf.db.sparqlytics.olap.ExecutionStrategy;
 import de.tud.inf.db.sparqlytics.olap.Operation;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -23,15 +31,25 @@ import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.text.DateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.jena.query.Query;
+import org.apache.jena.query.ResultSet;
 import org.apache.jena.query.Syntax;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFLanguages;
@@ -43,7 +61,29 @@ import org.apache.jena.sparql.resultset.ResultsFormat;
  *
  * @author Michael Rudolf
  */
-public class Session {
+public class Session implements AutoCloseable {
+    /**
+     * The default number of chunks buffered between producing and writing the
+     * output.
+     */
+    public static final int DEFAULT_OUTPUT_BUFFER_CAPACITY = 16;
+
+    /**
+     * The default number of rows per page when paging through results on
+     * the console.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * The maximum number of earlier states kept for undoing changes.
+     */
+    public static final int HISTORY_LIMIT = 1000;
+
+    /**
+     * The size of the buffer for copying archived results.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Contains prologue and dataset information.
      */
@@ -55,35 +95,159 @@ public class Session {
     private File sink;
 
     /**
-     * The date format used when creating new output files.
+     * The stream receiving the output in place of the standard output stream
+     * or {@code null}.
+     */
+    private OutputStream console;
+
+    /**
+     * The number of rows per page when paging through results on the
+     * console, or zero for printing results completely.
+     */
+    private int pageSize;
+
+    /**
+     * Pages through the result printed last or {@code null}.
+     */
+    private ResultPager pager;
+
+    /**
+     * The outputs besides the sink and the results format.
+     */
+    private final List<Pair<File, ResultsFormat>> additionalOutputs =
+            new ArrayList<>();
+
+    /**
+     * The archive file to append all output to or {@code null}.
+     */
+    private File archive;
+
+    /**
+     * Writes records to the archive file, opened on first use.
      */
-    private final DateFormat dateFormat = new SimpleDateFormat("MMddyyyy-HHmmss.SSS");
+    private ResultArchiveWriter archiveWriter;
+
+    /**
+     * The offset in the archive at which the records written by this session
+     * start.
+     */
+    private long archiveStart;
+
+    /**
+     * Reads back archived results for reuse or {@code null}.
+     */
+    private ResultArchiveReader archiveReader;
+
+    /**
+     * The numbers of the statements whose results have been appended to the
+     * archive, by a key identifying the computation.
+     */
+    private final Map<String, Long> archivedComputations = new HashMap<>();
 
     /**
      * The output format to use for the computed measures. {@code null}
      * implies &quot;RDF/XML&quot;.
      */
     private ResultsFormat resultsFormat;
-    
+
+    /**
+     * The strategy to use for executing compute operations. {@code null}
+     * implies sending a single query to the SPARQL endpoint.
+     */
+    private ExecutionStrategy executionStrategy;
+
+    /**
+     * The strategies to use for executing compute operations on particular
+     * cubes, overriding the strategy of the session.
+     */
+    private final Map<Cube, ExecutionStrategy> cubeExecutionStrategies =
+            new HashMap<>();
+
     /**
-     * The cube to use for OLAP operations.
+     * Whether the strategy for executing compute operations is overridden
+     * by the operation currently being executed.
      */
-    private Cube cube;
+    private boolean executionStrategyOverridden;
 
+    /**
+     * The strategy overriding all others while executing an operation.
+     */
+    private ExecutionStrategy operationExecutionStrategy;
+    
     /**
      * The URL of the SPARQL endpoint to use when computing measures.
      */
     private String sparqlEndpointURL;
 
     /**
-     * The granularity for aggregating facts.
+     * Lets computations share the results of identical SELECT queries with
+     * other sessions or {@code null} for executing every query.
+     */
+    private ResultCoalescer resultCoalescer;
+
+    /**
+     * The current cube, granularity and filters.
+     */
+    private SessionState state = SessionState.EMPTY;
+
+    /**
+     * The earlier states, most recent first, for undoing changes.
      */
-    private final Map<Dimension, Integer> granularity = new HashMap<>();
+    private final Deque<SessionState> history = new ArrayDeque<>();
 
     /**
-     * The filters in this session.
+     * The states saved by name for returning to them later.
      */
-    private final Map<Pair<Dimension, Level>, Filter> filters = new HashMap<>();
+    private final Map<String, SessionState> branches = new HashMap<>();
+
+    /**
+     * Whether compute operations are deferred and merged into batches.
+     */
+    private boolean batching;
+
+    /**
+     * Whether RDF output is generated on the client from the rows of a
+     * SELECT query instead of being requested with a CONSTRUCT query.
+     */
+    private boolean constructOnClient;
+
+    /**
+     * The number of chunks buffered between producing and writing the
+     * output, or zero for writing synchronously.
+     */
+    private int outputBufferCapacity = DEFAULT_OUTPUT_BUFFER_CAPACITY;
+
+    /**
+     * The deferred compute operations, which all share the same cube state.
+     */
+    private final List<Compute> pending = new ArrayList<>();
+
+    /**
+     * The cube state of the deferred compute operations, which may differ
+     * from the current state until another compute operation is requested.
+     */
+    private SessionState pendingState;
+
+    /**
+     * The statement numbers of the deferred compute operations.
+     */
+    private final List<Long> pendingStatements = new ArrayList<>();
+
+    /**
+     * The statement numbers of the compute operations in the batch being
+     * run, in the order they will produce their outputs.
+     */
+    private final Deque<Long> batchStatements = new ArrayDeque<>();
+
+    /**
+     * The number of operations executed in this session.
+     */
+    private long statementCount;
+
+    /**
+     * The number of the statement producing the current output.
+     */
+    private long statementNumber;
 
     /**
      * Creates a new session.
@@ -92,6 +256,38 @@ public class Session {
         query.setSyntax(Syntax.syntaxSPARQL_11);
     }
 
+    /**
+     * Creates a session for computing in the current state of this session
+     * in the background. The created session shares the immutable state, the
+     * SPARQL endpoint, the result coalescer, the execution strategy and the
+     * results format of this session and has a copy of its prologue and
+     * dataset, but writes to no outputs and keeps no history, so that
+     * changing this session afterwards does not affect the created one.
+     * Deferred compute operations are run first.
+     *
+     * @return the detached session
+     */
+    public Session detach() {
+        flush();
+        Session detached = new Session();
+        detached.query.setResolver(query.getResolver());
+        detached.query.getPrefixMapping().setNsPrefixes(
+                query.getPrefixMapping());
+        for (String uri : query.getGraphURIs()) {
+            detached.query.addGraphURI(uri);
+        }
+        for (String uri : query.getNamedGraphURIs()) {
+            detached.query.addNamedGraphURI(uri);
+        }
+        detached.sparqlEndpointURL = sparqlEndpointURL;
+        detached.resultCoalescer = resultCoalescer;
+        detached.executionStrategy = getExecutionStrategy();
+        detached.resultsFormat = resultsFormat;
+        detached.constructOnClient = constructOnClient;
+        detached.state = state;
+        return detached;
+    }
+
     /**
      * Returns an object with prologue and dataset information.
      *
@@ -101,21 +297,63 @@ public class Session {
         return query;
     }
 
+    /**
+     * Returns the sink for creating output writers.
+     *
+     * @return the file or folder serving as output or {@code null} for the
+     *         standard output stream
+     *
+     * @see #setSink
+     */
+    public File getSink() {
+        return sink;
+    }
+
     /**
      * Sets the sink for creating output writers. If the given file denotes a
      * directory, then every output request will result in a new file to be
      * created in that directory. If the given file denotes a regular file, then
      * all output requests will append to that file. If the given argument is
-     * {@code null}, output will be appended to the standard output stream.
+     * {@code null}, output will be appended to the console, which is the
+     * standard output stream unless {@link #setConsole} is used.
      *
      * @param sink the sink for creating output writers or {@code null}
      *
      * @see #getOutput
      */
     public void setSink(final File sink) {
+        flush();
         this.sink = sink;
     }
 
+    /**
+     * Returns the stream that receives the output if there is no sink.
+     *
+     * @return the standard output stream unless another stream has been set
+     *
+     * @see #setConsole
+     */
+    public OutputStream getConsole() {
+        return console == null ? System.out : console;
+    }
+
+    /**
+     * Sets the stream that receives the output if there is no sink, which
+     * allows to collect the results of a session that is not bound to the
+     * console, such as a session of a server. The stream is never closed by
+     * this session.
+     *
+     * @param console the stream to receive the output or {@code null} for the
+     *                standard output stream
+     *
+     * @see #getConsole
+     */
+    public void setConsole(final OutputStream console) {
+        flush();
+        closePager();
+        this.console = console;
+    }
+
     /**
      * Creates a new output writer.
      *
@@ -125,34 +363,350 @@ public class Session {
      * @see #setSink
      */
     public OutputStream getOutput() throws IOException {
-        if (sink == null) {
-            //System.out must not be closed
-            return new FilterOutputStream(System.out) {
+        return getOutput(sink, getResultsFormat());
+    }
+
+    /**
+     * Creates a new output writer for the given sink and format. If an
+     * archive is set, a new record of the archive is written instead.
+     *
+     * @param sink      the file or folder serving as output or {@code null}
+     *                  for the standard output stream
+     * @param format    the results format of the output, {@code null}
+     *                  implies &quot;RDF/XML&quot;
+     * @return a new output writer
+     * @throws IOException if an error occurs
+     *
+     * @see #getOutputs
+     */
+    public OutputStream getOutput(final File sink, final ResultsFormat format)
+            throws IOException {
+        if (archive != null) {
+            return new BufferedOutputStream(Channels.newOutputStream(
+                    openArchiveRecord(format)));
+        }
+        FileOutputStream output = openOutputFile(sink, format);
+        if (output == null) {
+            //The console must not be closed
+            return new FilterOutputStream(getConsole()) {
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    out.write(b, off, len);
+                }
+
                 @Override
-                public void close() {}
+                public void close() throws IOException {
+                    flush();
+                }
             };
+        }
+        return new BufferedOutputStream(output);
+    }
+
+    /**
+     * Creates a new output channel. Files are written through their
+     * {@link java.nio.channels.FileChannel} directly, so that callers
+     * filling their own buffers avoid copying them once more.
+     *
+     * @return a new output channel
+     * @throws IOException if an error occurs
+     *
+     * @see #setSink
+     */
+    public WritableByteChannel getOutputChannel() throws IOException {
+        return getOutputChannel(sink, getResultsFormat());
+    }
+
+    /**
+     * Creates a new output channel for the given sink and format. If an
+     * archive is set, a new record of the archive is written instead.
+     *
+     * @param sink      the file or folder serving as output or {@code null}
+     *                  for the standard output stream
+     * @param format    the results format of the output, {@code null}
+     *                  implies &quot;RDF/XML&quot;
+     * @return a new output channel
+     * @throws IOException if an error occurs
+     *
+     * @see #getOutputs
+     */
+    public WritableByteChannel getOutputChannel(final File sink,
+            final ResultsFormat format) throws IOException {
+        if (archive != null) {
+            return openArchiveRecord(format);
+        }
+        FileOutputStream output = openOutputFile(sink, format);
+        return output == null ? Channels.newChannel(getOutput(sink, format)) :
+                output.getChannel();
+    }
+
+    /**
+     * Helper method for opening the file to write the next output to. Files
+     * created in an output directory are named after the current date and
+     * time, with a counter appended if a file of that name exists already.
+     *
+     * @param sink      the file or folder serving as output or {@code null}
+     * @param format    the results format of the output or {@code null}
+     * @return a stream writing to the file or {@code null} for the standard
+     *         output stream
+     * @throws IOException if an error occurs
+     */
+    private FileOutputStream openOutputFile(final File sink,
+            final ResultsFormat format) throws IOException {
+        if (sink == null) {
+            return null;
         } else if (sink.isFile()) {
-            return new BufferedOutputStream(new FileOutputStream(sink, true));
+            return new FileOutputStream(sink, true);
         } else {
-            ResultsFormat format = getResultsFormat();
-            if (format == null) {
-                format = ResultsFormat.FMT_RDF_XML;
+            List<String> extensions = getOutputLang(format).getFileExtensions();
+            String extension = extensions.isEmpty() ? "" :
+                    '.' + extensions.get(0);
+            String name = new SimpleDateFormat("MMddyyyy-HHmmss.SSS").
+                    format(new Date());
+            File file = new File(sink, name + extension);
+            for (int i = 1; !file.createNewFile(); i++) {
+                file = new File(sink, name + '-' + i + extension);
+            }
+            return new FileOutputStream(file);
+        }
+    }
+
+    /**
+     * Determines the language of an output in the given results format.
+     *
+     * @param format the results format of the output or {@code null}
+     * @return the language of the output
+     */
+    public static Lang getOutputLang(final ResultsFormat format) {
+        ResultsFormat temp = format == null ? ResultsFormat.FMT_RDF_XML :
+                format;
+        Lang lang = ResultsFormat.convert(temp);
+        if (lang == null) {
+            lang = RDFLanguages.contentTypeToLang(temp.getSymbol());
+        }
+        return lang;
+    }
+
+    /**
+     * Helper method for starting a new record in the archive, which is
+     * opened if necessary.
+     *
+     * @param format the results format of the record or {@code null}
+     * @return a channel for writing the body of the record
+     * @throws IOException if an error occurs
+     */
+    private WritableByteChannel openArchiveRecord(final ResultsFormat format)
+            throws IOException {
+        if (archiveWriter == null) {
+            archiveWriter = new ResultArchiveWriter(archive);
+            archiveStart = archiveWriter.getPosition();
+        }
+        return archiveWriter.beginRecord(statementNumber, getCubeStateHash(),
+                getOutputLang(format).getContentType().getContentType());
+    }
+
+    /**
+     * Returns all outputs of this session. The first output consists of the
+     * sink and the results format of this session, followed by the outputs
+     * added by {@link #addOutput}. Compute operations with several outputs
+     * retrieve their result once and write it to all outputs.
+     *
+     * @return pairs of sinks and results formats
+     */
+    public List<Pair<File, ResultsFormat>> getOutputs() {
+        List<Pair<File, ResultsFormat>> result =
+                new ArrayList<>(additionalOutputs.size() + 1);
+        result.add(Pair.of(sink, resultsFormat));
+        result.addAll(additionalOutputs);
+        return result;
+    }
+
+    /**
+     * Adds an output besides the sink and the results format of this
+     * session.
+     *
+     * @param sink      the file or folder serving as output or {@code null}
+     *                  for the standard output stream
+     * @param format    the results format of the output, {@code null}
+     *                  implies &quot;RDF/XML&quot;
+     *
+     * @see #getOutputs
+     */
+    public void addOutput(final File sink, final ResultsFormat format) {
+        flush();
+        additionalOutputs.add(Pair.of(sink, format));
+    }
+
+    /**
+     * Removes all outputs added by {@link #addOutput}.
+     */
+    public void clearOutputs() {
+        flush();
+        additionalOutputs.clear();
+    }
+
+    /**
+     * Notifies this session that a compute operation starts producing its
+     * output. Within a batch of deferred compute operations, this assigns
+     * the statement number of the next operation, so that every output is
+     * attributed to the statement it was requested by.
+     *
+     * @see #getStatementNumber
+     */
+    public void beginComputation() {
+        Long statement = batchStatements.poll();
+        if (statement != null) {
+            statementNumber = statement;
+        }
+    }
+
+    /**
+     * Returns the archive that all output is appended to.
+     *
+     * @return the archive file or {@code null} if output is written to the
+     *         sink
+     *
+     * @see #setArchive
+     */
+    public File getArchive() {
+        return archive;
+    }
+
+    /**
+     * Sets the archive that all output is appended to instead of the sink.
+     * Every output becomes a record of the archive, which is indexed by the
+     * number of the statement producing it and the hash of the cube state.
+     * The archive is opened when the first output is requested and closed
+     * when another archive is set or this session is closed.
+     *
+     * @param archive the archive file or {@code null} for writing output to
+     *                the sink
+     * @throws IOException if the previous archive cannot be closed
+     *
+     * @see #getArchive
+     * @see de.tud.inf.db.sparqlytics.io.ResultArchiveReader
+     */
+    public void setArchive(final File archive) throws IOException {
+        flush();
+        archivedComputations.clear();
+        try {
+            if (archiveReader != null) {
+                archiveReader.close();
+            }
+        } finally {
+            archiveReader = null;
+            if (archiveWriter != null) {
+                try {
+                    archiveWriter.close();
+                } finally {
+                    archiveWriter = null;
+                }
+            }
+        }
+        this.archive = archive;
+    }
+
+    /**
+     * Remembers that the current statement has appended the results of the
+     * computation with the given key to the archive, so that they can be
+     * reused when the same computation is requested again in the same cube
+     * state, for example after undoing changes or checking out a branch.
+     *
+     * @param key identifies the computation, including the cube state
+     *
+     * @see #reuseArchivedResults
+     */
+    public void archiveComputation(final String key) {
+        if (archiveWriter != null) {
+            archivedComputations.put(key, statementNumber);
+        }
+    }
+
+    /**
+     * Appends the results archived for an earlier request of the computation
+     * with the given key to the archive again, attributing them to the
+     * current statement. The archived records are looked up by the hash of
+     * the current cube state, and their bodies are copied without computing
+     * them again.
+     *
+     * @param key identifies the computation, including the cube state
+     * @return whether archived results have been reused
+     * @throws RuntimeException if the archive cannot be read or written
+     *
+     * @see #archiveComputation
+     */
+    public boolean reuseArchivedResults(final String key) {
+        Long statement = archivedComputations.get(key);
+        if (statement == null || archiveWriter == null) {
+            return false;
+        }
+        try {
+            if (archiveReader == null || archiveReader.getEntries().size() !=
+                    archiveWriter.getRecordCount()) {
+                if (archiveReader != null) {
+                    archiveReader.close();
+                    archiveReader = null;
+                }
+                archiveReader = new ResultArchiveReader(archive);
+            }
+            long cubeStateHash = getCubeStateHash();
+            List<ResultArchiveReader.Entry> records = new ArrayList<>();
+            for (ResultArchiveReader.Entry entry :
+                    archiveReader.getEntriesByState(cubeStateHash)) {
+                if (entry.getStatement() == statement &&
+                        entry.getOffset() >= archiveStart) {
+                    records.add(entry);
+                }
             }
-            Lang lang = ResultsFormat.convert(format);
-            if (lang == null) {
-                lang = RDFLanguages.contentTypeToLang(format.getSymbol());
+            if (records.isEmpty()) {
+                return false;
             }
-            List<String> extensions = lang.getFileExtensions();
-            StringBuilder name = new StringBuilder(
-                    dateFormat.format(new Date()));
-            if (!extensions.isEmpty()) {
-                name.append('.').append(extensions.get(0));
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            for (ResultArchiveReader.Entry entry : records) {
+                try (ReadableByteChannel in = archiveReader.openChannel(entry);
+                        WritableByteChannel out = archiveWriter.beginRecord(
+                                statementNumber, cubeStateHash,
+                                entry.getMediaType())) {
+                    while (in.read(buffer) >= 0) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                }
             }
-            return new BufferedOutputStream(new FileOutputStream(
-                    new File(sink, name.toString())));
+            return true;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * Returns the number of the statement producing the current output.
+     * Statements are the operations executed in this session, numbered from
+     * one. Deferred compute operations keep the number they were executed
+     * with.
+     *
+     * @return the number of the current statement
+     */
+    public long getStatementNumber() {
+        return statementNumber;
+    }
+
+    /**
+     * Returns a hash of the current cube state, consisting of the cube, the
+     * granularity, and the filters. The hash only depends on the names of
+     * the cube, dimensions and levels and on the filter predicates, so that
+     * it is stable across runs.
+     *
+     * @return the hash of the cube state
+     */
+    public long getCubeStateHash() {
+        return state.getHash();
+    }
+
     /**
      * Returns the output format to use for the computed measures.
      * {@code null} implies &quot;RDF/XML&quot;.
@@ -174,8 +728,61 @@ public class Session {
      * @see #getResultsFormat
      */
     public void setResultsFormat(final ResultsFormat resultsFormat) {
+        flush();
         this.resultsFormat = resultsFormat;
     }
+
+    /**
+     * Returns the strategy to use for executing compute operations.
+     * {@code null} implies sending a single query to the SPARQL endpoint.
+     *
+     * @return the execution strategy
+     *
+     * @see #setExecutionStrategy
+     */
+    public ExecutionStrategy getExecutionStrategy() {
+        if (executionStrategyOverridden) {
+            return operationExecutionStrategy;
+        } else if (getCube() != null &&
+                cubeExecutionStrategies.containsKey(getCube())) {
+            return cubeExecutionStrategies.get(getCube());
+        }
+        return executionStrategy;
+    }
+
+    /**
+     * Sets the strategy to use for executing compute operations.
+     * {@code null} implies sending a single query to the SPARQL endpoint.
+     *
+     * @param executionStrategy the execution strategy to use
+     *
+     * @see #getExecutionStrategy
+     */
+    public void setExecutionStrategy(
+            final ExecutionStrategy executionStrategy) {
+        flush();
+        this.executionStrategy = executionStrategy;
+    }
+
+    /**
+     * Sets the strategy to use for executing compute operations on the given
+     * cube, overriding the strategy of the session. {@code null} implies
+     * sending a single query to the SPARQL endpoint.
+     *
+     * @param cube              the cube to set the strategy for
+     * @param executionStrategy the execution strategy to use
+     * @throws NullPointerException if the cube is {@code null}
+     *
+     * @see #getExecutionStrategy
+     */
+    public void setExecutionStrategy(final Cube cube,
+            final ExecutionStrategy executionStrategy) {
+        if (cube == null) {
+            throw new NullPointerException();
+        }
+        flush();
+        cubeExecutionStrategies.put(cube, executionStrategy);
+    }
     
     /**
      * Returns the cube to use for OLAP operations.
@@ -185,7 +792,7 @@ public class Session {
      * @see #setCube
      */
     public Cube getCube() {
-        return cube;
+        return state.getCube();
     }
     
     /**
@@ -196,15 +803,127 @@ public class Session {
      * @see #getCube
      */
     public void setCube(final Cube cube) {
-        this.cube = cube;
-        granularity.clear();
-        if (cube != null) {
-            for (Dimension dimension : cube.getDimensions()) {
-                granularity.put(dimension, 0);
+        flush();
+        if (state.getCube() == null) {
+            state = state.withCube(cube);
+        } else {
+            setState(state.withCube(cube));
+        }
+    }
+
+    /**
+     * Returns the compiled layout of the cube, which determines the ordinals
+     * used by {@link #getGranularity(int)} and {@link #getFilter(int)}.
+     *
+     * @return the compiled layout, or {@code null} if no cube has been
+     *         selected
+     */
+    public CompiledCube getLayout() {
+        return state.getLayout();
+    }
+
+    /**
+     * Returns the current state of this session.
+     *
+     * @return the current state
+     */
+    public SessionState getState() {
+        return state;
+    }
+
+    /**
+     * Replaces the current state of this session, remembering the previous
+     * state for {@link #undo() undoing} the change.
+     *
+     * @param state the new state
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public void setState(final SessionState state) {
+        setState(state, true);
+    }
+
+    /**
+     * Replaces the current state of this session. Unless the change is to be
+     * undoable, the history is left untouched, which allows operations to
+     * switch states temporarily.
+     *
+     * @param state     the new state
+     * @param undoable  whether to remember the previous state for
+     *                  {@link #undo() undoing} the change
+     * @throws NullPointerException if the state is {@code null}
+     */
+    public void setState(final SessionState state, final boolean undoable) {
+        if (state == null) {
+            throw new NullPointerException();
+        }
+        if (state != this.state) {
+            if (undoable) {
+                history.addFirst(this.state);
+                if (history.size() > HISTORY_LIMIT) {
+                    history.removeLast();
+                }
             }
+            this.state = state;
         }
     }
 
+    /**
+     * Returns to the state before the most recent change.
+     *
+     * @return whether there was a change to undo
+     */
+    public boolean undo() {
+        SessionState previous = history.pollFirst();
+        if (previous == null) {
+            return false;
+        }
+        state = previous;
+        return true;
+    }
+
+    /**
+     * Saves the current state under the given name, replacing any state saved
+     * under the same name before.
+     *
+     * @param name the name to save the current state under
+     * @throws NullPointerException if the argument is {@code null}
+     *
+     * @see #checkout
+     */
+    public void branch(final String name) {
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        branches.put(name, state);
+    }
+
+    /**
+     * Returns to the state saved under the given name. The change can be
+     * undone like any other.
+     *
+     * @param name the name of the saved state
+     * @throws NoSuchElementException if no state has been saved under the
+     *                                given name
+     *
+     * @see #branch
+     */
+    public void checkout(final String name) {
+        SessionState saved = branches.get(name);
+        if (saved == null) {
+            throw new NoSuchElementException(name);
+        }
+        setState(saved);
+    }
+
+    /**
+     * Returns the names of the saved states.
+     *
+     * @return the names of the saved states
+     */
+    public Set<String> getBranches() {
+        return Collections.unmodifiableSet(branches.keySet());
+    }
+
     /**
      * Returns the URL of the SPARQL endpoint to use when computing measures.
      *
@@ -224,9 +943,36 @@ public class Session {
      * @see #getSPARQLEndpointURL
      */
     public void setSPARQLEndpointURL(final String url) {
+        flush();
         this.sparqlEndpointURL = url;
     }
 
+    /**
+     * Returns the coalescer letting computations share the results of
+     * identical SELECT queries sent to the same SPARQL endpoint.
+     *
+     * @return the coalescer or {@code null} if every query is executed
+     *
+     * @see #setResultCoalescer
+     */
+    public ResultCoalescer getResultCoalescer() {
+        return resultCoalescer;
+    }
+
+    /**
+     * Sets the coalescer letting computations share the results of identical
+     * SELECT queries sent to the same SPARQL endpoint, usually by several
+     * sessions of a server.
+     *
+     * @param resultCoalescer the coalescer or {@code null} for executing
+     *                        every query
+     *
+     * @see #getResultCoalescer
+     */
+    public void setResultCoalescer(final ResultCoalescer resultCoalescer) {
+        this.resultCoalescer = resultCoalescer;
+    }
+
     /**
      * Sets the granularity of the given dimension to the given level.
      *
@@ -240,12 +986,7 @@ public class Session {
      * @see #getGranularity
      */
     public void setGranularity(final Dimension dimension, final int level) {
-        if (level < 0) {
-            throw new IllegalArgumentException();
-        } else if (granularity.put(dimension, level) == null) {
-            granularity.remove(dimension);
-            throw new IllegalArgumentException();
-        }
+        setState(state.withGranularity(dimension, level));
     }
 
     /**
@@ -259,11 +1000,18 @@ public class Session {
      * @see #setGranularity
      */
     public int getGranularity(final Dimension dimension) {
-        Integer level = granularity.get(dimension);
-        if (level == null) {
-            throw new IllegalArgumentException();
-        }
-        return level;
+        return state.getGranularity(dimension);
+    }
+
+    /**
+     * Returns the granularity for the dimension with the given ordinal in the
+     * {@link #getLayout() layout} of the cube.
+     *
+     * @param dimensionOrdinal the ordinal of the dimension
+     * @return the level of aggregation in the dimension
+     */
+    public int getGranularity(final int dimensionOrdinal) {
+        return state.getGranularity(dimensionOrdinal);
     }
 
     /**
@@ -272,10 +1020,12 @@ public class Session {
      * @param dimension the dimension to add the filter for
      * @param level     the level in the given dimension
      * @param filter    the filter to add
+     * @throws IllegalArgumentException if the given level is not part of the
+     *                                  session's cube
      */
     public void addFilter(final Dimension dimension, final Level level,
             final Filter filter) {
-        filters.put(Pair.of(dimension, level), filter);
+        setState(state.withFilter(dimension, level, filter));
     }
 
     /**
@@ -289,16 +1039,38 @@ public class Session {
      * @see #addFilter
      */
     public boolean removeFilter(final Dimension dimension, final Level level) {
-        return filters.remove(Pair.of(dimension, level)) != null;
+        SessionState newState;
+        try {
+            newState = state.withFilter(dimension, level, null);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        if (newState == state) {
+            return false;
+        }
+        setState(newState);
+        return true;
     }
 
     /**
-     * Returns a mapping of dimension-level pairs to filters.
+     * Returns the filter for the level with the given ordinal in the
+     * {@link #getLayout() layout} of the cube.
+     *
+     * @param levelOrdinal the ordinal of the level
+     * @return the filter, or {@code null} if the level is not filtered
+     */
+    public Filter getFilter(final int levelOrdinal) {
+        return state.getFilter(levelOrdinal);
+    }
+
+    /**
+     * Returns a mapping of dimension-level pairs to filters, ordered by the
+     * ordinals of the levels.
      *
      * @return  a mapping of dimension-level pairs to filters
      */
     public Map<Pair<Dimension, Level>, Filter> getFilters() {
-        return Collections.unmodifiableMap(filters);
+        return state.getFilters();
     }
 
     /**
@@ -309,9 +1081,288 @@ public class Session {
      * @throws IllegalStateException    if no cube has been set
      */
     public void execute(final Operation operation) {
-        if (cube == null) {
+        if (state.getCube() == null) {
             throw new IllegalStateException();
         }
-        operation.run(this);
+        statementCount++;
+        if (batching && operation instanceof Compute) {
+            if (!pending.isEmpty() && !state.equals(pendingState)) {
+                flush();
+            }
+            pendingState = state;
+            pending.add((Compute)operation);
+            pendingStatements.add(statementCount);
+        } else {
+            if (producesOutput(operation)) {
+                flush();
+            }
+            statementNumber = statementCount;
+            operation.run(this);
+        }
+    }
+
+    /**
+     * Returns whether the given operation produces output, so that the
+     * deferred compute operations have to be run before it. All other
+     * operations only change the cube state or save it, which the deferred
+     * compute operations do not depend on.
+     *
+     * @param operation the operation in question
+     * @return whether the operation produces output
+     */
+    private static boolean producesOutput(final Operation operation) {
+        return operation instanceof Compute ||
+                operation instanceof ComputeAtLevels ||
+                operation instanceof ComputeBatch;
+    }
+
+    /**
+     * Executes the given operation in the context of this session using the
+     * given execution strategy instead of the one configured for the session
+     * or the cube. The operation is never deferred.
+     *
+     * @param operation         the operation to execute
+     * @param executionStrategy the execution strategy to use or {@code null}
+     *                          for sending a single query to the SPARQL
+     *                          endpoint
+     * @throws NullPointerException     if the operation is {@code null}
+     * @throws IllegalStateException    if no cube has been set
+     */
+    public void execute(final Operation operation,
+            final ExecutionStrategy executionStrategy) {
+        if (state.getCube() == null) {
+            throw new IllegalStateException();
+        }
+        statementCount++;
+        flush();
+        statementNumber = statementCount;
+        executionStrategyOverridden = true;
+        operationExecutionStrategy = executionStrategy;
+        try {
+            operation.run(this);
+        } finally {
+            executionStrategyOverridden = false;
+            operationExecutionStrategy = null;
+        }
+    }
+
+    /**
+     * Returns whether compute operations are deferred and merged into
+     * batches.
+     *
+     * @return whether compute operations are batched
+     *
+     * @see #setBatching
+     */
+    public boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Sets whether compute operations are deferred and merged into batches.
+     * Compute operations are then collected until one is requested in a
+     * different cube state, the output settings change or {@link #flush} is
+     * called, and run as a single {@link ComputeBatch} in the state they were
+     * requested in. Operations in between that lead back to the same state,
+     * such as a roll-up followed by an undo, do not end the batch.
+     *
+     * @param batching whether compute operations should be batched
+     *
+     * @see #isBatching
+     */
+    public void setBatching(final boolean batching) {
+        flush();
+        this.batching = batching;
+    }
+
+    /**
+     * Returns whether RDF output is generated on the client from the rows of
+     * a SELECT query instead of being requested with a CONSTRUCT query.
+     *
+     * @return whether RDF output is generated on the client
+     *
+     * @see #setConstructOnClient
+     */
+    public boolean isConstructOnClient() {
+        return constructOnClient;
+    }
+
+    /**
+     * Sets whether RDF output is generated on the client from the rows of a
+     * SELECT query instead of being requested with a CONSTRUCT query. The
+     * endpoint then neither creates nor serializes the blank nodes
+     * describing the computed measures, and the triples are streamed to the
+     * output as they are generated.
+     *
+     * @param constructOnClient whether RDF output should be generated on the
+     *                          client
+     *
+     * @see #isConstructOnClient
+     */
+    public void setConstructOnClient(final boolean constructOnClient) {
+        flush();
+        this.constructOnClient = constructOnClient;
+    }
+
+    /**
+     * Returns the number of chunks buffered between producing the output and
+     * writing it in the background.
+     *
+     * @return the output buffer capacity in chunks, or zero if the output is
+     *         written synchronously
+     *
+     * @see #setOutputBufferCapacity
+     */
+    public int getOutputBufferCapacity() {
+        return outputBufferCapacity;
+    }
+
+    /**
+     * Sets the number of chunks buffered between producing the output and
+     * writing it in the background. Producing the output blocks if all
+     * chunks are waiting to be written.
+     *
+     * @param capacity the output buffer capacity in chunks, or zero for
+     *                 writing the output synchronously
+     *
+     * @throws IllegalArgumentException if the capacity is negative
+     *
+     * @see #getOutputBufferCapacity
+     */
+    public void setOutputBufferCapacity(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(
+                    "Negative output buffer capacity: " + capacity);
+        }
+        flush();
+        outputBufferCapacity = capacity;
+    }
+
+    /**
+     * Runs the deferred compute operations, if any, in the cube state they
+     * were requested in.
+     */
+    public void flush() {
+        if (!pending.isEmpty()) {
+            List<Compute> batch = new ArrayList<>(pending);
+            pending.clear();
+            batchStatements.addAll(pendingStatements);
+            pendingStatements.clear();
+            SessionState current = state;
+            state = pendingState;
+            pendingState = null;
+            try {
+                new ComputeBatch(batch).run(this);
+            } finally {
+                state = current;
+                batchStatements.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of rows per page when paging through results on the
+     * console.
+     *
+     * @return the page size, or zero if results are printed completely
+     *
+     * @see #setPageSize
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the number of rows per page when paging through results on the
+     * console. Paging only applies to tabular results that are written to
+     * the standard output stream.
+     *
+     * @param pageSize the page size, or zero for printing results completely
+     * @throws IllegalArgumentException if the page size is negative
+     *
+     * @see #getPageSize
+     * @see #page
+     */
+    public void setPageSize(final int pageSize) {
+        if (pageSize < 0) {
+            throw new IllegalArgumentException(
+                    "Negative page size: " + pageSize);
+        }
+        flush();
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns whether results are paged through instead of being written to
+     * the output completely.
+     *
+     * @return whether results are paged through
+     */
+    public boolean isPaging() {
+        return pageSize > 0 && sink == null && archive == null &&
+                additionalOutputs.isEmpty();
+    }
+
+    /**
+     * Pages through the given result on the standard output stream. The
+     * first page is printed as soon as its rows have been received, while
+     * the remaining rows are received in the background. The pager of the
+     * previous result is closed.
+     *
+     * @param result        the result to page through
+     * @param source        the resource to close once the result has been
+     *                      received or {@code null}
+     * @param resultsFormat the results format to print the pages in
+     * @throws IllegalStateException if results are not paged through
+     *
+     * @see #isPaging
+     * @see #getPager
+     */
+    public void page(final ResultSet result, final AutoCloseable source,
+            final ResultsFormat resultsFormat) {
+        if (!isPaging()) {
+            throw new IllegalStateException("Results are not paged through");
+        }
+        closePager();
+        try {
+            pager = new ResultPager(result, source, resultsFormat,
+                    getOutput(), pageSize);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        pager.next();
+    }
+
+    /**
+     * Returns the pager of the result printed last.
+     *
+     * @return the pager or {@code null} if no result has been paged through
+     *
+     * @see #page
+     */
+    public ResultPager getPager() {
+        return pager;
+    }
+
+    /**
+     * Helper method for closing the pager of the result printed last.
+     */
+    private void closePager() {
+        if (pager != null) {
+            pager.close();
+            pager = null;
+        }
+    }
+
+    /**
+     * Runs the deferred compute operations and closes the pager and the
+     * archive, if any.
+     *
+     * @throws IOException if the archive cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closePager();
+        setArchive(null);
     }
 }
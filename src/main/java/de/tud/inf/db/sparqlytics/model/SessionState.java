@@ -0,0 +1,356 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Immutable state of an analytical session, consisting of the cube, the
+ * granularity and the filters. Every modification returns a new state, which
+ * shares all unchanged parts with this state, so that earlier states can be
+ * kept cheaply for undoing and branching.
+ * <p>
+ * Every state has a hash that only depends on the names of the cube,
+ * dimensions and levels and on the filter predicates, so that it is stable
+ * across runs and equal states have equal hashes.
+ *
+ * @author Michael Rudolf
+ */
+public final class SessionState {
+    /**
+     * The state without a cube.
+     */
+    public static final SessionState EMPTY = new SessionState(null, null,
+            new int[0], new Filter[0]);
+
+    /**
+     * The cube, or {@code null} if no cube has been selected.
+     */
+    private final Cube cube;
+
+    /**
+     * The compiled layout of the cube, or {@code null} if no cube has been
+     * selected.
+     */
+    private final CompiledCube layout;
+
+    /**
+     * The granularity for aggregating facts by dimension ordinal.
+     */
+    private final int[] granularity;
+
+    /**
+     * The filters by level ordinal.
+     */
+    private final Filter[] filters;
+
+    /**
+     * The stable hash of this state.
+     */
+    private final long hash;
+
+    /**
+     * Creates a new state. The arrays must not be modified afterwards.
+     *
+     * @param cube          the cube
+     * @param layout        the compiled layout of the cube
+     * @param granularity   the granularity by dimension ordinal
+     * @param filters       the filters by level ordinal
+     */
+    private SessionState(final Cube cube, final CompiledCube layout,
+            final int[] granularity, final Filter[] filters) {
+        this.cube = cube;
+        this.layout = layout;
+        this.granularity = granularity;
+        this.filters = filters;
+        this.hash = computeHash();
+    }
+
+    /**
+     * Returns the cube.
+     *
+     * @return the cube, or {@code null} if no cube has been selected
+     */
+    public Cube getCube() {
+        return cube;
+    }
+
+    /**
+     * Returns the compiled layout of the cube, which determines the ordinals
+     * used by {@link #getGranularity(int)} and {@link #getFilter(int)}.
+     *
+     * @return the compiled layout, or {@code null} if no cube has been
+     *         selected
+     */
+    public CompiledCube getLayout() {
+        return layout;
+    }
+
+    /**
+     * Returns a state for the given cube with the finest granularity. The
+     * filters on dimensions and levels that the given cube shares with the
+     * current cube are kept.
+     *
+     * @param cube the cube to select
+     * @return the new state
+     */
+    public SessionState withCube(final Cube cube) {
+        if (cube == null) {
+            return EMPTY;
+        }
+        CompiledCube newLayout = cube.compile();
+        Filter[] newFilters = new Filter[newLayout.getLevelCount()];
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null) {
+                int dimension = newLayout.getOrdinal(layout.getDimension(
+                        layout.getDimensionOfLevel(i)));
+                int ordinal = dimension < 0 ? -1 :
+                        newLayout.getOrdinal(dimension, layout.getLevel(i));
+                if (ordinal >= 0) {
+                    newFilters[ordinal] = filters[i];
+                }
+            }
+        }
+        return new SessionState(cube, newLayout,
+                new int[newLayout.getDimensionCount()], newFilters);
+    }
+
+    /**
+     * Returns the granularity for the given dimension.
+     *
+     * @param dimension the dimension in question
+     * @return the level of aggregation in the given dimension
+     * @throws IllegalArgumentException if the given dimension is not part of
+     *                                  the cube
+     */
+    public int getGranularity(final Dimension dimension) {
+        return granularity[getOrdinal(dimension)];
+    }
+
+    /**
+     * Returns the granularity for the dimension with the given ordinal.
+     *
+     * @param dimensionOrdinal the ordinal of the dimension
+     * @return the level of aggregation in the dimension
+     */
+    public int getGranularity(final int dimensionOrdinal) {
+        return granularity[dimensionOrdinal];
+    }
+
+    /**
+     * Returns a state in which the given dimension has the given granularity.
+     *
+     * @param dimension the dimension for which the aggregation level should be
+     *                  changed
+     * @param level     the new aggregation level of the given dimension
+     * @return the new state, or this state if nothing changes
+     * @throws IllegalArgumentException  if the given dimension is not part of
+     *                                   the cube or if the given level is less
+     *                                   than zero
+     */
+    public SessionState withGranularity(final Dimension dimension,
+            final int level) {
+        int ordinal = getOrdinal(dimension);
+        if (level < 0) {
+            throw new IllegalArgumentException();
+        } else if (granularity[ordinal] == level) {
+            return this;
+        }
+        int[] newGranularity = granularity.clone();
+        newGranularity[ordinal] = level;
+        return new SessionState(cube, layout, newGranularity, filters);
+    }
+
+    /**
+     * Returns the filter for the level with the given ordinal.
+     *
+     * @param levelOrdinal the ordinal of the level
+     * @return the filter, or {@code null} if the level is not filtered
+     */
+    public Filter getFilter(final int levelOrdinal) {
+        return filters[levelOrdinal];
+    }
+
+    /**
+     * Returns a state in which the given level of the given dimension has the
+     * given filter.
+     *
+     * @param dimension the dimension to set the filter for
+     * @param level     the level in the given dimension
+     * @param filter    the filter to set, or {@code null} to remove the filter
+     * @return the new state, or this state if nothing changes
+     * @throws IllegalArgumentException if the given level is not part of the
+     *                                  cube
+     */
+    public SessionState withFilter(final Dimension dimension,
+            final Level level, final Filter filter) {
+        int ordinal = layout.getOrdinal(getOrdinal(dimension), level);
+        if (ordinal < 0) {
+            throw new IllegalArgumentException();
+        } else if (filters[ordinal] == filter) {
+            return this;
+        }
+        Filter[] newFilters = filters.clone();
+        newFilters[ordinal] = filter;
+        return new SessionState(cube, layout, granularity, newFilters);
+    }
+
+    /**
+     * Returns a mapping of dimension-level pairs to filters, ordered by the
+     * ordinals of the levels.
+     *
+     * @return  a mapping of dimension-level pairs to filters
+     */
+    public Map<Pair<Dimension, Level>, Filter> getFilters() {
+        Map<Pair<Dimension, Level>, Filter> result = new LinkedHashMap<>();
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null) {
+                result.put(Pair.of(layout.getDimension(
+                        layout.getDimensionOfLevel(i)), layout.getLevel(i)),
+                        filters[i]);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Returns the stable hash of this state.
+     *
+     * @return the hash of this state
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the ordinal of the given dimension.
+     *
+     * @param dimension the dimension to look up
+     * @return the ordinal of the dimension
+     * @throws IllegalArgumentException if the given dimension is not part of
+     *                                  the cube
+     */
+    private int getOrdinal(final Dimension dimension) {
+        int ordinal = layout == null ? -1 : layout.getOrdinal(dimension);
+        if (ordinal < 0) {
+            throw new IllegalArgumentException();
+        }
+        return ordinal;
+    }
+
+    /**
+     * Computes the stable hash of this state as 64 bit FNV-1a over the UTF-16
+     * code units of the name of the cube, the filters ordered by dimension and
+     * level name, and the granularity ordered by dimension name.
+     *
+     * @return the hash of this state
+     */
+    private long computeHash() {
+        long result = hash(0xcbf29ce484222325L,
+                cube == null ? "" : cube.getName());
+        result = (result ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < filters.length; i++) {
+            int ordinal = layout.getSortedLevel(i);
+            Filter filter = filters[ordinal];
+            if (filter != null) {
+                result = hash(result, "f\u0000");
+                result = hash(result, layout.getDimension(
+                        layout.getDimensionOfLevel(ordinal)).getName());
+                result = (result ^ 0) * 0x100000001b3L;
+                result = hash(result, layout.getLevel(ordinal).getName());
+                result = (result ^ 0) * 0x100000001b3L;
+                result = hash(result, filter.getKey());
+                result = (result ^ 0xffff) * 0x100000001b3L;
+            }
+        }
+        for (int i = 0; i < granularity.length; i++) {
+            result = hash(result, "g\u0000");
+            result = hash(result, layout.getDimension(i).getName());
+            result = (result ^ 0) * 0x100000001b3L;
+            result = hash(result, granularity[i]);
+            result = (result ^ 0xffff) * 0x100000001b3L;
+        }
+        return result;
+    }
+
+    /**
+     * Continues the given FNV-1a hash with the UTF-16 code units of the given
+     * string.
+     *
+     * @param hash  the hash so far
+     * @param part  the string to hash
+     * @return the continued hash
+     */
+    private static long hash(long hash, final String part) {
+        for (int i = 0; i < part.length(); i++) {
+            hash = (hash ^ part.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Continues the given FNV-1a hash with the decimal digits of the given
+     * non-negative number.
+     *
+     * @param hash      the hash so far
+     * @param number    the number to hash
+     * @return the continued hash
+     */
+    private static long hash(long hash, final int number) {
+        int divisor = 1;
+        while (number / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            hash = (hash ^ ('0' + number / divisor % 10)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof SessionState)) {
+            return false;
+        }
+        SessionState other = (SessionState) obj;
+        if (hash != other.hash || (cube == null ? other.cube != null :
+                !cube.equals(other.cube)) ||
+                !Arrays.equals(granularity, other.granularity) ||
+                filters.length != other.filters.length) {
+            return false;
+        }
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != other.filters[i] && (filters[i] == null ||
+                    other.filters[i] == null ||
+                    !filters[i].getKey().equals(other.filters[i].getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
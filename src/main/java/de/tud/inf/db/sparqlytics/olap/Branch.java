@@ -0,0 +1,51 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.model.Session;
+
+/**
+ * An operation for saving the current state of the session under a name, so
+ * that it can be returned to with a {@link Checkout checkout} operation.
+ *
+ * @author Michael Rudolf
+ */
+public class Branch implements Operation {
+    /**
+     * The name to save the state under.
+     */
+    private final String name;
+
+    /**
+     * Creates a new branch operation for the given name.
+     *
+     * @param name the name to save the state under
+     *
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public Branch(final String name) {
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+    }
+
+    @Override
+    public void run(final Session session) {
+        session.branch(name);
+    }
+}
@@ -0,0 +1,51 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.model.Session;
+
+/**
+ * An operation for returning to a state of the session saved by a
+ * {@link Branch branch} operation.
+ *
+ * @author Michael Rudolf
+ */
+public class Checkout implements Operation {
+    /**
+     * The name of the saved state.
+     */
+    private final String name;
+
+    /**
+     * Creates a new checkout operation for the given name.
+     *
+     * @param name the name of the saved state
+     *
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public Checkout(final String name) {
+        if (name == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+    }
+
+    @Override
+    public void run(final Session session) {
+        session.checkout(name);
+    }
+}
@@ -0,0 +1,207 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.local.ExternalHashAggregator;
+import de.tud.inf.db.sparqlytics.local.ExternalSorter;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Filter;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.atlas.lib.Sink;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.function.FunctionEnv;
+
+/**
+ * Execution strategy that only sends the inner compute query to the SPARQL
+ * endpoint, which yields one row per fact with its level members and measure
+ * values. The rows are streamed into an {@link ExternalHashAggregator}, which
+ * performs the outer aggregation on the client after evaluating the filters
+ * and spills to temporary files if the groups exceed the memory budget. The
+ * aggregated groups are then sorted by an {@link ExternalSorter}, which keeps
+ * only the top groups if a limit is given.
+ * <p>
+ * This relieves endpoints that evaluate the nested aggregation poorly, at the
+ * cost of transferring every fact. The numbers of transferred rows, filtered
+ * rows, groups, spilled bytes and spilled partitions are recorded in the
+ * metrics of this class, while the total time is recorded by the
+ * {@code execute} timer of every strategy, so that the strategies can be
+ * compared.
+ *
+ * @author Michael Rudolf
+ */
+public class ClientAggregationStrategy implements ExecutionStrategy {
+    /**
+     * The number of bytes the groups may occupy in memory before rows are
+     * spilled to temporary files.
+     */
+    private final long memoryBudget;
+
+    /**
+     * Creates a new strategy, which may use a quarter of the maximum heap
+     * size for the groups.
+     */
+    public ClientAggregationStrategy() {
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Creates a new strategy with the given memory budget.
+     *
+     * @param memoryBudget  the number of bytes the groups may occupy in
+     *                      memory before rows are spilled to temporary files
+     * @throws IllegalArgumentException if the memory budget is negative
+     */
+    public ClientAggregationStrategy(final long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException(
+                    "Negative memory budget: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns the number of bytes the groups may occupy in memory before rows
+     * are spilled to temporary files.
+     *
+     * @return the memory budget in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    @Override
+    public ResultSet execute(final Compute compute, final Session session,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        List<Dimension> dimensions = new ArrayList<>(
+                session.getCube().getDimensions());
+        List<Var> keyVariables = new ArrayList<>(dimensions.size());
+        for (Dimension dimension : dimensions) {
+            keyVariables.add(dimensionVariables.get(dimension));
+        }
+        final List<Expr> predicates = new ArrayList<>();
+        for (Filter filter : session.getFilters().values()) {
+            predicates.add(filter.getPredicate());
+        }
+        Map<Var, Aggregator> aggregators = new LinkedHashMap<>();
+        for (Measure measure : compute.getMeasures()) {
+            Pair<Var, Var> vars = measureVariables.get(measure);
+            aggregators.put(vars.getRight(), compute.createAggregator(
+                    measure.getAggregationFunction(),
+                    new ExprVar(vars.getLeft())));
+        }
+
+        //Stream the facts and aggregate them by level members
+        final FunctionEnv env = compute.createFunctionEnv();
+        final ExternalHashAggregator aggregator = new ExternalHashAggregator(
+                keyVariables, aggregators, memoryBudget);
+        final long[] counts = new long[3];
+        Query query = compute.createComputeQuery(session,
+                compute.getMeasures(), dimensions, session.getFilters(),
+                dimensionVariables, measureVariables);
+        compute.prepareQuery(session, query);
+        final List<Binding> rows = new ArrayList<>();
+        final ExternalSorter sorter = compute.getSortConditions().isEmpty() ?
+                null : compute.createSorter(session, dimensionVariables,
+                        measureVariables);
+        try {
+            compute.select(session, query, new Sink<Binding>() {
+                @Override
+                public void send(final Binding fact) {
+                    counts[0]++;
+                    for (Expr predicate : predicates) {
+                        if (!predicate.isSatisfied(fact, env)) {
+                            counts[1]++;
+                            return;
+                        }
+                    }
+                    aggregator.add(fact, env);
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+
+            //Collect or sort the aggregated groups
+            aggregator.drain(new Sink<Binding>() {
+                @Override
+                public void send(final Binding group) {
+                    counts[2]++;
+                    if (sorter == null) {
+                        rows.add(group);
+                    } else {
+                        sorter.send(group);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            }, env);
+        } catch (RuntimeException ex) {
+            if (sorter != null) {
+                sorter.close();
+            }
+            throw ex;
+        } finally {
+            aggregator.close();
+        }
+        Main.METRICS.histogram(MetricRegistry.name(
+                ClientAggregationStrategy.class, "rows")).update(counts[0]);
+        Main.METRICS.histogram(MetricRegistry.name(
+                ClientAggregationStrategy.class, "filteredRows")).update(counts[1]);
+        Main.METRICS.histogram(MetricRegistry.name(
+                ClientAggregationStrategy.class, "groups")).update(counts[2]);
+        Main.METRICS.counter(MetricRegistry.name(
+                ClientAggregationStrategy.class, "spilledBytes")).inc(
+                        aggregator.getSpilledBytes());
+        Main.METRICS.counter(MetricRegistry.name(
+                ClientAggregationStrategy.class, "spilledPartitions")).inc(
+                        aggregator.getSpilledPartitions());
+
+        Iterator<Binding> result = sorter == null ?
+                compute.applySolutionModifiers(session, rows,
+                        dimensionVariables, measureVariables).iterator() :
+                compute.sort(sorter);
+        return compute.createResultSet(session, result, dimensionVariables,
+                measureVariables);
+    }
+}
@@ -17,6 +17,13 @@
 package de.tud.inf.db.sparqlytics.olap;
 
 import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.io.AsyncOutputChannel;
+import de.tud.inf.db.sparqlytics.io.DelimitedResultWriter;
+import de.tud.inf.db.sparqlytics.io.Flow;
+import de.tud.inf.db.sparqlytics.io.ResultCoalescer;
+import de.tud.inf.db.sparqlytics.io.ResultPublisher;
+import de.tud.inf.db.sparqlytics.io.ResultReader;
+import de.tud.inf.db.sparqlytics.local.ExternalSorter;
 import de.tud.inf.db.sparqlytics.model.Measure;
 import de.tud.inf.db.sparqlytics.model.Level;
 import de.tud.inf.db.sparqlytics.model.Session;
@@ -25,20 +32,36 @@ import de.tud.inf.db.sparqlytics.model.Filter;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.jena.atlas.io.IndentedLineBuffer;
+import org.apache.jena.atlas.lib.Sink;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
+import org.apache.jena.query.ARQ;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecutionFactory;
 import org.apache.jena.query.ResultSet;
@@ -46,11 +69,21 @@ import org.apache.jena.query.ResultSetFormatter;
 import org.apache.jena.query.Syntax;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.riot.RDFLanguages;
 import org.apache.jena.riot.WebContent;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.system.StreamRDFWriter;
+import org.apache.jena.sparql.ARQConstants;
 import org.apache.jena.sparql.core.BasicPattern;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.core.VarAlloc;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingComparator;
+import org.apache.jena.sparql.engine.http.HttpParams;
+import org.apache.jena.sparql.engine.http.HttpQuery;
 import org.apache.jena.sparql.engine.http.QueryEngineHTTP;
 import org.apache.jena.sparql.expr.Expr;
 import org.apache.jena.sparql.expr.ExprAggregator;
@@ -59,8 +92,13 @@ import org.apache.jena.sparql.expr.ExprVisitorBase;
 import org.apache.jena.sparql.expr.ExprWalker;
 import org.apache.jena.sparql.expr.aggregate.Aggregator;
 import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.apache.jena.sparql.function.FunctionEnvBase;
+import org.apache.jena.sparql.modify.TemplateLib;
 import org.apache.jena.sparql.resultset.ResultsFormat;
 import org.apache.jena.sparql.syntax.*;
+import org.apache.jena.sparql.util.Context;
+import org.apache.jena.sparql.util.NodeFactoryExtra;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -74,6 +112,16 @@ public class Compute implements Operation {
      * Logs the generated SPARQL queries.
      */
     private static final Logger LOG = LoggerFactory.getLogger(Compute.class);
+
+    /**
+     * The maximum number of rows kept in memory when sorting on the client.
+     */
+    protected static final int SORT_BUFFER_SIZE = 100000;
+
+    /**
+     * The size of the chunks in which the output is written in the background.
+     */
+    protected static final int OUTPUT_CHUNK_SIZE = 64 * 1024;
     
     /**
      * Represents a sort condition consisting of a dimension or measure name and
@@ -170,13 +218,229 @@ public class Compute implements Operation {
         this.offset = offset;
     }
 
+    /**
+     * Returns the measures to compute.
+     *
+     * @return the measures to compute
+     */
+    public List<Measure> getMeasures() {
+        return Collections.unmodifiableList(measures);
+    }
+
+    /**
+     * Returns the conditions for ordering the computed measures.
+     *
+     * @return the ordering to apply, may be empty
+     */
+    public List<SortCondition> getSortConditions() {
+        return Collections.unmodifiableList(sortConditions);
+    }
+
+    /**
+     * Returns the limit until which to compute measures.
+     *
+     * @return the limit or {@code null}
+     */
+    public Long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Returns the offset from which to start computing measures.
+     *
+     * @return the offset or {@code null}
+     */
+    public Long getOffset() {
+        return offset;
+    }
+
     @Override
     public void run(final Session session) {
+        run(session, session.getExecutionStrategy());
+    }
+
+    /**
+     * Computes the measures in the current state of the given session in the
+     * background and completes the returned future with the whole result.
+     * Unlike {@link #run}, nothing is written to the outputs of the session,
+     * and the session may be changed while the computation is running.
+     * Cancelling the future stops receiving the result.
+     *
+     * @param session   the session to compute the measures in
+     * @param executor  runs the computation
+     * @return the future result
+     * @throws NullPointerException if any parameter is {@code null}
+     */
+    public CompletableFuture<ComputeResult> computeAsync(
+            final Session session, final Executor executor) {
+        final Session detached = session.detach();
+        final CompletableFuture<ComputeResult> future =
+                new CompletableFuture<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try (ResultReader reader = open(detached)) {
+                    List<Binding> rows = new ArrayList<>();
+                    while (!future.isDone() && reader.hasNext()) {
+                        rows.add(reader.next());
+                    }
+                    future.complete(new ComputeResult(reader.getVariables(),
+                            rows));
+                } catch (RuntimeException | Error ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a publisher of the rows computed in the current state of the
+     * given session. The computation starts once the subscriber requests the
+     * first row, and further rows are only received from the SPARQL endpoint
+     * as far as the subscriber requests them. Like with
+     * {@link #computeAsync}, nothing is written to the outputs of the session,
+     * and the session may be changed afterwards.
+     *
+     * @param session   the session to compute the measures in
+     * @param executor  reads the rows and passes them to the subscriber
+     * @return the publisher of the computed rows, which accepts a single
+     *         subscriber
+     * @throws NullPointerException if any parameter is {@code null}
+     */
+    public Flow.Publisher<Binding> publish(final Session session,
+            final Executor executor) {
+        final Session detached = session.detach();
+        return new ResultPublisher(new Callable<ResultReader>() {
+            @Override
+            public ResultReader call() {
+                return open(detached);
+            }
+        }, executor);
+    }
+
+    /**
+     * Computes the measures in the given session and returns a reader for the
+     * rows of the result, which are received while they are read. The outputs
+     * and the results format of the session are ignored.
+     *
+     * @param session the session to compute the measures in
+     * @return a reader for the rows of the result, which has to be closed
+     */
+    public ResultReader open(final Session session) {
+        ExecutionStrategy strategy = session.getExecutionStrategy();
+        if (FilterAnalyzer.isUnsatisfiable(session.getFilters())) {
+            Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                    "unsatisfiable")).inc();
+            strategy = new EmptyResult();
+        }
+        if (strategy != null) {
+            return new ResultSetReader(strategy.execute(this, session,
+                    allocateDimensionVariables(session),
+                    allocateMeasureVariables()));
+        }
+        Query query = createQuery(session, false);
+        try {
+            return openSelect(session, query.toString());
+        } catch (RuntimeException ex) {
+            IndentedLineBuffer buffer = new IndentedLineBuffer();
+            query.serialize(buffer);
+            throw extendRuntimeException(ex, buffer.toString());
+        }
+    }
+
+    /**
+     * Runs this operation in the given session using the given execution
+     * strategy instead of the one configured in the session. If the same
+     * computation has been archived in the current state of the session
+     * before, its results are appended to the archive again instead.
+     *
+     * @param session   the session to run this operation in
+     * @param strategy  the execution strategy to use or {@code null} for
+     *                  sending a single query to the SPARQL endpoint
+     */
+    protected void run(final Session session, final ExecutionStrategy strategy) {
+        session.beginComputation();
+        String key = session.getArchive() == null ? null :
+                getArchiveKey(session);
+        if (key != null && session.reuseArchivedResults(key)) {
+            Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                    "reused")).inc();
+            return;
+        }
+        compute(session, strategy);
+        if (key != null) {
+            session.archiveComputation(key);
+        }
+    }
+
+    /**
+     * Runs this operation in the given session, writing the rows that the
+     * given execution strategy provides from a computation done before.
+     * Archived results are never reused instead, since only the caller knows
+     * which computation the rows stem from. The session has to be in the
+     * state the rows were computed for, so that the results are archived
+     * under the right key.
+     *
+     * @param session   the session to run this operation in
+     * @param rows      the execution strategy providing the computed rows
+     */
+    protected void runPrecomputed(final Session session,
+            final ExecutionStrategy rows) {
+        session.beginComputation();
+        compute(session, rows);
+        if (session.getArchive() != null) {
+            session.archiveComputation(getArchiveKey(session));
+        }
+    }
+
+    /**
+     * Helper method for identifying the results this operation appends to
+     * the archive of the given session. The key consists of the SPARQL
+     * endpoint, the formats of the outputs and the generated query, which
+     * reflects the cube state, the measures, the ordering and the limits.
+     *
+     * @param session the session to compute the measures in
+     * @return the key identifying the archived results
+     */
+    private String getArchiveKey(final Session session) {
+        StringBuilder key = new StringBuilder();
+        key.append(session.getSPARQLEndpointURL()).append('\n');
+        for (Pair<File, ResultsFormat> output : session.getOutputs()) {
+            key.append(output.getRight()).append(' ');
+        }
+        key.append(session.isConstructOnClient()).append('\n');
+        return key.append(createQuery(session, false)).toString();
+    }
+
+    /**
+     * Computes the measures in the given session and writes them to its
+     * outputs.
+     *
+     * @param session   the session to run this operation in
+     * @param strategy  the execution strategy to use or {@code null} for
+     *                  sending a single query to the SPARQL endpoint
+     */
+    private void compute(final Session session,
+            final ExecutionStrategy strategy) {
         ResultsFormat resultsFormat = session.getResultsFormat();
         if (resultsFormat == null) {
             resultsFormat = ResultsFormat.FMT_RDF_XML;
         }
-        
+        List<Pair<File, ResultsFormat>> outputs = session.getOutputs();
+        if (FilterAnalyzer.isUnsatisfiable(session.getFilters())) {
+            Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                    "unsatisfiable")).inc();
+            run(session, new EmptyResult(), resultsFormat, outputs);
+            return;
+        } else if (strategy != null) {
+            run(session, strategy, resultsFormat, outputs);
+            return;
+        }
+
         //Create SPARQL query and measure elapsed time
         Timer createQuery = Main.METRICS.timer(
                 MetricRegistry.name(Compute.class, "createQuery"));
@@ -184,7 +448,8 @@ public class Compute implements Operation {
         Query query;
         Timer.Context time = createQuery.time();
         try {
-            query = createQuery(session,
+            query = createQuery(session, outputs.size() == 1 &&
+                    !session.isConstructOnClient() &&
                     resultsFormat != ResultsFormat.FMT_RS_CSV &&
                     resultsFormat != ResultsFormat.FMT_RS_TSV);
         } finally {
@@ -210,10 +475,8 @@ public class Compute implements Operation {
         long executionTime;
         Histogram resultSize = Main.METRICS.histogram(
                 MetricRegistry.name(Compute.class, "resultSize"));
-        QueryEngineHTTP exec = (QueryEngineHTTP)QueryExecutionFactory.sparqlService(
-                session.getSPARQLEndpointURL(), queryString);
-        exec.setModelContentType(WebContent.contentTypeRDFXML);
         if (query.isConstructType()) {
+            QueryEngineHTTP exec = createQueryExecution(session, queryString);
             Model model;
             time = executeQuery.time();
             try {
@@ -230,24 +493,17 @@ public class Compute implements Operation {
 
                 //Possibly output result
                 if (resultsFormat != ResultsFormat.FMT_NONE) {
-                    Lang lang = ResultsFormat.convert(resultsFormat);
-                    if (lang == null) {
-                        lang = RDFLanguages.contentTypeToLang(resultsFormat.getSymbol());
-                    }
-                    try (OutputStream output = session.getOutput()) {
-                        model.write(output, lang == null ? null : lang.getLabel(), null);
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
+                    write(session, resultsFormat, model);
                 }
             } finally {
                 model.close();
             }
         } else {
-            ResultSet result;
+            ResultReader reader;
+            long start = System.nanoTime();
             time = executeQuery.time();
             try {
-                result = exec.execSelect();
+                reader = openSelect(session, queryString);
             } catch (RuntimeException ex) {
                 throw extendRuntimeException(ex, indentedQueryString);
             } finally {
@@ -255,19 +511,30 @@ public class Compute implements Operation {
             }
 
             //Possibly output result
+            boolean paged = false;
             try {
-                if (resultsFormat != ResultsFormat.FMT_NONE) {
-                    try (OutputStream output = session.getOutput()) {
-                        ResultSetFormatter.output(output, result, resultsFormat);
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                    resultSize.update(result.getRowNumber());
-                } else {
+                ResultSet result = new ResultSetStream(
+                        Var.varNames(reader.getVariables()), null, reader);
+                result.hasNext();
+                updateTimeToFirstRow(start);
+                if (outputs.size() > 1 || !DelimitedResultWriter.supports(
+                        resultsFormat) &&
+                        resultsFormat != ResultsFormat.FMT_NONE) {
+                    resultSize.update(write(session, outputs, result));
+                } else if (resultsFormat == ResultsFormat.FMT_NONE) {
                     resultSize.update(ResultSetFormatter.consume(result));
+                } else if (session.isPaging()) {
+                    session.page(result, reader, resultsFormat);
+                    paged = true;
+                } else {
+                    resultSize.update(write(session, resultsFormat, result));
                 }
+            } catch (RuntimeException ex) {
+                throw extendRuntimeException(ex, indentedQueryString);
             } finally {
-                exec.close();
+                if (!paged) {
+                    reader.close();
+                }
             }
         }
         executeQuery.update(executionTime, TimeUnit.NANOSECONDS);
@@ -280,6 +547,559 @@ public class Compute implements Operation {
         }
     }
 
+    /**
+     * Runs this operation in the given session using the given execution
+     * strategy. The rows produced by the strategy are written as they are for
+     * tabular results formats. For RDF formats, the triples are generated on
+     * the client from the same template that would be used in a CONSTRUCT
+     * query.
+     *
+     * @param session       the session to run this operation in
+     * @param strategy      the execution strategy to use
+     * @param resultsFormat the results format to use for the output
+     * @param outputs       all outputs of the session
+     */
+    private void run(final Session session, final ExecutionStrategy strategy,
+            final ResultsFormat resultsFormat,
+            final List<Pair<File, ResultsFormat>> outputs) {
+        Map<Dimension, Var> dimensionVariables = allocateDimensionVariables(session);
+        Map<Measure, Pair<Var, Var>> measureVariables = allocateMeasureVariables();
+
+        //Execute strategy and measure elapsed time and result size
+        Timer executeStrategy = Main.METRICS.timer(
+                MetricRegistry.name(strategy.getClass(), "execute"));
+        Histogram resultSize = Main.METRICS.histogram(
+                MetricRegistry.name(Compute.class, "resultSize"));
+        ResultSet result;
+        long start = System.nanoTime();
+        Timer.Context time = executeStrategy.time();
+        try {
+            result = strategy.execute(this, session, dimensionVariables,
+                    measureVariables);
+        } finally {
+            time.stop();
+        }
+
+        //Possibly output result
+        result.hasNext();
+        updateTimeToFirstRow(start);
+        if (outputs.size() > 1 || !DelimitedResultWriter.supports(
+                resultsFormat) && resultsFormat != ResultsFormat.FMT_NONE) {
+            resultSize.update(write(session, outputs, result));
+        } else if (resultsFormat == ResultsFormat.FMT_NONE) {
+            resultSize.update(ResultSetFormatter.consume(result));
+        } else if (session.isPaging()) {
+            session.page(result, null, resultsFormat);
+        } else {
+            resultSize.update(write(session, resultsFormat, result));
+        }
+    }
+
+    /**
+     * Records the time from executing a query until its first row has been
+     * received, which is the delay perceived before a result starts to be
+     * printed.
+     *
+     * @param start the value of {@link System#nanoTime} when the execution
+     *              started
+     */
+    private void updateTimeToFirstRow(final long start) {
+        Main.METRICS.timer(MetricRegistry.name(Compute.class,
+                "timeToFirstRow")).update(System.nanoTime() - start,
+                        TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Writes the given result to a new output of the given session. Comma-
+     * and tab-separated values are encoded by a
+     * {@link DelimitedResultWriter}, all other formats by Jena. Unless the
+     * session disables it, the encoded bytes are written to the output by an
+     * {@link AsyncOutputChannel}, so that reading a result from the SPARQL
+     * endpoint does not wait for the output. The maximum queue depth and the
+     * time spent waiting for a full queue are recorded.
+     *
+     * @param session       the session providing the output
+     * @param resultsFormat the results format to use for the output
+     * @param result        the result to write
+     * @return the number of written rows
+     */
+    protected long write(final Session session,
+            final ResultsFormat resultsFormat, final ResultSet result) {
+        AsyncOutputChannel async = null;
+        try {
+            WritableByteChannel channel = session.getOutputChannel();
+            if (session.getOutputBufferCapacity() > 0) {
+                async = new AsyncOutputChannel(channel,
+                        session.getOutputBufferCapacity(), OUTPUT_CHUNK_SIZE);
+                channel = async;
+            }
+            if (DelimitedResultWriter.supports(resultsFormat)) {
+                try (DelimitedResultWriter writer = new DelimitedResultWriter(
+                        channel, Var.varList(result.getResultVars()),
+                        resultsFormat)) {
+                    while (result.hasNext()) {
+                        writer.write(result.nextBinding());
+                    }
+                    return writer.getRowCount();
+                }
+            }
+            try (OutputStream output = new BufferedOutputStream(
+                    Channels.newOutputStream(channel), OUTPUT_CHUNK_SIZE)) {
+                ResultSetFormatter.output(output, result, resultsFormat);
+            }
+            return result.getRowNumber();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            updateOutputMetrics(async);
+        }
+    }
+
+    /**
+     * Writes the given result to all given outputs of the given session in a
+     * single pass. Comma- and tab-separated values are encoded row by row by
+     * a {@link DelimitedResultWriter} per output. For all other formats, the
+     * triples describing the computed measures are generated on the client
+     * from the same template that would be used in a CONSTRUCT query and
+     * streamed to the RDF writer of every output, so that neither the
+     * endpoint nor the client has to hold the whole graph.
+     *
+     * @param session   the session providing the outputs
+     * @param outputs   the pairs of sinks and results formats to write to
+     * @param result    the result to write, which has to contain the
+     *                  variables allocated for this operation
+     * @return the number of rows in the result
+     */
+    protected long write(final Session session,
+            final List<Pair<File, ResultsFormat>> outputs,
+            final ResultSet result) {
+        List<DelimitedResultWriter> writers = new ArrayList<>();
+        List<AsyncOutputChannel> asyncs = new ArrayList<>();
+        List<OutputStream> graphOutputs = new ArrayList<>();
+        List<StreamRDF> streams = new ArrayList<>();
+        try {
+            //Open the outputs
+            List<Var> variables = Var.varList(result.getResultVars());
+            for (Pair<File, ResultsFormat> output : outputs) {
+                ResultsFormat format = output.getRight() == null ?
+                        ResultsFormat.FMT_RDF_XML : output.getRight();
+                if (format == ResultsFormat.FMT_NONE) {
+                    continue;
+                } else if (!DelimitedResultWriter.supports(format)) {
+                    OutputStream out = session.getOutput(output.getLeft(),
+                            format);
+                    graphOutputs.add(out);
+                    streams.add(createTripleStream(session, out, format));
+                    continue;
+                }
+                WritableByteChannel channel = session.getOutputChannel(
+                        output.getLeft(), format);
+                if (session.getOutputBufferCapacity() > 0) {
+                    AsyncOutputChannel async = new AsyncOutputChannel(channel,
+                            session.getOutputBufferCapacity(),
+                            OUTPUT_CHUNK_SIZE);
+                    asyncs.add(async);
+                    channel = async;
+                }
+                writers.add(new DelimitedResultWriter(channel, variables,
+                        format));
+            }
+
+            //Write every row to all tabular outputs and its triples to all
+            //graph outputs
+            List<Triple> template = streams.isEmpty() ? null :
+                    createTemplate(session, allocateDimensionVariables(session),
+                            allocateMeasureVariables()).getTriples();
+            long rows = 0;
+            while (result.hasNext()) {
+                Binding binding = result.nextBinding();
+                rows++;
+                for (DelimitedResultWriter writer : writers) {
+                    writer.write(binding);
+                }
+                if (template != null) {
+                    Iterator<Triple> triples = TemplateLib.calcTriples(template,
+                            Collections.singletonList(binding).iterator());
+                    while (triples.hasNext()) {
+                        Triple triple = triples.next();
+                        for (StreamRDF stream : streams) {
+                            stream.triple(triple);
+                        }
+                    }
+                }
+            }
+            for (StreamRDF stream : streams) {
+                stream.finish();
+            }
+            streams.clear();
+            return rows;
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            for (DelimitedResultWriter writer : writers) {
+                try {
+                    writer.close();
+                } catch (RuntimeException ex) {
+                    LOG.warn("Cannot close output", ex);
+                }
+            }
+            for (OutputStream out : graphOutputs) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    LOG.warn("Cannot close output", ex);
+                }
+            }
+            for (AsyncOutputChannel async : asyncs) {
+                updateOutputMetrics(async);
+            }
+        }
+    }
+
+    /**
+     * Creates a stream for writing triples to the given output in the given
+     * format and starts it with the prefixes of the given session. Formats
+     * that Jena can write in a streaming fashion, such as Turtle, N3 and
+     * N-Triples, are written while the triples are generated. For all other
+     * formats, the triples are collected in a model that is written when the
+     * stream is finished.
+     *
+     * @param session       the session providing the prefixes
+     * @param output        the output to write to, which is not closed
+     * @param resultsFormat the results format to use for the output
+     * @return the started stream
+     */
+    protected StreamRDF createTripleStream(final Session session,
+            final OutputStream output, final ResultsFormat resultsFormat) {
+        Lang lang = ResultsFormat.convert(resultsFormat);
+        if (lang == null) {
+            lang = RDFLanguages.contentTypeToLang(resultsFormat.getSymbol());
+        }
+        if (Lang.N3.equals(lang)) {
+            //Jena writes N3 as Turtle, which can be streamed
+            lang = Lang.TURTLE;
+        }
+        StreamRDF stream = lang != null && StreamRDFWriter.registered(lang) ?
+                StreamRDFWriter.getWriterStream(output, lang) :
+                new ModelStream(output, lang);
+        stream.start();
+        for (Map.Entry<String, String> entry : session.getQuery().
+                getPrefixMapping().getNsPrefixMap().entrySet()) {
+            stream.prefix(entry.getKey(), entry.getValue());
+        }
+        stream.prefix("sl", "http://tu-dresden.de/sparqlytics/");
+        return stream;
+    }
+
+    /**
+     * Records the maximum queue depth and the time spent waiting for a full
+     * queue of the given channel.
+     *
+     * @param async the channel written to or {@code null}
+     */
+    private void updateOutputMetrics(final AsyncOutputChannel async) {
+        if (async != null) {
+            Main.METRICS.histogram(MetricRegistry.name(Compute.class,
+                    "outputQueueDepth")).update(async.getMaxDepth());
+            Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                    "outputStalls")).inc(async.getStalls());
+            Main.METRICS.timer(MetricRegistry.name(Compute.class,
+                    "outputStallTime")).update(async.getStallTime(),
+                            TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Writes the given model to a new output of the given session.
+     *
+     * @param session       the session providing the output
+     * @param resultsFormat the results format to use for the output
+     * @param model         the model to write
+     */
+    protected void write(final Session session,
+            final ResultsFormat resultsFormat, final Model model) {
+        write(session, session.getSink(), resultsFormat, model);
+    }
+
+    /**
+     * Writes the given model to a new output of the given session for the
+     * given sink.
+     *
+     * @param session       the session providing the output
+     * @param sink          the file or folder serving as output or
+     *                      {@code null} for the standard output stream
+     * @param resultsFormat the results format to use for the output
+     * @param model         the model to write
+     */
+    protected void write(final Session session, final File sink,
+            final ResultsFormat resultsFormat, final Model model) {
+        Lang lang = ResultsFormat.convert(resultsFormat);
+        if (lang == null) {
+            lang = RDFLanguages.contentTypeToLang(resultsFormat.getSymbol());
+        }
+        try (OutputStream output = session.getOutput(sink, resultsFormat)) {
+            model.write(output, lang == null ? null : lang.getLabel(), null);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Creates a query execution for sending the given query to the SPARQL
+     * endpoint of the given session.
+     *
+     * @param session       the session providing the SPARQL endpoint
+     * @param queryString   the query to execute
+     * @return the query execution
+     */
+    protected QueryEngineHTTP createQueryExecution(final Session session,
+            final String queryString) {
+        QueryEngineHTTP exec = (QueryEngineHTTP)QueryExecutionFactory.sparqlService(
+                session.getSPARQLEndpointURL(), queryString);
+        exec.setModelContentType(WebContent.contentTypeRDFXML);
+        return exec;
+    }
+
+    /**
+     * Sends the given SELECT query to the SPARQL endpoint of the given session
+     * and returns a reader for the rows of the result. If the session has a
+     * result coalescer and the same query is being sent to the same endpoint
+     * by another computation already, for example in another session of a
+     * server, the result of that execution is shared instead, and the request
+     * is counted as coalesced.
+     *
+     * @param session       the session providing the SPARQL endpoint
+     * @param queryString   the query to execute
+     * @return a reader for the rows of the result, which has to be closed
+     */
+    protected ResultReader openSelect(final Session session,
+            final String queryString) {
+        ResultCoalescer coalescer = session.getResultCoalescer();
+        if (coalescer == null) {
+            return executeSelect(session, queryString);
+        }
+        final boolean[] executed = new boolean[1];
+        ResultReader reader = coalescer.open(Arrays.asList(
+                session.getSPARQLEndpointURL(), queryString),
+                new Callable<ResultReader>() {
+                    @Override
+                    public ResultReader call() {
+                        executed[0] = true;
+                        return executeSelect(session, queryString);
+                    }
+                });
+        if (!executed[0]) {
+            Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                    "coalesced")).inc();
+        }
+        return reader;
+    }
+
+    /**
+     * Sends the given SELECT query to the SPARQL endpoint of the given session
+     * and returns a reader for the rows of the result. The cheapest results
+     * format offered by the endpoint is negotiated, and the number of results
+     * received per content type is recorded.
+     *
+     * @param session       the session providing the SPARQL endpoint
+     * @param queryString   the query to execute
+     * @return a reader for the rows of the result, which has to be closed
+     */
+    protected ResultReader executeSelect(final Session session,
+            final String queryString) {
+        HttpQuery httpQuery = new HttpQuery(session.getSPARQLEndpointURL());
+        httpQuery.addParam(HttpParams.pQuery, queryString);
+        httpQuery.setAccept(ResultReader.ACCEPT);
+        InputStream in = httpQuery.exec();
+        String contentType = httpQuery.getContentType();
+        Main.METRICS.counter(MetricRegistry.name(Compute.class, "resultsFormat",
+                ResultReader.getMediaType(contentType))).inc();
+        try {
+            return ResultReader.create(in, contentType);
+        } catch (RuntimeException ex) {
+            try {
+                in.close();
+            } catch (IOException suppressed) {
+                ex.addSuppressed(suppressed);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends the given SELECT query to the SPARQL endpoint of the given session
+     * and returns the complete result. This method is safe to be called
+     * concurrently.
+     *
+     * @param session   the session providing the SPARQL endpoint
+     * @param query     the query to execute
+     * @return the rows of the result
+     */
+    protected List<Binding> select(final Session session, final Query query) {
+        final List<Binding> bindings = new ArrayList<>();
+        select(session, query, new Sink<Binding>() {
+            @Override
+            public void send(final Binding binding) {
+                bindings.add(binding);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        return bindings;
+    }
+
+    /**
+     * Sends the given SELECT query to the SPARQL endpoint of the given session
+     * and passes the rows of the result to the given sink while they are
+     * received. The sink is flushed but not closed afterwards. This method is
+     * safe to be called concurrently.
+     *
+     * @param session   the session providing the SPARQL endpoint
+     * @param query     the query to execute
+     * @param sink      the sink to pass the rows of the result to
+     */
+    protected void select(final Session session, final Query query,
+            final Sink<Binding> sink) {
+        IndentedLineBuffer buffer = new IndentedLineBuffer();
+        query.serialize(buffer);
+        String indentedQueryString = buffer.toString();
+        Timer executeQuery = Main.METRICS.timer(
+                MetricRegistry.name(Compute.class, "executeQuery"));
+        ResultReader reader = null;
+        Timer.Context time = executeQuery.time();
+        try {
+            reader = openSelect(session, query.toString());
+            while (reader.hasNext()) {
+                sink.send(reader.next());
+            }
+            sink.flush();
+        } catch (RuntimeException ex) {
+            throw extendRuntimeException(ex, indentedQueryString);
+        } finally {
+            long executionTime = time.stop();
+            if (reader != null) {
+                reader.close();
+            }
+            LOG.debug("{}\n\nExecution {} us", indentedQueryString,
+                    TimeUnit.NANOSECONDS.toMicros(executionTime));
+        }
+        if (Main.getInstance().isDebug()) {
+            System.err.print(indentedQueryString);
+        }
+    }
+
+    /**
+     * Wraps the given aggregated rows into a result set containing the
+     * aggregated measure and dimension variables.
+     *
+     * @param session               the session to compute the measures in
+     * @param rows                  the aggregated rows
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated measure variables
+     * @return a result set over the given rows
+     */
+    protected ResultSet createResultSet(final Session session,
+            final Iterator<Binding> rows,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        List<String> resultVars = new ArrayList<>();
+        for (Measure measure : measures) {
+            resultVars.add(measureVariables.get(measure).getRight().getVarName());
+        }
+        for (Dimension dimension : session.getCube().getDimensions()) {
+            resultVars.add(dimensionVariables.get(dimension).getVarName());
+        }
+        return new ResultSetStream(resultVars, null, rows);
+    }
+
+    /**
+     * Applies the ordering, limit and offset of this operation to the given
+     * aggregated rows on the client, following the SPARQL ordering semantics.
+     *
+     * @param session               the session to compute the measures in
+     * @param rows                  the aggregated rows
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated measure variables
+     * @return the ordered and limited rows
+     */
+    protected List<Binding> applySolutionModifiers(final Session session,
+            final List<Binding> rows,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        if (sortConditions.isEmpty()) {
+            int from = offset == null ? 0 : (int)Math.min(offset, rows.size());
+            int to = limit == null ? rows.size() :
+                    (int)Math.min(from + limit, rows.size());
+            return rows.subList(from, to);
+        }
+        List<Binding> result = new ArrayList<>();
+        try (ExternalSorter sorter = createSorter(session, dimensionVariables,
+                measureVariables)) {
+            for (Binding row : rows) {
+                sorter.send(row);
+            }
+            Iterator<Binding> sorted = sort(sorter);
+            while (sorted.hasNext()) {
+                result.add(sorted.next());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a sorter applying the ordering, limit and offset of this
+     * operation to aggregated rows on the client, following the SPARQL
+     * ordering semantics. Rows exceeding {@link #SORT_BUFFER_SIZE} are sorted
+     * externally, unless they are limited to fewer rows.
+     *
+     * @param session               the session to compute the measures in
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated measure variables
+     * @return the created sorter
+     * @throws IllegalStateException if this operation has no sort conditions
+     */
+    protected ExternalSorter createSorter(final Session session,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        if (sortConditions.isEmpty()) {
+            throw new IllegalStateException("No sort conditions");
+        }
+        List<Var> vars = new ArrayList<>();
+        for (Measure measure : measures) {
+            vars.add(measureVariables.get(measure).getRight());
+        }
+        for (Dimension dimension : session.getCube().getDimensions()) {
+            vars.add(dimensionVariables.get(dimension));
+        }
+        return new ExternalSorter(vars, new BindingComparator(
+                createSortConditions(session, dimensionVariables,
+                        measureVariables)),
+                offset == null ? 0 : offset, limit == null ? -1 : limit,
+                SORT_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the rows sorted by the given sorter and records the number of
+     * spilled runs and bytes.
+     *
+     * @param sorter the sorter that all rows have been sent to
+     * @return an iterator over the sorted rows
+     */
+    protected Iterator<Binding> sort(final ExternalSorter sorter) {
+        Iterator<Binding> sorted = sorter.iterator();
+        Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                "sortSpilledRuns")).inc(sorter.getSpilledRuns());
+        Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                "sortSpilledBytes")).inc(sorter.getSpilledBytes());
+        return sorted;
+    }
+
     /**
      * Extends the given runtime exception with the given query string.
      * 
@@ -316,12 +1136,45 @@ public class Compute implements Operation {
      */
     private Query createQuery(final Session session, boolean construct) {
         //Allocate uniquely named variables for dimensions and measures
+        Map<Dimension, Var> dimensionVariables = allocateDimensionVariables(session);
+        Map<Measure, Pair<Var, Var>> measureVariables = allocateMeasureVariables();
+
+        //Create query and fill in prologue and (named) graph URIs
+        Query query = construct ?
+                createConstructQuery(session, dimensionVariables, measureVariables) :
+                createSelectQuery(session, dimensionVariables, measureVariables);
+        prepareQuery(session, query);
+        return query;
+    }
+
+    /**
+     * Allocates uniquely named variables for the dimensions of the cube in the
+     * given session. The allocation is deterministic, so that repeated calls
+     * yield equal variables.
+     *
+     * @param session the session to compute the measures in
+     * @return the allocated dimension level variables
+     */
+    protected Map<Dimension, Var> allocateDimensionVariables(
+            final Session session) {
         Map<Dimension, Var> dimensionVariables = new HashMap<>();
         VarAlloc dimensionVarAlloc = new VarAlloc(
                 "_dimension");
         for (Dimension dimension : session.getCube().getDimensions()) {
             dimensionVariables.put(dimension, dimensionVarAlloc.allocVar());
         }
+        return dimensionVariables;
+    }
+
+    /**
+     * Allocates uniquely named variables for the measures to compute. The left
+     * variable holds the measure value per fact and the right variable holds
+     * the aggregated measure value. The allocation is deterministic, so that
+     * repeated calls yield equal variables.
+     *
+     * @return the allocated measure variables
+     */
+    protected Map<Measure, Pair<Var, Var>> allocateMeasureVariables() {
         Map<Measure, Pair<Var, Var>> measureVariables = new HashMap<>();
         VarAlloc aggregatedMeasureVarAlloc = new VarAlloc(
                 "_aggregatedmeasure");
@@ -331,12 +1184,18 @@ public class Compute implements Operation {
             measureVariables.put(measure, Pair.of(measureVarAlloc.allocVar(),
                     aggregatedMeasureVarAlloc.allocVar()));
         }
+        return measureVariables;
+    }
 
-        //Create query and fill in prologue and (named) graph URIs
+    /**
+     * Fills in the prologue and the (named) graph URIs of the given session
+     * into the given query.
+     *
+     * @param session   the session to compute the measures in
+     * @param query     the query to complete
+     */
+    protected void prepareQuery(final Session session, final Query query) {
         Query temp = session.getQuery();
-        Query query = construct ?
-                createConstructQuery(session, dimensionVariables, measureVariables) :
-                createSelectQuery(session, dimensionVariables, measureVariables);
         query.setResolver(temp.getResolver());
         query.setPrefixMapping(temp.getPrefixMapping());
         query.setPrefix("sl", "http://tu-dresden.de/sparqlytics/");
@@ -346,7 +1205,6 @@ public class Compute implements Operation {
         for (String uri : temp.getNamedGraphURIs()) {
             query.addNamedGraphURI(uri);
         }
-        return query;
     }
 
     /**
@@ -362,6 +1220,31 @@ public class Compute implements Operation {
             final Map<Dimension, Var> dimensionVariables,
             final Map<Measure, Pair<Var, Var>> measureVariables) {
         //CONSTRUCT part
+        Query constructQuery = new Query();
+        constructQuery.setConstructTemplate(createTemplate(session,
+                dimensionVariables, measureVariables));
+        constructQuery.setQueryConstructType();
+
+        //Insert aggregation query as outer WHERE part into construct query
+        constructQuery.setQueryPattern(new ElementSubQuery(createSelectQuery(
+                session, dimensionVariables, measureVariables)));
+        return constructQuery;
+    }
+
+    /**
+     * Helper method for creating the template for the triples describing the
+     * computed measures. For every measure in every row, a blank node carries
+     * the measure name and value and refers to one blank node per dimension
+     * carrying the level member.
+     *
+     * @param session               the session to compute the measures in
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated aggregated measure variables
+     * @return the template for the triples describing the computed measures
+     */
+    protected Template createTemplate(final Session session,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
         BasicPattern bp = new BasicPattern();
         for (Measure measure : measures) {
             Node measureNode = NodeFactory.createBlankNode();
@@ -380,14 +1263,7 @@ public class Compute implements Operation {
                         dimensionVariables.get(dimension)));
             }
         }
-        Query constructQuery = new Query();
-        constructQuery.setConstructTemplate(new Template(bp));
-        constructQuery.setQueryConstructType();
-
-        //Insert aggregation query as outer WHERE part into construct query
-        constructQuery.setQueryPattern(new ElementSubQuery(createSelectQuery(
-                session, dimensionVariables, measureVariables)));
-        return constructQuery;
+        return new Template(bp);
     }
     
     /**
@@ -402,6 +1278,38 @@ public class Compute implements Operation {
     protected Query createSelectQuery(final Session session,
             final Map<Dimension, Var> dimensionVariables,
             final Map<Measure, Pair<Var, Var>> measureVariables) {
+        Query aggregateQuery = createSelectQuery(session, measures,
+                dimensionVariables, measureVariables);
+
+        //Sort order and limits
+        for (org.apache.jena.query.SortCondition sortCondition :
+                createSortConditions(session, dimensionVariables, measureVariables)) {
+            aggregateQuery.addOrderBy(sortCondition);
+        }
+        if (limit != null) {
+            aggregateQuery.setLimit(limit);
+        }
+        if (offset != null) {
+            aggregateQuery.setOffset(offset);
+        }
+        return aggregateQuery;
+    }
+
+    /**
+     * Helper method for creating the SELECT SPARQL query body for computing
+     * the given measures in the given session without ordering and limits.
+     * 
+     * @param session               the session to compute the measures in
+     * @param measures              the measures to compute, a subset of the
+     *                              measures of this operation
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated aggregated measure variables
+     * @return the created SELECT SPARQL query body
+     */
+    protected Query createSelectQuery(final Session session,
+            final List<Measure> measures,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
         //Outer SELECT subquery for aggregating computed measure values
         Query aggregateQuery = new Query();
         aggregateQuery.setSyntax(Syntax.syntaxSPARQL_11);
@@ -419,6 +1327,51 @@ public class Compute implements Operation {
         }
 
         //Inner SELECT subquery for computing measure values
+        Query computeQuery = createComputeQuery(session, measures,
+                session.getCube().getDimensions(), session.getFilters(),
+                dimensionVariables, measureVariables);
+
+        //Filter in aggregation query
+        ElementGroup aggregateGroup = new ElementGroup();
+        for (Map.Entry<Pair<Dimension, Level>, Filter> filter : session.getFilters().entrySet()) {
+            aggregateGroup.addElementFilter(
+                    new ElementFilter(filter.getValue().getPredicate()));
+        }
+
+        //Insert compute query as inner WHERE part into aggregation query
+        aggregateGroup.addElement(new ElementSubQuery(computeQuery));
+        aggregateQuery.setQueryPattern(aggregateGroup);
+
+        //Outer GROUP BY part
+        for (Dimension dimension : session.getCube().getDimensions()) {
+            aggregateQuery.addGroupBy(dimensionVariables.get(dimension));
+        }
+        
+        return aggregateQuery;
+    }
+
+    /**
+     * Helper method for creating the SELECT SPARQL query for computing the
+     * values of the given measures per fact. The query joins the fact pattern
+     * with the seed patterns of the given dimensions and measures and binds
+     * the level members of the given dimensions and filters.
+     * 
+     * @param session               the session to compute the measures in
+     * @param measures              the measures to compute, a subset of the
+     *                              measures of this operation
+     * @param dimensions            the dimensions to include, a subset of the
+     *                              dimensions of the cube
+     * @param filters               the filters to bind the level members for
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated aggregated measure variables
+     * @return the created SELECT SPARQL query
+     */
+    protected Query createComputeQuery(final Session session,
+            final List<Measure> measures,
+            final Collection<Dimension> dimensions,
+            final Map<Pair<Dimension, Level>, Filter> filters,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
         Query computeQuery = new Query();
         computeQuery.setSyntax(Syntax.syntaxSPARQL_11);
         computeQuery.setQuerySelectType();
@@ -430,7 +1383,7 @@ public class Compute implements Operation {
             }
         }
         AggregationDetector detector = new AggregationDetector();
-        for (Dimension dimension : session.getCube().getDimensions()) {
+        for (Dimension dimension : dimensions) {
             Var variable = dimensionVariables.get(dimension);
             Level level = dimension.getLevels().get(
                     session.getGranularity(dimension));
@@ -448,7 +1401,7 @@ public class Compute implements Operation {
                 computeQuery.addResultVar(variable);
             }
         }
-        for (Map.Entry<Pair<Dimension, Level>, Filter> filter : session.getFilters().entrySet()) {
+        for (Map.Entry<Pair<Dimension, Level>, Filter> filter : filters.entrySet()) {
             Var variable = filter.getValue().getVariable();
             Level level = filter.getKey().getRight();
             if (detector.isAggregating(level.getExpression())) {
@@ -457,48 +1410,117 @@ public class Compute implements Operation {
                 computeQuery.addResultVar(variable);
             }
         }
+        //Level expressions of filters, rewritten when sharing subexpressions
+        Map<Pair<Dimension, Level>, Expr> filterExpressions =
+                new LinkedHashMap<>();
+        for (Pair<Dimension, Level> filter : filters.keySet()) {
+            Expr expr = filter.getRight().getExpression();
+            if (!detector.isAggregating(expr)) {
+                filterExpressions.put(filter, expr);
+            }
+        }
+        VarAlloc subexpressionVarAlloc = new VarAlloc("_subexpression");
         ElementGroup computeGroup = new ElementGroup();
         computeGroup.addElement(factPattern);
-        for (Dimension dimension : session.getCube().getDimensions()) {
+        for (Dimension dimension : dimensions) {
             Level level = dimension.getLevels().get(
                     session.getGranularity(dimension));
             if (detector.isAggregating(level.getExpression())) {
                 computeGroup.addElement(
                         new ElementOptional(dimension.getSeedPattern()));
             } else {
+                //Share subexpressions with the filters on this dimension
+                List<Expr> exprs = new ArrayList<>();
+                exprs.add(level.getExpression());
+                List<Pair<Dimension, Level>> dimensionFilters = new ArrayList<>();
+                for (Map.Entry<Pair<Dimension, Level>, Expr> filter :
+                        filterExpressions.entrySet()) {
+                    if (filter.getKey().getLeft().equals(dimension)) {
+                        dimensionFilters.add(filter.getKey());
+                        exprs.add(filter.getValue());
+                    }
+                }
+                SubexpressionEliminator shared = new SubexpressionEliminator(
+                        exprs, getPrivateVariables(session, dimension,
+                                dimensions, measures), subexpressionVarAlloc);
+                for (int i = 0; i < dimensionFilters.size(); i++) {
+                    filterExpressions.put(dimensionFilters.get(i),
+                            shared.getExpressions().get(i + 1));
+                }
+                SubexpressionEliminator local = new SubexpressionEliminator(
+                        shared.getExpressions().subList(0, 1), null,
+                        subexpressionVarAlloc);
                 ElementGroup dimensionGroup = new ElementGroup();
                 dimensionGroup.addElement(dimension.getSeedPattern());
+                addBindings(dimensionGroup, shared);
+                addBindings(dimensionGroup, local);
                 dimensionGroup.addElement(new ElementBind(
                         dimensionVariables.get(dimension),
-                        level.getExpression()));
+                        local.getExpressions().get(0)));
                 computeGroup.addElement(new ElementOptional(dimensionGroup));
             }
         }
+        Map<Measure, Expr> measureExpressions = new HashMap<>();
         for (Measure measure : measures) {
             computeGroup.addElement(measure.getSeedPattern());
-            if (!detector.isAggregating(measure.getExpression())) {
-                computeGroup.addElement(new ElementBind(
-                        measureVariables.get(measure).getLeft(),
-                        measure.getExpression()));
+            if (detector.isAggregating(measure.getExpression())) {
+                continue;
             }
-        }
-        for (Map.Entry<Pair<Dimension, Level>, Filter> filter : session.getFilters().entrySet()) {
-            Level level = filter.getKey().getRight();
-            if (!detector.isAggregating(level.getExpression())) {
-                Var variable = filter.getValue().getVariable();
-                computeGroup.addElement(
-                        new ElementBind(variable, level.getExpression()));
+            if (!measureExpressions.containsKey(measure)) {
+                //Share subexpressions with measures having the same seed
+                List<Measure> sameSeed = new ArrayList<>();
+                List<Expr> exprs = new ArrayList<>();
+                Set<Var> scope = new HashSet<>(factPatternVars);
+                scope.addAll(PatternVars.vars(measure.getSeedPattern()));
+                for (Measure other : measures) {
+                    if (other.getSeedPattern().equals(measure.getSeedPattern())) {
+                        if (!detector.isAggregating(other.getExpression())) {
+                            sameSeed.add(other);
+                            exprs.add(other.getExpression());
+                        }
+                    } else {
+                        Collection<Var> otherVars =
+                                PatternVars.vars(other.getSeedPattern());
+                        otherVars.removeAll(factPatternVars);
+                        scope.removeAll(otherVars);
+                    }
+                }
+                SubexpressionEliminator shared = new SubexpressionEliminator(
+                        exprs, scope, subexpressionVarAlloc);
+                for (int i = 0; i < sameSeed.size(); i++) {
+                    measureExpressions.put(sameSeed.get(i),
+                            shared.getExpressions().get(i));
+                }
+                addBindings(computeGroup, shared);
             }
+            SubexpressionEliminator local = new SubexpressionEliminator(
+                    Collections.singletonList(measureExpressions.get(measure)),
+                    null, subexpressionVarAlloc);
+            addBindings(computeGroup, local);
+            computeGroup.addElement(new ElementBind(
+                    measureVariables.get(measure).getLeft(),
+                    local.getExpressions().get(0)));
+        }
+        List<Pair<Dimension, Level>> filterKeys =
+                new ArrayList<>(filterExpressions.keySet());
+        SubexpressionEliminator filterEliminator = new SubexpressionEliminator(
+                new ArrayList<>(filterExpressions.values()), null,
+                subexpressionVarAlloc);
+        addBindings(computeGroup, filterEliminator);
+        for (int i = 0; i < filterKeys.size(); i++) {
+            computeGroup.addElement(new ElementBind(
+                    filters.get(filterKeys.get(i)).getVariable(),
+                    filterEliminator.getExpressions().get(i)));
         }
         computeQuery.setQueryPattern(computeGroup);
 
-        //Inner GROUP BY part
+        //GROUP BY part
         for (Var var : factPatternVars) {
             if (var.isNamedVar()) {
                 computeQuery.addGroupBy(var);
             }
         }
-        for (Dimension dimension : session.getCube().getDimensions()) {
+        for (Dimension dimension : dimensions) {
             Level level = dimension.getLevels().get(
                     session.getGranularity(dimension));
             if (!detector.isAggregating(level.getExpression())) {
@@ -510,30 +1532,78 @@ public class Compute implements Operation {
                 computeQuery.addGroupBy(measureVariables.get(measure).getLeft());
             }
         }
-        for (Map.Entry<Pair<Dimension, Level>, Filter> filter : session.getFilters().entrySet()) {
+        for (Map.Entry<Pair<Dimension, Level>, Filter> filter : filters.entrySet()) {
             Level level = filter.getKey().getRight();
             if (!detector.isAggregating(level.getExpression())) {
                 computeQuery.addGroupBy(filter.getValue().getVariable());
             }
         }
 
-        //Filter in aggregation query
-        ElementGroup aggregateGroup = new ElementGroup();
-        for (Map.Entry<Pair<Dimension, Level>, Filter> filter : session.getFilters().entrySet()) {
-            aggregateGroup.addElementFilter(
-                    new ElementFilter(filter.getValue().getPredicate()));
-        }
+        return computeQuery;
+    }
 
-        //Insert compute query as inner WHERE part into aggregation query
-        aggregateGroup.addElement(new ElementSubQuery(computeQuery));
-        aggregateQuery.setQueryPattern(aggregateGroup);
+    /**
+     * Helper method for determining the variables that only the seed pattern
+     * of the given dimension binds. Subexpressions mentioning only these
+     * variables evaluate to the same values inside the optional dimension
+     * pattern and after it, so that they can be shared with filters.
+     *
+     * @param session       the session to compute the measures in
+     * @param dimension     the dimension to determine the variables for
+     * @param dimensions    the dimensions included in the query
+     * @param measures      the measures included in the query
+     * @return the variables bound only by the seed pattern of the dimension
+     */
+    protected Set<Var> getPrivateVariables(final Session session,
+            final Dimension dimension, final Collection<Dimension> dimensions,
+            final List<Measure> measures) {
+        Set<Var> vars = new HashSet<>(
+                PatternVars.vars(dimension.getSeedPattern()));
+        vars.removeAll(PatternVars.vars(session.getCube().getFactPattern()));
+        for (Dimension other : dimensions) {
+            if (!other.equals(dimension)) {
+                vars.removeAll(PatternVars.vars(other.getSeedPattern()));
+            }
+        }
+        for (Measure measure : measures) {
+            vars.removeAll(PatternVars.vars(measure.getSeedPattern()));
+        }
+        return vars;
+    }
 
-        //Outer GROUP BY part
-        for (Dimension dimension : session.getCube().getDimensions()) {
-            aggregateQuery.addGroupBy(dimensionVariables.get(dimension));
+    /**
+     * Helper method for binding the helper variables of the given eliminator
+     * in the given group.
+     *
+     * @param group         the group to add the bindings to
+     * @param eliminator    the eliminator providing the helper variables
+     */
+    protected void addBindings(final ElementGroup group,
+            final SubexpressionEliminator eliminator) {
+        for (Map.Entry<Var, Expr> binding : eliminator.getBindings().entrySet()) {
+            group.addElement(new ElementBind(binding.getKey(), binding.getValue()));
         }
-        
-        //Sort order and limits
+        Main.METRICS.counter(MetricRegistry.name(Compute.class,
+                "commonSubexpressions")).inc(eliminator.getBindings().size());
+    }
+
+    /**
+     * Helper method for translating the sort conditions of this operation into
+     * SPARQL sort conditions over the allocated variables.
+     * 
+     * @param session               the session to compute the measures in
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated aggregated measure variables
+     * @return the SPARQL sort conditions, may be empty
+     * @throws NoSuchElementException   if a sort condition refers to neither a
+     *                                  dimension nor a measure of the cube
+     */
+    protected List<org.apache.jena.query.SortCondition> createSortConditions(
+            final Session session,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        List<org.apache.jena.query.SortCondition> result =
+                new ArrayList<>(sortConditions.size());
         for (SortCondition sortCondition : sortConditions) {
             Var var;
             try {
@@ -545,15 +1615,23 @@ public class Compute implements Operation {
                         sortCondition.getName());
                 var = measureVariables.get(measure).getRight();
             }
-            aggregateQuery.addOrderBy(var, sortCondition.getDirection());
+            result.add(new org.apache.jena.query.SortCondition(var,
+                    sortCondition.getDirection()));
         }
-        if (limit != null) {
-            aggregateQuery.setLimit(limit);
-        }
-        if (offset != null) {
-            aggregateQuery.setOffset(offset);
-        }
-        return aggregateQuery;
+        return result;
+    }
+
+    /**
+     * Creates the environment for evaluating level expressions, filter
+     * predicates and aggregates on the client, fixing the current time as a
+     * SPARQL endpoint does for a single query.
+     *
+     * @return the created function environment
+     */
+    protected FunctionEnv createFunctionEnv() {
+        Context context = ARQ.getContext().copy();
+        context.set(ARQConstants.sysCurrentTime, NodeFactoryExtra.nowAsDateTime());
+        return new FunctionEnvBase(context);
     }
 
     /**
@@ -568,7 +1646,7 @@ public class Compute implements Operation {
      * @throws IllegalArgumentException if the aggregation function is not
      *                                  supported
      */
-    private Aggregator createAggregator(final String aggregationFunction,
+    protected Aggregator createAggregator(final String aggregationFunction,
             final Expr expr) {
         switch (aggregationFunction) {
             case "COUNT":
@@ -589,10 +1667,65 @@ public class Compute implements Operation {
         }
     }
 
+    /**
+     * Helper class for collecting streamed triples in a model, which is
+     * written in a format that cannot be streamed when the stream is
+     * finished.
+     */
+    private static class ModelStream extends StreamRDFBase {
+        /**
+         * The output to write the model to.
+         */
+        private final OutputStream output;
+
+        /**
+         * The language to write the model in or {@code null}.
+         */
+        private final Lang lang;
+
+        /**
+         * The model collecting the triples.
+         */
+        private final Model model = ModelFactory.createDefaultModel();
+
+        /**
+         * Creates a new stream writing the collected triples to the given
+         * output in the given language.
+         *
+         * @param output    the output to write to
+         * @param lang      the language to write in or {@code null} for the
+         *                  default language of Jena
+         */
+        ModelStream(final OutputStream output, final Lang lang) {
+            this.output = output;
+            this.lang = lang;
+        }
+
+        @Override
+        public void triple(final Triple triple) {
+            model.getGraph().add(triple);
+        }
+
+        @Override
+        public void prefix(final String prefix, final String iri) {
+            model.setNsPrefix(prefix, iri);
+        }
+
+        @Override
+        public void finish() {
+            try {
+                model.write(output, lang == null ? null : lang.getLabel(),
+                        null);
+            } finally {
+                model.close();
+            }
+        }
+    }
+
     /**
      * Helper class for detecting whether an expression contains an aggregation.
      */
-    private static class AggregationDetector extends ExprVisitorBase {
+    static class AggregationDetector extends ExprVisitorBase {
         /**
          * Caches the results of detection runs.
          */
@@ -625,4 +1758,50 @@ public class Compute implements Operation {
             return result;
         }
     }
+
+    /**
+     * Reads the rows of a result set produced by an execution strategy.
+     */
+    private static class ResultSetReader extends ResultReader {
+        /**
+         * The result set to read the rows from.
+         */
+        private final ResultSet result;
+
+        /**
+         * Creates a new reader for the given result set.
+         *
+         * @param result the result set to read the rows from
+         */
+        public ResultSetReader(final ResultSet result) {
+            this.result = result;
+        }
+
+        @Override
+        public List<Var> getVariables() {
+            return Var.varList(result.getResultVars());
+        }
+
+        @Override
+        protected Binding readRow() {
+            return result.hasNext() ? result.nextBinding() : null;
+        }
+    }
+
+    /**
+     * Execution strategy that produces no rows, used when the filters of the
+     * session are contradictory.
+     *
+     * @see FilterAnalyzer
+     */
+    private static class EmptyResult implements ExecutionStrategy {
+        @Override
+        public ResultSet execute(final Compute compute, final Session session,
+                final Map<Dimension, Var> dimensionVariables,
+                final Map<Measure, Pair<Var, Var>> measureVariables) {
+            return compute.createResultSet(session,
+                    Collections.<Binding>emptyIterator(), dimensionVariables,
+                    measureVariables);
+        }
+    }
 }
@@ -0,0 +1,200 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.model.SessionState;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.core.Var;
+
+/**
+ * Computes measures at several levels of some dimensions, i.e., for several
+ * grouping sets. The grouping sets are formed by all combinations of the
+ * given levels, while the remaining dimensions keep the granularity of the
+ * session. If the star join of the cube can be evaluated on the client, the
+ * facts are retrieved only once and all grouping sets are aggregated in a
+ * single pass. Otherwise, the grouping sets are computed one after another.
+ * Either way, one result is written per grouping set.
+ *
+ * @author Michael Rudolf
+ */
+public class ComputeAtLevels implements Operation {
+    /**
+     * The compute operation to run for every grouping set.
+     */
+    private final Compute compute;
+
+    /**
+     * The names of the levels per name of dimension.
+     */
+    private final Map<String, List<String>> levels;
+
+    /**
+     * Creates a new operation computing measures at the given levels.
+     *
+     * @param compute   the compute operation to run for every grouping set
+     * @param levels    the names of the levels per name of dimension
+     *
+     * @throws NullPointerException     if any argument is {@code null}
+     * @throws IllegalArgumentException if no levels are given for a dimension
+     */
+    public ComputeAtLevels(final Compute compute,
+            final Map<String, List<String>> levels) {
+        if (compute == null) {
+            throw new NullPointerException();
+        }
+        this.compute = compute;
+        this.levels = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : levels.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                throw new IllegalArgumentException(
+                        "No levels given for dimension " + entry.getKey());
+            }
+            this.levels.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+    }
+
+    @Override
+    public void run(final Session session) {
+        List<Map<Dimension, Integer>> granularities = createGroupingSets(session);
+        Main.METRICS.histogram(MetricRegistry.name(ComputeAtLevels.class,
+                "groupingSets")).update(granularities.size());
+        StarJoinStrategy strategy = session.getExecutionStrategy() instanceof
+                StarJoinStrategy ? (StarJoinStrategy)session.getExecutionStrategy() :
+                new StarJoinStrategy();
+        //Switch states temporarily without affecting the history
+        SessionState original = session.getState();
+        List<SessionState> states = new ArrayList<>(granularities.size());
+        for (Map<Dimension, Integer> granularity : granularities) {
+            SessionState state = original;
+            for (Map.Entry<Dimension, Integer> entry : granularity.entrySet()) {
+                state = state.withGranularity(entry.getKey(), entry.getValue());
+            }
+            states.add(state);
+        }
+        //Contradictory filters yield empty results without any query
+        if (!FilterAnalyzer.isUnsatisfiable(session.getFilters()) &&
+                strategy.isDecomposable(compute, session)) {
+            Map<Dimension, Var> dimensionVariables =
+                    compute.allocateDimensionVariables(session);
+            Map<Measure, Pair<Var, Var>> measureVariables =
+                    compute.allocateMeasureVariables();
+            List<ResultSet> results = strategy.execute(compute, session,
+                    granularities, dimensionVariables, measureVariables);
+            //Write every result in its grouping set, which identifies it
+            try {
+                for (int i = 0; i < results.size(); i++) {
+                    session.setState(states.get(i), false);
+                    compute.runPrecomputed(session,
+                            new Precomputed(results.get(i)));
+                }
+            } finally {
+                session.setState(original, false);
+            }
+        } else {
+            try {
+                for (SessionState state : states) {
+                    session.setState(state, false);
+                    compute.run(session);
+                }
+            } finally {
+                session.setState(original, false);
+            }
+        }
+    }
+
+    /**
+     * Creates the granularity of every grouping set. The grouping sets are
+     * ordered like the given levels, varying the last dimension fastest.
+     *
+     * @param session the session to compute the measures in
+     * @return the level per dimension of every grouping set
+     *
+     * @throws java.util.NoSuchElementException if a dimension or level does
+     *                                          not exist
+     */
+    protected List<Map<Dimension, Integer>> createGroupingSets(
+            final Session session) {
+        List<Map<Dimension, Integer>> result = new ArrayList<>();
+        result.add(copyGranularity(session));
+        for (Map.Entry<String, List<String>> entry : levels.entrySet()) {
+            Dimension dimension = session.getCube().findDimension(entry.getKey());
+            List<Map<Dimension, Integer>> expanded = new ArrayList<>();
+            for (Map<Dimension, Integer> granularity : result) {
+                for (String name : entry.getValue()) {
+                    Map<Dimension, Integer> copy = new HashMap<>(granularity);
+                    copy.put(dimension, dimension.getLevels().indexOf(
+                            dimension.findLevel(name)));
+                    expanded.add(copy);
+                }
+            }
+            result = expanded;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the current granularity of all dimensions in the given session.
+     *
+     * @param session the session to return the granularity of
+     * @return the level per dimension
+     */
+    private static Map<Dimension, Integer> copyGranularity(
+            final Session session) {
+        Map<Dimension, Integer> granularity = new HashMap<>();
+        for (Dimension dimension : session.getCube().getDimensions()) {
+            granularity.put(dimension, session.getGranularity(dimension));
+        }
+        return granularity;
+    }
+
+    /**
+     * Execution strategy returning a result that has already been computed.
+     */
+    private static class Precomputed implements ExecutionStrategy {
+        /**
+         * The computed result.
+         */
+        private final ResultSet result;
+
+        /**
+         * Creates a new strategy returning the given result.
+         *
+         * @param result the computed result
+         */
+        Precomputed(final ResultSet result) {
+            this.result = result;
+        }
+
+        @Override
+        public ResultSet execute(final Compute compute, final Session session,
+                final Map<Dimension, Var> dimensionVariables,
+                final Map<Measure, Pair<Var, Var>> measureVariables) {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+
+/**
+ * A batch of compute operations sharing the same cube state, i.e., the same
+ * cube, granularity and filters. Instead of one query per compute operation,
+ * the union of their measures is computed once. The measures, ordering and
+ * limits requested by every compute operation are then applied to the shared
+ * result on the client, and the results are written in the original order.
+ *
+ * @author Michael Rudolf
+ */
+public class ComputeBatch implements Operation {
+    /**
+     * The compute operations in this batch.
+     */
+    private final List<Compute> computes;
+
+    /**
+     * Creates a new batch of the given compute operations.
+     *
+     * @param computes the compute operations sharing the same cube state
+     *
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public ComputeBatch(final List<Compute> computes) {
+        this.computes = new ArrayList<>(computes);
+    }
+
+    /**
+     * Returns the compute operations in this batch.
+     *
+     * @return the compute operations
+     */
+    public List<Compute> getComputes() {
+        return Collections.unmodifiableList(computes);
+    }
+
+    @Override
+    public void run(final Session session) {
+        Main.METRICS.histogram(MetricRegistry.name(ComputeBatch.class,
+                "size")).update(computes.size());
+        if (computes.size() == 1) {
+            computes.get(0).run(session);
+            return;
+        } else if (FilterAnalyzer.isUnsatisfiable(session.getFilters())) {
+            //Every compute operation yields an empty result on its own
+            for (Compute compute : computes) {
+                compute.run(session);
+            }
+            return;
+        }
+
+        //Compute the union of all measures without ordering and limits
+        Set<Measure> measures = new LinkedHashSet<>();
+        for (Compute compute : computes) {
+            measures.addAll(compute.getMeasures());
+        }
+        Compute union = new Compute(new ArrayList<>(measures),
+                Collections.<Compute.SortCondition>emptyList(), null, null);
+        Map<Dimension, Var> dimensionVariables =
+                union.allocateDimensionVariables(session);
+        Map<Measure, Pair<Var, Var>> measureVariables =
+                union.allocateMeasureVariables();
+        List<Binding> rows = new ArrayList<>();
+        ExecutionStrategy strategy = session.getExecutionStrategy();
+        if (strategy == null) {
+            Query query = union.createSelectQuery(session, dimensionVariables,
+                    measureVariables);
+            union.prepareQuery(session, query);
+            rows.addAll(union.select(session, query));
+        } else {
+            ResultSet result = strategy.execute(union, session,
+                    dimensionVariables, measureVariables);
+            while (result.hasNext()) {
+                rows.add(result.nextBinding());
+            }
+        }
+
+        //Project, order and limit the shared rows per compute operation
+        Projection projection = new Projection(rows, dimensionVariables,
+                measureVariables);
+        for (Compute compute : computes) {
+            compute.runPrecomputed(session, projection);
+        }
+    }
+
+    /**
+     * Execution strategy that derives the result of a compute operation from
+     * the rows computed for the whole batch.
+     */
+    private static class Projection implements ExecutionStrategy {
+        /**
+         * The rows computed for the whole batch.
+         */
+        private final List<Binding> rows;
+
+        /**
+         * The dimension level variables of the rows.
+         */
+        private final Map<Dimension, Var> dimensionVariables;
+
+        /**
+         * The measure variables of the rows.
+         */
+        private final Map<Measure, Pair<Var, Var>> measureVariables;
+
+        /**
+         * Creates a new projection of the given rows.
+         *
+         * @param rows                  the rows computed for the whole batch
+         * @param dimensionVariables    the dimension level variables of the
+         *                              rows
+         * @param measureVariables      the measure variables of the rows
+         */
+        Projection(final List<Binding> rows,
+                final Map<Dimension, Var> dimensionVariables,
+                final Map<Measure, Pair<Var, Var>> measureVariables) {
+            this.rows = rows;
+            this.dimensionVariables = dimensionVariables;
+            this.measureVariables = measureVariables;
+        }
+
+        @Override
+        public ResultSet execute(final Compute compute, final Session session,
+                final Map<Dimension, Var> dimensionVariables,
+                final Map<Measure, Pair<Var, Var>> measureVariables) {
+            List<Binding> result = new ArrayList<>(rows.size());
+            for (Binding row : rows) {
+                BindingMap projected = BindingFactory.create();
+                for (Map.Entry<Dimension, Var> entry : dimensionVariables.entrySet()) {
+                    Node member = row.get(this.dimensionVariables.get(entry.getKey()));
+                    if (member != null) {
+                        projected.add(entry.getValue(), member);
+                    }
+                }
+                for (Measure measure : compute.getMeasures()) {
+                    Node value = row.get(
+                            this.measureVariables.get(measure).getRight());
+                    if (value != null) {
+                        projected.add(measureVariables.get(measure).getRight(),
+                                value);
+                    }
+                }
+                result.add(projected);
+            }
+            result = compute.applySolutionModifiers(session, result,
+                    dimensionVariables, measureVariables);
+            return compute.createResultSet(session, result.iterator(),
+                    dimensionVariables, measureVariables);
+        }
+    }
+}
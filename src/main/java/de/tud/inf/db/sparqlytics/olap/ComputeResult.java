@@ -0,0 +1,85 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * The complete result of a measure computation, consisting of the result
+ * variables and the rows. Instances of this class are immutable.
+ *
+ * @author Michael Rudolf
+ */
+public final class ComputeResult {
+    /**
+     * The result variables.
+     */
+    private final List<Var> variables;
+
+    /**
+     * The rows of the result.
+     */
+    private final List<Binding> rows;
+
+    /**
+     * Creates a new result consisting of the given variables and rows.
+     *
+     * @param variables the result variables
+     * @param rows      the rows of the result
+     * @throws NullPointerException if any parameter is {@code null}
+     */
+    public ComputeResult(final List<Var> variables, final List<Binding> rows) {
+        this.variables = Collections.unmodifiableList(
+                new ArrayList<>(variables));
+        this.rows = Collections.unmodifiableList(new ArrayList<>(rows));
+    }
+
+    /**
+     * Returns the result variables, which name the levels and measures.
+     *
+     * @return an unmodifiable list of the result variables
+     */
+    public List<Var> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Returns the rows of the result.
+     *
+     * @return an unmodifiable list of the rows
+     */
+    public List<Binding> getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns a new result set over the rows, for example for writing them
+     * with the formatters of Jena.
+     *
+     * @return a new result set
+     */
+    public ResultSet toResultSet() {
+        return new ResultSetStream(Var.varNames(variables), null,
+                rows.iterator());
+    }
+}
@@ -19,16 +19,24 @@ package de.tud.inf.db.sparqlytics.olap;
 import de.tud.inf.db.sparqlytics.model.Session;
 import de.tud.inf.db.sparqlytics.model.Dimension;
 import de.tud.inf.db.sparqlytics.model.Filter;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.apache.jena.graph.Node;
 import org.apache.jena.sparql.core.Var;
 import org.apache.jena.sparql.core.VarAlloc;
+import org.apache.jena.sparql.engine.binding.Binding;
 import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
 
 /**
  * A dice operation applies filter constraints to values of facts in a dimension.
+ * All variables in the filter predicate except the filter variable are
+ * parameters, which have to be bound before the operation is run.
  *
  * @author Michael Rudolf
  */
-public class Dice implements Operation {
+public class Dice implements ParameterizedOperation {
     /**
      * Allocates variables to use in filters.
      */
@@ -49,6 +57,11 @@ public class Dice implements Operation {
      */
     protected Filter filter;
 
+    /**
+     * The parameters of the filter, determined on first use.
+     */
+    private Set<Var> parameters;
+
     /**
      * Creates a new dice operation for filtering facts based on their values in
      * the level and dimension with the given names.
@@ -82,8 +95,40 @@ public class Dice implements Operation {
         this.level = level;
     }
 
+    @Override
+    public Set<Var> getParameters() {
+        if (parameters == null) {
+            Set<Var> vars = new LinkedHashSet<>(
+                    filter.getPredicate().getVarsMentioned());
+            vars.remove(filter.getVariable());
+            parameters = Collections.unmodifiableSet(vars);
+        }
+        return parameters;
+    }
+
+    @Override
+    public Dice bind(final Binding values) {
+        BindingMap binding = BindingFactory.create();
+        for (Var parameter : getParameters()) {
+            Node value = values.get(parameter);
+            if (value == null) {
+                throw new IllegalArgumentException("Unbound parameter: $" +
+                        parameter.getVarName());
+            }
+            binding.add(parameter, value);
+        }
+        Dice result = new Dice(dimension, level);
+        result.filter = new Filter(filter.getVariable(),
+                filter.getPredicate().copySubstitute(binding));
+        return result;
+    }
+
     @Override
     public void run(final Session session) {
+        if (!getParameters().isEmpty()) {
+            throw new IllegalStateException("Unbound parameters: " +
+                    getParameters());
+        }
         Dimension dim = session.getCube().findDimension(dimension);
         session.addFilter(dim, dim.findLevel(level), filter);
     }
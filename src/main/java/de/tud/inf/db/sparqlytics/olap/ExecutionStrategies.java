@@ -0,0 +1,62 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+/**
+ * Creates execution strategies by name.
+ *
+ * @author Michael Rudolf
+ */
+public final class ExecutionStrategies {
+    /**
+     * The name of the default strategy, which sends a single query to the
+     * SPARQL endpoint.
+     */
+    public static final String ENDPOINT = "endpoint";
+
+    /**
+     * Prevents instantiation.
+     */
+    private ExecutionStrategies() {
+    }
+
+    /**
+     * Creates a new execution strategy with the given name, which is one of
+     * {@code endpoint}, {@code split}, {@code starjoin} and {@code client}.
+     *
+     * @param name the name of the strategy
+     * @return the created strategy or {@code null} for {@code endpoint}
+     * @throws NullPointerException     if the name is {@code null}
+     * @throws IllegalArgumentException if there is no strategy with the given
+     *                                  name
+     */
+    public static ExecutionStrategy create(final String name) {
+        switch (name) {
+            case ENDPOINT:
+                return null;
+            case "split":
+                return new SplitMeasuresStrategy();
+            case "starjoin":
+                return new StarJoinStrategy();
+            case "client":
+                return new ClientAggregationStrategy();
+            default:
+                throw new IllegalArgumentException("Unsupported strategy: " +
+                        name);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import java.util.Map;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.core.Var;
+
+/**
+ * Interface for alternative ways of executing a compute operation. Instead of
+ * sending a single query to the SPARQL endpoint and writing its result
+ * directly, an execution strategy produces the aggregated rows of a compute
+ * operation, which are then written by the compute operation itself.
+ *
+ * @author Michael Rudolf
+ */
+public interface ExecutionStrategy {
+    /**
+     * Executes the given compute operation in the given session. The returned
+     * result set contains one row per combination of dimension members,
+     * binding the given dimension variables and the right-hand aggregated
+     * measure variables. The rows must already be ordered and limited
+     * according to the compute operation.
+     *
+     * @param compute               the compute operation to execute
+     * @param session               the session to compute the measures in
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated measure variables
+     * @return the aggregated rows
+     *
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    ResultSet execute(Compute compute, Session session,
+            Map<Dimension, Var> dimensionVariables,
+            Map<Measure, Pair<Var, Var>> measureVariables);
+}
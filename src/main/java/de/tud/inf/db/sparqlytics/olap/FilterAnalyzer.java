@@ -0,0 +1,370 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Filter;
+import de.tud.inf.db.sparqlytics.model.Level;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.sparql.expr.E_Equals;
+import org.apache.jena.sparql.expr.E_GreaterThan;
+import org.apache.jena.sparql.expr.E_GreaterThanOrEqual;
+import org.apache.jena.sparql.expr.E_LessThan;
+import org.apache.jena.sparql.expr.E_LessThanOrEqual;
+import org.apache.jena.sparql.expr.E_LogicalAnd;
+import org.apache.jena.sparql.expr.E_NotEquals;
+import org.apache.jena.sparql.expr.E_OneOf;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+
+/**
+ * Proves that the filters of a session cannot be satisfied at the same time,
+ * so that a computation must yield an empty result without asking the SPARQL
+ * endpoint.
+ * <p>
+ * The predicates of the filters are normalized into equality, inequality and
+ * range constraints on the level member, which are intersected for all
+ * filters on levels with the same expression in the same dimension. Only
+ * conjunctions of comparisons between the filter variable and constants are
+ * understood. Any other part of a predicate is assumed to be satisfiable, and
+ * constants that cannot be compared are assumed to be compatible, so that the
+ * analysis never rejects a satisfiable combination.
+ *
+ * @author Michael Rudolf
+ */
+public final class FilterAnalyzer {
+    /**
+     * Prevents instantiation of this utility class.
+     */
+    private FilterAnalyzer() {
+    }
+
+    /**
+     * Returns whether the given filters provably cannot all be satisfied by a
+     * single fact.
+     *
+     * @param filters the filters by dimension and level
+     * @return {@code true} if the filters are contradictory, or {@code false}
+     *         if they may be satisfiable
+     */
+    public static boolean isUnsatisfiable(
+            final Map<Pair<Dimension, Level>, Filter> filters) {
+        Map<Pair<Dimension, Expr>, Constraint> constraints = new HashMap<>();
+        for (Map.Entry<Pair<Dimension, Level>, Filter> entry :
+                filters.entrySet()) {
+            Pair<Dimension, Expr> key = Pair.of(entry.getKey().getLeft(),
+                    entry.getKey().getRight().getExpression());
+            Constraint constraint = constraints.get(key);
+            if (constraint == null) {
+                constraint = new Constraint();
+                constraints.put(key, constraint);
+            }
+            Filter filter = entry.getValue();
+            constraint.add(filter.getVariable().getVarName(),
+                    filter.getPredicate());
+            if (constraint.isUnsatisfiable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the given values are known to be different RDF terms
+     * with different values.
+     *
+     * @param value1 the first value
+     * @param value2 the second value
+     * @return whether the values are provably different
+     */
+    static boolean isDifferent(final NodeValue value1, final NodeValue value2) {
+        try {
+            return NodeValue.notSameAs(value1, value2);
+        } catch (ExprEvalException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the given values are known to be the same value.
+     *
+     * @param value1 the first value
+     * @param value2 the second value
+     * @return whether the values are provably the same
+     */
+    static boolean isSame(final NodeValue value1, final NodeValue value2) {
+        try {
+            return NodeValue.sameAs(value1, value2);
+        } catch (ExprEvalException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Compares the given values according to the SPARQL operators.
+     *
+     * @param value1 the first value
+     * @param value2 the second value
+     * @return a negative number, zero, or a positive number if the first value
+     *         is less than, equal to, or greater than the second value, or
+     *         {@code null} if the values cannot be compared
+     */
+    static Integer compare(final NodeValue value1, final NodeValue value2) {
+        try {
+            return NodeValue.compare(value1, value2);
+        } catch (ExprEvalException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The constraints on the member of a single level.
+     */
+    private static class Constraint {
+        /**
+         * The values the member must be one of, or {@code null} if there is no
+         * such restriction.
+         */
+        private List<NodeValue> allowed;
+
+        /**
+         * The values the member must differ from.
+         */
+        private final List<NodeValue> excluded = new ArrayList<>();
+
+        /**
+         * The lower bound of the member, or {@code null} if there is none.
+         */
+        private NodeValue lower;
+
+        /**
+         * Whether the member may equal the lower bound.
+         */
+        private boolean lowerInclusive;
+
+        /**
+         * The upper bound of the member, or {@code null} if there is none.
+         */
+        private NodeValue upper;
+
+        /**
+         * Whether the member may equal the upper bound.
+         */
+        private boolean upperInclusive;
+
+        /**
+         * Whether a part of a predicate is the constant {@code false}.
+         */
+        private boolean contradiction;
+
+        /**
+         * Adds the conjuncts of the given predicate that constrain the given
+         * variable.
+         *
+         * @param variable  the name of the variable bound to the member
+         * @param predicate the predicate to add
+         */
+        void add(final String variable, final Expr predicate) {
+            if (predicate instanceof E_LogicalAnd) {
+                E_LogicalAnd and = (E_LogicalAnd) predicate;
+                add(variable, and.getArg1());
+                add(variable, and.getArg2());
+            } else if (predicate instanceof NodeValue) {
+                NodeValue value = (NodeValue) predicate;
+                if (value.isBoolean() && !value.getBoolean()) {
+                    contradiction = true;
+                }
+            } else if (predicate instanceof E_OneOf) {
+                E_OneOf in = (E_OneOf) predicate;
+                if (isVariable(in.getLHS(), variable)) {
+                    List<NodeValue> values = new ArrayList<>();
+                    for (Expr expr : in.getRHS()) {
+                        if (!expr.isConstant()) {
+                            return;
+                        }
+                        values.add(expr.getConstant());
+                    }
+                    restrict(values);
+                }
+            } else if (predicate instanceof ExprFunction2) {
+                ExprFunction2 comparison = (ExprFunction2) predicate;
+                Expr arg1 = comparison.getArg1();
+                Expr arg2 = comparison.getArg2();
+                if (isVariable(arg1, variable) && arg2.isConstant()) {
+                    addComparison(comparison, arg2.getConstant(), false);
+                } else if (isVariable(arg2, variable) && arg1.isConstant()) {
+                    addComparison(comparison, arg1.getConstant(), true);
+                }
+            }
+        }
+
+        /**
+         * Adds the given comparison between the member and the given constant.
+         *
+         * @param comparison    the comparison
+         * @param value         the constant
+         * @param flipped       whether the constant is the left operand
+         */
+        private void addComparison(final ExprFunction2 comparison,
+                final NodeValue value, final boolean flipped) {
+            if (comparison instanceof E_Equals) {
+                List<NodeValue> values = new ArrayList<>(1);
+                values.add(value);
+                restrict(values);
+            } else if (comparison instanceof E_NotEquals) {
+                excluded.add(value);
+            } else if (comparison instanceof E_LessThan) {
+                bound(value, false, !flipped);
+            } else if (comparison instanceof E_LessThanOrEqual) {
+                bound(value, true, !flipped);
+            } else if (comparison instanceof E_GreaterThan) {
+                bound(value, false, flipped);
+            } else if (comparison instanceof E_GreaterThanOrEqual) {
+                bound(value, true, flipped);
+            }
+        }
+
+        /**
+         * Restricts the member to the given values.
+         *
+         * @param values the values the member must be one of
+         */
+        private void restrict(final List<NodeValue> values) {
+            if (allowed == null) {
+                allowed = values;
+                return;
+            }
+            for (Iterator<NodeValue> it = allowed.iterator(); it.hasNext();) {
+                NodeValue current = it.next();
+                boolean possible = false;
+                for (NodeValue value : values) {
+                    if (!isDifferent(current, value)) {
+                        possible = true;
+                        break;
+                    }
+                }
+                if (!possible) {
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Tightens the lower or upper bound of the member.
+         *
+         * @param value     the bound
+         * @param inclusive whether the member may equal the bound
+         * @param upperBound whether the bound is an upper bound
+         */
+        private void bound(final NodeValue value, final boolean inclusive,
+                final boolean upperBound) {
+            if (upperBound) {
+                Integer order = upper == null ? null : compare(value, upper);
+                if (upper == null || order != null && (order < 0 ||
+                        order == 0 && !inclusive)) {
+                    upper = value;
+                    upperInclusive = inclusive;
+                }
+            } else {
+                Integer order = lower == null ? null : compare(value, lower);
+                if (lower == null || order != null && (order > 0 ||
+                        order == 0 && !inclusive)) {
+                    lower = value;
+                    lowerInclusive = inclusive;
+                }
+            }
+        }
+
+        /**
+         * Returns whether the constraints provably cannot be satisfied.
+         *
+         * @return whether the constraints are contradictory
+         */
+        boolean isUnsatisfiable() {
+            if (contradiction) {
+                return true;
+            }
+            if (lower != null && upper != null) {
+                Integer order = compare(lower, upper);
+                if (order != null && (order > 0 ||
+                        order == 0 && !(lowerInclusive && upperInclusive))) {
+                    return true;
+                }
+            }
+            if (allowed == null) {
+                return false;
+            }
+            for (NodeValue value : allowed) {
+                if (isPossible(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether the given value may satisfy the bounds and
+         * exclusions.
+         *
+         * @param value the value to check
+         * @return whether the value is not provably ruled out
+         */
+        private boolean isPossible(final NodeValue value) {
+            for (NodeValue other : excluded) {
+                if (isSame(value, other)) {
+                    return false;
+                }
+            }
+            if (lower != null) {
+                Integer order = compare(value, lower);
+                if (order != null && (order < 0 ||
+                        order == 0 && !lowerInclusive)) {
+                    return false;
+                }
+            }
+            if (upper != null) {
+                Integer order = compare(value, upper);
+                if (order != null && (order > 0 ||
+                        order == 0 && !upperInclusive)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether the given expression is the given variable.
+         *
+         * @param expr      the expression to check
+         * @param variable  the name of the variable
+         * @return whether the expression is the variable
+         */
+        private static boolean isVariable(final Expr expr,
+                final String variable) {
+            return expr instanceof ExprVar &&
+                    ((ExprVar) expr).getVarName().equals(variable);
+        }
+    }
+}
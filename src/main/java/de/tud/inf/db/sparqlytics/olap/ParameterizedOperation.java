@@ -0,0 +1,50 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import java.util.Set;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+
+/**
+ * Interface for OLAP operations with parameters, which are written as
+ * variables like {@code $country} and bound to RDF terms before the operation
+ * is run.
+ *
+ * @author Michael Rudolf
+ */
+public interface ParameterizedOperation extends Operation {
+    /**
+     * Returns the parameters of this operation.
+     *
+     * @return the variables that have to be bound before running this
+     *         operation, which may be empty
+     */
+    Set<Var> getParameters();
+
+    /**
+     * Returns a copy of this operation with its parameters replaced by the
+     * RDF terms they are bound to in the given binding. Bindings of other
+     * variables are ignored.
+     *
+     * @param parameters the binding of the parameters
+     * @return the operation with all parameters replaced
+     * @throws IllegalArgumentException if a parameter is not bound
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    Operation bind(Binding parameters);
+}
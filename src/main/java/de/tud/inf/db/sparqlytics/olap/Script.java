@@ -0,0 +1,239 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Session;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.jena.graph.Node;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+
+/**
+ * A compiled SPARQLytics script, i.e., the cube selections and OLAP operations
+ * of a script in the order they were parsed. A script is parsed once and can
+ * then be executed any number of times with different values for its
+ * parameters, which does not involve the parser anymore.
+ *
+ * @author Michael Rudolf
+ */
+public class Script {
+    /**
+     * The steps of this script.
+     */
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Appends the selection of the given cube.
+     *
+     * @param cube              the cube to select
+     * @param url               the URL of the SPARQL endpoint to use
+     * @param strategySelected  whether an execution strategy was selected for
+     *                          the cube
+     * @param strategy          the selected execution strategy, where
+     *                          {@code null} sends a single query to the SPARQL
+     *                          endpoint
+     * @throws NullPointerException if {@code cube} or {@code url} is
+     *                              {@code null}
+     */
+    public void addCubeSelection(final Cube cube, final String url,
+            final boolean strategySelected, final ExecutionStrategy strategy) {
+        if (cube == null || url == null) {
+            throw new NullPointerException();
+        }
+        steps.add(new Step(null, false, null) {
+            @Override
+            void execute(final Session session, final Binding parameters) {
+                session.setCube(cube);
+                session.setSPARQLEndpointURL(url);
+                if (strategySelected) {
+                    session.setExecutionStrategy(cube, strategy);
+                }
+            }
+        });
+    }
+
+    /**
+     * Appends the given operation.
+     *
+     * @param operation the operation to append
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    public void addOperation(final Operation operation) {
+        if (operation == null) {
+            throw new NullPointerException();
+        }
+        steps.add(new Step(operation, false, null));
+    }
+
+    /**
+     * Appends the given operation, which overrides the execution strategy.
+     *
+     * @param operation the operation to append
+     * @param strategy  the execution strategy to run the operation with
+     * @throws NullPointerException if {@code operation} is {@code null}
+     */
+    public void addOperation(final Operation operation,
+            final ExecutionStrategy strategy) {
+        if (operation == null) {
+            throw new NullPointerException();
+        }
+        steps.add(new Step(operation, true, strategy));
+    }
+
+    /**
+     * Returns the operations of this script, without cube selections.
+     *
+     * @return an unmodifiable list of the operations
+     */
+    public List<Operation> getOperations() {
+        List<Operation> operations = new ArrayList<>(steps.size());
+        for (Step step : steps) {
+            if (step.operation != null) {
+                operations.add(step.operation);
+            }
+        }
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Returns the parameters of all operations in this script.
+     *
+     * @return the variables that have to be bound when executing this script
+     */
+    public Set<Var> getParameters() {
+        Set<Var> parameters = new LinkedHashSet<>();
+        for (Step step : steps) {
+            if (step.operation instanceof ParameterizedOperation) {
+                parameters.addAll(((ParameterizedOperation) step.operation).
+                        getParameters());
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Executes this script in the given session, binding the parameters by
+     * name.
+     *
+     * @param session       the session to execute this script in
+     * @param parameters    the RDF terms to bind the parameters to by name
+     * @throws IllegalArgumentException if a parameter is not bound
+     * @throws NullPointerException if any argument is {@code null}
+     *
+     * @see #execute(Session, Binding)
+     */
+    public void execute(final Session session,
+            final Map<String, Node> parameters) {
+        BindingMap binding = BindingFactory.create();
+        for (Map.Entry<String, Node> parameter : parameters.entrySet()) {
+            binding.add(Var.alloc(parameter.getKey()), parameter.getValue());
+        }
+        execute(session, binding);
+    }
+
+    /**
+     * Executes this script in the given session. Prefixes and dataset clauses
+     * of the script have been applied to the query template of the session of
+     * the parser that compiled it, so that a script is usually executed in
+     * that session.
+     *
+     * @param session       the session to execute this script in
+     * @param parameters    the binding of the parameters
+     * @throws IllegalArgumentException if a parameter is not bound
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public void execute(final Session session, final Binding parameters) {
+        Set<Var> unbound = getParameters();
+        for (Iterator<Var> it = unbound.iterator(); it.hasNext();) {
+            if (parameters.contains(it.next())) {
+                it.remove();
+            }
+        }
+        if (!unbound.isEmpty()) {
+            throw new IllegalArgumentException("Unbound parameters: " +
+                    unbound);
+        }
+        for (Step step : steps) {
+            step.execute(session, parameters);
+        }
+        session.flush();
+    }
+
+    /**
+     * A step of a script.
+     */
+    private static class Step {
+        /**
+         * The operation to run or {@code null}.
+         */
+        final Operation operation;
+
+        /**
+         * Whether the operation overrides the execution strategy.
+         */
+        private final boolean strategySelected;
+
+        /**
+         * The execution strategy to run the operation with.
+         */
+        private final ExecutionStrategy strategy;
+
+        /**
+         * Creates a new step.
+         *
+         * @param operation         the operation to run
+         * @param strategySelected  whether the operation overrides the
+         *                          execution strategy
+         * @param strategy          the execution strategy to run the operation
+         *                          with
+         */
+        Step(final Operation operation, final boolean strategySelected,
+                final ExecutionStrategy strategy) {
+            this.operation = operation;
+            this.strategySelected = strategySelected;
+            this.strategy = strategy;
+        }
+
+        /**
+         * Executes this step in the given session.
+         *
+         * @param session       the session to execute this step in
+         * @param parameters    the binding of the parameters
+         */
+        void execute(final Session session, final Binding parameters) {
+            Operation bound = operation;
+            if (bound instanceof ParameterizedOperation &&
+                    !((ParameterizedOperation) bound).getParameters().isEmpty()) {
+                bound = ((ParameterizedOperation) bound).bind(parameters);
+            }
+            if (strategySelected) {
+                session.execute(bound, strategy);
+            } else {
+                session.execute(bound);
+            }
+        }
+    }
+}
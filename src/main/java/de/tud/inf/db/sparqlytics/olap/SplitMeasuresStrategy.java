@@ -0,0 +1,201 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.syntax.Element;
+
+/**
+ * Execution strategy that issues one aggregation query per group of measures
+ * sharing the same seed pattern. Joining independent multi-valued seed
+ * patterns in a single query multiplies the rows per fact, which is both slow
+ * and distorts aggregations such as sums and counts. The queries are run
+ * concurrently and their results are joined on the client by the dimension
+ * members.
+ *
+ * @author Michael Rudolf
+ */
+public class SplitMeasuresStrategy implements ExecutionStrategy {
+    /**
+     * Creates daemon threads, so that pending queries do not prevent the
+     * virtual machine from exiting.
+     */
+    private static final ThreadFactory DAEMON_THREAD_FACTORY =
+            new ThreadFactory() {
+        private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = delegate.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Runs the queries of the different measure groups.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Creates a new strategy that runs queries on a cached pool of daemon
+     * threads.
+     */
+    public SplitMeasuresStrategy() {
+        this(Executors.newCachedThreadPool(DAEMON_THREAD_FACTORY));
+    }
+
+    /**
+     * Creates a new strategy that runs queries with the given executor.
+     *
+     * @param executor the executor to run queries with
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public SplitMeasuresStrategy(final ExecutorService executor) {
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public ResultSet execute(final Compute compute, final Session session,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        //Group measures with equal seed patterns
+        Map<Element, List<Measure>> groups = new LinkedHashMap<>();
+        for (Measure measure : compute.getMeasures()) {
+            List<Measure> group = groups.get(measure.getSeedPattern());
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(measure.getSeedPattern(), group);
+            }
+            group.add(measure);
+        }
+        Histogram queries = Main.METRICS.histogram(MetricRegistry.name(
+                SplitMeasuresStrategy.class, "queries"));
+        queries.update(groups.size());
+
+        //Issue one aggregation query per group concurrently
+        List<Future<List<Binding>>> futures = new ArrayList<>(groups.size());
+        for (List<Measure> group : groups.values()) {
+            final Query query = compute.createSelectQuery(session, group,
+                    dimensionVariables, measureVariables);
+            compute.prepareQuery(session, query);
+            futures.add(executor.submit(new Callable<List<Binding>>() {
+                @Override
+                public List<Binding> call() {
+                    return compute.select(session, query);
+                }
+            }));
+        }
+
+        //Join the results by dimension members
+        List<Var> keyVariables = new ArrayList<>();
+        for (Dimension dimension : session.getCube().getDimensions()) {
+            keyVariables.add(dimensionVariables.get(dimension));
+        }
+        Map<List<Node>, BindingMap> rows = new LinkedHashMap<>();
+        try {
+            for (Future<List<Binding>> future : futures) {
+                for (Binding binding : get(future)) {
+                    Node[] key = new Node[keyVariables.size()];
+                    for (int i = 0; i < key.length; i++) {
+                        key[i] = binding.get(keyVariables.get(i));
+                    }
+                    List<Node> keyList = Arrays.asList(key);
+                    BindingMap row = rows.get(keyList);
+                    if (row == null) {
+                        row = BindingFactory.create();
+                        for (int i = 0; i < key.length; i++) {
+                            if (key[i] != null) {
+                                row.add(keyVariables.get(i), key[i]);
+                            }
+                        }
+                        rows.put(keyList, row);
+                    }
+                    Iterator<Var> vars = binding.vars();
+                    while (vars.hasNext()) {
+                        Var var = vars.next();
+                        if (!row.contains(var)) {
+                            row.add(var, binding.get(var));
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (Future<List<Binding>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        List<Binding> result = compute.applySolutionModifiers(session,
+                new ArrayList<Binding>(rows.values()), dimensionVariables,
+                measureVariables);
+        return compute.createResultSet(session, result.iterator(),
+                dimensionVariables, measureVariables);
+    }
+
+    /**
+     * Waits for the given future and returns its result. Runtime exceptions
+     * thrown during the computation are passed on.
+     *
+     * @param <T>       the type of the result
+     * @param future    the future to wait for
+     * @return the result of the future
+     */
+    static <T> T get(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)ex.getCause();
+            } else if (ex.getCause() instanceof Error) {
+                throw (Error)ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+}
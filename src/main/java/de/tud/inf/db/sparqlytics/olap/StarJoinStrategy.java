@@ -0,0 +1,602 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.local.DimensionTable;
+import de.tud.inf.db.sparqlytics.local.HashAggregator;
+import de.tud.inf.db.sparqlytics.local.NodeDictionary;
+import de.tud.inf.db.sparqlytics.model.CompiledCube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Filter;
+import de.tud.inf.db.sparqlytics.model.Level;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.atlas.lib.Sink;
+import org.apache.jena.graph.Node;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.query.Syntax;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarAlloc;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprEvalException;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.ExprVars;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.function.FunctionEnv;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.PatternVars;
+
+/**
+ * Execution strategy that evaluates the star join between facts and
+ * dimensions on the client. The members of all levels of a dimension are
+ * fetched once per SPARQL endpoint into a {@link DimensionTable}, which is
+ * cached and shared by all cubes using the dimension. For every compute
+ * operation, only the join keys and measure values of the facts are streamed
+ * from the endpoint. They are joined with the cached tables and aggregated
+ * into groups of dictionary encoded dimension members, so that rolling up,
+ * drilling down and filtering do not send dimension patterns to the endpoint
+ * again.
+ * <p>
+ * The decomposition requires that the seed pattern of a dimension is only
+ * connected to the rest of the query through variables of the fact pattern
+ * and that no level expression aggregates. Otherwise, the compute operation
+ * is sent to the endpoint as a single query.
+ *
+ * @author Michael Rudolf
+ */
+public class StarJoinStrategy implements ExecutionStrategy {
+    /**
+     * The cached dimension tables, keyed by dimension, SPARQL endpoint,
+     * (named) graph URIs and join key variables.
+     */
+    private final ConcurrentMap<List<Object>, DimensionTable> tables =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Removes all cached dimension tables, so that they are fetched again.
+     */
+    public void clearCache() {
+        tables.clear();
+    }
+
+    @Override
+    public ResultSet execute(final Compute compute, final Session session,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        if (!isDecomposable(compute, session)) {
+            Main.METRICS.counter(MetricRegistry.name(
+                    StarJoinStrategy.class, "fallbacks")).inc();
+            Query query = compute.createSelectQuery(session,
+                    dimensionVariables, measureVariables);
+            compute.prepareQuery(session, query);
+            return compute.createResultSet(session,
+                    compute.select(session, query).iterator(),
+                    dimensionVariables, measureVariables);
+        }
+        Map<Dimension, Integer> granularity = new HashMap<>();
+        for (Dimension dimension : session.getCube().getDimensions()) {
+            granularity.put(dimension, session.getGranularity(dimension));
+        }
+        return execute(compute, session, Collections.singletonList(granularity),
+                dimensionVariables, measureVariables).get(0);
+    }
+
+    /**
+     * Executes the given compute operation in the given session once for
+     * every given granularity, i.e., for every grouping set. The facts are
+     * retrieved only once and aggregated for all grouping sets in a single
+     * pass. The compute operation must be decomposable.
+     *
+     * @param compute               the compute operation to execute
+     * @param session               the session to compute the measures in
+     * @param granularities         the level per dimension of every grouping
+     *                              set
+     * @param dimensionVariables    the allocated dimension level variables
+     * @param measureVariables      the allocated measure variables
+     * @return the ordered and limited rows per grouping set
+     *
+     * @see #isDecomposable
+     */
+    protected List<ResultSet> execute(final Compute compute,
+            final Session session,
+            final List<Map<Dimension, Integer>> granularities,
+            final Map<Dimension, Var> dimensionVariables,
+            final Map<Measure, Pair<Var, Var>> measureVariables) {
+        List<Dimension> dimensions = new ArrayList<>(
+                session.getCube().getDimensions());
+        Set<Var> factVariables = namedVars(PatternVars.vars(
+                session.getCube().getFactPattern()));
+
+        //Fetch or reuse the dimension tables
+        final FunctionEnv env = compute.createFunctionEnv();
+        final DimensionTable[] tables = new DimensionTable[dimensions.size()];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = getTable(compute, session, dimensions.get(i),
+                    factVariables, env);
+        }
+        final CompiledCube layout = session.getLayout();
+        final DimensionJoin[][] joins =
+                new DimensionJoin[granularities.size()][tables.length];
+        for (int set = 0; set < joins.length; set++) {
+            for (int i = 0; i < tables.length; i++) {
+                Dimension dimension = dimensions.get(i);
+                joins[set][i] = new DimensionJoin(tables[i],
+                        granularities.get(set).get(dimension), env);
+                int ordinal = layout.getOrdinal(dimension);
+                for (int j = 0; j < dimension.getLevels().size(); j++) {
+                    Filter filter = session.getFilter(
+                            layout.getLevelOrdinal(ordinal, j));
+                    if (filter != null) {
+                        joins[set][i].addFilter(j, filter);
+                    }
+                }
+            }
+        }
+
+        //Stream the facts and aggregate them by dimension members
+        List<Aggregator> aggregators = new ArrayList<>();
+        for (Measure measure : compute.getMeasures()) {
+            aggregators.add(compute.createAggregator(
+                    measure.getAggregationFunction(),
+                    new ExprVar(measureVariables.get(measure).getLeft())));
+        }
+        final HashAggregator[] groupingSets = new HashAggregator[joins.length];
+        for (int set = 0; set < groupingSets.length; set++) {
+            groupingSets[set] = new HashAggregator(tables.length, aggregators);
+        }
+        Query factQuery = compute.createComputeQuery(session,
+                compute.getMeasures(), Collections.<Dimension>emptyList(),
+                Collections.<Pair<Dimension, Level>, Filter>emptyMap(),
+                dimensionVariables, measureVariables);
+        compute.prepareQuery(session, factQuery);
+        compute.select(session, factQuery, new Sink<Binding>() {
+            private final int[] keys = new int[tables.length];
+
+            private final int[] group = new int[tables.length];
+
+            @Override
+            public void send(final Binding fact) {
+                for (int i = 0; i < tables.length; i++) {
+                    keys[i] = tables[i].findKey(fact);
+                }
+                outer:
+                for (int set = 0; set < joins.length; set++) {
+                    for (int i = 0; i < tables.length; i++) {
+                        if (!joins[set][i].match(keys[i])) {
+                            continue outer;
+                        }
+                    }
+                    accumulate(fact, set, 0);
+                }
+            }
+
+            /**
+             * Accumulates the given fact into the groups formed by the cross
+             * product of the matched members, starting at the given dimension.
+             *
+             * @param fact      the fact to accumulate
+             * @param set       the index of the grouping set
+             * @param dimension the index of the dimension to continue with
+             */
+            private void accumulate(final Binding fact, final int set,
+                    final int dimension) {
+                if (dimension == tables.length) {
+                    HashAggregator aggregator = groupingSets[set];
+                    aggregator.accumulate(aggregator.group(group), fact, env);
+                    return;
+                }
+                DimensionJoin join = joins[set][dimension];
+                for (int i = 0; i < join.matchCount; i++) {
+                    group[dimension] = join.matches[i];
+                    accumulate(fact, set, dimension + 1);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+        //Decode the aggregated groups
+        List<ResultSet> results = new ArrayList<>(joins.length);
+        for (int set = 0; set < joins.length; set++) {
+            HashAggregator aggregator = groupingSets[set];
+            List<Binding> rows = new ArrayList<>(aggregator.size());
+            for (int group = 0; group < aggregator.size(); group++) {
+                BindingMap row = BindingFactory.create();
+                for (int i = 0; i < tables.length; i++) {
+                    Node member = tables[i].decode(joins[set][i].granularity,
+                            aggregator.getKey(group, i));
+                    if (member != null) {
+                        row.add(dimensionVariables.get(dimensions.get(i)), member);
+                    }
+                }
+                for (int i = 0; i < aggregators.size(); i++) {
+                    NodeValue value = aggregator.getValue(group, i);
+                    if (value != null) {
+                        row.add(measureVariables.get(compute.getMeasures().
+                                get(i)).getRight(), value.asNode());
+                    }
+                }
+                rows.add(row);
+            }
+            List<Binding> result = compute.applySolutionModifiers(session,
+                    rows, dimensionVariables, measureVariables);
+            results.add(compute.createResultSet(session, result.iterator(),
+                    dimensionVariables, measureVariables));
+        }
+        return results;
+    }
+
+    /**
+     * Returns whether the given compute operation can be decomposed into
+     * dimension tables and a fact query.
+     *
+     * @param compute the compute operation to execute
+     * @param session the session to compute the measures in
+     * @return whether the star join can be evaluated on the client
+     */
+    protected boolean isDecomposable(final Compute compute,
+            final Session session) {
+        Collection<Dimension> dimensions = session.getCube().getDimensions();
+        Set<Var> factVariables = namedVars(PatternVars.vars(
+                session.getCube().getFactPattern()));
+        Compute.AggregationDetector detector = new Compute.AggregationDetector();
+        for (Dimension dimension : dimensions) {
+            for (Level level : dimension.getLevels()) {
+                if (detector.isAggregating(level.getExpression())) {
+                    return false;
+                }
+            }
+
+            //Collect the variables of all other patterns and expressions
+            Set<Var> otherVariables = new HashSet<>();
+            for (Dimension other : dimensions) {
+                if (other != dimension) {
+                    otherVariables.addAll(PatternVars.vars(other.getSeedPattern()));
+                }
+            }
+            for (Measure measure : compute.getMeasures()) {
+                otherVariables.addAll(PatternVars.vars(measure.getSeedPattern()));
+                otherVariables.addAll(ExprVars.getVarsMentioned(
+                        measure.getExpression()));
+            }
+            otherVariables.retainAll(namedVars(PatternVars.vars(
+                    dimension.getSeedPattern())));
+            otherVariables.removeAll(factVariables);
+            if (!otherVariables.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached table for the given dimension, fetching it from the
+     * SPARQL endpoint of the given session if necessary.
+     *
+     * @param compute       the compute operation to execute
+     * @param session       the session providing the SPARQL endpoint
+     * @param dimension     the dimension to return the table for
+     * @param factVariables the named variables of the fact pattern
+     * @param env           the environment for evaluating constant levels
+     * @return the table with the members of all levels of the dimension
+     */
+    protected DimensionTable getTable(final Compute compute,
+            final Session session, final Dimension dimension,
+            final Set<Var> factVariables, final FunctionEnv env) {
+        List<Var> keyVariables = new ArrayList<>();
+        for (Var var : PatternVars.vars(dimension.getSeedPattern())) {
+            if (var.isNamedVar() && factVariables.contains(var)) {
+                keyVariables.add(var);
+            }
+        }
+        Query temp = session.getQuery();
+        List<Object> cacheKey = Arrays.<Object>asList(dimension,
+                session.getSPARQLEndpointURL(), temp.getGraphURIs(),
+                temp.getNamedGraphURIs(), keyVariables);
+        DimensionTable table = tables.get(cacheKey);
+        if (table != null) {
+            Main.METRICS.counter(MetricRegistry.name(StarJoinStrategy.class,
+                    "tableHits")).inc();
+            return table;
+        }
+        Main.METRICS.counter(MetricRegistry.name(StarJoinStrategy.class,
+                "tableMisses")).inc();
+
+        //Select the join key and the members of all non-constant levels
+        Query query = new Query();
+        query.setSyntax(Syntax.syntaxSPARQL_11);
+        query.setQuerySelectType();
+        query.setDistinct(true);
+        for (Var var : keyVariables) {
+            query.addResultVar(var);
+        }
+        List<Var> memberVariables = new ArrayList<>();
+        final BindingMap constants = BindingFactory.create();
+        VarAlloc levelVarAlloc = new VarAlloc("_level");
+        List<Var> boundVariables = new ArrayList<>();
+        List<Expr> boundExpressions = new ArrayList<>();
+        for (Level level : dimension.getLevels()) {
+            Var var = levelVarAlloc.allocVar();
+            memberVariables.add(var);
+            Expr expr = level.getExpression();
+            if (ExprVars.getVarsMentioned(expr).isEmpty()) {
+                try {
+                    constants.add(var, expr.eval(BindingFactory.binding(), env).
+                            asNode());
+                } catch (ExprEvalException ex) {
+                    //Leave the level member unbound
+                }
+            } else {
+                boundVariables.add(var);
+                boundExpressions.add(expr);
+            }
+        }
+
+        //Levels often differ only in the outermost functions
+        SubexpressionEliminator eliminator = new SubexpressionEliminator(
+                boundExpressions, null, new VarAlloc("_subexpression"));
+        for (int i = 0; i < boundVariables.size(); i++) {
+            query.addResultVar(boundVariables.get(i),
+                    eliminator.getExpressions().get(i));
+        }
+        ElementGroup group = new ElementGroup();
+        group.addElement(dimension.getSeedPattern());
+        compute.addBindings(group, eliminator);
+        query.setQueryPattern(group);
+        compute.prepareQuery(session, query);
+        final DimensionTable.Builder builder = new DimensionTable.Builder(
+                keyVariables, memberVariables);
+        compute.select(session, query, new Sink<Binding>() {
+            @Override
+            public void send(final Binding binding) {
+                if (constants.isEmpty()) {
+                    builder.send(binding);
+                } else {
+                    BindingMap row = BindingFactory.create(binding);
+                    row.addAll(constants);
+                    builder.send(row);
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        table = builder.build();
+        DimensionTable previous = tables.putIfAbsent(cacheKey, table);
+        return previous == null ? table : previous;
+    }
+
+    /**
+     * Returns the named variables among the given variables.
+     *
+     * @param vars the variables to filter
+     * @return the named variables
+     */
+    private static Set<Var> namedVars(final Collection<Var> vars) {
+        Set<Var> result = new HashSet<>();
+        for (Var var : vars) {
+            if (var.isNamedVar()) {
+                result.add(var);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Joins facts with a dimension table during a single compute operation.
+     * Filter results are cached per level member.
+     */
+    private static class DimensionJoin {
+        /**
+         * The table to join with.
+         */
+        private final DimensionTable table;
+
+        /**
+         * The column of the level to aggregate by.
+         */
+        private final int granularity;
+
+        /**
+         * The environment for evaluating filter predicates.
+         */
+        private final FunctionEnv env;
+
+        /**
+         * The columns of the filtered levels.
+         */
+        private int[] filterColumns = new int[0];
+
+        /**
+         * The filters applied to the filtered levels.
+         */
+        private final List<Filter> filters = new ArrayList<>();
+
+        /**
+         * The cached filter results per filter and level member identifier
+         * plus one, zero meaning unknown, one true and two false.
+         */
+        private final List<byte[]> filterResults = new ArrayList<>();
+
+        /**
+         * The level members of the distinct rows matched by the last fact,
+         * the level to aggregate by followed by the filtered levels.
+         */
+        private int[] matchedRows = new int[0];
+
+        /**
+         * The level members to aggregate by of the rows matched by the last
+         * fact.
+         */
+        private int[] matches = new int[1];
+
+        /**
+         * The number of rows matched by the last fact.
+         */
+        private int matchCount;
+
+        /**
+         * Creates a new join with the given table.
+         *
+         * @param table         the table to join with
+         * @param granularity   the column of the level to aggregate by
+         * @param env           the environment for evaluating filter
+         *                      predicates
+         */
+        DimensionJoin(final DimensionTable table, final int granularity,
+                final FunctionEnv env) {
+            this.table = table;
+            this.granularity = granularity;
+            this.env = env;
+        }
+
+        /**
+         * Adds a filter on the given level.
+         *
+         * @param column    the column of the filtered level
+         * @param filter    the filter to apply
+         */
+        void addFilter(final int column, final Filter filter) {
+            filterColumns = Arrays.copyOf(filterColumns, filterColumns.length + 1);
+            filterColumns[filterColumns.length - 1] = column;
+            filters.add(filter);
+            filterResults.add(new byte[table.getMemberCount(column) + 1]);
+        }
+
+        /**
+         * Determines the level members matching the fact with the given join
+         * key. Like in an optional join, a fact without any row in the table
+         * matches the unbound member. Rows that differ in the filtered levels
+         * are counted separately, as they would be grouped separately in a
+         * single query.
+         *
+         * @param key the ordinal of the join key of the fact or {@code -1}
+         * @return whether any row matched and passed the filters
+         */
+        boolean match(final int key) {
+            matchCount = 0;
+            if (key < 0 || table.getFirstRow(key) == table.getEndRow(key)) {
+                addMatch(-1);
+            } else {
+                for (int row = table.getFirstRow(key); row < table.getEndRow(key); row++) {
+                    addMatch(row);
+                }
+            }
+            for (int i = 0; i < matchCount; i++) {
+                matches[i] = matchedRows[i * (filterColumns.length + 1)];
+            }
+            return matchCount > 0;
+        }
+
+        /**
+         * Adds the given row to the matched rows, unless it fails a filter or
+         * an equal row has already been matched.
+         *
+         * @param row the index of the row or {@code -1} for the unbound row
+         */
+        private void addMatch(final int row) {
+            int width = filterColumns.length + 1;
+            if (matchedRows.length < (matchCount + 1) * width) {
+                matchedRows = Arrays.copyOf(matchedRows, (matchCount + 1) * width * 2);
+                matches = Arrays.copyOf(matches, (matchCount + 1) * 2);
+            }
+            int offset = matchCount * width;
+            matchedRows[offset] = member(row, granularity);
+            for (int i = 0; i < filterColumns.length; i++) {
+                int member = member(row, filterColumns[i]);
+                if (!isSatisfied(i, member)) {
+                    return;
+                }
+                matchedRows[offset + i + 1] = member;
+            }
+            outer:
+            for (int other = 0; other < offset; other += width) {
+                for (int i = 0; i < width; i++) {
+                    if (matchedRows[other + i] != matchedRows[offset + i]) {
+                        continue outer;
+                    }
+                }
+                return;
+            }
+            matchCount++;
+        }
+
+        /**
+         * Returns the identifier of the level member in the given row.
+         *
+         * @param row       the index of the row or {@code -1} for the unbound
+         *                  row
+         * @param column    the level member column
+         * @return the identifier of the level member
+         */
+        private int member(final int row, final int column) {
+            return row < 0 ? NodeDictionary.UNBOUND : table.getMember(row, column);
+        }
+
+        /**
+         * Returns whether the given level member satisfies a filter. Errors
+         * during the evaluation count as not satisfied.
+         *
+         * @param filter    the index of the filter
+         * @param member    the identifier of the level member
+         * @return whether the filter is satisfied
+         */
+        private boolean isSatisfied(final int filter, final int member) {
+            byte[] results = filterResults.get(filter);
+            if (results[member + 1] == 0) {
+                Filter f = filters.get(filter);
+                Node node = table.decode(filterColumns[filter], member);
+                Binding binding = node == null ? BindingFactory.binding() :
+                        BindingFactory.binding(f.getVariable(), node);
+                results[member + 1] = (byte)(f.getPredicate().isSatisfied(
+                        binding, env) ? 1 : 2);
+            }
+            return results[member + 1] == 1;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarAlloc;
+import org.apache.jena.sparql.expr.E_BNode;
+import org.apache.jena.sparql.expr.E_Random;
+import org.apache.jena.sparql.expr.E_StrUUID;
+import org.apache.jena.sparql.expr.E_UUID;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprFunction3;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprFunctionOp;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprTransformCopy;
+import org.apache.jena.sparql.expr.ExprTransformer;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.ExprVars;
+
+/**
+ * Eliminates common subexpressions from a list of expressions that are
+ * evaluated in the same scope of a query. Every function call occurring more
+ * than once is bound to a helper variable, which the rewritten expressions
+ * reference instead. The largest repeated subexpressions are eliminated first,
+ * so that for example the three occurrences of
+ * {@code xsd:dateTime(?creationDate)} in a level expression are replaced by a
+ * single helper variable.
+ * <p>
+ * Since an evaluation error in SPARQL leaves the bound variable unbound, and
+ * evaluating an unbound variable raises an error, the rewritten expressions
+ * produce the same values as the original ones, provided that the helper
+ * variables are bound in the same scope before them. Calls without arguments,
+ * non-deterministic functions, aggregates and {@code EXISTS} are never
+ * eliminated.
+ *
+ * @author Michael Rudolf
+ */
+public class SubexpressionEliminator {
+    /**
+     * The rewritten expressions.
+     */
+    private final List<Expr> expressions;
+
+    /**
+     * The helper variables with their expressions in the order in which they
+     * have to be bound.
+     */
+    private final Map<Var, Expr> bindings = new LinkedHashMap<>();
+
+    /**
+     * The variables that eliminated subexpressions may mention, or
+     * {@code null} if they may mention any variable.
+     */
+    private final Set<Var> scope;
+
+    /**
+     * Eliminates the common subexpressions from the given expressions.
+     *
+     * @param expressions   the expressions evaluated in the same scope
+     * @param scope         the variables that eliminated subexpressions may
+     *                      mention, or {@code null} for all variables
+     * @param allocator     allocates the helper variables
+     * @throws NullPointerException if the expressions or the allocator are
+     *                              {@code null}
+     */
+    public SubexpressionEliminator(final List<Expr> expressions,
+            final Collection<Var> scope, final VarAlloc allocator) {
+        if (allocator == null) {
+            throw new NullPointerException();
+        }
+        this.expressions = new ArrayList<>(expressions);
+        this.scope = scope == null ? null : new HashSet<>(scope);
+        Map<Var, Expr> helpers = new LinkedHashMap<>();
+        for (Expr common = findCommon(helpers); common != null;
+                common = findCommon(helpers)) {
+            Var var = allocator.allocVar();
+            if (this.scope != null) {
+                this.scope.add(var);
+            }
+            ExprTransformCopy replacement = new Replacement(common, var);
+            for (int i = 0; i < this.expressions.size(); i++) {
+                this.expressions.set(i, ExprTransformer.transform(replacement,
+                        this.expressions.get(i)));
+            }
+            for (Map.Entry<Var, Expr> helper : helpers.entrySet()) {
+                helper.setValue(replaceArguments(
+                        (ExprFunction) helper.getValue(), replacement));
+            }
+            helpers.put(var, common);
+        }
+        for (Var var : helpers.keySet()) {
+            order(var, helpers);
+        }
+    }
+
+    /**
+     * Returns the rewritten expressions, in the order of the original ones.
+     *
+     * @return the rewritten expressions
+     */
+    public List<Expr> getExpressions() {
+        return Collections.unmodifiableList(expressions);
+    }
+
+    /**
+     * Returns the helper variables with their expressions in the order in
+     * which they have to be bound before the rewritten expressions.
+     *
+     * @return the helper variables with their expressions, may be empty
+     */
+    public Map<Var, Expr> getBindings() {
+        return Collections.unmodifiableMap(bindings);
+    }
+
+    /**
+     * Helper method for finding the largest subexpression that occurs at
+     * least twice in the expressions and the arguments of the helpers.
+     *
+     * @param helpers   the helpers created so far
+     * @return the largest common subexpression, or {@code null} if there is
+     *         none
+     */
+    protected Expr findCommon(final Map<Var, Expr> helpers) {
+        Map<Expr, Integer> counts = new LinkedHashMap<>();
+        for (Expr expr : expressions) {
+            count(expr, counts);
+        }
+        for (Expr expr : helpers.values()) {
+            for (Expr arg : ((ExprFunction) expr).getArgs()) {
+                count(arg, counts);
+            }
+        }
+        Expr common = null;
+        int commonSize = 0;
+        for (Map.Entry<Expr, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                int size = size(entry.getKey());
+                if (size > commonSize) {
+                    common = entry.getKey();
+                    commonSize = size;
+                }
+            }
+        }
+        return common;
+    }
+
+    /**
+     * Helper method for counting the occurrences of the eliminable
+     * subexpressions of the given expression.
+     *
+     * @param expr      the expression to count the subexpressions of
+     * @param counts    the occurrences counted so far
+     * @return whether the given expression itself is eliminable
+     */
+    protected boolean count(final Expr expr, final Map<Expr, Integer> counts) {
+        if (expr.isVariable()) {
+            return scope == null || scope.contains(expr.asVar());
+        } else if (expr.isConstant()) {
+            return true;
+        } else if (!expr.isFunction() || expr instanceof ExprFunctionOp) {
+            return false;
+        }
+        ExprFunction function = expr.getFunction();
+        boolean eliminable = function.numArgs() > 0 &&
+                !(function instanceof E_Random) &&
+                !(function instanceof E_BNode) &&
+                !(function instanceof E_UUID) &&
+                !(function instanceof E_StrUUID);
+        for (Expr arg : function.getArgs()) {
+            eliminable &= count(arg, counts);
+        }
+        if (eliminable) {
+            Integer count = counts.get(expr);
+            counts.put(expr, count == null ? 1 : count + 1);
+        }
+        return eliminable;
+    }
+
+    /**
+     * Helper method for computing the number of nodes of the given
+     * expression tree.
+     *
+     * @param expr  the expression to compute the size of
+     * @return the number of nodes of the expression tree
+     */
+    protected static int size(final Expr expr) {
+        int size = 1;
+        if (expr.isFunction()) {
+            for (Expr arg : expr.getFunction().getArgs()) {
+                size += size(arg);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Helper method for applying the given replacement to the arguments of
+     * the given function call, but not to the call itself.
+     *
+     * @param function      the function call to rewrite the arguments of
+     * @param replacement   the replacement to apply
+     * @return the rewritten function call
+     */
+    private static Expr replaceArguments(final ExprFunction function,
+            final ExprTransformCopy replacement) {
+        ExprList args = new ExprList();
+        for (Expr arg : function.getArgs()) {
+            args.add(ExprTransformer.transform(replacement, arg));
+        }
+        if (function instanceof ExprFunction1) {
+            return ((ExprFunction1) function).copy(args.get(0));
+        } else if (function instanceof ExprFunction2) {
+            return ((ExprFunction2) function).copy(args.get(0), args.get(1));
+        } else if (function instanceof ExprFunction3) {
+            return ((ExprFunction3) function).copy(args.get(0), args.get(1),
+                    args.get(2));
+        } else {
+            return ((ExprFunctionN) function).copy(args);
+        }
+    }
+
+    /**
+     * Helper method for adding the given helper to the bindings after all
+     * helpers it references.
+     *
+     * @param var       the helper variable to add
+     * @param helpers   all helpers
+     */
+    private void order(final Var var, final Map<Var, Expr> helpers) {
+        if (!bindings.containsKey(var)) {
+            Expr expr = helpers.get(var);
+            for (Var mentioned : ExprVars.getVarsMentioned(expr)) {
+                if (helpers.containsKey(mentioned)) {
+                    order(mentioned, helpers);
+                }
+            }
+            bindings.put(var, expr);
+        }
+    }
+
+    /**
+     * Replaces all occurrences of a subexpression by a variable.
+     */
+    private static class Replacement extends ExprTransformCopy {
+        /**
+         * The subexpression to replace.
+         */
+        private final Expr subexpression;
+
+        /**
+         * The variable to replace the subexpression with.
+         */
+        private final ExprVar var;
+
+        /**
+         * Creates a new replacement.
+         *
+         * @param subexpression the subexpression to replace
+         * @param var           the variable to replace it with
+         */
+        Replacement(final Expr subexpression, final Var var) {
+            this.subexpression = subexpression;
+            this.var = new ExprVar(var);
+        }
+
+        /**
+         * Helper method for replacing the given rewritten expression if it
+         * equals the subexpression.
+         *
+         * @param expr  the rewritten expression
+         * @return the variable or the given expression
+         */
+        private Expr replace(final Expr expr) {
+            return subexpression.equals(expr) ? var : expr;
+        }
+
+        @Override
+        public Expr transform(final ExprFunction1 func, final Expr expr1) {
+            return replace(super.transform(func, expr1));
+        }
+
+        @Override
+        public Expr transform(final ExprFunction2 func, final Expr expr1,
+                final Expr expr2) {
+            return replace(super.transform(func, expr1, expr2));
+        }
+
+        @Override
+        public Expr transform(final ExprFunction3 func, final Expr expr1,
+                final Expr expr2, final Expr expr3) {
+            return replace(super.transform(func, expr1, expr2, expr3));
+        }
+
+        @Override
+        public Expr transform(final ExprFunctionN func, final ExprList args) {
+            return replace(super.transform(func, args));
+        }
+    }
+}
@@ -0,0 +1,300 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.repository;
+
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.NamedObject;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable repository implementation that indexes its contents by name, so
+ * that looking up cubes, dimensions and measures takes constant time. Since
+ * instances never change, they can be shared freely between threads.
+ *
+ * @author Michael Rudolf
+ */
+public final class IndexedRepository extends AbstractRepository {
+    /**
+     * The empty repository.
+     */
+    public static final IndexedRepository EMPTY = new IndexedRepository(
+            Collections.<Cube>emptySet(), Collections.<Dimension>emptySet(),
+            Collections.<Measure>emptySet());
+
+    /**
+     * The cubes in this repository by their names.
+     */
+    private final Map<String, Cube> cubes;
+
+    /**
+     * The dimensions in this repository by their names.
+     */
+    private final Map<String, Dimension> dimensions;
+
+    /**
+     * The measures in this repository by their names.
+     */
+    private final Map<String, Measure> measures;
+
+    /**
+     * The cubes in this repository.
+     */
+    private final Set<Cube> cubeSet;
+
+    /**
+     * The dimensions in this repository.
+     */
+    private final Set<Dimension> dimensionSet;
+
+    /**
+     * The measures in this repository.
+     */
+    private final Set<Measure> measureSet;
+
+    /**
+     * Creates a new repository with the given cubes, dimensions and measures.
+     *
+     * @param cubes         the cubes in this repository
+     * @param dimensions    the dimensions in this repository
+     * @param measures      the measures in this repository
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public IndexedRepository(final Collection<Cube> cubes,
+            final Collection<Dimension> dimensions,
+            final Collection<Measure> measures) {
+        this(index(cubes), index(dimensions), index(measures));
+    }
+
+    /**
+     * Creates a new repository with the given indexes, which must not be
+     * modified afterwards.
+     *
+     * @param cubes         the cubes in this repository by their names
+     * @param dimensions    the dimensions in this repository by their names
+     * @param measures      the measures in this repository by their names
+     */
+    private IndexedRepository(final Map<String, Cube> cubes,
+            final Map<String, Dimension> dimensions,
+            final Map<String, Measure> measures) {
+        this.cubes = cubes;
+        this.dimensions = dimensions;
+        this.measures = measures;
+        this.cubeSet = Collections.unmodifiableSet(
+                new HashSet<>(cubes.values()));
+        this.dimensionSet = Collections.unmodifiableSet(
+                new HashSet<>(dimensions.values()));
+        this.measureSet = Collections.unmodifiableSet(
+                new HashSet<>(measures.values()));
+    }
+
+    /**
+     * Indexes the given objects by their names. Of several objects with the
+     * same name, the first one is kept, like a set would do.
+     *
+     * @param <T>       the type of the objects
+     * @param objects   the objects to index
+     * @return the objects by their names
+     */
+    private static <T extends NamedObject> Map<String, T> index(
+            final Collection<T> objects) {
+        Map<String, T> index = new HashMap<>(
+                Math.max(16, objects.size() * 4 / 3 + 1));
+        for (T object : objects) {
+            if (!index.containsKey(object.getName())) {
+                index.put(object.getName(), object);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns a copy of the given index with the given object added, or
+     * {@code null} if the index already contains an object with the same
+     * name.
+     *
+     * @param <T>       the type of the objects
+     * @param index     the index to copy
+     * @param object    the object to add
+     * @return the extended index or {@code null}
+     */
+    private static <T extends NamedObject> Map<String, T> with(
+            final Map<String, T> index, final T object) {
+        if (object == null) {
+            throw new NullPointerException();
+        }
+        if (index.containsKey(object.getName())) {
+            return null;
+        }
+        Map<String, T> copy = new HashMap<>(index);
+        copy.put(object.getName(), object);
+        return copy;
+    }
+
+    /**
+     * Returns a copy of the given index with the given object removed, or
+     * {@code null} if the index does not contain the object.
+     *
+     * @param <T>       the type of the objects
+     * @param index     the index to copy
+     * @param object    the object to remove
+     * @return the reduced index or {@code null}
+     */
+    private static <T extends NamedObject> Map<String, T> without(
+            final Map<String, T> index, final Object object) {
+        if (!(object instanceof NamedObject)) {
+            return null;
+        }
+        String name = ((NamedObject) object).getName();
+        if (!index.containsKey(name)) {
+            return null;
+        }
+        Map<String, T> copy = new HashMap<>(index);
+        copy.remove(name);
+        return copy;
+    }
+
+    /**
+     * Returns a repository that additionally contains the given cube.
+     *
+     * @param cube the cube to add
+     * @return the extended repository, or {@code null} if this repository
+     *         already contains a cube with the same name
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public IndexedRepository withCube(final Cube cube) {
+        Map<String, Cube> index = with(cubes, cube);
+        return index == null ? null :
+                new IndexedRepository(index, dimensions, measures);
+    }
+
+    /**
+     * Returns a repository that does not contain the given cube.
+     *
+     * @param cube the cube to remove
+     * @return the reduced repository, or {@code null} if this repository does
+     *         not contain the cube
+     */
+    public IndexedRepository withoutCube(final Cube cube) {
+        Map<String, Cube> index = without(cubes, cube);
+        return index == null ? null :
+                new IndexedRepository(index, dimensions, measures);
+    }
+
+    /**
+     * Returns a repository that additionally contains the given dimension.
+     *
+     * @param dimension the dimension to add
+     * @return the extended repository, or {@code null} if this repository
+     *         already contains a dimension with the same name
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public IndexedRepository withDimension(final Dimension dimension) {
+        Map<String, Dimension> index = with(dimensions, dimension);
+        return index == null ? null :
+                new IndexedRepository(cubes, index, measures);
+    }
+
+    /**
+     * Returns a repository that does not contain the given dimension.
+     *
+     * @param dimension the dimension to remove
+     * @return the reduced repository, or {@code null} if this repository does
+     *         not contain the dimension
+     */
+    public IndexedRepository withoutDimension(final Dimension dimension) {
+        Map<String, Dimension> index = without(dimensions, dimension);
+        return index == null ? null :
+                new IndexedRepository(cubes, index, measures);
+    }
+
+    /**
+     * Returns a repository that additionally contains the given measure.
+     *
+     * @param measure the measure to add
+     * @return the extended repository, or {@code null} if this repository
+     *         already contains a measure with the same name
+     * @throws NullPointerException if the argument is {@code null}
+     */
+    public IndexedRepository withMeasure(final Measure measure) {
+        Map<String, Measure> index = with(measures, measure);
+        return index == null ? null :
+                new IndexedRepository(cubes, dimensions, index);
+    }
+
+    /**
+     * Returns a repository that does not contain the given measure.
+     *
+     * @param measure the measure to remove
+     * @return the reduced repository, or {@code null} if this repository does
+     *         not contain the measure
+     */
+    public IndexedRepository withoutMeasure(final Measure measure) {
+        Map<String, Measure> index = without(measures, measure);
+        return index == null ? null :
+                new IndexedRepository(cubes, dimensions, index);
+    }
+
+    @Override
+    public Set<Cube> getCubes() {
+        return cubeSet;
+    }
+
+    @Override
+    public Cube findCube(final String name) {
+        Cube cube = cubes.get(name);
+        if (cube == null) {
+            throw new NoSuchElementException(name);
+        }
+        return cube;
+    }
+
+    @Override
+    public Set<Dimension> getDimensions() {
+        return dimensionSet;
+    }
+
+    @Override
+    public Dimension findDimension(final String name) {
+        Dimension dimension = dimensions.get(name);
+        if (dimension == null) {
+            throw new NoSuchElementException(name);
+        }
+        return dimension;
+    }
+
+    @Override
+    public Set<Measure> getMeasures() {
+        return measureSet;
+    }
+
+    @Override
+    public Measure findMeasure(final String name) {
+        Measure measure = measures.get(name);
+        if (measure == null) {
+            throw new NoSuchElementException(name);
+        }
+        return measure;
+    }
+}
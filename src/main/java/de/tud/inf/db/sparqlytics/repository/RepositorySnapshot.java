@@ -0,0 +1,1113 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.repository;
+
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Level;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.NamedObject;
+import de.tud.inf.db.sparqlytics.parser.ParseException;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.naming.NamingException;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.Syntax;
+import org.apache.jena.sparql.core.Prologue;
+import org.apache.jena.sparql.core.TriplePath;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.E_Exists;
+import org.apache.jena.sparql.expr.E_Function;
+import org.apache.jena.sparql.expr.E_NotExists;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprAggregator;
+import org.apache.jena.sparql.expr.ExprFunction;
+import org.apache.jena.sparql.expr.ExprFunction0;
+import org.apache.jena.sparql.expr.ExprFunction1;
+import org.apache.jena.sparql.expr.ExprFunction2;
+import org.apache.jena.sparql.expr.ExprFunction3;
+import org.apache.jena.sparql.expr.ExprFunctionN;
+import org.apache.jena.sparql.expr.ExprList;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.expr.aggregate.AggGroupConcat;
+import org.apache.jena.sparql.expr.aggregate.AggGroupConcatDistinct;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
+import org.apache.jena.sparql.path.PathParser;
+import org.apache.jena.sparql.path.PathWriter;
+import org.apache.jena.sparql.serializer.FormatterElement;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementAssign;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementData;
+import org.apache.jena.sparql.syntax.ElementExists;
+import org.apache.jena.sparql.syntax.ElementFilter;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementMinus;
+import org.apache.jena.sparql.syntax.ElementNamedGraph;
+import org.apache.jena.sparql.syntax.ElementNotExists;
+import org.apache.jena.sparql.syntax.ElementOptional;
+import org.apache.jena.sparql.syntax.ElementPathBlock;
+import org.apache.jena.sparql.syntax.ElementService;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.apache.jena.sparql.syntax.ElementUnion;
+import org.apache.jena.sparql.util.ExprUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary snapshot of a repository together with the prefixes declared by the
+ * script that defined it. A snapshot stores the patterns and expressions of
+ * dimensions, measures and cubes as trees of tagged nodes, so that reading it
+ * does not involve the SPARQL parser. Only sub-queries, complex property
+ * paths and expressions without a matching constructor are stored as SPARQL
+ * text and parsed again. Every snapshot records a hash of the script it was
+ * created from, so that {@link #load} can detect when it is out of date.
+ *
+ * @author Michael Rudolf
+ */
+public final class RepositorySnapshot {
+    /**
+     * The first four bytes of every snapshot.
+     */
+    private static final int MAGIC = 0x534c5253;
+
+    /**
+     * The version of the snapshot format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The algorithm for hashing the contents of scripts.
+     */
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    /**
+     * Tags of the encoded syntax tree nodes.
+     */
+    private static final int NULL = 0, TEXT = 1, GROUP = 2, PATH_BLOCK = 3,
+            TRIPLES_BLOCK = 4, FILTER = 5, OPTIONAL = 6, UNION = 7, MINUS = 8,
+            BIND = 9, ASSIGN = 10, NAMED_GRAPH = 11, SERVICE = 12, EXISTS = 13,
+            NOT_EXISTS = 14, DATA = 15, VAR = 16, CONSTANT = 17, FUNCTION = 18,
+            BUILT_IN = 19, AGGREGATOR = 20, URI = 21, BLANK = 22, LITERAL = 23;
+
+    /**
+     * The logger of this class.
+     */
+    private static final Logger LOG =
+            LoggerFactory.getLogger(RepositorySnapshot.class);
+
+    /**
+     * Caches the constructors of built-in functions by class.
+     */
+    private static final Map<Class<?>, Constructor<?>> CONSTRUCTORS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Orders cubes, dimensions and measures by their names, so that snapshots
+     * of equal repositories are equal.
+     */
+    private static final Comparator<NamedObject> BY_NAME =
+            new Comparator<NamedObject>() {
+        @Override
+        public int compare(final NamedObject first, final NamedObject second) {
+            return first.getName().compareTo(second.getName());
+        }
+    };
+
+    /**
+     * The repository of this snapshot.
+     */
+    private final Repository repository;
+
+    /**
+     * The base IRI and prefixes declared when the repository was defined.
+     */
+    private final Prologue prologue;
+
+    /**
+     * The hash of the script the repository was defined by.
+     */
+    private final byte[] sourceHash;
+
+    /**
+     * Creates a new snapshot of the given repository.
+     *
+     * @param repository    the repository to take a snapshot of
+     * @param prologue      the base IRI and prefixes of the defining script
+     * @param sourceHash    the hash of the defining script
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public RepositorySnapshot(final Repository repository,
+            final Prologue prologue, final byte[] sourceHash) {
+        if (repository == null || prologue == null) {
+            throw new NullPointerException();
+        }
+        this.repository = repository;
+        this.prologue = prologue;
+        this.sourceHash = sourceHash.clone();
+    }
+
+    /**
+     * Returns the repository of this snapshot.
+     *
+     * @return the repository
+     */
+    public Repository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Returns the base IRI and prefixes declared when the repository was
+     * defined.
+     *
+     * @return the prologue of the defining script
+     */
+    public Prologue getPrologue() {
+        return prologue;
+    }
+
+    /**
+     * Returns the hash of the script the repository was defined by.
+     *
+     * @return the hash of the defining script
+     */
+    public byte[] getSourceHash() {
+        return sourceHash.clone();
+    }
+
+    /**
+     * Makes the given parser use the repository and the prefixes of this
+     * snapshot.
+     *
+     * @param parser the parser to configure
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    public void apply(final SPARQLyticsParser parser) {
+        parser.setRepository(repository);
+        Query query = parser.getSession().getQuery();
+        query.getPrefixMapping().setNsPrefixes(prologue.getPrefixMapping());
+        if (prologue.explicitlySetBaseURI()) {
+            query.setBaseURI(prologue.getBaseURI());
+        }
+    }
+
+    /**
+     * Returns the snapshot of the repository defined by the given script. The
+     * snapshot is read from the given file if it was created from the current
+     * contents of the script. Otherwise the script is parsed and the snapshot
+     * file is replaced. A snapshot that cannot be written is logged and
+     * skipped, as the parsed repository is usable anyway.
+     *
+     * @param script    the script defining the repository
+     * @param snapshot  the file storing the snapshot
+     * @return the snapshot of the repository
+     * @throws IOException      if the script cannot be read
+     * @throws ParseException   if the script cannot be parsed
+     * @throws NamingException  if the script selects an unknown repository
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public static RepositorySnapshot load(final File script,
+            final File snapshot)
+            throws IOException, ParseException, NamingException {
+        byte[] hash = hash(script);
+        if (snapshot.isFile()) {
+            try (InputStream in = new FileInputStream(snapshot)) {
+                RepositorySnapshot result = read(in);
+                if (Arrays.equals(hash, result.sourceHash)) {
+                    return result;
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOG.warn("Ignoring unreadable repository snapshot " +
+                        snapshot, ex);
+            }
+        }
+        RepositorySnapshot result = parse(script);
+        try (OutputStream out = new FileOutputStream(snapshot)) {
+            result.write(out);
+        } catch (IOException | IllegalArgumentException ex) {
+            LOG.warn("Cannot write repository snapshot " + snapshot, ex);
+            Files.deleteIfExists(snapshot.toPath());
+        }
+        return result;
+    }
+
+    /**
+     * Parses the given script and takes a snapshot of the repository defined
+     * by it.
+     *
+     * @param script the script defining the repository
+     * @return the snapshot of the defined repository
+     * @throws IOException      if the script cannot be read
+     * @throws ParseException   if the script cannot be parsed
+     * @throws NamingException  if the script selects an unknown repository
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    public static RepositorySnapshot parse(final File script)
+            throws IOException, ParseException, NamingException {
+        MessageDigest digest = createDigest();
+        try (InputStreamReader reader = new InputStreamReader(
+                new DigestInputStream(new BufferedInputStream(
+                        new FileInputStream(script)), digest),
+                StandardCharsets.UTF_8)) {
+            SPARQLyticsParser parser = new SPARQLyticsParser(reader);
+            parser.Start();
+            return new RepositorySnapshot(parser.getRepository(),
+                    parser.getSession().getQuery(), digest.digest());
+        }
+    }
+
+    /**
+     * Computes the hash of the contents of the given script.
+     *
+     * @param script the script to hash
+     * @return the hash of the script
+     * @throws IOException if the script cannot be read
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    public static byte[] hash(final File script) throws IOException {
+        MessageDigest digest = createDigest();
+        digest.update(Files.readAllBytes(script.toPath()));
+        return digest.digest();
+    }
+
+    /**
+     * Helper method for creating a digest for hashing scripts.
+     *
+     * @return a new digest
+     */
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Writes this snapshot to the given stream.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the snapshot cannot be written
+     * @throws IllegalArgumentException if the repository contains a pattern
+     *                                  or expression that cannot be encoded
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    public void write(final OutputStream out) throws IOException {
+        Encoder encoder = new Encoder(new DataOutputStream(
+                new BufferedOutputStream(out)));
+        encoder.out.writeInt(MAGIC);
+        encoder.out.writeInt(VERSION);
+        encoder.out.writeInt(sourceHash.length);
+        encoder.out.write(sourceHash);
+        encoder.writeString(prologue.explicitlySetBaseURI() ?
+                prologue.getBaseURI() : null);
+        Map<String, String> prefixes = new TreeMap<>(
+                prologue.getPrefixMapping().getNsPrefixMap());
+        encoder.out.writeInt(prefixes.size());
+        for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+            encoder.writeString(prefix.getKey());
+            encoder.writeString(prefix.getValue());
+        }
+        List<Dimension> dimensions = sorted(repository.getDimensions());
+        encoder.out.writeInt(dimensions.size());
+        for (Dimension dimension : dimensions) {
+            encoder.writeString(dimension.getName());
+            encoder.writeElement(dimension.getSeedPattern());
+            List<Level> levels = dimension.getLevels();
+            encoder.out.writeInt(levels.size() - 1);
+            for (Level level : levels) {
+                if (level != Level.ALL) {
+                    encoder.writeString(level.getName());
+                    encoder.writeExpr(level.getExpression());
+                }
+            }
+        }
+        List<Measure> measures = sorted(repository.getMeasures());
+        encoder.out.writeInt(measures.size());
+        for (Measure measure : measures) {
+            encoder.writeString(measure.getName());
+            encoder.writeElement(measure.getSeedPattern());
+            encoder.writeExpr(measure.getExpression());
+            encoder.writeString(measure.getAggregationFunction());
+        }
+        List<Cube> cubes = sorted(repository.getCubes());
+        encoder.out.writeInt(cubes.size());
+        for (Cube cube : cubes) {
+            encoder.writeString(cube.getName());
+            encoder.writeElement(cube.getFactPattern());
+            List<Dimension> cubeDimensions = sorted(cube.getDimensions());
+            encoder.out.writeInt(cubeDimensions.size());
+            for (Dimension dimension : cubeDimensions) {
+                encoder.writeString(dimension.getName());
+            }
+            List<Measure> cubeMeasures = sorted(cube.getMeasures());
+            encoder.out.writeInt(cubeMeasures.size());
+            for (Measure measure : cubeMeasures) {
+                encoder.writeString(measure.getName());
+            }
+        }
+        encoder.out.flush();
+    }
+
+    /**
+     * Reads a snapshot from the given stream.
+     *
+     * @param in the stream to read from
+     * @return the read snapshot
+     * @throws IOException if the snapshot cannot be read
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    public static RepositorySnapshot read(final InputStream in)
+            throws IOException {
+        Decoder decoder = new Decoder(new DataInputStream(
+                new BufferedInputStream(in)));
+        if (decoder.in.readInt() != MAGIC) {
+            throw new IOException("Not a repository snapshot");
+        }
+        int version = decoder.in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        byte[] hash = new byte[decoder.in.readInt()];
+        decoder.in.readFully(hash);
+        Prologue prologue = new Prologue();
+        String base = decoder.readString();
+        if (base != null) {
+            prologue.setBaseURI(base);
+        }
+        for (int i = decoder.in.readInt(); i > 0; i--) {
+            prologue.setPrefix(decoder.readString(), decoder.readString());
+        }
+        Map<String, Dimension> dimensions = new HashMap<>();
+        for (int i = decoder.in.readInt(); i > 0; i--) {
+            String name = decoder.readString();
+            Element seedPattern = decoder.readElement();
+            int size = decoder.in.readInt();
+            List<Level> levels = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                levels.add(new Level(decoder.readString(),
+                        decoder.readExpr()));
+            }
+            Dimension dimension = new Dimension(name, seedPattern, levels);
+            dimensions.put(name, dimension);
+        }
+        Map<String, Measure> measures = new HashMap<>();
+        for (int i = decoder.in.readInt(); i > 0; i--) {
+            String name = decoder.readString();
+            Element seedPattern = decoder.readElement();
+            Expr expression = decoder.readExpr();
+            Measure measure = new Measure(name, seedPattern, expression,
+                    decoder.readString());
+            measures.put(name, measure);
+        }
+        Set<Cube> cubes = new HashSet<>();
+        for (int i = decoder.in.readInt(); i > 0; i--) {
+            String name = decoder.readString();
+            Element factPattern = decoder.readElement();
+            Set<Dimension> cubeDimensions = new LinkedHashSet<>();
+            for (int j = decoder.in.readInt(); j > 0; j--) {
+                cubeDimensions.add(lookup(dimensions, decoder.readString()));
+            }
+            Set<Measure> cubeMeasures = new LinkedHashSet<>();
+            for (int j = decoder.in.readInt(); j > 0; j--) {
+                cubeMeasures.add(lookup(measures, decoder.readString()));
+            }
+            cubes.add(new Cube(name, factPattern, cubeDimensions,
+                    cubeMeasures));
+        }
+        return new RepositorySnapshot(new VersionedRepository(cubes,
+                new HashSet<>(dimensions.values()),
+                new HashSet<>(measures.values())), prologue, hash);
+    }
+
+    /**
+     * Helper method for sorting cubes, dimensions or measures by name.
+     *
+     * @param <T>       the type of the objects to sort
+     * @param objects   the objects to sort
+     * @return a new list containing the objects sorted by name
+     */
+    private static <T extends NamedObject> List<T> sorted(
+            final Collection<T> objects) {
+        List<T> result = new ArrayList<>(objects);
+        Collections.sort(result, BY_NAME);
+        return result;
+    }
+
+    /**
+     * Helper method for looking up a dimension or measure referenced by a
+     * cube.
+     *
+     * @param <T>       the type of the object to look up
+     * @param objects   the objects read so far by name
+     * @param name      the name of the object to look up
+     * @return the object with the given name
+     * @throws IOException if there is no object with the given name
+     */
+    private static <T> T lookup(final Map<String, T> objects,
+            final String name) throws IOException {
+        T result = objects.get(name);
+        if (result == null) {
+            throw new IOException("Corrupt snapshot, unknown reference: " +
+                    name);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the constructor for creating instances of the given built-in
+     * function class from their arguments.
+     *
+     * @param type  the class of the built-in function
+     * @param arity the number of arguments
+     * @return the constructor or {@code null} if there is none
+     */
+    private static Constructor<?> findConstructor(final Class<?> type,
+            final int arity) {
+        Constructor<?> constructor = CONSTRUCTORS.get(type);
+        if (constructor == null) {
+            Class<?>[] parameters;
+            if (ExprFunctionN.class.isAssignableFrom(type)) {
+                parameters = new Class<?>[]{ExprList.class};
+            } else if (ExprFunction0.class.isAssignableFrom(type) ||
+                    ExprFunction1.class.isAssignableFrom(type) ||
+                    ExprFunction2.class.isAssignableFrom(type) ||
+                    ExprFunction3.class.isAssignableFrom(type)) {
+                parameters = new Class<?>[arity];
+                Arrays.fill(parameters, Expr.class);
+            } else {
+                return null;
+            }
+            try {
+                constructor = type.getConstructor(parameters);
+            } catch (NoSuchMethodException ex) {
+                return null;
+            }
+            CONSTRUCTORS.put(type, constructor);
+        }
+        return constructor;
+    }
+
+    /**
+     * Encodes patterns, expressions and RDF terms. Strings are written once
+     * and referenced by their number afterwards.
+     */
+    private static final class Encoder {
+        /**
+         * The stream to write to.
+         */
+        final DataOutputStream out;
+
+        /**
+         * The numbers of the strings written so far.
+         */
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        /**
+         * Creates a new encoder writing to the given stream.
+         *
+         * @param out the stream to write to
+         */
+        Encoder(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Writes the given pattern.
+         *
+         * @param element the pattern to write
+         * @throws IOException if the pattern cannot be written
+         */
+        void writeElement(final Element element) throws IOException {
+            if (element instanceof ElementGroup) {
+                List<Element> elements = ((ElementGroup) element).getElements();
+                out.writeByte(GROUP);
+                writeElements(elements);
+            } else if (element instanceof ElementPathBlock) {
+                out.writeByte(PATH_BLOCK);
+                List<TriplePath> paths = ((ElementPathBlock) element).
+                        getPattern().getList();
+                out.writeInt(paths.size());
+                for (TriplePath path : paths) {
+                    writeNode(path.getSubject());
+                    out.writeBoolean(path.isTriple());
+                    if (path.isTriple()) {
+                        writeNode(path.getPredicate());
+                    } else {
+                        writeString(PathWriter.asString(path.getPath()));
+                    }
+                    writeNode(path.getObject());
+                }
+            } else if (element instanceof ElementTriplesBlock) {
+                out.writeByte(TRIPLES_BLOCK);
+                List<Triple> triples = ((ElementTriplesBlock) element).
+                        getPattern().getList();
+                out.writeInt(triples.size());
+                for (Triple triple : triples) {
+                    writeNode(triple.getSubject());
+                    writeNode(triple.getPredicate());
+                    writeNode(triple.getObject());
+                }
+            } else if (element instanceof ElementFilter) {
+                out.writeByte(FILTER);
+                writeExpr(((ElementFilter) element).getExpr());
+            } else if (element instanceof ElementOptional) {
+                out.writeByte(OPTIONAL);
+                writeElement(((ElementOptional) element).getOptionalElement());
+            } else if (element instanceof ElementUnion) {
+                out.writeByte(UNION);
+                writeElements(((ElementUnion) element).getElements());
+            } else if (element instanceof ElementMinus) {
+                out.writeByte(MINUS);
+                writeElement(((ElementMinus) element).getMinusElement());
+            } else if (element instanceof ElementBind) {
+                ElementBind bind = (ElementBind) element;
+                out.writeByte(BIND);
+                writeNode(bind.getVar());
+                writeExpr(bind.getExpr());
+            } else if (element instanceof ElementAssign) {
+                ElementAssign assign = (ElementAssign) element;
+                out.writeByte(ASSIGN);
+                writeNode(assign.getVar());
+                writeExpr(assign.getExpr());
+            } else if (element instanceof ElementNamedGraph) {
+                ElementNamedGraph graph = (ElementNamedGraph) element;
+                out.writeByte(NAMED_GRAPH);
+                writeNode(graph.getGraphNameNode());
+                writeElement(graph.getElement());
+            } else if (element instanceof ElementService) {
+                ElementService service = (ElementService) element;
+                out.writeByte(SERVICE);
+                writeNode(service.getServiceNode());
+                writeElement(service.getElement());
+                out.writeBoolean(service.getSilent());
+            } else if (element instanceof ElementExists) {
+                out.writeByte(EXISTS);
+                writeElement(((ElementExists) element).getElement());
+            } else if (element instanceof ElementNotExists) {
+                out.writeByte(NOT_EXISTS);
+                writeElement(((ElementNotExists) element).getElement());
+            } else if (element instanceof ElementData) {
+                ElementData data = (ElementData) element;
+                out.writeByte(DATA);
+                List<Var> vars = data.getVars();
+                out.writeInt(vars.size());
+                for (Var var : vars) {
+                    writeNode(var);
+                }
+                out.writeInt(data.getRows().size());
+                for (Binding row : data.getRows()) {
+                    for (Var var : vars) {
+                        writeNode(row.get(var));
+                    }
+                }
+            } else {
+                out.writeByte(TEXT);
+                writeString(FormatterElement.asString(element));
+            }
+        }
+
+        /**
+         * Writes the given list of patterns.
+         *
+         * @param elements the patterns to write
+         * @throws IOException if the patterns cannot be written
+         */
+        private void writeElements(final List<Element> elements)
+                throws IOException {
+            out.writeInt(elements.size());
+            for (Element element : elements) {
+                writeElement(element);
+            }
+        }
+
+        /**
+         * Writes the given expression.
+         *
+         * @param expr the expression to write or {@code null}
+         * @throws IOException if the expression cannot be written
+         * @throws IllegalArgumentException if the expression contains an
+         *                                  unsupported aggregation
+         */
+        void writeExpr(final Expr expr) throws IOException {
+            if (expr == null) {
+                out.writeByte(NULL);
+            } else if (expr instanceof ExprAggregator) {
+                ExprAggregator aggregator = (ExprAggregator) expr;
+                out.writeByte(AGGREGATOR);
+                writeString(aggregator.getVar().getVarName());
+                writeAggregator(aggregator.getAggregator());
+            } else if (expr instanceof ExprVar) {
+                out.writeByte(VAR);
+                writeString(((ExprVar) expr).getVarName());
+            } else if (expr instanceof NodeValue) {
+                out.writeByte(CONSTANT);
+                writeNode(((NodeValue) expr).asNode());
+            } else if (expr instanceof E_Exists) {
+                out.writeByte(EXISTS);
+                writeElement(((E_Exists) expr).getElement());
+            } else if (expr instanceof E_NotExists) {
+                out.writeByte(NOT_EXISTS);
+                writeElement(((E_NotExists) expr).getElement());
+            } else if (expr instanceof E_Function) {
+                E_Function function = (E_Function) expr;
+                out.writeByte(FUNCTION);
+                writeString(function.getFunctionIRI());
+                writeExprs(function.getArgs());
+            } else if (expr instanceof ExprFunction && findConstructor(
+                    expr.getClass(), ((ExprFunction) expr).numArgs()) != null) {
+                ExprFunction function = (ExprFunction) expr;
+                out.writeByte(BUILT_IN);
+                writeString(function.getClass().getName());
+                List<Expr> args = new ArrayList<>();
+                for (int i = 1; i <= function.numArgs(); i++) {
+                    args.add(function.getArg(i));
+                }
+                writeExprs(args);
+            } else {
+                out.writeByte(TEXT);
+                writeString(ExprUtils.fmtSPARQL(expr));
+            }
+        }
+
+        /**
+         * Writes the given list of expressions.
+         *
+         * @param exprs the expressions to write
+         * @throws IOException if the expressions cannot be written
+         */
+        private void writeExprs(final List<Expr> exprs) throws IOException {
+            out.writeInt(exprs.size());
+            for (Expr expr : exprs) {
+                writeExpr(expr);
+            }
+        }
+
+        /**
+         * Writes the given aggregation.
+         *
+         * @param aggregator the aggregation to write
+         * @throws IOException if the aggregation cannot be written
+         * @throws IllegalArgumentException if the aggregation is not
+         *                                  supported
+         */
+        private void writeAggregator(final Aggregator aggregator)
+                throws IOException {
+            String name = aggregator.getClass().getSimpleName();
+            if (!name.matches("Agg(Count|CountVar|Sum|Min|Max|Avg|Sample|" +
+                    "GroupConcat)(Distinct)?")) {
+                throw new IllegalArgumentException(
+                        "Unsupported aggregation: " + aggregator);
+            }
+            writeString(name);
+            ExprList exprs = aggregator.getExprList();
+            writeExprs(exprs == null ? Collections.<Expr>emptyList() :
+                    exprs.getList());
+            if (aggregator instanceof AggGroupConcat) {
+                writeString(((AggGroupConcat) aggregator).getSeparator());
+            } else if (aggregator instanceof AggGroupConcatDistinct) {
+                writeString(((AggGroupConcatDistinct) aggregator).
+                        getSeparator());
+            }
+        }
+
+        /**
+         * Writes the given RDF term or variable.
+         *
+         * @param node the RDF term or variable to write or {@code null}
+         * @throws IOException if the node cannot be written
+         * @throws IllegalArgumentException if the node cannot be encoded
+         */
+        void writeNode(final Node node) throws IOException {
+            if (node == null) {
+                out.writeByte(NULL);
+            } else if (node.isVariable()) {
+                out.writeByte(VAR);
+                writeString(node.getName());
+            } else if (node.isURI()) {
+                out.writeByte(URI);
+                writeString(node.getURI());
+            } else if (node.isBlank()) {
+                out.writeByte(BLANK);
+                writeString(node.getBlankNodeLabel());
+            } else if (node.isLiteral()) {
+                out.writeByte(LITERAL);
+                writeString(node.getLiteralLexicalForm());
+                writeString(node.getLiteralLanguage());
+                writeString(node.getLiteralDatatypeURI());
+            } else {
+                throw new IllegalArgumentException("Cannot encode " + node);
+            }
+        }
+
+        /**
+         * Writes the given string, or its number if it was written before.
+         *
+         * @param string the string to write or {@code null}
+         * @throws IOException if the string cannot be written
+         */
+        void writeString(final String string) throws IOException {
+            if (string == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer number = strings.get(string);
+            if (number != null) {
+                out.writeInt(number);
+            } else {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                strings.put(string, strings.size());
+                out.writeInt(-2 - bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Decodes patterns, expressions and RDF terms written by an
+     * {@link Encoder}.
+     */
+    private static final class Decoder {
+        /**
+         * The stream to read from.
+         */
+        final DataInputStream in;
+
+        /**
+         * The strings read so far by number.
+         */
+        private final List<String> strings = new ArrayList<>();
+
+        /**
+         * Creates a new decoder reading from the given stream.
+         *
+         * @param in the stream to read from
+         */
+        Decoder(final DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads a pattern.
+         *
+         * @return the read pattern
+         * @throws IOException if the pattern cannot be read
+         */
+        Element readElement() throws IOException {
+            int tag = in.readByte();
+            switch (tag) {
+                case GROUP:
+                    ElementGroup group = new ElementGroup();
+                    for (Element element : readElements()) {
+                        group.addElement(element);
+                    }
+                    return group;
+                case PATH_BLOCK:
+                    ElementPathBlock block = new ElementPathBlock();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        Node subject = readNode();
+                        if (in.readBoolean()) {
+                            Node predicate = readNode();
+                            block.addTriple(new TriplePath(new Triple(
+                                    subject, predicate, readNode())));
+                        } else {
+                            String path = readString();
+                            block.addTriplePath(new TriplePath(subject,
+                                    PathParser.parse(path, new Prologue()),
+                                    readNode()));
+                        }
+                    }
+                    return block;
+                case TRIPLES_BLOCK:
+                    ElementTriplesBlock triples = new ElementTriplesBlock();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        triples.addTriple(new Triple(readNode(), readNode(),
+                                readNode()));
+                    }
+                    return triples;
+                case FILTER:
+                    return new ElementFilter(readExpr());
+                case OPTIONAL:
+                    return new ElementOptional(readElement());
+                case UNION:
+                    ElementUnion union = new ElementUnion();
+                    for (Element element : readElements()) {
+                        union.addElement(element);
+                    }
+                    return union;
+                case MINUS:
+                    return new ElementMinus(readElement());
+                case BIND:
+                    return new ElementBind((Var) readNode(), readExpr());
+                case ASSIGN:
+                    return new ElementAssign((Var) readNode(), readExpr());
+                case NAMED_GRAPH:
+                    return new ElementNamedGraph(readNode(), readElement());
+                case SERVICE:
+                    return new ElementService(readNode(), readElement(),
+                            in.readBoolean());
+                case EXISTS:
+                    return new ElementExists(readElement());
+                case NOT_EXISTS:
+                    return new ElementNotExists(readElement());
+                case DATA:
+                    ElementData data = new ElementData();
+                    List<Var> vars = new ArrayList<>();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        Var var = (Var) readNode();
+                        vars.add(var);
+                        data.add(var);
+                    }
+                    for (int i = in.readInt(); i > 0; i--) {
+                        BindingMap row = BindingFactory.create();
+                        for (Var var : vars) {
+                            Node node = readNode();
+                            if (node != null) {
+                                row.add(var, node);
+                            }
+                        }
+                        data.add(row);
+                    }
+                    return data;
+                case TEXT:
+                    ElementGroup parsed = (ElementGroup) QueryFactory.create(
+                            "SELECT * WHERE { " + readString() + " }",
+                            Syntax.syntaxARQ).getQueryPattern();
+                    return parsed.getElements().size() == 1 ?
+                            parsed.getElements().get(0) : parsed;
+                default:
+                    throw new IOException("Corrupt snapshot, unknown tag: " +
+                            tag);
+            }
+        }
+
+        /**
+         * Reads a list of patterns.
+         *
+         * @return the read patterns
+         * @throws IOException if the patterns cannot be read
+         */
+        private List<Element> readElements() throws IOException {
+            int size = in.readInt();
+            List<Element> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(readElement());
+            }
+            return result;
+        }
+
+        /**
+         * Reads an expression.
+         *
+         * @return the read expression or {@code null}
+         * @throws IOException if the expression cannot be read
+         */
+        Expr readExpr() throws IOException {
+            int tag = in.readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case AGGREGATOR:
+                    return new ExprAggregator(Var.alloc(readString()),
+                            readAggregator());
+                case VAR:
+                    return new ExprVar(readString());
+                case CONSTANT:
+                    return NodeValue.makeNode(readNode());
+                case EXISTS:
+                    return new E_Exists(readElement());
+                case NOT_EXISTS:
+                    return new E_NotExists(readElement());
+                case FUNCTION:
+                    return new E_Function(readString(),
+                            new ExprList(readExprs()));
+                case BUILT_IN:
+                    String name = readString();
+                    List<Expr> args = readExprs();
+                    try {
+                        Class<?> type = Class.forName(name);
+                        Constructor<?> constructor =
+                                findConstructor(type, args.size());
+                        if (constructor == null) {
+                            throw new IOException("Corrupt snapshot, no " +
+                                    "constructor for function: " + name);
+                        }
+                        return (Expr) (ExprFunctionN.class.isAssignableFrom(type) ?
+                                constructor.newInstance(new ExprList(args)) :
+                                constructor.newInstance(args.toArray()));
+                    } catch (ReflectiveOperationException | ClassCastException ex) {
+                        throw new IOException("Corrupt snapshot, unknown " +
+                                "function: " + name, ex);
+                    }
+                case TEXT:
+                    return ExprUtils.parse(readString());
+                default:
+                    throw new IOException("Corrupt snapshot, unknown tag: " +
+                            tag);
+            }
+        }
+
+        /**
+         * Reads a list of expressions.
+         *
+         * @return the read expressions
+         * @throws IOException if the expressions cannot be read
+         */
+        private List<Expr> readExprs() throws IOException {
+            int size = in.readInt();
+            List<Expr> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(readExpr());
+            }
+            return result;
+        }
+
+        /**
+         * Reads an aggregation.
+         *
+         * @return the read aggregation
+         * @throws IOException if the aggregation cannot be read
+         */
+        private Aggregator readAggregator() throws IOException {
+            String name = readString();
+            List<Expr> exprs = readExprs();
+            boolean distinct = name.endsWith("Distinct");
+            Expr expr = exprs.isEmpty() ? null : exprs.get(0);
+            switch (distinct ?
+                    name.substring(0, name.length() - 8) : name) {
+                case "AggCount":
+                    return AggregatorFactory.createCount(distinct);
+                case "AggCountVar":
+                    return AggregatorFactory.createCountExpr(distinct, expr);
+                case "AggSum":
+                    return AggregatorFactory.createSum(distinct, expr);
+                case "AggMin":
+                    return AggregatorFactory.createMin(distinct, expr);
+                case "AggMax":
+                    return AggregatorFactory.createMax(distinct, expr);
+                case "AggAvg":
+                    return AggregatorFactory.createAvg(distinct, expr);
+                case "AggSample":
+                    return AggregatorFactory.createSample(distinct, expr);
+                case "AggGroupConcat":
+                    return AggregatorFactory.createGroupConcat(distinct, expr,
+                            readString(), null);
+                default:
+                    throw new IOException("Corrupt snapshot, unknown " +
+                            "aggregation: " + name);
+            }
+        }
+
+        /**
+         * Reads an RDF term or variable.
+         *
+         * @return the read node or {@code null}
+         * @throws IOException if the node cannot be read
+         */
+        Node readNode() throws IOException {
+            int tag = in.readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case VAR:
+                    return Var.alloc(readString());
+                case URI:
+                    return NodeFactory.createURI(readString());
+                case BLANK:
+                    return NodeFactory.createBlankNode(readString());
+                case LITERAL:
+                    String lexicalForm = readString();
+                    String language = readString();
+                    String datatype = readString();
+                    if (!language.isEmpty()) {
+                        return NodeFactory.createLiteral(lexicalForm, language);
+                    } else if (datatype == null) {
+                        return NodeFactory.createLiteral(lexicalForm);
+                    }
+                    return NodeFactory.createLiteral(lexicalForm,
+                            TypeMapper.getInstance().getSafeTypeByName(datatype));
+                default:
+                    throw new IOException("Corrupt snapshot, unknown tag: " +
+                            tag);
+            }
+        }
+
+        /**
+         * Reads a string written by {@link Encoder#writeString}.
+         *
+         * @return the read string or {@code null}
+         * @throws IOException if the string cannot be read
+         */
+        String readString() throws IOException {
+            int number = in.readInt();
+            if (number == -1) {
+                return null;
+            } else if (number >= 0) {
+                if (number >= strings.size()) {
+                    throw new IOException("Corrupt snapshot, unknown string: " +
+                            number);
+                }
+                return strings.get(number);
+            }
+            byte[] bytes = new byte[-2 - number];
+            in.readFully(bytes);
+            String string = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+    }
+}
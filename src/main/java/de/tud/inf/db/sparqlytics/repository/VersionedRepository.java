@@ -0,0 +1,294 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.repository;
+
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Mutable repository implementation that can be shared between concurrent
+ * sessions. Every modification creates a new immutable {@link Version}, which
+ * is published atomically, so that reading never blocks. Sessions may keep a
+ * {@link #snapshot() snapshot} to see the same contents for their lifetime,
+ * while the repository is modified concurrently.
+ *
+ * @author Michael Rudolf
+ */
+public class VersionedRepository extends AbstractRepository
+        implements MutableRepository {
+    /**
+     * The current version of this repository.
+     */
+    private final AtomicReference<Version> current;
+
+    /**
+     * Creates a new empty repository.
+     */
+    public VersionedRepository() {
+        this(Collections.<Cube>emptySet(), Collections.<Dimension>emptySet(),
+                Collections.<Measure>emptySet());
+    }
+
+    /**
+     * Creates a new repository initially containing the given cubes,
+     * dimensions and measures.
+     *
+     * @param cubes         the cubes in this repository
+     * @param dimensions    the dimensions in this repository
+     * @param measures      the measures in this repository
+     * @throws NullPointerException if any argument is {@code null}
+     */
+    public VersionedRepository(final Set<Cube> cubes,
+            final Set<Dimension> dimensions, final Set<Measure> measures) {
+        current = new AtomicReference<>(new Version(0,
+                new IndexedRepository(cubes, dimensions, measures)));
+    }
+
+    /**
+     * Returns the current version of this repository, which will not change
+     * even if this repository is modified afterwards.
+     *
+     * @return the current version
+     */
+    public Version snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Returns the number of the current version of this repository. It starts
+     * with zero and is incremented by every modification.
+     *
+     * @return the current version number
+     */
+    public long getVersion() {
+        return current.get().getNumber();
+    }
+
+    @Override
+    public Set<Cube> getCubes() {
+        return current.get().getCubes();
+    }
+
+    @Override
+    public Cube findCube(final String name) {
+        return current.get().findCube(name);
+    }
+
+    @Override
+    public Set<Dimension> getDimensions() {
+        return current.get().getDimensions();
+    }
+
+    @Override
+    public Dimension findDimension(final String name) {
+        return current.get().findDimension(name);
+    }
+
+    @Override
+    public Set<Measure> getMeasures() {
+        return current.get().getMeasures();
+    }
+
+    @Override
+    public Measure findMeasure(final String name) {
+        return current.get().findMeasure(name);
+    }
+
+    @Override
+    public boolean addCube(final Cube cube) {
+        if (cube == null) {
+            throw new NullPointerException();
+        }
+        return update(new Modification() {
+            @Override
+            public IndexedRepository apply(IndexedRepository contents) {
+                return contents.withCube(cube);
+            }
+        });
+    }
+
+    @Override
+    public boolean removeCube(final Cube cube) {
+        return update(new Modification() {
+            @Override
+            public IndexedRepository apply(IndexedRepository contents) {
+                return contents.withoutCube(cube);
+            }
+        });
+    }
+
+    @Override
+    public boolean addDimension(final Dimension dimension) {
+        if (dimension == null) {
+            throw new NullPointerException();
+        }
+        return update(new Modification() {
+            @Override
+            public IndexedRepository apply(IndexedRepository contents) {
+                return contents.withDimension(dimension);
+            }
+        });
+    }
+
+    @Override
+    public boolean removeDimension(final Dimension dimension) {
+        return update(new Modification() {
+            @Override
+            public IndexedRepository apply(IndexedRepository contents) {
+                return contents.withoutDimension(dimension);
+            }
+        });
+    }
+
+    @Override
+    public boolean addMeasure(final Measure measure) {
+        if (measure == null) {
+            throw new NullPointerException();
+        }
+        return update(new Modification() {
+            @Override
+            public IndexedRepository apply(IndexedRepository contents) {
+                return contents.withMeasure(measure);
+            }
+        });
+    }
+
+    @Override
+    public boolean removeMeasure(final Measure measure) {
+        return update(new Modification() {
+            @Override
+            public IndexedRepository apply(IndexedRepository contents) {
+                return contents.withoutMeasure(measure);
+            }
+        });
+    }
+
+    /**
+     * Applies the given modification to the current version and publishes the
+     * result as the next version. If another thread published a version in
+     * the meantime, the modification is applied again to that version.
+     *
+     * @param modification the modification to apply
+     * @return whether the repository has changed
+     */
+    protected boolean update(final Modification modification) {
+        while (true) {
+            Version version = current.get();
+            IndexedRepository contents = modification.apply(
+                    version.getContents());
+            if (contents == null) {
+                return false;
+            }
+            if (current.compareAndSet(version,
+                    new Version(version.getNumber() + 1, contents))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A modification of the contents of the repository.
+     */
+    protected interface Modification {
+        /**
+         * Returns the modified contents, leaving the given contents intact.
+         *
+         * @param contents the contents to modify
+         * @return the modified contents, or {@code null} if the modification
+         *         does not change the contents
+         */
+        IndexedRepository apply(IndexedRepository contents);
+    }
+
+    /**
+     * An immutable version of a versioned repository.
+     */
+    public static final class Version extends AbstractRepository {
+        /**
+         * The number of this version.
+         */
+        private final long number;
+
+        /**
+         * The contents of this version.
+         */
+        private final IndexedRepository contents;
+
+        /**
+         * Creates a new version.
+         *
+         * @param number    the number of the version
+         * @param contents  the contents of the version
+         */
+        Version(final long number, final IndexedRepository contents) {
+            this.number = number;
+            this.contents = contents;
+        }
+
+        /**
+         * Returns the number of this version.
+         *
+         * @return the version number
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * Returns the contents of this version.
+         *
+         * @return the contents
+         */
+        IndexedRepository getContents() {
+            return contents;
+        }
+
+        @Override
+        public Set<Cube> getCubes() {
+            return contents.getCubes();
+        }
+
+        @Override
+        public Cube findCube(final String name) {
+            return contents.findCube(name);
+        }
+
+        @Override
+        public Set<Dimension> getDimensions() {
+            return contents.getDimensions();
+        }
+
+        @Override
+        public Dimension findDimension(final String name) {
+            return contents.findDimension(name);
+        }
+
+        @Override
+        public Set<Measure> getMeasures() {
+            return contents.getMeasures();
+        }
+
+        @Override
+        public Measure findMeasure(final String name) {
+            return contents.findMeasure(name);
+        }
+    }
+}
@@ -0,0 +1,704 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.server;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.io.ResultCoalescer;
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.olap.ExecutionStrategy;
+import de.tud.inf.db.sparqlytics.parser.ParseException;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import de.tud.inf.db.sparqlytics.parser.TokenMgrError;
+import de.tud.inf.db.sparqlytics.repository.FixedRepository;
+import de.tud.inf.db.sparqlytics.repository.Repository;
+import de.tud.inf.db.sparqlytics.repository.RepositorySnapshot;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.naming.NamingException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.SystemDefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.jena.atlas.io.IO;
+import org.apache.jena.riot.web.HttpOp;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+
+/**
+ * Runs the SPARQLytics statements of many users in a single process, using
+ * the HTTP server built into the JDK. Statements are posted to
+ * {@code /sessions/<id>}, where the identifier denotes an analytical session,
+ * and the results they compute are returned in the response body. Deleting
+ * {@code /sessions/<id>} closes the session. Sessions that have been idle for
+ * longer than the session timeout are closed when further sessions are
+ * created, and no further sessions are created while the maximum number of
+ * sessions is open.
+ * <p>
+ * Requests are handled by a fixed pool of worker threads. Every session has
+ * its own parser with its own cube, granularity, filters, prefixes and
+ * history, and the statements of a session are run one request after the
+ * other. The repository, the execution strategies together with the data they
+ * cache, the results of identical SELECT queries sent at the same time, and
+ * the pool of connections to the SPARQL endpoints are shared between all
+ * sessions. The repository is defined before the server is started and cannot
+ * be modified or replaced by the statements of a session.
+ * <p>
+ * The server does not authenticate its clients. Everybody who can reach it
+ * may create sessions and use any session whose identifier is known, so it
+ * should only be reachable from trusted networks.
+ *
+ * @author Michael Rudolf
+ */
+public class Server implements AutoCloseable {
+    /**
+     * The path below which the sessions are addressed.
+     */
+    public static final String CONTEXT = "/sessions/";
+
+    /**
+     * The number of connections to SPARQL endpoints pooled per worker
+     * thread, which accounts for strategies issuing several queries at once.
+     */
+    public static final int CONNECTIONS_PER_WORKER = 4;
+
+    /**
+     * The default maximum number of open sessions.
+     */
+    public static final int DEFAULT_MAX_SESSIONS = 1000;
+
+    /**
+     * The default time in minutes after which idle sessions are closed.
+     */
+    public static final long DEFAULT_SESSION_TIMEOUT = 30;
+
+    /**
+     * The HTTP server accepting requests.
+     */
+    private final HttpServer server;
+
+    /**
+     * The worker threads handling requests.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The number of worker threads.
+     */
+    private final int threads;
+
+    /**
+     * The open sessions by identifier.
+     */
+    private final ConcurrentMap<String, RemoteSession> sessions =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The execution strategies selected by name, shared by all sessions.
+     */
+    private final Map<String, ExecutionStrategy> executionStrategies =
+            new HashMap<>();
+
+    /**
+     * The read-only repository shared by all sessions.
+     */
+    private Repository repository = new FixedRepository(
+            Collections.<Cube>emptySet(), Collections.<Dimension>emptySet(),
+            Collections.<Measure>emptySet());
+
+    /**
+     * The snapshot providing the repository and the prefixes of new sessions
+     * or {@code null}.
+     */
+    private RepositorySnapshot snapshot;
+
+    /**
+     * The execution strategy of new sessions.
+     */
+    private ExecutionStrategy executionStrategy;
+
+    /**
+     * The results format of new sessions.
+     */
+    private ResultsFormat resultsFormat;
+
+    /**
+     * Lets the sessions share the results of identical SELECT queries.
+     */
+    private ResultCoalescer resultCoalescer = new ResultCoalescer();
+
+    /**
+     * The maximum number of open sessions.
+     */
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
+
+    /**
+     * The time in nanoseconds after which idle sessions are closed.
+     */
+    private long sessionTimeout =
+            TimeUnit.MINUTES.toNanos(DEFAULT_SESSION_TIMEOUT);
+
+    /**
+     * The HTTP client sending queries to SPARQL endpoints while the server is
+     * running or {@code null}.
+     */
+    private HttpClient httpClient;
+
+    /**
+     * The HTTP client used before the server was started.
+     */
+    private HttpClient previousHttpClient;
+
+    /**
+     * Released when the server is closed.
+     */
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    /**
+     * Creates a new server listening at the given address, which handles
+     * requests with the given number of worker threads.
+     *
+     * @param address the address to listen at
+     * @param threads the number of worker threads
+     * @throws IOException if the address cannot be bound
+     * @throws IllegalArgumentException if the number of threads is not
+     *                                  positive
+     * @throws NullPointerException if the address is {@code null}
+     */
+    public Server(final InetSocketAddress address, final int threads)
+            throws IOException {
+        if (address == null) {
+            throw new NullPointerException();
+        } else if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Non-positive number of threads: " + threads);
+        }
+        this.threads = threads;
+        server = HttpServer.create(address, 0);
+        workers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(workers);
+        server.createContext(CONTEXT, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange)
+                    throws IOException {
+                try {
+                    answer(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the address the server is listening at.
+     *
+     * @return the bound address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Returns the URL below which the sessions are addressed.
+     *
+     * @return the URL to append session identifiers to
+     */
+    public String getURL() {
+        InetSocketAddress address = getAddress();
+        return "http://" + address.getHostString() + ':' + address.getPort() +
+                CONTEXT;
+    }
+
+    /**
+     * Sets the snapshot providing the repository and the prefixes of the
+     * sessions created afterwards. The sessions share a read-only copy of the
+     * repository.
+     *
+     * @param snapshot the snapshot to apply to new sessions
+     * @throws NullPointerException if the parameter is {@code null}
+     */
+    public void setSnapshot(final RepositorySnapshot snapshot) {
+        if (snapshot == null) {
+            throw new NullPointerException();
+        }
+        Repository source = snapshot.getRepository();
+        repository = new FixedRepository(source.getCubes(),
+                source.getDimensions(), source.getMeasures());
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Sets the maximum number of open sessions, beyond which requests for
+     * further sessions are refused.
+     *
+     * @param maxSessions the maximum number of open sessions
+     * @throws IllegalArgumentException if the maximum is not positive
+     */
+    public void setMaxSessions(final int maxSessions) {
+        if (maxSessions <= 0) {
+            throw new IllegalArgumentException(
+                    "Non-positive maximum number of sessions: " + maxSessions);
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Sets the time after which idle sessions are closed.
+     *
+     * @param timeout   the time since the last request of a session
+     * @param unit      the unit of the time
+     * @throws IllegalArgumentException if the time is not positive
+     * @throws NullPointerException if the unit is {@code null}
+     */
+    public void setSessionTimeout(final long timeout, final TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException(
+                    "Non-positive session timeout: " + timeout);
+        }
+        sessionTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * Sets the execution strategy of the sessions created afterwards.
+     *
+     * @param executionStrategy the strategy or {@code null} for sending a
+     *                          single query to the SPARQL endpoint
+     */
+    public void setExecutionStrategy(
+            final ExecutionStrategy executionStrategy) {
+        this.executionStrategy = executionStrategy;
+    }
+
+    /**
+     * Sets the results format of the sessions created afterwards.
+     *
+     * @param resultsFormat the results format or {@code null} for the
+     *                      default format
+     */
+    public void setResultsFormat(final ResultsFormat resultsFormat) {
+        this.resultsFormat = resultsFormat;
+    }
+
+    /**
+     * Sets the number of rows up to which the sessions created afterwards may
+     * share the result of a SELECT query sent by another session. Every
+     * shared result is buffered up to this number of rows.
+     *
+     * @param limit the number of rows or zero for sharing only the results
+     *              of which no row has been received yet
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    public void setCoalescingLimit(final int limit) {
+        resultCoalescer = new ResultCoalescer(limit);
+    }
+
+    /**
+     * Starts accepting requests. Queries to SPARQL endpoints are sent through
+     * a pooled HTTP client from now on, which keeps the connections open
+     * across the requests of all sessions.
+     */
+    public void start() {
+        final int connections = threads * CONNECTIONS_PER_WORKER;
+        httpClient = new SystemDefaultHttpClient() {
+            @Override
+            protected ClientConnectionManager createClientConnectionManager() {
+                PoolingClientConnectionManager manager =
+                        new PoolingClientConnectionManager(
+                                SchemeRegistryFactory.createSystemDefault());
+                manager.setMaxTotal(connections);
+                manager.setDefaultMaxPerRoute(connections);
+                return manager;
+            }
+        };
+        previousHttpClient = HttpOp.getDefaultHttpClient();
+        HttpOp.setDefaultHttpClient(httpClient);
+        server.start();
+    }
+
+    /**
+     * Waits until the server has been closed.
+     *
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public void awaitClose() throws InterruptedException {
+        closed.await();
+    }
+
+    /**
+     * Returns the number of open sessions.
+     *
+     * @return the number of open sessions
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Handles the given exchange by running the posted statements in the
+     * addressed session or by closing it.
+     *
+     * @param exchange the HTTP exchange to answer
+     * @throws IOException if an error occurs while communicating
+     */
+    protected void answer(final HttpExchange exchange) throws IOException {
+        String id = exchange.getRequestURI().getPath().substring(
+                CONTEXT.length());
+        if (id.isEmpty() || id.indexOf('/') >= 0) {
+            send(exchange, 404, "Not a session: " + id);
+            return;
+        }
+        switch (exchange.getRequestMethod()) {
+            case "POST":
+                String statements;
+                try (InputStream in = exchange.getRequestBody()) {
+                    statements = IO.readWholeFileAsUTF8(in);
+                }
+                RemoteSession session;
+                byte[] result;
+                Timer.Context time = Main.METRICS.timer(MetricRegistry.name(
+                        Server.class, "request")).time();
+                try {
+                    do {
+                        session = openSession(id);
+                        if (session == null) {
+                            send(exchange, 503, "Too many sessions");
+                            return;
+                        }
+                        //Retry with a new session if it has just been closed
+                        result = session.execute(statements);
+                    } while (result == null);
+                } catch (ParseException | NamingException | TokenMgrError |
+                        RuntimeException ex) {
+                    send(exchange, 400, ex.getLocalizedMessage() == null ?
+                            ex.toString() : ex.getLocalizedMessage());
+                    return;
+                } finally {
+                    time.stop();
+                }
+                exchange.getResponseHeaders().set("Content-Type",
+                        getContentType(session));
+                exchange.sendResponseHeaders(200, result.length == 0 ? -1 :
+                        result.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(result);
+                }
+                break;
+            case "DELETE":
+                if (closeSession(id)) {
+                    exchange.sendResponseHeaders(204, -1);
+                } else {
+                    send(exchange, 404, "Unknown session: " + id);
+                }
+                break;
+            default:
+                exchange.getResponseHeaders().set("Allow", "POST, DELETE");
+                send(exchange, 405, "Unsupported method: " +
+                        exchange.getRequestMethod());
+        }
+    }
+
+    /**
+     * Helper method for sending a plain text response.
+     *
+     * @param exchange the HTTP exchange to answer
+     * @param status   the status code of the response
+     * @param message  the body of the response
+     * @throws IOException if an error occurs while communicating
+     */
+    private static void send(final HttpExchange exchange, final int status,
+            final String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Helper method for determining the content type of the results written
+     * by the given session.
+     *
+     * @param session the session that wrote the results
+     * @return the content type of the response
+     */
+    private static String getContentType(final RemoteSession session) {
+        return Session.getOutputLang(session.parser.getSession().
+                getResultsFormat()).getContentType().getContentType() +
+                "; charset=utf-8";
+    }
+
+    /**
+     * Returns the session with the given identifier, which is created if it
+     * does not exist yet. Before creating a session, the sessions that have
+     * been idle for longer than the session timeout are closed.
+     *
+     * @param id the identifier of the session
+     * @return the session with the given identifier or {@code null} if the
+     *         maximum number of sessions is open
+     * @throws IOException if an idle session cannot be closed
+     */
+    protected RemoteSession openSession(final String id) throws IOException {
+        RemoteSession session = sessions.get(id);
+        if (session != null) {
+            return session;
+        }
+        synchronized (sessions) {
+            session = sessions.get(id);
+            if (session == null) {
+                closeIdleSessions();
+                if (sessions.size() >= maxSessions) {
+                    return null;
+                }
+                session = createSession();
+                sessions.put(id, session);
+                getSessionCounter().inc();
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Helper method for creating a session whose parser uses the shared
+     * repository, execution strategies and result coalescer.
+     *
+     * @return the created session
+     */
+    private RemoteSession createSession() {
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(""));
+        parser.setExecutionStrategies(executionStrategies);
+        if (snapshot != null) {
+            snapshot.apply(parser);
+        }
+        parser.setRepository(repository);
+        parser.setRepositoryLocked(true);
+        Session state = parser.getSession();
+        state.setExecutionStrategy(executionStrategy);
+        state.setResultsFormat(resultsFormat);
+        state.setResultCoalescer(resultCoalescer);
+        return new RemoteSession(parser);
+    }
+
+    /**
+     * Helper method for closing and removing the sessions that have been idle
+     * for longer than the session timeout. Sessions running a request are
+     * skipped.
+     *
+     * @throws IOException if a session cannot be closed
+     */
+    private void closeIdleSessions() throws IOException {
+        long deadline = System.nanoTime() - sessionTimeout;
+        for (Map.Entry<String, RemoteSession> entry : sessions.entrySet()) {
+            RemoteSession session = entry.getValue();
+            if (session.closeIfIdleSince(deadline) &&
+                    sessions.remove(entry.getKey(), session)) {
+                getSessionCounter().dec();
+            }
+        }
+    }
+
+    /**
+     * Closes and removes the session with the given identifier, waiting for
+     * its running request to finish.
+     *
+     * @param id the identifier of the session
+     * @return whether the session existed
+     * @throws IOException if the session cannot be closed
+     */
+    protected boolean closeSession(final String id) throws IOException {
+        RemoteSession session = sessions.remove(id);
+        if (session == null) {
+            return false;
+        }
+        getSessionCounter().dec();
+        session.close();
+        return true;
+    }
+
+    /**
+     * Helper method for looking up the counter of open sessions.
+     *
+     * @return the counter of open sessions
+     */
+    private static Counter getSessionCounter() {
+        return Main.METRICS.counter(MetricRegistry.name(Server.class,
+                "sessions"));
+    }
+
+    /**
+     * Stops accepting requests, closes all sessions and restores the HTTP
+     * client used before the server was started.
+     *
+     * @throws IOException if a session cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        server.stop(0);
+        workers.shutdown();
+        try {
+            for (String id : sessions.keySet()) {
+                closeSession(id);
+            }
+        } finally {
+            if (httpClient != null) {
+                if (HttpOp.getDefaultHttpClient() == httpClient) {
+                    HttpOp.setDefaultHttpClient(previousHttpClient);
+                }
+                httpClient.getConnectionManager().shutdown();
+                httpClient = null;
+            }
+            closed.countDown();
+        }
+    }
+
+    /**
+     * A session of the server, which runs the statements of one request at a
+     * time.
+     */
+    protected static class RemoteSession {
+        /**
+         * Parses and executes the statements of this session.
+         */
+        private final SPARQLyticsParser parser;
+
+        /**
+         * Guards the parser and the state of this session.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * The time in nanoseconds at which the last request of this session
+         * finished, or at which this session was created.
+         */
+        private long lastAccess = System.nanoTime();
+
+        /**
+         * Indicates whether this session has been closed.
+         */
+        private boolean closed;
+
+        /**
+         * Creates a new session using the given parser.
+         *
+         * @param parser the parser to parse and execute statements with
+         */
+        public RemoteSession(final SPARQLyticsParser parser) {
+            this.parser = parser;
+        }
+
+        /**
+         * Parses and executes the given statements, collecting their results.
+         * Statements preceding an erroneous statement remain in effect.
+         *
+         * @param statements the statements to execute
+         * @return the results written by the statements or {@code null} if
+         *         this session has been closed
+         * @throws ParseException if the statements cannot be parsed
+         * @throws NamingException if a repository cannot be looked up
+         */
+        public byte[] execute(final String statements)
+                throws ParseException, NamingException {
+            lock.lock();
+            try {
+                if (closed) {
+                    return null;
+                }
+                ByteArrayOutputStream console = new ByteArrayOutputStream();
+                Session session = parser.getSession();
+                session.setConsole(console);
+                try {
+                    parser.ReInit(new StringReader(statements));
+                    parser.Start();
+                } finally {
+                    session.setConsole(null);
+                    lastAccess = System.nanoTime();
+                }
+                return console.toByteArray();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Closes this session if it is not running a request and has not
+         * been used since the given time.
+         *
+         * @param deadline the time in nanoseconds before which the last
+         *                 request must have finished
+         * @return whether this session has been closed
+         * @throws IOException if the session cannot be closed
+         */
+        public boolean closeIfIdleSince(final long deadline)
+                throws IOException {
+            if (!lock.tryLock()) {
+                return false;
+            }
+            try {
+                if (closed || lastAccess - deadline > 0) {
+                    return false;
+                }
+                closed = true;
+                parser.getSession().close();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Closes this session after its running request has finished.
+         *
+         * @throws IOException if the session cannot be closed
+         */
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                if (!closed) {
+                    closed = true;
+                    parser.getSession().close();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -114,6 +114,28 @@ public abstract class ITBase {
      */
     protected void testIsomorphism(Lang lang, URL testCase, URL expected)
             throws IOException {
+        testIsomorphism(lang, testCase, expected, new String[0]);
+    }
+
+    /**
+     * Tests whether the given test input prepended with the test fixture
+     * produces an output that is isomorphic to the given output when run with
+     * the given additional command line arguments.
+     *
+     * @param lang      the language to use for formatting the models in the
+     *                  error message
+     * @param testCase  the test input to use (after prepending it with the test
+     *                  fixture)
+     * @param expected  the expected test output, to which the actual output has
+     *                  to be isomorphic
+     * @param arguments additional command line arguments
+     * @throws IOException  if an exception occurs when reading the test input,
+     *                      the test fixture or the expected output or when
+     *                      writing the test output
+     * @throws NullPointerException if any of the arguments is {@code null}
+     */
+    protected void testIsomorphism(Lang lang, URL testCase, URL expected,
+            String... arguments) throws IOException {
         try (TemporaryFile output = createTempFile("sparqlytics-output-",
                     "." + lang.getFileExtensions().get(0));
                 TemporaryFile input = createTempFile("sparqlytics-input-", ".sparqlytics")) {
@@ -121,10 +143,14 @@ public abstract class ITBase {
                     fixture.openStream(), testCase.openStream())) {
                 Files.copy(in, input.getPath(), StandardCopyOption.REPLACE_EXISTING);
             }
-            Main.main(new String[]{
-                "-input", input.getPath().toString(),
-                "-output", output.getPath().toString(), "-debug"
-            });
+            String[] args = new String[5 + arguments.length];
+            args[0] = "-input";
+            args[1] = input.getPath().toString();
+            args[2] = "-output";
+            args[3] = output.getPath().toString();
+            args[4] = "-debug";
+            System.arraycopy(arguments, 0, args, 5, arguments.length);
+            Main.main(args);
             try (ModelGuard expectedModel = loadModel(expected.getPath());
                     ModelGuard resultModel = loadModel(output.getPath().toString())) {
                 assertIsomorphic(lang, expectedModel.getModel(), resultModel.getModel());
@@ -0,0 +1,238 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.query.Dataset;
+import org.apache.jena.query.DatasetFactory;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.query.Syntax;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+
+/**
+ * Helper class for tests. Serves an in-memory dataset over the SPARQL protocol
+ * using the HTTP server built into the JDK, so that computations can be tested
+ * without an external SPARQL endpoint.
+ *
+ * @author Michael Rudolf
+ */
+public class LocalEndpoint implements AutoCloseable {
+    /**
+     * The dataset to evaluate queries against.
+     */
+    private final Dataset dataset;
+
+    /**
+     * The HTTP server accepting requests.
+     */
+    private final HttpServer server;
+
+    /**
+     * Counts the queries received by this endpoint.
+     */
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Creates and starts a new endpoint serving the RDF data at the given URI.
+     *
+     * @param uri the URI to load the RDF data from
+     * @throws IOException if the server cannot be started
+     */
+    public LocalEndpoint(String uri) throws IOException {
+        dataset = DatasetFactory.create(RDFDataMgr.loadModel(uri));
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    answer(exchange);
+                } catch (RuntimeException ex) {
+                    byte[] message = String.valueOf(ex.getMessage()).
+                            getBytes(StandardCharsets.UTF_8);
+                    exchange.sendResponseHeaders(400, message.length);
+                    exchange.getResponseBody().write(message);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Creates and starts a new endpoint serving the data used by the
+     * integration tests.
+     *
+     * @return the started endpoint
+     * @throws IOException if the server cannot be started
+     */
+    public static LocalEndpoint forTestData() throws IOException {
+        return new LocalEndpoint(LocalEndpoint.class.getResource(
+                "/fuseki-base/configuration/data/test.ttl").toString());
+    }
+
+    /**
+     * Returns the URL of the SPARQL query service.
+     *
+     * @return the URL to send queries to
+     */
+    public String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/query";
+    }
+
+    /**
+     * Copies the given test fixture to a temporary file, replacing the SPARQL
+     * endpoint of the integration tests with this endpoint.
+     *
+     * @param fixture the test fixture to copy
+     * @return the URL of the copied test fixture
+     * @throws IOException if the test fixture cannot be copied
+     */
+    public URL createFixture(URL fixture) throws IOException {
+        String contents;
+        try (InputStream in = fixture.openStream()) {
+            contents = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        Path copy = Files.createTempFile("sparqlytics-fixture-", ".sparqlytics");
+        copy.toFile().deleteOnExit();
+        Files.write(copy, contents.replaceAll(
+                "<http://localhost:[^/>]*/jena-fuseki-war/sparqlytics/query>",
+                "<" + getURL() + ">").getBytes(StandardCharsets.UTF_8));
+        return copy.toUri().toURL();
+    }
+
+    /**
+     * Returns the number of queries received so far.
+     *
+     * @return the number of received queries
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Evaluates the query contained in the given exchange and sends the result
+     * in the first acceptable format.
+     *
+     * @param exchange the HTTP exchange to answer
+     * @throws IOException if an error occurs while communicating
+     */
+    private void answer(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String parameters = exchange.getRequestURI().getRawQuery();
+        if ("POST".equals(exchange.getRequestMethod())) {
+            try (InputStream in = exchange.getRequestBody()) {
+                parameters = IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+        }
+        String queryString = null;
+        for (String parameter : parameters.split("&")) {
+            if (parameter.startsWith("query=")) {
+                queryString = URLDecoder.decode(parameter.substring(6), "UTF-8");
+            }
+        }
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        if (accept == null) {
+            accept = "";
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        String contentType;
+        try (QueryExecution exec = QueryExecutionFactory.create(
+                QueryFactory.create(queryString, Syntax.syntaxSPARQL_11), dataset)) {
+            if (exec.getQuery().isConstructType()) {
+                Model model = exec.execConstruct();
+                if (accept.contains(WebContent.contentTypeTurtle)) {
+                    contentType = WebContent.contentTypeTurtle;
+                    RDFDataMgr.write(buffer, model, Lang.TURTLE);
+                } else {
+                    contentType = WebContent.contentTypeRDFXML;
+                    RDFDataMgr.write(buffer, model, Lang.RDFXML);
+                }
+            } else {
+                contentType = selectContentType(accept);
+                ResultsFormat format;
+                switch (contentType) {
+                    case WebContent.contentTypeTextTSV:
+                        format = ResultsFormat.FMT_RS_TSV;
+                        break;
+                    case WebContent.contentTypeTextCSV:
+                        format = ResultsFormat.FMT_RS_CSV;
+                        break;
+                    case WebContent.contentTypeResultsJSON:
+                        format = ResultsFormat.FMT_RS_JSON;
+                        break;
+                    default:
+                        format = ResultsFormat.FMT_RS_XML;
+                }
+                ResultSetFormatter.output(buffer, exec.execSelect(), format);
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(200, buffer.size());
+        try (OutputStream out = exchange.getResponseBody()) {
+            buffer.writeTo(out);
+        }
+    }
+
+    /**
+     * Picks the first supported SPARQL results content type from the given
+     * accept header.
+     *
+     * @param accept the value of the accept header
+     * @return the content type to answer with
+     */
+    private static String selectContentType(String accept) {
+        for (String range : accept.split(",")) {
+            String type = range.split(";")[0].trim();
+            switch (type) {
+                case WebContent.contentTypeTextTSV:
+                case WebContent.contentTypeTextCSV:
+                case WebContent.contentTypeResultsJSON:
+                case WebContent.contentTypeResultsXML:
+                    return type;
+            }
+        }
+        return WebContent.contentTypeResultsXML;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -17,13 +17,17 @@
 package de.tud.inf.db.sparqlytics.bench;
 
 import com.codahale.metrics.Slf4jReporter;
+import de.tud.inf.db.sparqlytics.Main;
 import de.tud.inf.db.sparqlytics.model.Cube;
 import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.model.SessionState;
+import de.tud.inf.db.sparqlytics.olap.Script;
 import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
 import de.tud.inf.db.sparqlytics.repository.Repository;
-import java.io.InputStreamReader;
+import de.tud.inf.db.sparqlytics.repository.RepositorySnapshot;
+import java.io.File;
+import java.io.IOException;
 import java.io.StringReader;
-import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -32,6 +36,9 @@ import java.util.Properties;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import org.apache.commons.lang3.text.StrSubstitutor;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.util.FileUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -42,12 +49,25 @@ import org.junit.runners.MethodSorters;
 
 /**
  * Benchmarks the execution of SPARQLytics using the LDBC Social Network
- * Benchmark dataset.
+ * Benchmark dataset. Every query is compiled into a script, which is then
+ * executed with the values of its parameters.
  *
  * @author Michael Rudolf
  */
 @RunWith(BenchmarkRunner.class) @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class LDBCBenchmark extends RandomBenchmarkBase  {
+    /**
+     * The countries for which a compiled query is executed repeatedly.
+     */
+    private static final String[] COUNTRIES = {
+        "http://dbpedia.org/resource/Germany",
+        "http://dbpedia.org/resource/Italy",
+        "http://dbpedia.org/resource/France",
+        "http://dbpedia.org/resource/Spain",
+        "http://dbpedia.org/resource/China",
+        "http://dbpedia.org/resource/India"
+    };
+    
     private final Map<String, String> globalVariables;
     
     public LDBCBenchmark() {
@@ -60,11 +80,11 @@ public class LDBCBenchmark extends RandomBenchmarkBase  {
     
     @BeforeClass
     public static void bindRepository() throws Exception {
-        SPARQLyticsParser parser = new SPARQLyticsParser(new InputStreamReader(
-                LDBCBenchmark.class.getResourceAsStream(
-                        "ldbc-snb-bi-repository.sparqlytics"), StandardCharsets.UTF_8));
-        parser.Start();
-        Repository repository = parser.getRepository();
+        //Parse the repository only if its snapshot is out of date
+        File script = new File(LDBCBenchmark.class.getResource(
+                "ldbc-snb-bi-repository.sparqlytics").toURI());
+        Repository repository = RepositorySnapshot.load(script,
+                Main.getSnapshotFile(script)).getRepository();
         Slf4jReporter.forRegistry(repository.getStatistics())
                 .withLoggingLevel(Slf4jReporter.LoggingLevel.INFO)
                 .prefixedWith("before:")
@@ -86,109 +106,181 @@ public class LDBCBenchmark extends RandomBenchmarkBase  {
     
     @Test
     public void testQ01() throws Exception {
-        test("01", Collections.singletonMap("date", "2014-01-01"));
+        test("01", Collections.<String, String>emptyMap(),
+                Collections.singletonMap("date", date("2014-01-01")));
     }
     
     @Test
     public void testQ02() throws Exception {
-        Map<String, String> variables = new HashMap<>();
-        variables.put("country1", "http://dbpedia.org/resources/Germany");
-        variables.put("country2", "http://dbpedia.org/resources/Italy");
-        test("02", variables);
+        Map<String, Node> parameters = new HashMap<>();
+        parameters.put("country1", uri("http://dbpedia.org/resources/Germany"));
+        parameters.put("country2", uri("http://dbpedia.org/resources/Italy"));
+        test("02", Collections.<String, String>emptyMap(), parameters);
     }
     
     @Test
     public void testQ03() throws Exception {
-        Map<String, String> variables = new HashMap<>();
-        variables.put("year", "2012");
-        variables.put("month", "5");
-        test("03", variables);
+        Map<String, Node> parameters = new HashMap<>();
+        parameters.put("year", integer(2012));
+        parameters.put("month", integer(5));
+        test("03", Collections.<String, String>emptyMap(), parameters);
     }
     
     @Test
     public void testQ04() throws Exception {
-        Map<String, String> variables = new HashMap<>();
-        variables.put("tagClass", "http://dbpedia.org/resource/Company");
-        variables.put("country", "http://dbpedia.org/resource/Germany");
-        test("04", variables);
+        Map<String, Node> parameters = new HashMap<>();
+        parameters.put("tagClass", uri("http://dbpedia.org/resource/Company"));
+        parameters.put("country", uri("http://dbpedia.org/resource/Germany"));
+        test("04", Collections.<String, String>emptyMap(), parameters);
+    }
+    
+    @Test
+    public void testQ04Repeatedly() throws Exception {
+        //Compile the query once and execute it for every country
+        SPARQLyticsParser parser = createParser("ldbc-snb-bi-q04.sparqlytics",
+                Collections.<String, String>emptyMap());
+        Script script = parser.compile();
+        Session session = parser.getSession();
+        SessionState initial = session.getState();
+        Map<String, Node> parameters = new HashMap<>();
+        parameters.put("tagClass", uri("http://dbpedia.org/resource/Company"));
+        for (String country : COUNTRIES) {
+            session.setState(initial);
+            parameters.put("country", uri(country));
+            script.execute(session, parameters);
+        }
     }
     
     @Test
     public void testQ05() throws Exception {
         test("05", Collections.singletonMap("country",
-                "http://dbpedia.org/resource/Germany"));
+                "http://dbpedia.org/resource/Germany"),
+                Collections.<String, Node>emptyMap());
     }
     
     @Test
     public void testQ08() throws Exception {
         test("08", Collections.singletonMap("tag",
-                "http://dbpedia.org/resource/Germany"));
+                "http://dbpedia.org/resource/Germany"),
+                Collections.<String, Node>emptyMap());
     }
     
     @Test
     public void testQ11() throws Exception {
-        Map<String, String> variables = new HashMap<>();
-        variables.put("country", "http://dbpedia.org/resource/Germany");
-        variables.put("blacklist", "idiot|loser");
-        test("11", variables);
+        test("11", Collections.singletonMap("blacklist", "idiot|loser"),
+                Collections.singletonMap("country",
+                        uri("http://dbpedia.org/resource/Germany")));
     }
     
     @Test
     public void testQ12() throws Exception {
-        test("12", Collections.singletonMap("date", "2013-01-01"));
+        test("12", Collections.<String, String>emptyMap(),
+                Collections.singletonMap("date", date("2013-01-01")));
     }
     
     @Test
     public void testQ19() throws Exception {
         Map<String, String> variables = new HashMap<>();
-        variables.put("date", "1983-05-11");
         variables.put("tagClass1", "http://dbpedia.org/resource/Film");
         variables.put("tagClass2", "http://dbpedia.org/resource/Album");
-        test("19", variables);
+        test("19", variables,
+                Collections.singletonMap("date", date("1983-05-11")));
     }
     
     @Test
     public void testQ20() throws Exception {
-        test("20", Collections.EMPTY_MAP);
+        test("20", Collections.<String, String>emptyMap(),
+                Collections.<String, Node>emptyMap());
     }
     
     @Test
     public void testQ23() throws Exception {
-        test("23", Collections.singletonMap("country",
-                "http://dbpedia.org/resource/Germany"));
+        String country = "http://dbpedia.org/resource/Germany";
+        test("23", Collections.singletonMap("country", country),
+                Collections.singletonMap("country", uri(country)));
     }
     
     @Test
     public void testQ24() throws Exception {
         test("24", Collections.singletonMap("tagClass",
-                "http://dbpedia.org/resource/Company"));
+                "http://dbpedia.org/resource/Company"),
+                Collections.<String, Node>emptyMap());
+    }
+    
+    /**
+     * Compiles the query with the given number and executes it once.
+     *
+     * @param number        the number of the query
+     * @param variables     the values of the variables that are substituted
+     *                      in the text of the query, such as in definitions
+     * @param parameters    the RDF terms to bind the parameters of the query
+     *                      to by name
+     */
+    protected void test(String number, Map<String, String> variables,
+            Map<String, Node> parameters) throws Exception {
+        SPARQLyticsParser parser = createParser("ldbc-snb-bi-q" + number +
+                ".sparqlytics", variables);
+        Script script = parser.compile();
+        script.execute(parser.getSession(), parameters);
     }
     
-    protected void test(String number, Map<String, String> variables)
-            throws Exception {
+    /**
+     * Creates a parser reading the query resource with the given name, after
+     * substituting the given variables and the system properties in it.
+     *
+     * @param name      the name of the query resource
+     * @param variables the values of the variables to substitute
+     * @return the parser with a configured session
+     */
+    protected SPARQLyticsParser createParser(String name,
+            Map<String, String> variables) throws IOException {
         String contents = FileUtils.readWholeFileAsUTF8(
-                LDBCBenchmark.class.getResourceAsStream("ldbc-snb-bi-q" +
-                        number + ".sparqlytics"));
-        try {
-            variables.putAll(globalVariables);
-        } catch (UnsupportedOperationException ex) {
-            variables = new HashMap<>(variables);
-            variables.putAll(globalVariables);
-        }
+                LDBCBenchmark.class.getResourceAsStream(name));
+        Map<String, String> values = new HashMap<>(variables);
+        values.putAll(globalVariables);
         SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
-                StrSubstitutor.replace(contents, variables)));
+                StrSubstitutor.replace(contents, values)));
         configureSession(parser.getSession());
-        parser.Start();
+        return parser;
+    }
+    
+    /**
+     * Creates an IRI to bind a parameter to.
+     *
+     * @param iri the IRI
+     * @return the node representing the IRI
+     */
+    private static Node uri(String iri) {
+        return NodeFactory.createURI(iri);
+    }
+    
+    /**
+     * Creates a date literal to bind a parameter to.
+     *
+     * @param date the lexical form of the date
+     * @return the node representing the date
+     */
+    private static Node date(String date) {
+        return NodeFactory.createLiteral(date, XSDDatatype.XSDdate);
+    }
+    
+    /**
+     * Creates an integer literal to bind a parameter to.
+     *
+     * @param value the value of the integer
+     * @return the node representing the integer
+     */
+    private static Node integer(int value) {
+        return NodeFactory.createLiteral(String.valueOf(value),
+                XSDDatatype.XSDinteger);
     }
     
     @Test
     public void testQAllInSuccession() throws Exception {
-        String contents = FileUtils.readWholeFileAsUTF8(
-                LDBCBenchmark.class.getResourceAsStream("ldbc-snb-bi-all.sparqlytics"));
-        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
-                StrSubstitutor.replace(contents, globalVariables)));
-        configureSession(parser.getSession());
-        parser.Start();
+        SPARQLyticsParser parser = createParser("ldbc-snb-bi-all.sparqlytics",
+                Collections.<String, String>emptyMap());
+        parser.compile().execute(parser.getSession(),
+                Collections.<String, Node>emptyMap());
     }
     
     @Test
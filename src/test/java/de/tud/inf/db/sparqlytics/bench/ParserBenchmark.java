@@ -0,0 +1,146 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.bench;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import de.tud.inf.db.sparqlytics.repository.RepositorySnapshot;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import org.apache.jena.util.FileUtils;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Benchmarks the throughput of the SPARQLytics parser on the LDBC SNB
+ * repository, whose dimension, measure and cube definitions mostly consist of
+ * SPARQL fragments parsed by delegation. The number of runs can be set in the
+ * {@code sparqlytics.bench.runs} system property. Every test records the
+ * elapsed time in a timer and the parsed characters in a meter named after the
+ * test. The last test reads a binary snapshot of the same repository instead of
+ * parsing it.
+ *
+ * @author Michael Rudolf
+ */
+@RunWith(BenchmarkRunner.class) @FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ParserBenchmark {
+    /**
+     * The name of the system property denoting the number of timed runs.
+     */
+    protected static final String RUNS_PROPERTY = "sparqlytics.bench.runs";
+
+    /**
+     * The number of untimed runs per test.
+     */
+    private static final int WARMUP_RUNS = 50;
+
+    /**
+     * The contents of the LDBC SNB repository script.
+     */
+    private static String repository;
+
+    /**
+     * The binary snapshot of the LDBC SNB repository.
+     */
+    private static byte[] snapshot;
+
+    @BeforeClass
+    public static void readRepository() throws Exception {
+        repository = FileUtils.readWholeFileAsUTF8(
+                LDBCBenchmark.class.getResourceAsStream(
+                        "ldbc-snb-bi-repository.sparqlytics"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RepositorySnapshot.parse(new File(LDBCBenchmark.class.getResource(
+                "ldbc-snb-bi-repository.sparqlytics").toURI())).write(out);
+        snapshot = out.toByteArray();
+    }
+
+    @Test
+    public void testNewParser() throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            new SPARQLyticsParser(new StringReader(repository)).Start();
+        }
+        Timer timer = Main.METRICS.timer(MetricRegistry.name(
+                ParserBenchmark.class, "newParser"));
+        Meter characters = Main.METRICS.meter(MetricRegistry.name(
+                ParserBenchmark.class, "newParser", "characters"));
+        int runs = Integer.getInteger(RUNS_PROPERTY, 500);
+        for (int i = 0; i < runs; i++) {
+            Timer.Context time = timer.time();
+            try {
+                new SPARQLyticsParser(new StringReader(repository)).Start();
+            } finally {
+                time.stop();
+            }
+            characters.mark(repository.length());
+        }
+    }
+
+    @Test
+    public void testReInitParser() throws Exception {
+        SPARQLyticsParser parser = new SPARQLyticsParser(
+                new StringReader(repository));
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            parser.ReInit(new StringReader(repository));
+            parser.Start();
+        }
+        Timer timer = Main.METRICS.timer(MetricRegistry.name(
+                ParserBenchmark.class, "reInitParser"));
+        Meter characters = Main.METRICS.meter(MetricRegistry.name(
+                ParserBenchmark.class, "reInitParser", "characters"));
+        int runs = Integer.getInteger(RUNS_PROPERTY, 500);
+        for (int i = 0; i < runs; i++) {
+            Timer.Context time = timer.time();
+            try {
+                parser.ReInit(new StringReader(repository));
+                parser.Start();
+            } finally {
+                time.stop();
+            }
+            characters.mark(repository.length());
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            RepositorySnapshot.read(new ByteArrayInputStream(snapshot));
+        }
+        Timer timer = Main.METRICS.timer(MetricRegistry.name(
+                ParserBenchmark.class, "snapshot"));
+        Meter characters = Main.METRICS.meter(MetricRegistry.name(
+                ParserBenchmark.class, "snapshot", "characters"));
+        int runs = Integer.getInteger(RUNS_PROPERTY, 500);
+        for (int i = 0; i < runs; i++) {
+            Timer.Context time = timer.time();
+            try {
+                RepositorySnapshot.read(new ByteArrayInputStream(snapshot));
+            } finally {
+                time.stop();
+            }
+            characters.mark(repository.length());
+        }
+    }
+}
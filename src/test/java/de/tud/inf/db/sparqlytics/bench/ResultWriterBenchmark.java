@@ -0,0 +1,195 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.bench;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.io.DelimitedResultWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Benchmarks writing comma- and tab-separated values with Jena's formatters
+ * and with the {@link DelimitedResultWriter}. The number of rows can be set
+ * in the {@code sparqlytics.bench.rows} system property. Every test writes
+ * the rows several times after warming up and records the elapsed time in a
+ * timer named after the test.
+ *
+ * @author Michael Rudolf
+ */
+@RunWith(BenchmarkRunner.class) @FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ResultWriterBenchmark {
+    /**
+     * The name of the system property denoting the number of rows to write.
+     */
+    protected static final String ROWS_PROPERTY = "sparqlytics.bench.rows";
+
+    /**
+     * The number of untimed runs per test.
+     */
+    private static final int WARMUP_RUNS = 3;
+
+    /**
+     * The number of timed runs per test.
+     */
+    private static final int RUNS = 10;
+
+    /**
+     * The result variables, resembling a base-granularity export.
+     */
+    private static final List<Var> VARIABLES = Arrays.asList(Var.alloc("count"),
+            Var.alloc("sum"), Var.alloc("person"), Var.alloc("country"),
+            Var.alloc("day"));
+
+    /**
+     * The rows to write.
+     */
+    private static List<Binding> rows;
+
+    /**
+     * The file to write to.
+     */
+    private static Path output;
+
+    @BeforeClass
+    public static void createRows() throws IOException {
+        int size = Integer.getInteger(ROWS_PROPERTY, 1000000);
+        rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            BindingMap row = BindingFactory.create();
+            row.add(VARIABLES.get(0), NodeFactory.createLiteral(
+                    String.valueOf(i % 97), XSDDatatype.XSDinteger));
+            row.add(VARIABLES.get(1), NodeFactory.createLiteral(
+                    (i % 1013) + ".25", XSDDatatype.XSDdecimal));
+            row.add(VARIABLES.get(2), NodeFactory.createURI(
+                    "http://www.ldbc.eu/ldbc_socialnet/1.0/data/pers" + i));
+            row.add(VARIABLES.get(3), NodeFactory.createLiteral(
+                    i % 3 == 0 ? "C\u00f4te d'Ivoire" : "Germany", "en"));
+            if (i % 10 != 0) {
+                row.add(VARIABLES.get(4), NodeFactory.createLiteral(
+                        "2010-02-" + (10 + i % 18), XSDDatatype.XSDdate));
+            }
+            rows.add(row);
+        }
+        output = Files.createTempFile("sparqlytics-bench-writer-", ".txt");
+    }
+
+    @AfterClass
+    public static void deleteOutput() throws IOException {
+        rows = null;
+        Files.deleteIfExists(output);
+    }
+
+    @Test
+    public void testCSVDelimited() throws IOException {
+        benchmark("csvDelimited", ResultsFormat.FMT_RS_CSV, true);
+    }
+
+    @Test
+    public void testCSVJena() throws IOException {
+        benchmark("csvJena", ResultsFormat.FMT_RS_CSV, false);
+    }
+
+    @Test
+    public void testTSVDelimited() throws IOException {
+        benchmark("tsvDelimited", ResultsFormat.FMT_RS_TSV, true);
+    }
+
+    @Test
+    public void testTSVJena() throws IOException {
+        benchmark("tsvJena", ResultsFormat.FMT_RS_TSV, false);
+    }
+
+    /**
+     * Writes the rows repeatedly and records the elapsed time.
+     *
+     * @param name      the name of the timer
+     * @param format    the results format to write
+     * @param delimited whether to use the {@link DelimitedResultWriter}
+     *                  instead of Jena's formatters
+     */
+    private static void benchmark(String name, ResultsFormat format,
+            boolean delimited) throws IOException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            write(format, delimited);
+        }
+        Timer timer = Main.METRICS.timer(MetricRegistry.name(
+                ResultWriterBenchmark.class, name));
+        for (int i = 0; i < RUNS; i++) {
+            Timer.Context time = timer.time();
+            try {
+                write(format, delimited);
+            } finally {
+                time.stop();
+            }
+        }
+    }
+
+    /**
+     * Writes the rows to the output file, replacing its contents, in the same
+     * way as the compute operation writes its results.
+     *
+     * @param format    the results format to write
+     * @param delimited whether to use the {@link DelimitedResultWriter}
+     *                  instead of Jena's formatters
+     */
+    private static void write(ResultsFormat format, boolean delimited)
+            throws IOException {
+        if (delimited) {
+            try (DelimitedResultWriter writer = new DelimitedResultWriter(
+                    FileChannel.open(output, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING),
+                    VARIABLES, format)) {
+                for (Binding row : rows) {
+                    writer.write(row);
+                }
+            }
+        } else {
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(output.toFile()))) {
+                ResultSetFormatter.output(out, new ResultSetStream(
+                        Var.varNames(VARIABLES), null, rows.iterator()),
+                        format);
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.bench;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.olap.ExecutionStrategies;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import de.tud.inf.db.sparqlytics.repository.RepositorySnapshot;
+import de.tud.inf.db.sparqlytics.server.Server;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Benchmarks the server with many analysts posting statements at the same
+ * time. Every analyst works in a session of its own, rolling up, drilling
+ * down and computing measures in turn. The number of analysts and the number
+ * of statements each of them posts can be set in the
+ * {@code sparqlytics.bench.analysts} and {@code sparqlytics.bench.steps}
+ * system properties. The response time of every request is recorded in a
+ * timer named after the test.
+ *
+ * @author Michael Rudolf
+ */
+@RunWith(BenchmarkRunner.class) @FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class ServerLoadBenchmark {
+    /**
+     * The name of the system property denoting the number of analysts.
+     */
+    protected static final String ANALYSTS_PROPERTY =
+            "sparqlytics.bench.analysts";
+
+    /**
+     * The name of the system property denoting the number of statements
+     * posted by every analyst.
+     */
+    protected static final String STEPS_PROPERTY = "sparqlytics.bench.steps";
+
+    /**
+     * The number of worker threads of the server.
+     */
+    private static final int THREADS = 8;
+
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The repository defined by the test fixture.
+     */
+    private static RepositorySnapshot snapshot;
+
+    @BeforeClass
+    public static void startEndpoint() throws Exception {
+        endpoint = LocalEndpoint.forTestData();
+        try (InputStream in = ITBase.class.getResourceAsStream(
+                "fixture.sparqlytics")) {
+            String fixture = IOUtils.toString(in, StandardCharsets.UTF_8);
+            SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                    fixture.substring(0, fixture.indexOf(
+                            "# end of DDL part"))));
+            parser.Start();
+            snapshot = new RepositorySnapshot(parser.getRepository(),
+                    parser.getSession().getQuery(), new byte[0]);
+        }
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    @Test
+    public void testEndpoint() throws Exception {
+        benchmark("endpoint");
+    }
+
+    @Test
+    public void testStarJoin() throws Exception {
+        benchmark("starjoin");
+    }
+
+    /**
+     * Lets all analysts post their statements to a new server using the given
+     * execution strategy and records the response times.
+     *
+     * @param strategy the name of the execution strategy
+     */
+    private static void benchmark(final String strategy) throws Exception {
+        int analysts = Integer.getInteger(ANALYSTS_PROPERTY, 32);
+        final int steps = Integer.getInteger(STEPS_PROPERTY, 20);
+        final Timer timer = Main.METRICS.timer(MetricRegistry.name(
+                ServerLoadBenchmark.class, strategy));
+        try (final Server server = new Server(
+                new InetSocketAddress("localhost", 0), THREADS)) {
+            server.setSnapshot(snapshot);
+            server.setExecutionStrategy(ExecutionStrategies.create(strategy));
+            server.setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            server.start();
+            ExecutorService clients = Executors.newFixedThreadPool(analysts);
+            try {
+                List<Future<?>> futures = new ArrayList<>(analysts);
+                for (int i = 0; i < analysts; i++) {
+                    final String id = "analyst" + i;
+                    final int offset = i;
+                    futures.add(clients.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            post(server, id, "USING CUBE \"test\" OVER <" +
+                                    endpoint.getURL() + ">;\n");
+                            for (int step = 0; step < steps; step++) {
+                                String statements = getStatements(
+                                        offset + step);
+                                Timer.Context time = timer.time();
+                                try {
+                                    post(server, id, statements);
+                                } finally {
+                                    time.stop();
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                clients.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns the statements an analyst posts in the given step, which
+     * return to the base granularity afterwards.
+     *
+     * @param step the number of the step
+     * @return the statements to post
+     */
+    private static String getStatements(int step) {
+        switch (step % 4) {
+            case 0:
+                return "ROLLUP (\"Location\", 1);\n" +
+                        "COMPUTE (\"Avg. No. Languages\");\n" +
+                        "UNDO;\n";
+            case 1:
+                return "ROLLUP (\"Date of Birth\", 2);\n" +
+                        "COMPUTE (\"Max. Comment Length\");\n" +
+                        "UNDO;\n";
+            case 2:
+                return "ROLLUP (\"Location\", 2);\n" +
+                        "ROLLUP (\"Date of Birth\", 1);\n" +
+                        "COMPUTE (\"Avg. No. Languages\", " +
+                        "\"Max. Comment Length\");\n" +
+                        "UNDO;\nUNDO;\n";
+            default:
+                return "COMPUTE (\"Avg. No. Languages\");\n";
+        }
+    }
+
+    /**
+     * Posts the given statements to the given session of the given server.
+     *
+     * @param server     the server to post to
+     * @param session    the identifier of the session
+     * @param statements the statements to run
+     */
+    private static void post(Server server, String session, String statements)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                server.getURL() + session).openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(statements.getBytes(StandardCharsets.UTF_8));
+            }
+            if (connection.getResponseCode() != 200) {
+                try (InputStream in = connection.getErrorStream()) {
+                    Assert.fail(IOUtils.toString(in, StandardCharsets.UTF_8));
+                }
+            }
+            try (InputStream in = connection.getInputStream()) {
+                IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the channel writing in the background.
+ *
+ * @author Michael Rudolf
+ */
+public class AsyncOutputChannelTest {
+    @Test(expected = NullPointerException.class)
+    public void testInstantiateWithNull() {
+        new AsyncOutputChannel(null, 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithoutCapacity() {
+        new AsyncOutputChannel(Channels.newChannel(new ByteArrayOutputStream()),
+                0, 1);
+    }
+
+    @Test
+    public void testWritesAllBytesInOrder() throws IOException {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        AsyncOutputChannel channel = new AsyncOutputChannel(
+                Channels.newChannel(output), 3, 1000);
+        Random sizes = new Random(7);
+        for (int position = 0; position < data.length;) {
+            int length = Math.min(data.length - position, sizes.nextInt(2500));
+            Assert.assertEquals(length, channel.write(
+                    ByteBuffer.wrap(data, position, length)));
+            position += length;
+        }
+        channel.close();
+        Assert.assertFalse(channel.isOpen());
+        Assert.assertArrayEquals(data, output.toByteArray());
+        Assert.assertTrue(channel.getMaxDepth() <= 3);
+    }
+
+    @Test
+    public void testBlocksOnSlowOutput() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        AsyncOutputChannel channel = new AsyncOutputChannel(
+                new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                int written = src.remaining();
+                output.write(src.array(), src.position(), written);
+                src.position(src.limit());
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 2, 16);
+        byte[] data = new byte[320];
+        Arrays.fill(data, (byte)'x');
+        channel.write(ByteBuffer.wrap(data));
+        channel.close();
+        Assert.assertArrayEquals(data, output.toByteArray());
+        Assert.assertEquals(2, channel.getMaxDepth());
+        Assert.assertTrue(channel.getStalls() > 0);
+        Assert.assertTrue(channel.getStallTime() > 0);
+    }
+
+    @Test
+    public void testReportsOutputErrors() throws IOException {
+        AsyncOutputChannel channel = new AsyncOutputChannel(
+                new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 1, 16);
+        try {
+            for (int i = 0; i < 10; i++) {
+                channel.write(ByteBuffer.wrap(new byte[16]));
+            }
+            Assert.fail("Error not reported by write");
+        } catch (IOException ex) {
+            Assert.assertEquals("Disk full", ex.getMessage());
+        }
+        try {
+            channel.close();
+            Assert.fail("Error not reported by close");
+        } catch (IOException ex) {
+            Assert.assertEquals("Disk full", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testReportsOutputErrorsBeforeChunkIsFull() throws Exception {
+        final CountDownLatch failed = new CountDownLatch(1);
+        AsyncOutputChannel channel = new AsyncOutputChannel(
+                new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                failed.countDown();
+                throw new IOException("Disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 4, 4096);
+        try {
+            //Fill one chunk and start the next one
+            channel.write(ByteBuffer.wrap(new byte[4097]));
+            failed.await();
+            for (int i = 0; i < 100; i++) {
+                channel.write(ByteBuffer.wrap(new byte[1]));
+                Thread.sleep(10);
+            }
+            Assert.fail("Error not reported by write");
+        } catch (IOException ex) {
+            Assert.assertEquals("Disk full", ex.getMessage());
+        }
+        try {
+            channel.flush();
+            Assert.fail("Error not reported by flush");
+        } catch (IOException ex) {
+            Assert.assertEquals("Disk full", ex.getMessage());
+        }
+        try {
+            channel.close();
+            Assert.fail("Error not reported by close");
+        } catch (IOException ex) {
+            Assert.assertEquals("Disk full", ex.getMessage());
+        }
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void testWriteAfterClose() throws IOException {
+        AsyncOutputChannel channel = new AsyncOutputChannel(
+                Channels.newChannel(new ByteArrayOutputStream()), 1, 16);
+        channel.close();
+        channel.write(ByteBuffer.allocate(1));
+    }
+}
@@ -0,0 +1,177 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the writer for comma- and tab-separated values.
+ *
+ * @author Michael Rudolf
+ */
+public class DelimitedResultWriterTest {
+    /**
+     * The result variables.
+     */
+    private static final List<Var> VARIABLES = Arrays.asList(
+            Var.alloc("x"), Var.alloc("y"));
+
+    @Test(expected = NullPointerException.class)
+    public void testInstantiateWithNull() {
+        new DelimitedResultWriter(null, VARIABLES, ResultsFormat.FMT_RS_CSV);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithUnsupportedFormat() {
+        new DelimitedResultWriter(Channels.newChannel(
+                new ByteArrayOutputStream()), VARIABLES,
+                ResultsFormat.FMT_RS_JSON);
+    }
+
+    @Test
+    public void testCSVMatchesJena() {
+        List<Binding> rows = createRows(true);
+        Assert.assertArrayEquals(writeWithJena(rows, ResultsFormat.FMT_RS_CSV),
+                write(rows, ResultsFormat.FMT_RS_CSV));
+    }
+
+    @Test
+    public void testTSVMatchesJena() {
+        List<Binding> rows = createRows(false);
+        Assert.assertArrayEquals(writeWithJena(rows, ResultsFormat.FMT_RS_TSV),
+                write(rows, ResultsFormat.FMT_RS_TSV));
+    }
+
+    @Test
+    public void testTSVRoundTrip() {
+        List<Binding> rows = createRows(true);
+        List<Binding> read = new ArrayList<>();
+        try (ResultReader reader = new TSVResultReader(new ByteArrayInputStream(
+                write(rows, ResultsFormat.FMT_RS_TSV)))) {
+            while (reader.hasNext()) {
+                read.add(reader.next());
+            }
+        }
+        Assert.assertEquals(rows.size(), read.size());
+        for (int i = 0; i < rows.size(); i++) {
+            for (Var var : VARIABLES) {
+                Node expected = rows.get(i).get(var);
+                Node actual = read.get(i).get(var);
+                if (expected != null && expected.isBlank()) {
+                    Assert.assertTrue(actual.isBlank());
+                } else {
+                    Assert.assertEquals(expected, actual);
+                }
+            }
+        }
+        Assert.assertSame(read.get(4).get(VARIABLES.get(0)),
+                read.get(5).get(VARIABLES.get(1)));
+    }
+
+    /**
+     * Creates rows with RDF terms that need quoting, escaping or
+     * abbreviation, including strings exceeding the buffer size.
+     *
+     * @param blank whether to include blank nodes
+     * @return the created rows
+     */
+    private static List<Binding> createRows(boolean blank) {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 3 * DelimitedResultWriter.BUFFER_SIZE) {
+            large.append("x\u00e4\u20ac\ud83d\ude00,\"\t");
+        }
+        Node blankNode = blank ? NodeFactory.createBlankNode() : null;
+        Node[][] terms = {
+            {NodeFactory.createURI("http://example.org/\u00e4\"b"),
+                NodeFactory.createLiteral("a,b \"q\"\tt\nn\\ \r\f\b", "en")},
+            {NodeFactory.createLiteral("42", XSDDatatype.XSDinteger),
+                NodeFactory.createLiteral("-1.5", XSDDatatype.XSDdecimal)},
+            {NodeFactory.createLiteral("1.0e3", XSDDatatype.XSDdouble),
+                NodeFactory.createLiteral("true", XSDDatatype.XSDboolean)},
+            {NodeFactory.createLiteral(""),
+                NodeFactory.createLiteral("2015-01-01", XSDDatatype.XSDdate)},
+            {blankNode, NodeFactory.createLiteral("x", XSDDatatype.XSDstring)},
+            {NodeFactory.createLiteral("abc", XSDDatatype.XSDinteger),
+                blankNode},
+            {NodeFactory.createLiteral("1.", XSDDatatype.XSDdecimal),
+                NodeFactory.createLiteral(".5e-3", XSDDatatype.XSDdouble)},
+            {NodeFactory.createLiteral(large.toString()), null}
+        };
+        List<Binding> rows = new ArrayList<>();
+        for (Node[] row : terms) {
+            BindingMap binding = BindingFactory.create();
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] != null) {
+                    binding.add(VARIABLES.get(i), row[i]);
+                }
+            }
+            rows.add(binding);
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the given rows in the given format using the writer under test.
+     *
+     * @param rows      the rows to write
+     * @param format    the results format to use
+     * @return the written bytes
+     */
+    private static byte[] write(List<Binding> rows, ResultsFormat format) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (DelimitedResultWriter writer = new DelimitedResultWriter(
+                Channels.newChannel(output), VARIABLES, format)) {
+            for (Binding row : rows) {
+                writer.write(row);
+            }
+            Assert.assertEquals(rows.size(), writer.getRowCount());
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Writes the given rows in the given format using Jena.
+     *
+     * @param rows      the rows to write
+     * @param format    the results format to use
+     * @return the written bytes
+     */
+    private static byte[] writeWithJena(List<Binding> rows,
+            ResultsFormat format) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ResultSetFormatter.output(output, new ResultSetStream(
+                Var.varNames(VARIABLES), null, rows.iterator()), format);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,366 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.olap.Compute;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests writing and reading result archives.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultArchiveTest {
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] large = new byte[3 * ResultArchiveWriter.BUFFER_SIZE + 17];
+        new Random(42).nextBytes(large);
+        try (ITBase.TemporaryFile file = ITBase.createTempFile(
+                "sparqlytics-archive-", ".sra")) {
+            File archive = file.getPath().toFile();
+            try (ResultArchiveWriter writer = new ResultArchiveWriter(archive)) {
+                writeRecord(writer, 1, 11, "text/csv", "a,b\r\n1,2\r\n".
+                        getBytes(StandardCharsets.UTF_8));
+                writeRecord(writer, 3, 33, "application/octet-stream", large);
+                writeRecord(writer, 3, 34, "text/plain", new byte[0]);
+                Assert.assertEquals(3, writer.getRecordCount());
+            }
+            try (ResultArchiveReader reader = new ResultArchiveReader(archive)) {
+                List<ResultArchiveReader.Entry> entries = reader.getEntries();
+                Assert.assertEquals(3, entries.size());
+                Assert.assertEquals(1, entries.get(0).getStatement());
+                Assert.assertEquals(11, entries.get(0).getCubeStateHash());
+                Assert.assertEquals("text/csv", entries.get(0).getMediaType());
+                Assert.assertEquals("a,b\r\n1,2\r\n", readBody(reader,
+                        entries.get(0)));
+                Assert.assertEquals(2, reader.getEntries(3).size());
+                try (InputStream in = reader.openStream(entries.get(1))) {
+                    Assert.assertArrayEquals(large, IOUtils.toByteArray(in));
+                }
+                Assert.assertEquals(0, entries.get(2).getLength());
+                Assert.assertEquals("", readBody(reader, entries.get(2)));
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testAppendDiscardsIncompleteRecord() throws IOException {
+        try (ITBase.TemporaryFile file = ITBase.createTempFile(
+                "sparqlytics-archive-", ".sra")) {
+            File archive = file.getPath().toFile();
+            try {
+                try (ResultArchiveWriter writer = new ResultArchiveWriter(archive)) {
+                    writeRecord(writer, 1, 0, "text/plain", new byte[]{'a'});
+                }
+                long size = archive.length();
+                //Simulate a crash after writing a record but before indexing it
+                try (FileChannel channel = FileChannel.open(file.getPath(),
+                        StandardOpenOption.APPEND)) {
+                    channel.write(ByteBuffer.wrap(new byte[100]));
+                }
+                try (ResultArchiveWriter writer = new ResultArchiveWriter(archive)) {
+                    Assert.assertEquals(1, writer.getRecordCount());
+                    Assert.assertEquals(size, archive.length());
+                    writeRecord(writer, 2, 0, "text/plain", new byte[]{'b'});
+                }
+                try (ResultArchiveReader reader = new ResultArchiveReader(archive)) {
+                    Assert.assertEquals(2, reader.getEntries().size());
+                    Assert.assertEquals("a", readBody(reader,
+                            reader.getEntries().get(0)));
+                    Assert.assertEquals("b", readBody(reader,
+                            reader.getEntries().get(1)));
+                }
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRecordsMustNotOverlap() throws IOException {
+        try (ITBase.TemporaryFile file = ITBase.createTempFile(
+                "sparqlytics-archive-", ".sra")) {
+            File archive = file.getPath().toFile();
+            try (ResultArchiveWriter writer = new ResultArchiveWriter(archive)) {
+                writer.beginRecord(1, 0, "text/plain");
+                writer.beginRecord(2, 0, "text/plain");
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testSessionArchivesBatchedComputations() throws Exception {
+        try (LocalEndpoint endpoint = LocalEndpoint.forTestData();
+                ITBase.TemporaryFile file = ITBase.createTempFile(
+                        "sparqlytics-archive-", ".sra")) {
+            File archive = file.getPath().toFile();
+            try {
+                SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                        "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                        "SELECT FACTS { ?person a snvoc:Person };\n" +
+                        "DEFINE DIMENSION \"Person\" FROM (?person a snvoc:Person)" +
+                        " WITH (LEVEL \"Person\" AS ?person);\n" +
+                        "DEFINE MEASURE \"Languages\" AS ?language" +
+                        " WHERE (?person snvoc:speaks ?language) WITH \"COUNT\";\n" +
+                        "CREATE CUBE \"People\" FROM \"Person\" WITH \"Languages\";\n" +
+                        "USING CUBE \"People\" OVER <" + endpoint.getURL() + ">;\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "COMPUTE (\"Languages\") ORDER BY \"Languages\" DESC LIMIT 1;\n" +
+                        "ROLLUP (\"Person\", 1);\n" +
+                        "COMPUTE (\"Languages\");\n"));
+                Session session = parser.getSession();
+                session.setResultsFormat(ResultsFormat.FMT_RS_CSV);
+                session.setArchive(archive);
+                session.setBatching(true);
+                parser.Start();
+                session.close();
+                try (ResultArchiveReader reader = new ResultArchiveReader(archive)) {
+                    List<ResultArchiveReader.Entry> entries = reader.getEntries();
+                    Assert.assertEquals(3, entries.size());
+                    Assert.assertEquals(1, entries.get(0).getStatement());
+                    Assert.assertEquals(2, entries.get(1).getStatement());
+                    Assert.assertEquals(4, entries.get(2).getStatement());
+                    Assert.assertEquals(entries.get(0).getCubeStateHash(),
+                            entries.get(1).getCubeStateHash());
+                    Assert.assertNotEquals(entries.get(1).getCubeStateHash(),
+                            entries.get(2).getCubeStateHash());
+                    Assert.assertEquals(WebContent.contentTypeTextCSV,
+                            entries.get(0).getMediaType());
+                    Assert.assertEquals(1, count(reader, entries.get(1)));
+                    Assert.assertTrue(count(reader, entries.get(0)) > 1);
+                    Assert.assertEquals(1, count(reader, entries.get(2)));
+                }
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testFindResultsOfEarlierState() throws Exception {
+        try (LocalEndpoint endpoint = LocalEndpoint.forTestData();
+                ITBase.TemporaryFile file = ITBase.createTempFile(
+                        "sparqlytics-archive-", ".sra")) {
+            File archive = file.getPath().toFile();
+            try {
+                SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                        "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                        "SELECT FACTS { ?person a snvoc:Person };\n" +
+                        "DEFINE DIMENSION \"Person\" FROM (?person a snvoc:Person)" +
+                        " WITH (LEVEL \"Person\" AS ?person);\n" +
+                        "DEFINE MEASURE \"Languages\" AS ?language" +
+                        " WHERE (?person snvoc:speaks ?language) WITH \"COUNT\";\n" +
+                        "CREATE CUBE \"People\" FROM \"Person\" WITH \"Languages\";\n" +
+                        "USING CUBE \"People\" OVER <" + endpoint.getURL() + ">;\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "BRANCH \"detail\";\n" +
+                        "ROLLUP (\"Person\", 1);\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "CHECKOUT \"detail\";\n"));
+                Session session = parser.getSession();
+                session.setResultsFormat(ResultsFormat.FMT_RS_CSV);
+                session.setArchive(archive);
+                parser.Start();
+                long detail = session.getCubeStateHash();
+                session.close();
+                try (ResultArchiveReader reader = new ResultArchiveReader(archive)) {
+                    List<ResultArchiveReader.Entry> entries =
+                            reader.getEntriesByState(detail);
+                    Assert.assertEquals(1, entries.size());
+                    Assert.assertEquals(1, entries.get(0).getStatement());
+                    Assert.assertTrue(reader.getEntriesByState(~detail).isEmpty());
+                }
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testUndoReusesArchivedResults() throws Exception {
+        try (LocalEndpoint endpoint = LocalEndpoint.forTestData();
+                ITBase.TemporaryFile file = ITBase.createTempFile(
+                        "sparqlytics-archive-", ".sra")) {
+            File archive = file.getPath().toFile();
+            try {
+                SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                        "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                        "SELECT FACTS { ?person a snvoc:Person };\n" +
+                        "DEFINE DIMENSION \"Person\" FROM (?person a snvoc:Person)" +
+                        " WITH (LEVEL \"Person\" AS ?person);\n" +
+                        "DEFINE MEASURE \"Languages\" AS ?language" +
+                        " WHERE (?person snvoc:speaks ?language) WITH \"COUNT\";\n" +
+                        "CREATE CUBE \"People\" FROM \"Person\" WITH \"Languages\";\n" +
+                        "USING CUBE \"People\" OVER <" + endpoint.getURL() + ">;\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "ROLLUP (\"Person\", 1);\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "UNDO;\n" +
+                        "COMPUTE (\"Languages\") ORDER BY \"Languages\" DESC LIMIT 1;\n" +
+                        "COMPUTE (\"Languages\");\n"));
+                Session session = parser.getSession();
+                session.setResultsFormat(ResultsFormat.FMT_RS_CSV);
+                session.setArchive(archive);
+                parser.Start();
+                session.close();
+                Assert.assertEquals(3, endpoint.getRequestCount());
+                try (ResultArchiveReader reader = new ResultArchiveReader(archive)) {
+                    List<ResultArchiveReader.Entry> entries = reader.getEntries();
+                    Assert.assertEquals(4, entries.size());
+                    Assert.assertEquals(entries.get(0).getCubeStateHash(),
+                            entries.get(3).getCubeStateHash());
+                    Assert.assertTrue(entries.get(0).getStatement() <
+                            entries.get(3).getStatement());
+                    Assert.assertEquals(readBody(reader, entries.get(0)),
+                            readBody(reader, entries.get(3)));
+                    Assert.assertEquals(1, count(reader, entries.get(2)));
+                }
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+
+    @Test
+    public void testBatchDoesNotReuseArchivedResults() throws Exception {
+        try (LocalEndpoint endpoint = LocalEndpoint.forTestData();
+                ITBase.TemporaryFile file = ITBase.createTempFile(
+                        "sparqlytics-archive-", ".sra")) {
+            File archive = file.getPath().toFile();
+            try {
+                SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                        "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                        "SELECT FACTS { ?person a snvoc:Person };\n" +
+                        "DEFINE DIMENSION \"Person\" FROM (?person a snvoc:Person)" +
+                        " WITH (LEVEL \"Person\" AS ?person);\n" +
+                        "DEFINE MEASURE \"Languages\" AS ?language" +
+                        " WHERE (?person snvoc:speaks ?language) WITH \"COUNT\";\n" +
+                        "CREATE CUBE \"People\" FROM \"Person\" WITH \"Languages\";\n" +
+                        "USING CUBE \"People\" OVER <" + endpoint.getURL() + ">;\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "COMPUTE (\"Languages\") ORDER BY \"Languages\" DESC LIMIT 1;\n" +
+                        "ROLLUP (\"Person\", 1);\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "UNDO;\n" +
+                        "COMPUTE (\"Languages\");\n" +
+                        "COMPUTE (\"Languages\") ORDER BY \"Languages\" DESC LIMIT 1;\n"));
+                Session session = parser.getSession();
+                session.setResultsFormat(ResultsFormat.FMT_RS_CSV);
+                session.setArchive(archive);
+                session.setBatching(true);
+                long reused = Main.METRICS.counter(MetricRegistry.name(
+                        Compute.class, "reused")).getCount();
+                parser.Start();
+                session.close();
+
+                //The rows of a batch are written as computed
+                Assert.assertEquals(3, endpoint.getRequestCount());
+                Assert.assertEquals(reused, Main.METRICS.counter(
+                        MetricRegistry.name(Compute.class, "reused")).getCount());
+                try (ResultArchiveReader reader = new ResultArchiveReader(archive)) {
+                    List<ResultArchiveReader.Entry> entries = reader.getEntries();
+                    Assert.assertEquals(5, entries.size());
+                    Assert.assertEquals(readBody(reader, entries.get(0)),
+                            readBody(reader, entries.get(3)));
+                    Assert.assertEquals(readBody(reader, entries.get(1)),
+                            readBody(reader, entries.get(4)));
+                }
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a record with the given body.
+     *
+     * @param writer        the writer of the archive
+     * @param statement     the statement number of the record
+     * @param cubeStateHash the cube state hash of the record
+     * @param mediaType     the media type of the body
+     * @param body          the body of the record
+     */
+    private static void writeRecord(ResultArchiveWriter writer, long statement,
+            long cubeStateHash, String mediaType, byte[] body)
+            throws IOException {
+        try (WritableByteChannel channel = writer.beginRecord(statement,
+                cubeStateHash, mediaType)) {
+            for (int offset = 0; offset < body.length; offset += 1000) {
+                channel.write(ByteBuffer.wrap(body, offset,
+                        Math.min(1000, body.length - offset)));
+            }
+        }
+    }
+
+    /**
+     * Reads the body of the given record as a string.
+     *
+     * @param reader    the reader of the archive
+     * @param entry     the index entry of the record
+     * @return the body of the record
+     */
+    private static String readBody(ResultArchiveReader reader,
+            ResultArchiveReader.Entry entry) throws IOException {
+        try (InputStream in = reader.openStream(entry)) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Counts the rows of the result set in the given record.
+     *
+     * @param reader    the reader of the archive
+     * @param entry     the index entry of the record
+     * @return the number of rows
+     */
+    private static int count(ResultArchiveReader reader,
+            ResultArchiveReader.Entry entry) {
+        int rows = 0;
+        try (ResultReader result = reader.openResult(entry)) {
+            while (result.hasNext()) {
+                result.next();
+                rows++;
+            }
+        }
+        return rows;
+    }
+}
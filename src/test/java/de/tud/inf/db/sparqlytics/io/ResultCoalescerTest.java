@@ -0,0 +1,284 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests sharing results between concurrent requests.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultCoalescerTest {
+    /**
+     * The variable of the test results.
+     */
+    private static final Var VARIABLE = Var.alloc("x");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithNegativeLimit() {
+        new ResultCoalescer(-1);
+    }
+
+    @Test
+    public void testSequentialRequestsExecuteAgain() {
+        ResultCoalescer coalescer = new ResultCoalescer();
+        Execution execution = new Execution(3);
+        Assert.assertEquals(3, readAll(coalescer.open("q", execution)).size());
+        Assert.assertEquals(0, coalescer.getShareableCount());
+        Assert.assertEquals(3, readAll(coalescer.open("q", execution)).size());
+        Assert.assertEquals(2, execution.count.get());
+    }
+
+    @Test
+    public void testOverlappingRequestsShareExecution() {
+        ResultCoalescer coalescer = new ResultCoalescer();
+        Execution execution = new Execution(5);
+        ResultReader first = coalescer.open("q", execution);
+        Assert.assertTrue(first.hasNext());
+        first.next();
+        ResultReader second = coalescer.open("q", execution);
+        ResultReader other = coalescer.open("other", execution);
+        Assert.assertEquals(2, execution.count.get());
+        Assert.assertEquals(Collections.singletonList(VARIABLE),
+                second.getVariables());
+        List<Binding> rows = readAll(second);
+        Assert.assertEquals(5, rows.size());
+        Assert.assertEquals(rows.subList(1, 5), readAll(first));
+        Assert.assertEquals(rows, readAll(other));
+        Assert.assertEquals(2, execution.closed.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsWaitForExecution() throws Exception {
+        final ResultCoalescer coalescer = new ResultCoalescer();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch joined = new CountDownLatch(1);
+        final Execution execution = new Execution(100) {
+            @Override
+            public ResultReader call() throws Exception {
+                started.countDown();
+                return super.call();
+            }
+        };
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<Binding>> leader = threads.submit(
+                    new Callable<List<Binding>>() {
+                        @Override
+                        public List<Binding> call() throws Exception {
+                            ResultReader reader = coalescer.open("q",
+                                    execution);
+                            joined.await();
+                            return readAll(reader);
+                        }
+                    });
+            started.await();
+            Future<List<Binding>> follower = threads.submit(
+                    new Callable<List<Binding>>() {
+                        @Override
+                        public List<Binding> call() {
+                            ResultReader reader = coalescer.open("q",
+                                    execution);
+                            joined.countDown();
+                            return readAll(reader);
+                        }
+                    });
+            Assert.assertEquals(100, leader.get().size());
+            Assert.assertEquals(leader.get(), follower.get());
+            Assert.assertEquals(1, execution.count.get());
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedExecutionIsNotShared() {
+        ResultCoalescer coalescer = new ResultCoalescer();
+        try {
+            coalescer.open("q", new Callable<ResultReader>() {
+                @Override
+                public ResultReader call() {
+                    throw new IllegalStateException();
+                }
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(0, coalescer.getShareableCount());
+        Assert.assertEquals(2, readAll(coalescer.open("q",
+                new Execution(2))).size());
+    }
+
+    @Test
+    public void testBufferLimit() {
+        ResultCoalescer coalescer = new ResultCoalescer(2);
+        Execution execution = new Execution(10);
+        ResultReader first = coalescer.open("q", execution);
+        for (int i = 0; i < 3; i++) {
+            first.next();
+        }
+        Assert.assertEquals(0, coalescer.getShareableCount());
+        Assert.assertEquals(10, readAll(coalescer.open("q", execution)).size());
+        Assert.assertEquals(2, execution.count.get());
+        Assert.assertEquals(7, readAll(first).size());
+    }
+
+    @Test
+    public void testCloseEarly() {
+        ResultCoalescer coalescer = new ResultCoalescer();
+        Execution execution = new Execution(10);
+        ResultReader first = coalescer.open("q", execution);
+        ResultReader second = coalescer.open("q", execution);
+        first.next();
+        first.close();
+        Assert.assertEquals(0, execution.closed.get());
+        second.close();
+        Assert.assertEquals(1, execution.closed.get());
+        Assert.assertEquals(0, coalescer.getShareableCount());
+    }
+
+    @Test
+    public void testCloseLastReaderWhileJoining() throws Exception {
+        final ResultCoalescer coalescer = new ResultCoalescer();
+        final Execution execution = new Execution(10);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> truncated = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final boolean closing = i % 2 == 0;
+                truncated.add(threads.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int count = 0;
+                        for (int j = 0; j < 20000; j++) {
+                            ResultReader reader = coalescer.open("q",
+                                    execution);
+                            if (closing) {
+                                //Leave early, possibly as the last reader
+                                reader.next();
+                                reader.close();
+                            } else if (readAll(reader).size() != 10) {
+                                count++;
+                            }
+                        }
+                        return count;
+                    }
+                }));
+            }
+            for (Future<Integer> count : truncated) {
+                Assert.assertEquals(0, count.get().intValue());
+            }
+            Assert.assertEquals(0, coalescer.getShareableCount());
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    /**
+     * Reads all remaining rows from the given reader and closes it.
+     *
+     * @param reader the reader to read from
+     * @return the read rows
+     */
+    private static List<Binding> readAll(ResultReader reader) {
+        List<Binding> rows = new ArrayList<>();
+        try {
+            while (reader.hasNext()) {
+                rows.add(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Executes a query by returning a reader for a fixed number of rows and
+     * counts the executions and the closed readers.
+     */
+    private static class Execution implements Callable<ResultReader> {
+        /**
+         * The number of rows of the result.
+         */
+        private final int size;
+
+        /**
+         * The number of executions.
+         */
+        final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * The number of closed readers.
+         */
+        final AtomicInteger closed = new AtomicInteger();
+
+        /**
+         * Creates a new execution producing the given number of rows.
+         *
+         * @param size the number of rows
+         */
+        Execution(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public ResultReader call() throws Exception {
+            count.incrementAndGet();
+            return new ResultReader() {
+                private int index;
+
+                private final AtomicBoolean done = new AtomicBoolean();
+
+                @Override
+                public List<Var> getVariables() {
+                    return Collections.singletonList(VARIABLE);
+                }
+
+                @Override
+                protected Binding readRow() {
+                    return index < size ? BindingFactory.binding(VARIABLE,
+                            NodeFactory.createLiteral(String.valueOf(
+                                    index++))) : null;
+                }
+
+                @Override
+                public void close() {
+                    super.close();
+                    if (done.compareAndSet(false, true)) {
+                        closed.incrementAndGet();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,131 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import de.tud.inf.db.sparqlytics.parser.ParseException;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests paging through results.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultPagerTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithoutPageSize() {
+        new ResultPager(createResult(1), null, ResultsFormat.FMT_RS_CSV,
+                new ByteArrayOutputStream(), 0);
+    }
+
+    @Test
+    public void testPagesForwardAndBackward() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AtomicBoolean closed = new AtomicBoolean();
+        try (ResultPager pager = new ResultPager(createResult(120),
+                new AutoCloseable() {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                }, ResultsFormat.FMT_RS_CSV, out, 50)) {
+            Assert.assertTrue(pager.next());
+            Assert.assertEquals(Arrays.asList("x", "0", "49"),
+                    firstAndLastRows(out));
+            Assert.assertTrue(pager.next());
+            Assert.assertEquals(Arrays.asList("x", "50", "99"),
+                    firstAndLastRows(out));
+            Assert.assertTrue(pager.next());
+            Assert.assertEquals(Arrays.asList("x", "100", "119"),
+                    firstAndLastRows(out));
+            Assert.assertTrue(pager.isComplete());
+            Assert.assertEquals(120, pager.getRowCount());
+            Assert.assertFalse(pager.next());
+            out.reset();
+            Assert.assertTrue(pager.previous());
+            Assert.assertEquals(Arrays.asList("x", "50", "99"),
+                    firstAndLastRows(out));
+            Assert.assertTrue(pager.previous());
+            Assert.assertFalse(pager.previous());
+        }
+        Assert.assertTrue(closed.get());
+    }
+
+    @Test
+    public void testPagesEmptyResult() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ResultPager pager = new ResultPager(createResult(0), null,
+                ResultsFormat.FMT_RS_CSV, out, 10)) {
+            Assert.assertTrue(pager.next());
+            Assert.assertTrue(new String(out.toByteArray(),
+                    StandardCharsets.UTF_8).contains("Rows none of 0."));
+            Assert.assertFalse(pager.next());
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testPagingWithoutResult() throws Exception {
+        new SPARQLyticsParser(new StringReader("NEXT;")).OLAPOperation();
+    }
+
+    /**
+     * Creates a result with the given number of rows binding the variable
+     * {@code ?x} to consecutive integers.
+     *
+     * @param size the number of rows
+     * @return the result
+     */
+    private static ResultSetStream createResult(int size) {
+        Var x = Var.alloc("x");
+        List<Binding> rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            rows.add(BindingFactory.binding(x,
+                    NodeFactory.createLiteral(Integer.toString(i))));
+        }
+        return new ResultSetStream(Collections.singletonList("x"), null,
+                rows.iterator());
+    }
+
+    /**
+     * Returns the header, the first row and the last row of the page printed
+     * to the given stream and resets the stream.
+     *
+     * @param out the stream the page was printed to
+     * @return the header, the first and the last row
+     */
+    private static List<String> firstAndLastRows(ByteArrayOutputStream out) {
+        String[] lines = new String(out.toByteArray(),
+                StandardCharsets.UTF_8).split("\r?\n");
+        out.reset();
+        return Arrays.asList(lines[0], lines[1], lines[lines.length - 2]);
+    }
+}
@@ -0,0 +1,250 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests publishing the rows of a result with backpressure.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultPublisherTest {
+    /**
+     * The variable of the test results.
+     */
+    private static final Var VARIABLE = Var.alloc("x");
+
+    /**
+     * Runs tasks in the calling thread.
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test(expected = NullPointerException.class)
+    public void testInstantiateWithNull() {
+        new ResultPublisher(null, DIRECT);
+    }
+
+    @Test
+    public void testRequestedRowsOnly() {
+        Source source = new Source(5);
+        Recorder recorder = new Recorder();
+        new ResultPublisher(source, DIRECT).subscribe(recorder);
+        Assert.assertEquals(0, source.opened.get());
+        recorder.subscription.request(2);
+        Assert.assertEquals(1, source.opened.get());
+        Assert.assertEquals(2, recorder.rows.size());
+        Assert.assertEquals(2, source.read.get());
+        recorder.subscription.request(2);
+        Assert.assertEquals(4, recorder.rows.size());
+        Assert.assertFalse(recorder.completed);
+        recorder.subscription.request(Long.MAX_VALUE);
+        Assert.assertEquals(5, recorder.rows.size());
+        Assert.assertTrue(recorder.completed);
+        Assert.assertEquals(1, source.closed.get());
+        Assert.assertNull(recorder.error);
+    }
+
+    @Test
+    public void testCancel() {
+        Source source = new Source(5);
+        Recorder recorder = new Recorder();
+        new ResultPublisher(source, DIRECT).subscribe(recorder);
+        recorder.subscription.request(1);
+        recorder.subscription.cancel();
+        recorder.subscription.request(1);
+        Assert.assertEquals(1, recorder.rows.size());
+        Assert.assertEquals(1, source.closed.get());
+        Assert.assertFalse(recorder.completed);
+        Assert.assertNull(recorder.error);
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        Source source = new Source(5);
+        Recorder recorder = new Recorder();
+        new ResultPublisher(source, DIRECT).subscribe(recorder);
+        recorder.subscription.request(0);
+        Assert.assertTrue(recorder.error instanceof IllegalArgumentException);
+        Assert.assertEquals(0, source.opened.get());
+    }
+
+    @Test
+    public void testFailure() {
+        Recorder recorder = new Recorder();
+        new ResultPublisher(new Callable<ResultReader>() {
+            @Override
+            public ResultReader call() {
+                throw new IllegalStateException();
+            }
+        }, DIRECT).subscribe(recorder);
+        recorder.subscription.request(1);
+        Assert.assertTrue(recorder.error instanceof IllegalStateException);
+        Assert.assertFalse(recorder.completed);
+    }
+
+    @Test
+    public void testSecondSubscriber() {
+        ResultPublisher publisher = new ResultPublisher(new Source(1), DIRECT);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        Assert.assertNull(first.error);
+        Assert.assertTrue(second.error instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testRequestInOnSubscribe() {
+        final Source source = new Source(3);
+        Recorder recorder = new Recorder() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                super.onSubscribe(subscription);
+                Assert.assertEquals(0, source.opened.get());
+                subscription.request(Long.MAX_VALUE);
+                Assert.assertEquals(0, source.opened.get());
+            }
+        };
+        new ResultPublisher(source, DIRECT).subscribe(recorder);
+        Assert.assertEquals(3, recorder.rows.size());
+        Assert.assertTrue(recorder.completed);
+    }
+
+    /**
+     * Opens readers for a fixed number of rows and counts the opened and
+     * closed readers and the read rows.
+     */
+    private static class Source implements Callable<ResultReader> {
+        /**
+         * The number of rows of the result.
+         */
+        private final int size;
+
+        /**
+         * The number of opened readers.
+         */
+        final AtomicInteger opened = new AtomicInteger();
+
+        /**
+         * The number of closed readers.
+         */
+        final AtomicInteger closed = new AtomicInteger();
+
+        /**
+         * The number of read rows.
+         */
+        final AtomicInteger read = new AtomicInteger();
+
+        /**
+         * Creates a new source of the given number of rows.
+         *
+         * @param size the number of rows
+         */
+        Source(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public ResultReader call() {
+            opened.incrementAndGet();
+            return new ResultReader() {
+                @Override
+                public List<Var> getVariables() {
+                    return Collections.singletonList(VARIABLE);
+                }
+
+                @Override
+                protected Binding readRow() {
+                    if (read.get() == size) {
+                        return null;
+                    }
+                    return BindingFactory.binding(VARIABLE,
+                            NodeFactory.createLiteral(String.valueOf(
+                                    read.getAndIncrement())));
+                }
+
+                @Override
+                public void close() {
+                    super.close();
+                    closed.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    /**
+     * Records the signals received from a publisher.
+     */
+    private static class Recorder implements Flow.Subscriber<Binding> {
+        /**
+         * The received subscription.
+         */
+        Flow.Subscription subscription;
+
+        /**
+         * The received rows.
+         */
+        final List<Binding> rows = new ArrayList<>();
+
+        /**
+         * The received error or {@code null}.
+         */
+        Throwable error;
+
+        /**
+         * Whether the completion has been received.
+         */
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Binding item) {
+            rows.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
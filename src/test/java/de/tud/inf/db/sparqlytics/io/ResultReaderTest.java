@@ -0,0 +1,240 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.ResultSetFormatter;
+import org.apache.jena.riot.WebContent;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.ResultSetStream;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.resultset.ResultSetException;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the readers for SPARQL query results.
+ *
+ * @author Michael Rudolf
+ */
+public class ResultReaderTest {
+    /**
+     * The result variables.
+     */
+    private static final List<Var> VARIABLES = Arrays.asList(
+            Var.alloc("x"), Var.alloc("y"), Var.alloc("z"));
+
+    @Test(expected = NullPointerException.class)
+    public void testInstantiateWithNull() {
+        new TSVResultReader(null);
+    }
+
+    @Test
+    public void testTSV() {
+        testRoundTrip(ResultsFormat.FMT_RS_TSV, WebContent.contentTypeTextTSV);
+    }
+
+    @Test
+    public void testJSON() {
+        testRoundTrip(ResultsFormat.FMT_RS_JSON,
+                WebContent.contentTypeResultsJSON + "; charset=utf-8");
+    }
+
+    @Test
+    public void testXML() {
+        testRoundTrip(ResultsFormat.FMT_RS_XML, null);
+    }
+
+    @Test
+    public void testRepeatedTermsShareNodes() {
+        for (ResultsFormat format : new ResultsFormat[]{
+            ResultsFormat.FMT_RS_TSV, ResultsFormat.FMT_RS_JSON}) {
+            List<Binding> rows = read(format, format == ResultsFormat.FMT_RS_TSV ?
+                    WebContent.contentTypeTextTSV :
+                    WebContent.contentTypeResultsJSON);
+            Assert.assertSame(rows.get(3).get(VARIABLES.get(0)),
+                    rows.get(4).get(VARIABLES.get(0)));
+            Assert.assertSame(rows.get(0).get(VARIABLES.get(2)),
+                    rows.get(2).get(VARIABLES.get(2)));
+        }
+    }
+
+    @Test(expected = ResultSetException.class)
+    public void testTSVWithTooManyFields() {
+        read("?x\n<a>\t<b>\n", WebContent.contentTypeTextTSV);
+    }
+
+    @Test(expected = ResultSetException.class)
+    public void testTSVWithMalformedTerm() {
+        read("?x\n\"unterminated\n", WebContent.contentTypeTextTSV);
+    }
+
+    @Test(expected = ResultSetException.class)
+    public void testJSONWithoutHead() {
+        read("{\"results\": {\"bindings\": []}}",
+                WebContent.contentTypeResultsJSON);
+    }
+
+    @Test
+    public void testJSONWithUnknownMembers() {
+        List<Binding> rows = read("{\"head\": {\"link\": [], \"vars\": [\"x\"]}," +
+                " \"results\": {\"distinct\": false, \"bindings\": [" +
+                "{\"x\": {\"type\": \"typed-literal\", \"value\": \"1\"," +
+                " \"datatype\": \"http://www.w3.org/2001/XMLSchema#integer\"}}," +
+                " {}]}, \"extra\": {\"a\": [1, 2.5e3, null, \"\\u00e4\"]}}",
+                WebContent.contentTypeResultsJSON);
+        Assert.assertEquals(2, rows.size());
+        Assert.assertEquals(NodeFactory.createLiteral("1",
+                XSDDatatype.XSDinteger), rows.get(0).get(VARIABLES.get(0)));
+        Assert.assertTrue(rows.get(1).isEmpty());
+    }
+
+    /**
+     * Writes the rows of {@link #createRows} in the given format and checks
+     * that reading them again yields the same rows.
+     *
+     * @param format        the results format to write
+     * @param contentType   the content type to read
+     */
+    private static void testRoundTrip(ResultsFormat format, String contentType) {
+        Assert.assertEquals(normalize(createRows()),
+                normalize(read(format, contentType)));
+    }
+
+    /**
+     * Writes the rows of {@link #createRows} in the given format and reads
+     * them again.
+     *
+     * @param format        the results format to write
+     * @param contentType   the content type to read
+     * @return the rows read
+     */
+    private static List<Binding> read(ResultsFormat format,
+            String contentType) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ResultSetFormatter.output(output, new ResultSetStream(
+                Var.varNames(VARIABLES), null, createRows().iterator()),
+                format);
+        try (ResultReader reader = ResultReader.create(
+                new ByteArrayInputStream(output.toByteArray()), contentType)) {
+            Assert.assertEquals(VARIABLES, reader.getVariables());
+            List<Binding> rows = new ArrayList<>();
+            while (reader.hasNext()) {
+                rows.add(reader.next());
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Reads the rows of the given result.
+     *
+     * @param result        the result to read
+     * @param contentType   the content type of the result
+     * @return the rows read
+     */
+    private static List<Binding> read(String result, String contentType) {
+        try (ResultReader reader = ResultReader.create(new ByteArrayInputStream(
+                result.getBytes(StandardCharsets.UTF_8)), contentType)) {
+            List<Binding> rows = new ArrayList<>();
+            while (reader.hasNext()) {
+                rows.add(reader.next());
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Creates rows with RDF terms that need escaping or abbreviation.
+     *
+     * @return the created rows
+     */
+    private static List<Binding> createRows() {
+        Node blank = NodeFactory.createBlankNode();
+        Node[][] terms = {
+            {NodeFactory.createURI("http://example.org/\u00e4?a=1&b"),
+                NodeFactory.createLiteral("tab\there \"quoted\" \\ new\nline",
+                        "en"), blank},
+            {NodeFactory.createLiteral("42", XSDDatatype.XSDinteger),
+                NodeFactory.createLiteral("-1.5", XSDDatatype.XSDdecimal),
+                null},
+            {NodeFactory.createLiteral("1.0e3", XSDDatatype.XSDdouble),
+                NodeFactory.createLiteral("true", XSDDatatype.XSDboolean),
+                blank},
+            {NodeFactory.createLiteral("plain \u00fcn\u00efcode \ud83d\ude00"),
+                NodeFactory.createLiteral("2015-01-01", XSDDatatype.XSDdate),
+                NodeFactory.createBlankNode()},
+            {NodeFactory.createLiteral("plain \u00fcn\u00efcode \ud83d\ude00"),
+                null, null}
+        };
+        List<Binding> rows = new ArrayList<>();
+        for (Node[] row : terms) {
+            BindingMap binding = BindingFactory.create();
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] != null) {
+                    binding.add(VARIABLES.get(i), row[i]);
+                }
+            }
+            rows.add(binding);
+        }
+        return rows;
+    }
+
+    /**
+     * Converts the given rows to strings, numbering blank nodes in the order
+     * of their first occurrence.
+     *
+     * @param rows the rows to convert
+     * @return the rows as strings
+     */
+    private static List<String> normalize(List<Binding> rows) {
+        Map<Node, Integer> blankNodes = new HashMap<>();
+        List<String> result = new ArrayList<>();
+        for (Binding row : rows) {
+            StringBuilder builder = new StringBuilder();
+            for (Var var : VARIABLES) {
+                Node node = row.get(var);
+                if (node != null && node.isBlank()) {
+                    Integer number = blankNodes.get(node);
+                    if (number == null) {
+                        number = blankNodes.size();
+                        blankNodes.put(node, number);
+                    }
+                    builder.append("_:").append(number);
+                } else {
+                    builder.append(node);
+                }
+                builder.append(' ');
+            }
+            result.add(builder.toString());
+        }
+        return result;
+    }
+}
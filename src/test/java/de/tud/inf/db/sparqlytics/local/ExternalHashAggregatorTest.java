@@ -0,0 +1,161 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.jena.atlas.lib.Sink;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.aggregate.Aggregator;
+import org.apache.jena.sparql.expr.aggregate.AggregatorFactory;
+import org.apache.jena.sparql.function.FunctionEnvBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the hash aggregator spilling to temporary files.
+ *
+ * @author Michael Rudolf
+ */
+public class ExternalHashAggregatorTest {
+    /**
+     * The first key variable.
+     */
+    private static final Var KEY = Var.alloc("key");
+
+    /**
+     * The second key variable, which is sometimes unbound.
+     */
+    private static final Var OTHER_KEY = Var.alloc("other");
+
+    /**
+     * The variable of the aggregated values.
+     */
+    private static final Var VALUE = Var.alloc("value");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithNegativeBudget() {
+        new ExternalHashAggregator(Collections.<Var>emptyList(),
+                Collections.<Var, Aggregator>emptyMap(), -1);
+    }
+
+    @Test
+    public void testInMemory() {
+        ExternalHashAggregator aggregator = createAggregator(Long.MAX_VALUE);
+        List<String> groups = aggregate(aggregator);
+        Assert.assertEquals(0, aggregator.getSpilledPartitions());
+        Assert.assertEquals(0, aggregator.getSpilledBytes());
+        Assert.assertEquals(2000, groups.size());
+    }
+
+    @Test
+    public void testSpillingGivesIdenticalResults() {
+        List<String> expected = aggregate(createAggregator(Long.MAX_VALUE));
+        for (long budget : new long[]{0, 10000}) {
+            ExternalHashAggregator aggregator = createAggregator(budget);
+            Assert.assertEquals(expected, aggregate(aggregator));
+            Assert.assertTrue(aggregator.getSpilledPartitions() >=
+                    ExternalHashAggregator.PARTITIONS);
+            Assert.assertTrue(aggregator.getSpilledBytes() > 0);
+        }
+    }
+
+    /**
+     * Creates an aggregator computing the count, sum and maximum of the
+     * values with the given memory budget.
+     *
+     * @param budget the memory budget in bytes
+     * @return the created aggregator
+     */
+    private static ExternalHashAggregator createAggregator(long budget) {
+        Map<Var, Aggregator> aggregators = new LinkedHashMap<>();
+        aggregators.put(Var.alloc("count"), AggregatorFactory.createCount(false));
+        aggregators.put(Var.alloc("sum"),
+                AggregatorFactory.createSum(false, new ExprVar(VALUE)));
+        aggregators.put(Var.alloc("max"),
+                AggregatorFactory.createMax(false, new ExprVar(VALUE)));
+        return new ExternalHashAggregator(Arrays.asList(KEY, OTHER_KEY),
+                aggregators, budget);
+    }
+
+    /**
+     * Aggregates rows with keys of different RDF term types and returns the
+     * sorted groups.
+     *
+     * @param aggregator the aggregator to use
+     * @return the sorted groups as strings
+     */
+    private static List<String> aggregate(ExternalHashAggregator aggregator) {
+        FunctionEnvBase env = new FunctionEnvBase();
+        for (int i = 0; i < 10000; i++) {
+            int group = (i * 7919) % 2000;
+            Node key;
+            switch (group % 4) {
+                case 0:
+                    key = NodeFactory.createURI("http://example.org/" + group);
+                    break;
+                case 1:
+                    key = NodeFactory.createLiteral("label\t" + group, "en");
+                    break;
+                case 2:
+                    key = NodeFactory.createLiteral(String.valueOf(group),
+                            XSDDatatype.XSDinteger);
+                    break;
+                default:
+                    key = NodeFactory.createBlankNode("b" + group);
+            }
+            BindingMap row = BindingFactory.create();
+            row.add(KEY, key);
+            if (group % 3 != 0) {
+                row.add(OTHER_KEY, NodeFactory.createLiteral("x"));
+            }
+            if (i % 5 != 0) {
+                row.add(VALUE, NodeFactory.createLiteral(String.valueOf(i),
+                        XSDDatatype.XSDinteger));
+            }
+            aggregator.add(row, env);
+        }
+        final List<String> groups = new ArrayList<>();
+        aggregator.drain(new Sink<Binding>() {
+            @Override
+            public void send(Binding item) {
+                groups.add(item.toString());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, env);
+        Collections.sort(groups);
+        return groups;
+    }
+}
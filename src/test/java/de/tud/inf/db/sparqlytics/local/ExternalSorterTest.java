@@ -0,0 +1,198 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.jena.datatypes.xsd.XSDDatatype;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.SortCondition;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.apache.jena.sparql.engine.binding.BindingComparator;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.engine.binding.BindingMap;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the sorter spilling runs to temporary files.
+ *
+ * @author Michael Rudolf
+ */
+public class ExternalSorterTest {
+    /**
+     * The variable to sort by, which is sometimes unbound.
+     */
+    private static final Var KEY = Var.alloc("key");
+
+    /**
+     * The variable identifying the rows.
+     */
+    private static final Var ID = Var.alloc("id");
+
+    /**
+     * Orders the rows by descending key.
+     */
+    private static final Comparator<Binding> COMPARATOR =
+            new BindingComparator(Arrays.asList(new SortCondition(
+                    new ExprVar(KEY), Query.ORDER_DESCENDING)));
+
+    @Test(expected = NullPointerException.class)
+    public void testInstantiateWithNullComparator() {
+        new ExternalSorter(Arrays.asList(KEY), null, 0, -1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithNegativeOffset() {
+        new ExternalSorter(Arrays.asList(KEY), COMPARATOR, -1, -1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithEmptyBuffer() {
+        new ExternalSorter(Arrays.asList(KEY), COMPARATOR, 0, -1, 0);
+    }
+
+    @Test
+    public void testInMemory() {
+        List<Binding> rows = createRows();
+        try (ExternalSorter sorter = new ExternalSorter(Arrays.asList(KEY, ID),
+                COMPARATOR, 0, -1, rows.size())) {
+            Assert.assertEquals(expect(rows, 0, -1), sort(sorter, rows));
+            Assert.assertEquals(0, sorter.getSpilledRuns());
+            Assert.assertEquals(0, sorter.getSpilledBytes());
+        }
+    }
+
+    @Test
+    public void testSpillingGivesIdenticalResults() {
+        List<Binding> rows = createRows();
+        for (long[] window : new long[][]{{0, -1}, {0, 500}, {123, 456},
+                {1990, 100}, {3000, -1}}) {
+            try (ExternalSorter sorter = new ExternalSorter(
+                    Arrays.asList(KEY, ID), COMPARATOR, window[0], window[1],
+                    10)) {
+                Assert.assertEquals(expect(rows, window[0], window[1]),
+                        sort(sorter, rows));
+                Assert.assertTrue(sorter.getSpilledRuns() > 1);
+                Assert.assertTrue(sorter.getSpilledBytes() > 0);
+            }
+        }
+    }
+
+    @Test
+    public void testTopRowsStayInMemory() {
+        List<Binding> rows = createRows();
+        for (long[] window : new long[][]{{0, 0}, {0, 10}, {7, 3}}) {
+            try (ExternalSorter sorter = new ExternalSorter(
+                    Arrays.asList(KEY, ID), COMPARATOR, window[0], window[1],
+                    10)) {
+                Assert.assertEquals(expect(rows, window[0], window[1]),
+                        sort(sorter, rows));
+                Assert.assertEquals(0, sorter.getSpilledRuns());
+            }
+        }
+    }
+
+    /**
+     * Creates rows with keys of different RDF term types, many of which
+     * compare equal.
+     *
+     * @return the created rows
+     */
+    private static List<Binding> createRows() {
+        List<Binding> rows = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int group = (i * 7919) % 300;
+            BindingMap row = BindingFactory.create();
+            Node key;
+            switch (group % 5) {
+                case 0:
+                    key = null;
+                    break;
+                case 1:
+                    key = NodeFactory.createURI("http://example.org/" + group);
+                    break;
+                case 2:
+                    key = NodeFactory.createLiteral("label\t" + group, "en");
+                    break;
+                case 3:
+                    key = NodeFactory.createLiteral(String.valueOf(group),
+                            XSDDatatype.XSDinteger);
+                    break;
+                default:
+                    key = NodeFactory.createBlankNode("b" + group);
+            }
+            if (key != null) {
+                row.add(KEY, key);
+            }
+            row.add(ID, NodeFactory.createLiteral(String.valueOf(i),
+                    XSDDatatype.XSDinteger));
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Sorts the given rows stably in memory and applies the given offset and
+     * limit.
+     *
+     * @param rows      the rows to sort
+     * @param offset    the number of leading rows to skip
+     * @param limit     the maximum number of rows, or {@code -1} for all
+     * @return the expected rows as strings
+     */
+    private static List<String> expect(List<Binding> rows, long offset,
+            long limit) {
+        List<Binding> sorted = new ArrayList<>(rows);
+        Collections.sort(sorted, COMPARATOR);
+        int from = (int)Math.min(offset, sorted.size());
+        int to = limit < 0 ? sorted.size() :
+                (int)Math.min(from + limit, sorted.size());
+        List<String> expected = new ArrayList<>();
+        for (Binding row : sorted.subList(from, to)) {
+            expected.add(row.toString());
+        }
+        return expected;
+    }
+
+    /**
+     * Sends the given rows to the given sorter and returns the sorted rows.
+     *
+     * @param sorter    the sorter to use
+     * @param rows      the rows to sort
+     * @return the sorted rows as strings
+     */
+    private static List<String> sort(ExternalSorter sorter, List<Binding> rows) {
+        for (Binding row : rows) {
+            sorter.send(row);
+        }
+        List<String> sorted = new ArrayList<>();
+        Iterator<Binding> iterator = sorter.iterator();
+        while (iterator.hasNext()) {
+            sorted.add(iterator.next().toString());
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,61 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.local;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the index for tuples of integers.
+ *
+ * @author Michael Rudolf
+ */
+public class TupleIndexTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithNegativeWidth() {
+        new TupleIndex(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddWrongWidth() {
+        new TupleIndex(2).add(new int[]{1});
+    }
+
+    @Test
+    public void testAddAssignsDenseOrdinals() {
+        TupleIndex index = new TupleIndex(2, 0);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, index.add(new int[]{i, -i}));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(i, index.add(new int[]{i, -i}));
+            Assert.assertEquals(i, index.find(new int[]{i, -i}));
+            Assert.assertEquals(-i, index.get(i, 1));
+        }
+        Assert.assertEquals(1000, index.size());
+        Assert.assertEquals(-1, index.find(new int[]{1, 1}));
+    }
+
+    @Test
+    public void testEmptyTuples() {
+        TupleIndex index = new TupleIndex(0);
+        Assert.assertEquals(-1, index.find(new int[0]));
+        Assert.assertEquals(0, index.add(new int[0]));
+        Assert.assertEquals(0, index.add(new int[0]));
+        Assert.assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,107 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.model;
+
+import de.tud.inf.db.sparqlytics.DummyDimension;
+import de.tud.inf.db.sparqlytics.DummyMeasure;
+import de.tud.inf.db.sparqlytics.parser.CubeBuilder;
+import java.util.Collections;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the compiled layout of cubes and the session state based on it.
+ *
+ * @author Michael Rudolf
+ */
+public class CompiledCubeTest {
+    /**
+     * Creates a cube with two dummy dimensions.
+     *
+     * @param dim1 the first dimension
+     * @param dim2 the second dimension
+     * @return the cube
+     */
+    private static Cube createCube(Dimension dim1, Dimension dim2) {
+        return new CubeBuilder(new ElementTriplesBlock(BasicPattern.wrap(
+                Collections.singletonList(Triple.createMatch(
+                        NodeFactory.createVariable("test"), null, null))))).
+                addMeasure(new DummyMeasure("mes1")).addDimension(dim2).
+                addDimension(dim1).build("test");
+    }
+
+    @Test
+    public void testOrdinals() {
+        Dimension dim1 = new DummyDimension("dim1");
+        Dimension dim2 = new DummyDimension("dim2");
+        CompiledCube instance = createCube(dim1, dim2).compile();
+        Assert.assertEquals(2, instance.getDimensionCount());
+        Assert.assertSame(dim1, instance.getDimension(0));
+        Assert.assertEquals(1, instance.getOrdinal(dim2));
+        Assert.assertEquals(1, instance.getOrdinal(new DummyDimension("dim2")));
+        Assert.assertEquals(-1, instance.getOrdinal(new DummyDimension("dim3")));
+        Assert.assertEquals(8, instance.getLevelCount());
+        for (int i = 0; i < instance.getLevelCount(); i++) {
+            Assert.assertEquals(i / 4, instance.getDimensionOfLevel(i));
+        }
+        Assert.assertEquals(5, instance.getOrdinal(1, dim2.getLevels().get(1)));
+        Assert.assertEquals(7, instance.getOrdinal(1, Level.ALL));
+        Assert.assertEquals(-1, instance.getOrdinal(0, new Level("lev4",
+                NodeValue.TRUE)));
+        Assert.assertEquals(3, instance.getSortedLevel(0));
+        Assert.assertEquals(0, instance.getSortedLevel(1));
+        Assert.assertEquals(1, instance.getMeasureCount());
+    }
+
+    @Test
+    public void testSessionState() {
+        Dimension dim1 = new DummyDimension("dim1");
+        Dimension dim2 = new DummyDimension("dim2");
+        Filter filter = new Filter(Var.alloc("test"), NodeValue.TRUE);
+        Session session = new Session();
+        session.setCube(createCube(dim1, dim2));
+        long hash = session.getCubeStateHash();
+        session.setGranularity(dim2, 2);
+        session.addFilter(dim1, dim1.getLevels().get(1), filter);
+        Assert.assertEquals(2, session.getGranularity(1));
+        Assert.assertSame(filter, session.getFilter(1));
+        Assert.assertNotEquals(hash, session.getCubeStateHash());
+        session.setCube(createCube(dim1, new DummyDimension("dim3")));
+        Assert.assertEquals(0, session.getGranularity(dim1));
+        Assert.assertEquals(Collections.singletonMap(Pair.of(dim1,
+                dim1.getLevels().get(1)), filter), session.getFilters());
+        Assert.assertTrue(session.removeFilter(dim1, dim1.getLevels().get(1)));
+        Assert.assertFalse(session.removeFilter(dim1, dim1.getLevels().get(1)));
+        Assert.assertTrue(session.getFilters().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddFilterForUnknownLevel() {
+        Dimension dim1 = new DummyDimension("dim1");
+        Session session = new Session();
+        session.setCube(createCube(dim1, new DummyDimension("dim2")));
+        session.addFilter(dim1, new Level("lev4", NodeValue.TRUE),
+                new Filter(Var.alloc("test"), NodeValue.TRUE));
+    }
+}
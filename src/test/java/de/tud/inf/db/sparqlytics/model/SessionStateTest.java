@@ -0,0 +1,124 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.model;
+
+import de.tud.inf.db.sparqlytics.DummyDimension;
+import de.tud.inf.db.sparqlytics.DummyMeasure;
+import de.tud.inf.db.sparqlytics.olap.Branch;
+import de.tud.inf.db.sparqlytics.olap.Checkout;
+import de.tud.inf.db.sparqlytics.olap.RollUp;
+import de.tud.inf.db.sparqlytics.olap.Undo;
+import de.tud.inf.db.sparqlytics.parser.CubeBuilder;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.expr.NodeValue;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests immutable session states and moving between them.
+ *
+ * @author Michael Rudolf
+ */
+public class SessionStateTest {
+    /**
+     * The dimension of the test cube.
+     */
+    private final Dimension dim1 = new DummyDimension("dim1");
+
+    /**
+     * Creates a session for a cube with a single dummy dimension.
+     *
+     * @return the session
+     */
+    private Session createSession() {
+        Session session = new Session();
+        session.setCube(new CubeBuilder(new ElementTriplesBlock(
+                BasicPattern.wrap(Collections.singletonList(Triple.createMatch(
+                        NodeFactory.createVariable("test"), null, null))))).
+                addMeasure(new DummyMeasure("mes1")).addDimension(dim1).
+                build("test"));
+        return session;
+    }
+
+    @Test
+    public void testImmutable() {
+        Session session = createSession();
+        SessionState initial = session.getState();
+        session.setGranularity(dim1, 2);
+        session.addFilter(dim1, dim1.getLevels().get(0),
+                new Filter(Var.alloc("test"), NodeValue.TRUE));
+        Assert.assertEquals(0, initial.getGranularity(dim1));
+        Assert.assertTrue(initial.getFilters().isEmpty());
+        Assert.assertNotSame(initial, session.getState());
+        Assert.assertSame(session.getState(),
+                session.getState().withGranularity(dim1, 2));
+    }
+
+    @Test
+    public void testStableHash() {
+        Session session = createSession();
+        SessionState initial = session.getState();
+        session.setGranularity(dim1, 1);
+        Assert.assertNotEquals(initial.getHash(), session.getCubeStateHash());
+        session.setGranularity(dim1, 0);
+        Assert.assertEquals(initial.getHash(), session.getCubeStateHash());
+        Assert.assertEquals(initial, session.getState());
+        Assert.assertEquals(initial.hashCode(), session.getState().hashCode());
+    }
+
+    @Test
+    public void testUndo() {
+        Session session = createSession();
+        SessionState initial = session.getState();
+        session.execute(new RollUp("dim1", 1));
+        session.execute(new RollUp("dim1", 1));
+        session.execute(new Undo());
+        Assert.assertEquals(1, session.getGranularity(dim1));
+        session.execute(new Undo());
+        Assert.assertSame(initial, session.getState());
+        Assert.assertFalse(session.undo());
+    }
+
+    @Test
+    public void testBranchCheckout() {
+        Session session = createSession();
+        session.execute(new RollUp("dim1", 1));
+        session.execute(new Branch("coarse"));
+        SessionState coarse = session.getState();
+        session.execute(new Undo());
+        session.addFilter(dim1, dim1.getLevels().get(0),
+                new Filter(Var.alloc("test"), NodeValue.TRUE));
+        SessionState filtered = session.getState();
+        session.execute(new Checkout("coarse"));
+        Assert.assertSame(coarse, session.getState());
+        Assert.assertEquals(Collections.singleton("coarse"),
+                session.getBranches());
+        session.execute(new Undo());
+        Assert.assertSame(filtered, session.getState());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testCheckoutUnknownBranch() {
+        createSession().execute(new Checkout("unknown"));
+    }
+}
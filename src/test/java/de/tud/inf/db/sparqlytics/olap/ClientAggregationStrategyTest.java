@@ -0,0 +1,205 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.parser.ParseException;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the execution strategy that aggregates the facts on the client.
+ *
+ * @author Michael Rudolf
+ */
+public class ClientAggregationStrategyTest extends ITBase {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The test fixture using the local endpoint.
+     */
+    private final URL fixture;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    public ClientAggregationStrategyTest() throws IOException {
+        this(endpoint.createFixture(
+                ITBase.class.getResource("fixture.sparqlytics")));
+    }
+
+    private ClientAggregationStrategyTest(URL fixture) {
+        super(fixture);
+        this.fixture = fixture;
+    }
+
+    @Test
+    public void test1Measure() throws Exception {
+        testIsomorphism("1measure");
+    }
+
+    @Test
+    public void testSlice2Measures() throws Exception {
+        testIsomorphism("slice-2measures");
+    }
+
+    @Test
+    public void testSliceDiceRollup1Measure() throws Exception {
+        testIsomorphism("slice-dice-rollup-1measure");
+    }
+
+    @Test
+    public void testSliceDiceRollup2Measures() throws Exception {
+        testIsomorphism("slice-dice-rollup-2measures");
+    }
+
+    @Test
+    public void testSelectPerStatement() throws Exception {
+        Histogram rows = Main.METRICS.histogram(MetricRegistry.name(
+                ClientAggregationStrategy.class, "rows"));
+        long count = rows.getCount();
+        String compute = "COMPUTE (*) ORDER BY \"Location\" ASC, " +
+                "\"Date of Birth\" ASC";
+        List<String> lines = compute(
+                "DICE (\"Date of Birth\", \"Year\" AS ?year, ?year > 1970);\n" +
+                compute + ";\n" +
+                compute + " USING STRATEGY \"client\";\n");
+        Assert.assertEquals(count + 1, rows.getCount());
+        Assert.assertTrue(lines.size() > 4);
+        Assert.assertEquals(0, lines.size() % 2);
+        Assert.assertEquals(lines.subList(0, lines.size() / 2),
+                lines.subList(lines.size() / 2, lines.size()));
+    }
+
+    @Test
+    public void testSelectPerCube() throws Exception {
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                getFixture() + "USING CUBE \"test\" OVER <" +
+                endpoint.getURL() + "> USING STRATEGY \"client\";\n"));
+        parser.Start();
+        Assert.assertTrue(parser.getSession().getExecutionStrategy()
+                instanceof ClientAggregationStrategy);
+    }
+
+    @Test
+    public void testSpillingGivesIdenticalResults() throws Exception {
+        Counter partitions = Main.METRICS.counter(MetricRegistry.name(
+                ClientAggregationStrategy.class, "spilledPartitions"));
+        String operations = "COMPUTE (*) ORDER BY \"Location\" ASC, " +
+                "\"Date of Birth\" ASC;\n";
+        List<String> expected = compute(operations,
+                new ClientAggregationStrategy());
+        long count = partitions.getCount();
+        Assert.assertEquals(expected,
+                compute(operations, new ClientAggregationStrategy(0)));
+        Assert.assertTrue(partitions.getCount() > count);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithNegativeBudget() {
+        new ClientAggregationStrategy(-1);
+    }
+
+    @Test(expected = ParseException.class)
+    public void testSelectUnknownStrategy() throws Exception {
+        compute("COMPUTE (*) USING STRATEGY \"unknown\";\n");
+    }
+
+    /**
+     * Runs the given operations after the test fixture and returns the lines
+     * of the CSV output.
+     *
+     * @param operations the operations to run
+     * @return the lines of the CSV output
+     */
+    private List<String> compute(String operations) throws Exception {
+        return compute(operations, null);
+    }
+
+    /**
+     * Runs the given operations after the test fixture using the given
+     * execution strategy and returns the lines of the CSV output.
+     *
+     * @param operations    the operations to run
+     * @param strategy      the execution strategy of the session
+     * @return the lines of the CSV output
+     */
+    private List<String> compute(String operations, ExecutionStrategy strategy)
+            throws Exception {
+        try (TemporaryFile output = createTempFile("sparqlytics-output-", ".csv")) {
+            SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                    getFixture() + operations));
+            parser.getSession().setSink(output.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            parser.getSession().setExecutionStrategy(strategy);
+            parser.Start();
+            return Files.readAllLines(output.getPath(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads the test fixture using the local endpoint.
+     *
+     * @return the contents of the test fixture
+     */
+    private String getFixture() throws IOException {
+        try (InputStream in = fixture.openStream()) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8) + "\n";
+        }
+    }
+
+    /**
+     * Tests the given test case using the client aggregation strategy.
+     *
+     * @param prefix the prefix of the names for the test input and expected
+     *               output files
+     */
+    private void testIsomorphism(String prefix) throws IOException {
+        testIsomorphism(Lang.N3,
+                ITBase.class.getResource(prefix + ".test.sparqlytics"),
+                ITBase.class.getResource(prefix + ".expected.n3"),
+                "-strategy", "client");
+    }
+}
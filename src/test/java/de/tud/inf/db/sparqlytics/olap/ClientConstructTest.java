@@ -0,0 +1,92 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import java.io.IOException;
+import org.apache.jena.riot.Lang;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests generating the RDF output on the client from the rows of SELECT
+ * queries.
+ *
+ * @author Michael Rudolf
+ */
+public class ClientConstructTest extends ITBase {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    public ClientConstructTest() throws IOException {
+        super(endpoint.createFixture(
+                ITBase.class.getResource("fixture.sparqlytics")));
+    }
+
+    @Test
+    public void test1Measure() throws Exception {
+        testOnClient(Lang.N3, "1measure");
+    }
+
+    @Test
+    public void testSlice2Measures() throws Exception {
+        testOnClient(Lang.N3, "slice-2measures");
+    }
+
+    @Test
+    public void testSliceDiceRollup1Measure() throws Exception {
+        testOnClient(Lang.N3, "slice-dice-rollup-1measure");
+    }
+
+    @Test
+    public void testSliceDiceRollup2Measures() throws Exception {
+        testOnClient(Lang.N3, "slice-dice-rollup-2measures");
+    }
+
+    @Test
+    public void testUnstreamableFormat() throws Exception {
+        testOnClient(Lang.RDFXML, "slice-dice-rollup-2measures");
+    }
+
+    /**
+     * Tests the given test case with the RDF output generated on the client.
+     *
+     * @param lang      the language to write the output in
+     * @param prefix    the prefix of the names for the test input and
+     *                  expected output files
+     */
+    private void testOnClient(Lang lang, String prefix) throws IOException {
+        testIsomorphism(lang,
+                ITBase.class.getResource(prefix + ".test.sparqlytics"),
+                ITBase.class.getResource(prefix + ".expected.n3"),
+                "-clientConstruct");
+    }
+}
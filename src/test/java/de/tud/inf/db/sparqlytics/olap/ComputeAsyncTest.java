@@ -0,0 +1,211 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.io.Flow;
+import de.tud.inf.db.sparqlytics.io.ResultReader;
+import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.sparql.engine.binding.Binding;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests computing measures asynchronously.
+ *
+ * @author Michael Rudolf
+ */
+public class ComputeAsyncTest {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The definitions of the test fixture, followed by the cube selection.
+     */
+    private static String definitions;
+
+    /**
+     * Runs the computations.
+     */
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+        try (InputStream in = ITBase.class.getResourceAsStream(
+                "fixture.sparqlytics")) {
+            String fixture = IOUtils.toString(in, StandardCharsets.UTF_8);
+            definitions = fixture.substring(0,
+                    fixture.indexOf("# end of DDL part")) +
+                    "USING CUBE \"test\" OVER <" + endpoint.getURL() + ">;\n";
+        }
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    @Before
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOverlappingComputations() throws Exception {
+        Session session = createSession("ROLLUP (\"Location\", 1);\n");
+        Compute compute = createCompute(session);
+        List<Binding> expected = readAll(compute.open(session));
+        CompletableFuture<ComputeResult> countries =
+                compute.computeAsync(session, executor);
+        session.execute(new RollUp("Location", 1));
+        CompletableFuture<ComputeResult> continents =
+                compute.computeAsync(session, executor);
+        Assert.assertEquals(new HashSet<>(expected),
+                new HashSet<>(countries.get().getRows()));
+        Assert.assertEquals(countries.get().getVariables(),
+                continents.get().getVariables());
+        Assert.assertNotEquals(new HashSet<>(expected),
+                new HashSet<>(continents.get().getRows()));
+        Assert.assertEquals(new HashSet<>(continents.get().getRows()),
+                new HashSet<>(readAll(compute.open(session))));
+    }
+
+    @Test
+    public void testPublishWithBackpressure() throws Exception {
+        Session session = createSession("");
+        Compute compute = createCompute(session);
+        int total = readAll(compute.open(session)).size();
+        Assert.assertTrue(total > 2);
+        final List<Binding> received = Collections.synchronizedList(
+                new ArrayList<Binding>());
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final boolean[] completed = new boolean[1];
+        int requests = endpoint.getRequestCount();
+        Flow.Publisher<Binding> publisher = compute.publish(session, executor);
+        Assert.assertEquals(requests, endpoint.getRequestCount());
+        publisher.subscribe(new Flow.Subscriber<Binding>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(Binding item) {
+                received.add(item);
+                if (received.size() < 2) {
+                    subscription.request(1);
+                } else {
+                    subscription.cancel();
+                    cancelled.countDown();
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                cancelled.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+                cancelled.countDown();
+            }
+        });
+        Assert.assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, received.size());
+        Assert.assertFalse(completed[0]);
+        Assert.assertEquals(requests + 1, endpoint.getRequestCount());
+    }
+
+    /**
+     * Creates a session in which the cube of the test fixture has been
+     * selected and the given statements have been run.
+     *
+     * @param statements the statements to run after selecting the cube
+     * @return the created session
+     */
+    private static Session createSession(String statements) throws Exception {
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                definitions + statements));
+        parser.Start();
+        return parser.getSession();
+    }
+
+    /**
+     * Creates a computation of the first measure of the cube of the given
+     * session.
+     *
+     * @param session the session to compute in
+     * @return the created computation
+     */
+    private static Compute createCompute(Session session) {
+        return new Compute(Collections.singletonList(
+                session.getCube().findMeasure("Avg. No. Languages")),
+                Collections.<Compute.SortCondition>emptyList(), null, null);
+    }
+
+    /**
+     * Reads all rows from the given reader and closes it.
+     *
+     * @param reader the reader to read from
+     * @return the read rows
+     */
+    private static List<Binding> readAll(ResultReader reader) {
+        List<Binding> rows = new ArrayList<>();
+        try {
+            while (reader.hasNext()) {
+                rows.add(reader.next());
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,220 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.io.ResultArchiveReader;
+import de.tud.inf.db.sparqlytics.io.ResultArchiveWriter;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests computing measures for several grouping sets at once.
+ *
+ * @author Michael Rudolf
+ */
+public class ComputeAtLevelsTest extends ITBase {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The test fixture using the local endpoint.
+     */
+    private static URL fixture;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+        fixture = endpoint.createFixture(
+                ITBase.class.getResource("fixture.sparqlytics"));
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    public ComputeAtLevelsTest() {
+        super(fixture);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInstantiateWithoutLevels() {
+        new ComputeAtLevels(new Compute(Collections.<Measure>emptyList(),
+                Collections.<Compute.SortCondition>emptyList(), null, null),
+                Collections.singletonMap("Location",
+                        Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void testLattice() throws Exception {
+        String order = " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n";
+        String separate = "DICE (\"Date of Birth\", \"Year\" AS ?year, ?year < 1990);\n" +
+                "COMPUTE (\"Avg. No. Languages\", \"Max. Comment Length\")" + order +
+                "ROLLUP (\"Date of Birth\", 2);\n" +
+                "COMPUTE (\"Avg. No. Languages\", \"Max. Comment Length\")" + order +
+                "ROLLUP (\"Location\", 1);\n" +
+                "DRILLDOWN (\"Date of Birth\", 2);\n" +
+                "COMPUTE (\"Avg. No. Languages\", \"Max. Comment Length\")" + order +
+                "ROLLUP (\"Date of Birth\", 2);\n" +
+                "COMPUTE (\"Avg. No. Languages\", \"Max. Comment Length\")" + order;
+        String lattice = "DICE (\"Date of Birth\", \"Year\" AS ?year, ?year < 1990);\n" +
+                "COMPUTE (\"Avg. No. Languages\", \"Max. Comment Length\")" +
+                " AT LEVELS (\"Location\", \"City\", \"Country\")," +
+                " (\"Date of Birth\", \"Day\", \"Year\")" + order;
+        int requests = endpoint.getRequestCount();
+        List<String> expected = compute(separate);
+        Assert.assertEquals(4, endpoint.getRequestCount() - requests);
+        requests = endpoint.getRequestCount();
+        List<String> actual = compute(lattice);
+
+        //Two dimension tables and a single fact query
+        Assert.assertEquals(3, endpoint.getRequestCount() - requests);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testNotDecomposable() throws Exception {
+        String prefix = "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                "SELECT FACTS { ?person a snvoc:Person };\n" +
+                "DEFINE DIMENSION \"Person\" FROM (?person a snvoc:Person)" +
+                " WITH (LEVEL \"Person\" AS ?person);\n" +
+                "DEFINE DIMENSION \"Language\" FROM (?person snvoc:speaks ?language)" +
+                " WITH (LEVEL \"Language\" AS ?language);\n" +
+                "DEFINE MEASURE \"Languages\" AS ?language" +
+                " WHERE (?person snvoc:speaks ?language) WITH \"COUNT\";\n" +
+                "CREATE CUBE \"People\" FROM \"Person\", \"Language\"" +
+                " WITH \"Languages\";\n" +
+                "USING CUBE \"People\" OVER <" + endpoint.getURL() + ">;\n";
+        String order = " ORDER BY \"Person\" ASC, \"Language\" ASC;\n";
+        List<String> expected = compute(prefix,
+                "COMPUTE (\"Languages\")" + order +
+                "ROLLUP (\"Person\", 1);\n" +
+                "COMPUTE (\"Languages\")" + order +
+                "DRILLDOWN (\"Person\", 1);\n" +
+                "COMPUTE (\"Languages\")" + order);
+        List<String> actual = compute(prefix,
+                "COMPUTE (\"Languages\")" +
+                " AT LEVELS (\"Person\", \"Person\", \"ALL\")" + order +
+                "COMPUTE (\"Languages\")" + order);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testArchivedPerGroupingSet() throws Exception {
+        String order = " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n";
+        List<String> expected = archive(
+                "COMPUTE (\"Avg. No. Languages\")" + order +
+                "ROLLUP (\"Location\", 1);\n" +
+                "COMPUTE (\"Avg. No. Languages\")" + order);
+        List<String> actual = archive("COMPUTE (\"Avg. No. Languages\")" +
+                " AT LEVELS (\"Location\", \"City\", \"Country\")" + order);
+        Assert.assertEquals(2, actual.size());
+        Assert.assertNotEquals(actual.get(0), actual.get(1));
+        Assert.assertEquals(expected, actual);
+    }
+
+    /**
+     * Runs the given script after the test fixture and returns the CSV output.
+     *
+     * @param script the script to run
+     * @return the lines of the CSV output
+     */
+    private List<String> compute(String script) throws Exception {
+        try (InputStream in = fixture.openStream()) {
+            return compute(IOUtils.toString(in, StandardCharsets.UTF_8), script);
+        }
+    }
+
+    /**
+     * Runs the given script after the given prefix and returns the CSV output.
+     *
+     * @param prefix the definitions to run first
+     * @param script the script to run
+     * @return the lines of the CSV output
+     */
+    private List<String> compute(String prefix, String script) throws Exception {
+        try (TemporaryFile output = createTempFile("sparqlytics-output-", ".csv")) {
+            SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                    prefix + "\n" + script));
+            parser.getSession().setSink(output.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            parser.Start();
+            return Files.readAllLines(output.getPath(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Runs the given script after the test fixture, appending the results to
+     * an archive, and returns the archived records.
+     *
+     * @param script the script to run
+     * @return the cube state hash and the CSV output of every record
+     */
+    private List<String> archive(String script) throws Exception {
+        String prefix;
+        try (InputStream in = fixture.openStream()) {
+            prefix = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        try (TemporaryFile file = createTempFile("sparqlytics-archive-",
+                ".sra")) {
+            File archive = file.getPath().toFile();
+            try {
+                SPARQLyticsParser parser = new SPARQLyticsParser(
+                        new StringReader(prefix + "\n" + script));
+                Session session = parser.getSession();
+                session.setResultsFormat(ResultsFormat.FMT_RS_CSV);
+                session.setArchive(archive);
+                parser.Start();
+                session.close();
+                List<String> records = new ArrayList<>();
+                try (ResultArchiveReader reader =
+                        new ResultArchiveReader(archive)) {
+                    for (ResultArchiveReader.Entry entry : reader.getEntries()) {
+                        try (InputStream in = reader.openStream(entry)) {
+                            records.add(entry.getCubeStateHash() + "\n" +
+                                    IOUtils.toString(in, StandardCharsets.UTF_8));
+                        }
+                    }
+                }
+                return records;
+            } finally {
+                ResultArchiveWriter.getIndexFile(archive).delete();
+            }
+        }
+    }
+}
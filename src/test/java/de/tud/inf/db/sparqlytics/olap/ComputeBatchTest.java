@@ -0,0 +1,163 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests merging compute operations that share the same cube state.
+ *
+ * @author Michael Rudolf
+ */
+public class ComputeBatchTest extends ITBase {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The test fixture using the local endpoint.
+     */
+    private static URL fixture;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+        fixture = endpoint.createFixture(
+                ITBase.class.getResource("fixture.sparqlytics"));
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    public ComputeBatchTest() {
+        super(fixture);
+    }
+
+    @Test
+    public void testMergedComputesProduceSameOutput() throws Exception {
+        String script = "ROLLUP (\"Location\", 1);\n" +
+                "COMPUTE (\"Avg. No. Languages\")" +
+                " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n" +
+                "COMPUTE (\"Max. Comment Length\", \"Avg. No. Languages\")" +
+                " ORDER BY \"Max. Comment Length\" DESC, \"Location\" ASC," +
+                " \"Date of Birth\" ASC LIMIT 2;\n" +
+                "COMPUTE (\"Max. Comment Length\")" +
+                " ORDER BY \"Location\" DESC, \"Date of Birth\" DESC" +
+                " LIMIT 3 OFFSET 1;\n" +
+                "SLICE (\"Location\", \"Country\", dbpedia:Italy);\n" +
+                "COMPUTE (\"Avg. No. Languages\")" +
+                " ORDER BY \"Date of Birth\" ASC;\n";
+        int requests = endpoint.getRequestCount();
+        List<String> expected = compute(script, false);
+        Assert.assertEquals(4, endpoint.getRequestCount() - requests);
+        requests = endpoint.getRequestCount();
+        List<String> actual = compute(script, true);
+        Assert.assertEquals(2, endpoint.getRequestCount() - requests);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testMergedComputesAcrossStateChanges() throws Exception {
+        String script = "COMPUTE (\"Avg. No. Languages\")" +
+                " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n" +
+                "ROLLUP (\"Location\", 1);\n" +
+                "UNDO;\n" +
+                "BRANCH \"base\";\n" +
+                "COMPUTE (\"Max. Comment Length\")" +
+                " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n" +
+                "SLICE (\"Location\", \"Country\", dbpedia:Italy);\n" +
+                "COMPUTE (\"Avg. No. Languages\")" +
+                " ORDER BY \"Date of Birth\" ASC;\n" +
+                "CHECKOUT \"base\";\n" +
+                "COMPUTE (\"Avg. No. Languages\", \"Max. Comment Length\")" +
+                " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n";
+        int requests = endpoint.getRequestCount();
+        List<String> expected = compute(script, false);
+        Assert.assertEquals(4, endpoint.getRequestCount() - requests);
+        requests = endpoint.getRequestCount();
+        List<String> actual = compute(script, true);
+        Assert.assertEquals(3, endpoint.getRequestCount() - requests);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testMergedComputesWithStrategy() throws Exception {
+        String script = "COMPUTE (\"Avg. No. Languages\")" +
+                " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n" +
+                "COMPUTE (\"Max. Comment Length\")" +
+                " ORDER BY \"Location\" ASC, \"Date of Birth\" ASC;\n";
+        Assert.assertEquals(compute(script, false), compute(script, true,
+                new SplitMeasuresStrategy()));
+    }
+
+    /**
+     * Runs the given script after the test fixture and returns the CSV output.
+     *
+     * @param script    the script to run
+     * @param batching  whether to merge compute operations
+     * @return the lines of the CSV output
+     */
+    private List<String> compute(String script, boolean batching)
+            throws Exception {
+        return compute(script, batching, null);
+    }
+
+    /**
+     * Runs the given script after the test fixture using the given execution
+     * strategy and returns the CSV output.
+     *
+     * @param script    the script to run
+     * @param batching  whether to merge compute operations
+     * @param strategy  the execution strategy to use
+     * @return the lines of the CSV output
+     */
+    private List<String> compute(String script, boolean batching,
+            ExecutionStrategy strategy) throws Exception {
+        String contents;
+        try (InputStream in = fixture.openStream()) {
+            contents = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        try (TemporaryFile output = createTempFile("sparqlytics-output-", ".csv")) {
+            SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                    contents + "\n" + script));
+            parser.getSession().setSink(output.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            parser.getSession().setExecutionStrategy(strategy);
+            parser.getSession().setBatching(batching);
+            parser.Start();
+            return Files.readAllLines(output.getPath(), StandardCharsets.UTF_8);
+        }
+    }
+}
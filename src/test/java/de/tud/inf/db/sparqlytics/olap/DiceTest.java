@@ -30,6 +30,9 @@ import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.graph.Triple;
 import org.apache.jena.sparql.core.BasicPattern;
 import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.sparql.expr.E_NotEquals;
+import org.apache.jena.sparql.expr.ExprVar;
 import org.apache.jena.sparql.expr.NodeValue;
 import org.apache.jena.sparql.syntax.ElementTriplesBlock;
 import org.junit.Assert;
@@ -77,4 +80,26 @@ public class DiceTest {
         Assert.assertSame(dim1, key.getLeft());
         Assert.assertSame(lev1, key.getRight());
     }
+
+    @Test
+    public void testBind() {
+        Var parameter = Var.alloc("country");
+        Filter filter = new Filter(Var.alloc("test"), new E_NotEquals(
+                new ExprVar("test"), new ExprVar(parameter)));
+        Dice instance = new Dice("dim1", "lev1", filter);
+        Assert.assertEquals(Collections.singleton(parameter),
+                instance.getParameters());
+        Dice bound = instance.bind(BindingFactory.binding(parameter,
+                NodeFactory.createURI("http://example.org/Italy")));
+        Assert.assertTrue(bound.getParameters().isEmpty());
+        Assert.assertEquals(Collections.singleton(parameter),
+                instance.getParameters());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBindMissingParameter() {
+        Filter filter = new Filter(Var.alloc("test"), new E_NotEquals(
+                new ExprVar("test"), new ExprVar("country")));
+        new Dice("dim1", "lev1", filter).bind(BindingFactory.binding());
+    }
 }
@@ -0,0 +1,149 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import de.tud.inf.db.sparqlytics.DummyDimension;
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.Main;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Filter;
+import de.tud.inf.db.sparqlytics.model.Level;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.apache.jena.sparql.util.ExprUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the detection of contradictory filters.
+ *
+ * @author Michael Rudolf
+ */
+public class FilterAnalyzerTest {
+    /**
+     * The first test dimension, whose levels all have the same expression.
+     */
+    private final Dimension dim1 = new DummyDimension("dim1");
+
+    /**
+     * The second test dimension.
+     */
+    private final Dimension dim2 = new DummyDimension("dim2");
+
+    /**
+     * Creates a filter on the variable {@code ?x} from the given predicate.
+     *
+     * @param predicate the predicate in SPARQL syntax
+     * @return the filter
+     */
+    private static Filter filter(String predicate) {
+        return new Filter(Var.alloc("x"), ExprUtils.parse(predicate));
+    }
+
+    /**
+     * Returns whether the given predicates on the given levels are detected
+     * as contradictory.
+     *
+     * @param filters the dimensions, level indexes and predicates
+     * @return whether the filters are unsatisfiable
+     */
+    private static boolean isUnsatisfiable(Object... filters) {
+        Map<Pair<Dimension, Level>, Filter> map = new HashMap<>();
+        for (int i = 0; i < filters.length; i += 3) {
+            Dimension dimension = (Dimension) filters[i];
+            map.put(Pair.of(dimension, dimension.getLevels().get(
+                    (Integer) filters[i + 1])), filter((String) filters[i + 2]));
+        }
+        return FilterAnalyzer.isUnsatisfiable(map);
+    }
+
+    @Test
+    public void testEqualities() {
+        Assert.assertTrue(isUnsatisfiable(
+                dim1, 0, "?x = <http://example.org/Italy>",
+                dim1, 1, "?x = <http://example.org/USA>"));
+        Assert.assertFalse(isUnsatisfiable(
+                dim1, 0, "?x = <http://example.org/Italy>",
+                dim2, 1, "?x = <http://example.org/USA>"));
+        Assert.assertFalse(isUnsatisfiable(
+                dim1, 0, "?x = 1", dim1, 1, "1.0 = ?x"));
+    }
+
+    @Test
+    public void testRanges() {
+        Assert.assertTrue(isUnsatisfiable(dim1, 0, "?x > 2000 && ?x < 1990"));
+        Assert.assertTrue(isUnsatisfiable(dim1, 0, "?x > 2000 && ?x <= 2000"));
+        Assert.assertFalse(isUnsatisfiable(dim1, 0, "?x >= 2000 && 2000 >= ?x"));
+        Assert.assertTrue(isUnsatisfiable(
+                dim1, 0, "?x = 1985", dim1, 1, "?x >= 1990"));
+        Assert.assertFalse(isUnsatisfiable(dim1, 0, "?x > \"a\" && ?x < 5"));
+    }
+
+    @Test
+    public void testSets() {
+        Assert.assertTrue(isUnsatisfiable(dim1, 0,
+                "?x IN (<http://example.org/a>, <http://example.org/b>) && " +
+                "?x != <http://example.org/a> && ?x != <http://example.org/b>"));
+        Assert.assertFalse(isUnsatisfiable(dim1, 0,
+                "?x IN (<http://example.org/a>, <http://example.org/b>) && " +
+                "?x != <http://example.org/a>"));
+        Assert.assertTrue(isUnsatisfiable(dim1, 0, "false"));
+        Assert.assertFalse(isUnsatisfiable(dim1, 0,
+                "?x = 1 || ?x = <http://example.org/a>"));
+    }
+
+    @Test
+    public void testSkipQuery() throws Exception {
+        try (LocalEndpoint endpoint = LocalEndpoint.forTestData();
+                ITBase.TemporaryFile output = ITBase.createTempFile(
+                        "sparqlytics-output-", ".csv");
+                InputStream in = ITBase.class.getResourceAsStream(
+                        "fixture.sparqlytics")) {
+            String fixture = IOUtils.toString(in, StandardCharsets.UTF_8);
+            SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                    fixture.substring(0, fixture.indexOf("# end of DDL part")) +
+                    "USING CUBE \"test\" OVER <" + endpoint.getURL() + ">;\n" +
+                    "DICE (\"Date of Birth\", \"Year\" AS ?year," +
+                    " ?year > 2000 && ?year < 1990);\n" +
+                    "COMPUTE (\"Avg. No. Languages\");\n"));
+            parser.getSession().setSink(output.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            Counter skipped = Main.METRICS.counter(MetricRegistry.name(
+                    Compute.class, "unsatisfiable"));
+            long count = skipped.getCount();
+            parser.Start();
+            Assert.assertEquals(0, endpoint.getRequestCount());
+            Assert.assertEquals(count + 1, skipped.getCount());
+            List<String> lines = Files.readAllLines(output.getPath(),
+                    StandardCharsets.UTF_8);
+            Assert.assertEquals(lines.toString(), 1, lines.size());
+        }
+    }
+}
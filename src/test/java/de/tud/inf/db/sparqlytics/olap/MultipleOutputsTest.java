@@ -0,0 +1,135 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests writing the result of a compute operation to several outputs.
+ *
+ * @author Michael Rudolf
+ */
+public class MultipleOutputsTest {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    @Test
+    public void testSingleQuery() throws Exception {
+        testOutputs(null);
+    }
+
+    @Test
+    public void testClientStrategy() throws Exception {
+        testOutputs(new ClientAggregationStrategy());
+    }
+
+    /**
+     * Computes the languages per person once with a CSV and a Turtle output
+     * and compares the outputs to separate computations in each format.
+     *
+     * @param strategy the execution strategy to use
+     */
+    private void testOutputs(ExecutionStrategy strategy) throws Exception {
+        try (ITBase.TemporaryFile csv = ITBase.createTempFile(
+                    "sparqlytics-output-", ".csv");
+                ITBase.TemporaryFile turtle = ITBase.createTempFile(
+                    "sparqlytics-output-", ".ttl");
+                ITBase.TemporaryFile expectedCSV = ITBase.createTempFile(
+                    "sparqlytics-output-", ".csv");
+                ITBase.TemporaryFile expectedTurtle = ITBase.createTempFile(
+                    "sparqlytics-output-", ".ttl")) {
+            SPARQLyticsParser parser = createParser();
+            parser.getSession().setSink(expectedCSV.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            parser.getSession().setExecutionStrategy(strategy);
+            parser.Start();
+            parser = createParser();
+            parser.getSession().setSink(expectedTurtle.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RDF_TURTLE);
+            parser.getSession().setExecutionStrategy(strategy);
+            parser.Start();
+
+            parser = createParser();
+            parser.getSession().setSink(csv.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            parser.getSession().addOutput(turtle.getPath().toFile(),
+                    ResultsFormat.FMT_RDF_TURTLE);
+            parser.getSession().setExecutionStrategy(strategy);
+            int requests = endpoint.getRequestCount();
+            parser.Start();
+            if (strategy == null) {
+                Assert.assertEquals(1, endpoint.getRequestCount() - requests);
+            }
+
+            List<String> lines = Files.readAllLines(csv.getPath(),
+                    StandardCharsets.UTF_8);
+            Assert.assertTrue(lines.size() > 1);
+            Assert.assertEquals(Files.readAllLines(expectedCSV.getPath(),
+                    StandardCharsets.UTF_8), lines);
+            Model model = RDFDataMgr.loadModel(
+                    turtle.getPath().toUri().toString(), Lang.TURTLE);
+            Assert.assertFalse(model.isEmpty());
+            Assert.assertTrue(model.isIsomorphicWith(RDFDataMgr.loadModel(
+                    expectedTurtle.getPath().toUri().toString(), Lang.TURTLE)));
+        }
+    }
+
+    /**
+     * Creates a parser computing the number of languages spoken per person.
+     *
+     * @return the created parser
+     */
+    private static SPARQLyticsParser createParser() {
+        return new SPARQLyticsParser(new StringReader(
+                "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                "SELECT FACTS { ?person a snvoc:Person };\n" +
+                "DEFINE DIMENSION \"Person\" FROM (?person a snvoc:Person)" +
+                " WITH (LEVEL \"Person\" AS ?person);\n" +
+                "DEFINE MEASURE \"Languages\" AS ?language" +
+                " WHERE (?person snvoc:speaks ?language) WITH \"COUNT\";\n" +
+                "CREATE CUBE \"People\" FROM \"Person\" WITH \"Languages\";\n" +
+                "USING CUBE \"People\" OVER <" + endpoint.getURL() + ">;\n" +
+                "COMPUTE (\"Languages\") ORDER BY \"Languages\" DESC;\n"));
+    }
+}
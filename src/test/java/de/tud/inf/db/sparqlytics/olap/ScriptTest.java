@@ -0,0 +1,179 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.parser.ParseException;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests compiling scripts with parameters once and executing them many times.
+ *
+ * @author Michael Rudolf
+ */
+public class ScriptTest {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The definitions of the test fixture.
+     */
+    private static String definitions;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+        try (InputStream in = ITBase.class.getResourceAsStream(
+                "fixture.sparqlytics")) {
+            String fixture = IOUtils.toString(in, StandardCharsets.UTF_8);
+            definitions = fixture.substring(0,
+                    fixture.indexOf("# end of DDL part")) +
+                    "USING CUBE \"test\" OVER <" + endpoint.getURL() + ">;\n" +
+                    "ROLLUP (\"Location\", 1);\n";
+        }
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    @Test
+    public void testExecuteWithDifferentParameters() throws Exception {
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                definitions +
+                "SLICE (\"Location\", \"Country\", $country);\n" +
+                "COMPUTE (\"Avg. No. Languages\");\n"));
+        int requests = endpoint.getRequestCount();
+        Script script = parser.compile();
+        Assert.assertEquals(requests, endpoint.getRequestCount());
+        Assert.assertEquals(Collections.singleton(Var.alloc("country")),
+                script.getParameters());
+        List<String> italy = execute(parser, script,
+                "http://dbpedia.org/resource/Italy");
+        List<String> usa = execute(parser, script,
+                "http://dbpedia.org/resource/USA");
+        Assert.assertEquals(requests + 2, endpoint.getRequestCount());
+        Assert.assertTrue(italy.toString(), containsCountry(italy, "Italy"));
+        Assert.assertFalse(italy.toString(), containsCountry(italy, "USA"));
+        Assert.assertTrue(usa.toString(), containsCountry(usa, "USA"));
+        Assert.assertFalse(usa.toString(), containsCountry(usa, "Italy"));
+        Assert.assertEquals(italy, execute(parser, script,
+                "http://dbpedia.org/resource/Italy"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExecuteWithUnboundParameter() throws Exception {
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                definitions +
+                "DICE (\"Location\", \"Country\" AS ?c, ?c != $country);\n" +
+                "COMPUTE (\"Avg. No. Languages\");\n"));
+        parser.compile().execute(parser.getSession(),
+                Collections.<String, Node>emptyMap());
+    }
+
+    @Test
+    public void testStartWithParameter() throws Exception {
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                definitions +
+                "DICE (\"Location\", \"Country\" AS ?c, ?c != $country);\n" +
+                "COMPUTE (\"Avg. No. Languages\");\n"));
+        parser.setParameter("country", NodeFactory.createURI(
+                "http://dbpedia.org/resource/Italy"));
+        List<String> lines = start(parser);
+        Assert.assertTrue(lines.toString(), containsCountry(lines, "USA"));
+        Assert.assertFalse(lines.toString(), containsCountry(lines, "Italy"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testStartWithUnboundParameter() throws Exception {
+        start(new SPARQLyticsParser(new StringReader(definitions +
+                "SLICE (\"Location\", \"Country\", $country);\n")));
+    }
+
+    /**
+     * Executes the given script with the given country as parameter.
+     *
+     * @param parser    the parser that compiled the script
+     * @param script    the script to execute
+     * @param country   the IRI of the country
+     * @return the lines of the CSV output
+     */
+    private static List<String> execute(SPARQLyticsParser parser,
+            Script script, String country) throws IOException {
+        try (ITBase.TemporaryFile output = ITBase.createTempFile(
+                "sparqlytics-output-", ".csv")) {
+            parser.getSession().setSink(output.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            script.execute(parser.getSession(), Collections.singletonMap(
+                    "country", NodeFactory.createURI(country)));
+            return Files.readAllLines(output.getPath(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Parses and executes the script of the given parser.
+     *
+     * @param parser the parser to start
+     * @return the lines of the CSV output
+     */
+    private static List<String> start(SPARQLyticsParser parser)
+            throws Exception {
+        try (ITBase.TemporaryFile output = ITBase.createTempFile(
+                "sparqlytics-output-", ".csv")) {
+            parser.getSession().setSink(output.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            parser.Start();
+            return Files.readAllLines(output.getPath(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns whether any of the given lines mentions the given country.
+     *
+     * @param lines     the lines to search
+     * @param country   the local name of the country
+     * @return whether the country occurs
+     */
+    private static boolean containsCountry(List<String> lines, String country) {
+        for (String line : lines) {
+            if (line.contains("http://dbpedia.org/resource/" + country)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
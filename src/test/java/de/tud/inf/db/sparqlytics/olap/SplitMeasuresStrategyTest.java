@@ -0,0 +1,121 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the execution strategy that splits measures into separate queries.
+ *
+ * @author Michael Rudolf
+ */
+public class SplitMeasuresStrategyTest extends ITBase {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    public SplitMeasuresStrategyTest() throws IOException {
+        super(endpoint.createFixture(
+                ITBase.class.getResource("fixture.sparqlytics")));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testInstantiateWithNull() {
+        new SplitMeasuresStrategy(null);
+    }
+
+    @Test
+    public void testSlice2Measures() throws Exception {
+        int requests = endpoint.getRequestCount();
+        testIsomorphism(Lang.N3,
+                ITBase.class.getResource("slice-2measures.test.sparqlytics"),
+                ITBase.class.getResource("slice-2measures.expected.n3"),
+                "-strategy", "split");
+        Assert.assertEquals(2, endpoint.getRequestCount() - requests);
+    }
+
+    @Test
+    public void testSliceDiceRollup2Measures() throws Exception {
+        testIsomorphism(Lang.N3,
+                ITBase.class.getResource("slice-dice-rollup-2measures.test.sparqlytics"),
+                ITBase.class.getResource("slice-dice-rollup-2measures.expected.n3"),
+                "-strategy", "split");
+    }
+
+    @Test
+    public void testIndependentSeedPatterns() throws Exception {
+        String alice = "http://www.ldbc.eu/ldbc_socialnet/1.0/data/alice";
+        Assert.assertTrue(computeCounts(null).contains("6,6," + alice));
+        Assert.assertTrue(computeCounts(new SplitMeasuresStrategy()).contains(
+                "3,2," + alice));
+    }
+
+    /**
+     * Counts the languages and comments per person using the given execution
+     * strategy.
+     *
+     * @param strategy the execution strategy to use
+     * @return the lines of the CSV output
+     */
+    private List<String> computeCounts(ExecutionStrategy strategy)
+            throws Exception {
+        try (TemporaryFile output = createTempFile("sparqlytics-output-", ".csv")) {
+            SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                    "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                    "SELECT FACTS { ?person a snvoc:Person };\n" +
+                    "DEFINE DIMENSION \"Person\" FROM (?person a snvoc:Person)" +
+                    " WITH (LEVEL \"Person\" AS ?person);\n" +
+                    "DEFINE MEASURE \"Languages\" AS ?language" +
+                    " WHERE (?person snvoc:speaks ?language) WITH \"COUNT\";\n" +
+                    "DEFINE MEASURE \"Comments\" AS ?comment" +
+                    " WHERE (?comment snvoc:hasCreator ?person) WITH \"COUNT\";\n" +
+                    "CREATE CUBE \"People\" FROM \"Person\"" +
+                    " WITH \"Languages\", \"Comments\";\n" +
+                    "USING CUBE \"People\" OVER <" + endpoint.getURL() + ">;\n" +
+                    "COMPUTE (\"Languages\", \"Comments\");\n"));
+            parser.getSession().setSink(output.getPath().toFile());
+            parser.getSession().setResultsFormat(ResultsFormat.FMT_RS_CSV);
+            parser.getSession().setExecutionStrategy(strategy);
+            parser.Start();
+            return Files.readAllLines(output.getPath(), StandardCharsets.UTF_8);
+        }
+    }
+}
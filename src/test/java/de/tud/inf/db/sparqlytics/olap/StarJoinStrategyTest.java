@@ -0,0 +1,123 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the execution strategy that evaluates the star join on the client.
+ *
+ * @author Michael Rudolf
+ */
+public class StarJoinStrategyTest extends ITBase {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The test fixture using the local endpoint.
+     */
+    private final URL fixture;
+
+    @BeforeClass
+    public static void startEndpoint() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+    }
+
+    @AfterClass
+    public static void stopEndpoint() {
+        endpoint.close();
+    }
+
+    public StarJoinStrategyTest() throws IOException {
+        this(endpoint.createFixture(
+                ITBase.class.getResource("fixture.sparqlytics")));
+    }
+
+    private StarJoinStrategyTest(URL fixture) {
+        super(fixture);
+        this.fixture = fixture;
+    }
+
+    @Test
+    public void test1Measure() throws Exception {
+        testIsomorphism("1measure");
+    }
+
+    @Test
+    public void testSlice2Measures() throws Exception {
+        testIsomorphism("slice-2measures");
+    }
+
+    @Test
+    public void testSliceDiceRollup1Measure() throws Exception {
+        testIsomorphism("slice-dice-rollup-1measure");
+    }
+
+    @Test
+    public void testSliceDiceRollup2Measures() throws Exception {
+        testIsomorphism("slice-dice-rollup-2measures");
+    }
+
+    @Test
+    public void testDimensionTablesAreCached() throws Exception {
+        String contents;
+        try (InputStream in = fixture.openStream()) {
+            contents = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                contents + "\nCOMPUTE (\"Avg. No. Languages\");\n" +
+                "ROLLUP (\"Location\", 1);\n" +
+                "SLICE (\"Location\", \"Country\", dbpedia:Italy);\n" +
+                "COMPUTE (\"Avg. No. Languages\");\n"));
+        parser.getSession().setResultsFormat(ResultsFormat.FMT_NONE);
+        parser.getSession().setExecutionStrategy(new StarJoinStrategy());
+        int requests = endpoint.getRequestCount();
+        parser.Start();
+
+        //Two dimension tables and two fact queries
+        Assert.assertEquals(4, endpoint.getRequestCount() - requests);
+    }
+
+    /**
+     * Tests the given test case using the star join strategy.
+     *
+     * @param prefix the prefix of the names for the test input and expected
+     *               output files
+     */
+    private void testIsomorphism(String prefix) throws IOException {
+        testIsomorphism(Lang.N3,
+                ITBase.class.getResource(prefix + ".test.sparqlytics"),
+                ITBase.class.getResource(prefix + ".expected.n3"),
+                "-strategy", "starjoin");
+    }
+}
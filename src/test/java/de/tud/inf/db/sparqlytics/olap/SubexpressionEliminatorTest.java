@@ -0,0 +1,329 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.olap;
+
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Filter;
+import de.tud.inf.db.sparqlytics.model.Level;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.model.Session;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.jena.query.Query;
+import org.apache.jena.query.QueryExecution;
+import org.apache.jena.query.QueryExecutionFactory;
+import org.apache.jena.query.QueryFactory;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.shared.PrefixMapping;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.core.VarAlloc;
+import org.apache.jena.sparql.expr.Expr;
+import org.apache.jena.sparql.expr.ExprTransform;
+import org.apache.jena.sparql.expr.ExprTransformCopy;
+import org.apache.jena.sparql.expr.ExprTransformer;
+import org.apache.jena.sparql.expr.ExprVar;
+import org.apache.jena.sparql.expr.ExprVars;
+import org.apache.jena.sparql.syntax.Element;
+import org.apache.jena.sparql.syntax.ElementBind;
+import org.apache.jena.sparql.syntax.ElementGroup;
+import org.apache.jena.sparql.syntax.ElementOptional;
+import org.apache.jena.sparql.util.ExprUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the elimination of common subexpressions.
+ *
+ * @author Michael Rudolf
+ */
+public class SubexpressionEliminatorTest {
+    @Test(expected = NullPointerException.class)
+    public void testInstantiateWithNull() {
+        new SubexpressionEliminator(Collections.<Expr>emptyList(), null, null);
+    }
+
+    @Test
+    public void testRepeatedSubexpressionBoundOnce() {
+        SubexpressionEliminator eliminator = eliminate(null,
+                "CONCAT(STR(DAY(xsd:dateTime(?date))), \"-\", " +
+                "STR(MONTH(xsd:dateTime(?date))))",
+                "YEAR(xsd:dateTime(?date))");
+        Map<Var, Expr> bindings = eliminator.getBindings();
+        Assert.assertEquals(1, bindings.size());
+        Var helper = bindings.keySet().iterator().next();
+        Assert.assertEquals(parse("xsd:dateTime(?date)"), bindings.get(helper));
+        for (Expr expr : eliminator.getExpressions()) {
+            Assert.assertEquals(Collections.singleton(helper),
+                    ExprVars.getVarsMentioned(expr));
+        }
+    }
+
+    @Test
+    public void testLargestSubexpressionFirst() {
+        SubexpressionEliminator eliminator = eliminate(null,
+                "STRLEN(STR(?x)) + 1", "STRLEN(STR(?x)) * 2");
+        Assert.assertEquals(Collections.singletonList(parse("STRLEN(STR(?x))")),
+                new ArrayList<>(eliminator.getBindings().values()));
+    }
+
+    @Test
+    public void testNestedHelpersOrdered() {
+        SubexpressionEliminator eliminator = eliminate(null,
+                "STRLEN(STR(?x)) + 1", "STRLEN(STR(?x)) * 2", "UCASE(STR(?x))");
+        List<Var> helpers = new ArrayList<>(eliminator.getBindings().keySet());
+        Assert.assertEquals(2, helpers.size());
+        Assert.assertEquals(Collections.singleton(helpers.get(0)),
+                ExprVars.getVarsMentioned(
+                        eliminator.getBindings().get(helpers.get(1))));
+    }
+
+    @Test
+    public void testScopeRestrictsSubexpressions() {
+        SubexpressionEliminator eliminator = eliminate(
+                Collections.singleton(Var.alloc("other")),
+                "YEAR(xsd:dateTime(?date))", "MONTH(xsd:dateTime(?date))");
+        Assert.assertTrue(eliminator.getBindings().isEmpty());
+        Assert.assertEquals(parse("YEAR(xsd:dateTime(?date))"),
+                eliminator.getExpressions().get(0));
+    }
+
+    @Test
+    public void testNonDeterministicFunctionsKept() {
+        SubexpressionEliminator eliminator = eliminate(null,
+                "STR(RAND())", "STR(RAND())", "STRUUID()", "STRUUID()");
+        Assert.assertTrue(eliminator.getBindings().isEmpty());
+    }
+
+    @Test
+    public void testResultsUnchanged() {
+        Model model = RDFDataMgr.loadModel(LocalEndpoint.class.getResource(
+                "/fuseki-base/configuration/data/test.ttl").toString());
+        String[] exprs = {
+            "CONCAT(STR(DAY(xsd:dateTime(?birthday))), \"-\", " +
+                    "STR(YEAR(xsd:dateTime(?birthday))))",
+            "COALESCE(YEAR(xsd:dateTime(?birthday)), YEAR(?birthday))",
+            "IF(YEAR(?birthday) < 1980, STR(YEAR(?birthday)), \"young\")",
+            "COALESCE(xsd:integer(STR(?birthday)), STRLEN(STR(?birthday)))",
+            "STRLEN(STR(?birthday)) + STRLEN(STR(?birthday))"
+        };
+        SubexpressionEliminator eliminator = eliminate(null, exprs);
+        Assert.assertFalse(eliminator.getBindings().isEmpty());
+
+        Query original = createQuery();
+        Query rewritten = createQuery();
+        ElementGroup group = (ElementGroup) rewritten.getQueryPattern();
+        for (Map.Entry<Var, Expr> binding : eliminator.getBindings().entrySet()) {
+            group.addElement(new ElementBind(binding.getKey(), binding.getValue()));
+        }
+        VarAlloc resultVarAlloc = new VarAlloc("result");
+        for (int i = 0; i < exprs.length; i++) {
+            Var var = resultVarAlloc.allocVar();
+            original.addResultVar(var, parse(exprs[i]));
+            rewritten.addResultVar(var, eliminator.getExpressions().get(i));
+        }
+        Assert.assertEquals(evaluate(original, model), evaluate(rewritten, model));
+    }
+
+    @Test
+    public void testComputeQueryResultsUnchanged() throws Exception {
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>\n" +
+                "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                "SELECT FACTS { ?person a snvoc:Person };\n" +
+                "DEFINE DIMENSION \"Birthday\" FROM" +
+                " (?person snvoc:birthday ?birthday) WITH (" +
+                " LEVEL \"Day\" AS CONCAT(STR(DAY(xsd:dateTime(?birthday)))," +
+                " \"-\", STR(MONTH(xsd:dateTime(?birthday))))," +
+                " LEVEL \"Year\" AS YEAR(xsd:dateTime(?birthday)));\n" +
+                "DEFINE MEASURE \"Doubled Length\"" +
+                " AS STRLEN(STR(?length)) * 2" +
+                " WHERE (?comment snvoc:hasCreator ?person ;" +
+                " snvoc:length ?length) WITH \"SUM\";\n" +
+                "DEFINE MEASURE \"Length Plus One\"" +
+                " AS STRLEN(STR(?length)) + 1" +
+                " WHERE (?comment snvoc:hasCreator ?person ;" +
+                " snvoc:length ?length) WITH \"MAX\";\n" +
+                "CREATE CUBE \"People\" FROM \"Birthday\"" +
+                " WITH \"Doubled Length\", \"Length Plus One\";\n" +
+                "USING CUBE \"People\" OVER <http://example.org/sparql>;\n" +
+                "DICE (\"Birthday\", \"Year\" AS ?year, ?year > 1980);\n"));
+        parser.Start();
+        Session session = parser.getSession();
+        Cube cube = session.getCube();
+        List<Measure> measures = new ArrayList<>(cube.getMeasures());
+        Compute compute = new Compute(measures,
+                Collections.<Compute.SortCondition>emptyList(), null, null);
+        Map<Dimension, Var> dimensionVariables =
+                compute.allocateDimensionVariables(session);
+        Map<Measure, Pair<Var, Var>> measureVariables =
+                compute.allocateMeasureVariables();
+        Query eliminated = compute.createComputeQuery(session, measures,
+                cube.getDimensions(), session.getFilters(), dimensionVariables,
+                measureVariables);
+
+        //Restore the form without eliminated subexpressions
+        Query inlined = eliminated.cloneQuery();
+        Map<Var, Expr> binds = new HashMap<>();
+        Map<Var, Expr> helpers = new HashMap<>();
+        inline(inlined.getQueryPattern(), helpers, binds);
+        Assert.assertEquals(2, helpers.size());
+        Assert.assertTrue(helpers.containsValue(parse("STRLEN(STR(?length))")));
+        Assert.assertTrue(helpers.containsValue(
+                parse("xsd:dateTime(?birthday)")));
+
+        //Without the helpers, the original expressions are computed
+        for (Measure measure : measures) {
+            Assert.assertEquals(measure.getExpression(),
+                    binds.get(measureVariables.get(measure).getLeft()));
+        }
+        for (Dimension dimension : cube.getDimensions()) {
+            Assert.assertEquals(dimension.getLevels().get(0).getExpression(),
+                    binds.get(dimensionVariables.get(dimension)));
+        }
+        for (Map.Entry<Pair<Dimension, Level>, Filter> filter :
+                session.getFilters().entrySet()) {
+            Assert.assertEquals(filter.getKey().getRight().getExpression(),
+                    binds.get(filter.getValue().getVariable()));
+        }
+
+        Model model = RDFDataMgr.loadModel(LocalEndpoint.class.getResource(
+                "/fuseki-base/configuration/data/test.ttl").toString());
+        List<String> expected = evaluate(inlined, model);
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, evaluate(eliminated, model));
+    }
+
+    /**
+     * Eliminates the common subexpressions from the given expressions.
+     *
+     * @param scope the variables subexpressions may mention
+     * @param exprs the expressions in SPARQL syntax
+     * @return the eliminator
+     */
+    private static SubexpressionEliminator eliminate(final Collection<Var> scope,
+            final String... exprs) {
+        List<Expr> parsed = new ArrayList<>();
+        for (String expr : exprs) {
+            parsed.add(parse(expr));
+        }
+        return new SubexpressionEliminator(parsed, scope,
+                new VarAlloc("_subexpression"));
+    }
+
+    /**
+     * Removes the bindings of helper variables from the given element and
+     * substitutes the bound expressions for the helper variables in all other
+     * bindings, restoring the form without eliminated subexpressions.
+     *
+     * @param element   the element to rewrite
+     * @param helpers   receives the expressions bound to helper variables
+     * @param binds     receives the rewritten expressions of all other
+     *                  bindings
+     */
+    private static void inline(final Element element,
+            final Map<Var, Expr> helpers, final Map<Var, Expr> binds) {
+        if (element instanceof ElementOptional) {
+            inline(((ElementOptional) element).getOptionalElement(), helpers,
+                    binds);
+        } else if (element instanceof ElementGroup) {
+            ExprTransform substitute = new ExprTransformCopy() {
+                @Override
+                public Expr transform(final ExprVar exprVar) {
+                    Expr expr = helpers.get(exprVar.asVar());
+                    return expr == null ? super.transform(exprVar) : expr;
+                }
+            };
+            for (ListIterator<Element> it = ((ElementGroup) element).
+                    getElements().listIterator(); it.hasNext();) {
+                Element child = it.next();
+                if (child instanceof ElementBind) {
+                    ElementBind bind = (ElementBind) child;
+                    Expr expr = ExprTransformer.transform(substitute,
+                            bind.getExpr());
+                    if (bind.getVar().getVarName().startsWith(
+                            "_subexpression")) {
+                        helpers.put(bind.getVar(), expr);
+                        it.remove();
+                    } else {
+                        binds.put(bind.getVar(), expr);
+                        it.set(new ElementBind(bind.getVar(), expr));
+                    }
+                } else {
+                    inline(child, helpers, binds);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the given expression.
+     *
+     * @param expr  the expression in SPARQL syntax
+     * @return the parsed expression
+     */
+    private static Expr parse(final String expr) {
+        return ExprUtils.parse(expr, PrefixMapping.Standard);
+    }
+
+    /**
+     * Creates a query selecting the people with their birthdays.
+     *
+     * @return the created query
+     */
+    private static Query createQuery() {
+        return QueryFactory.create(
+                "PREFIX snvoc: <http://www.ldbc.eu/ldbc_socialnet/1.0/vocabulary/>\n" +
+                "SELECT ?person WHERE { ?person snvoc:birthday ?birthday }");
+    }
+
+    /**
+     * Evaluates the given query and returns its sorted solutions.
+     *
+     * @param query the query to evaluate
+     * @param model the data to evaluate the query against
+     * @return the sorted solutions as strings
+     */
+    private static List<String> evaluate(final Query query, final Model model) {
+        List<String> solutions = new ArrayList<>();
+        try (QueryExecution exec = QueryExecutionFactory.create(query, model)) {
+            ResultSet results = exec.execSelect();
+            while (results.hasNext()) {
+                QuerySolution solution = results.next();
+                List<Object> values = new ArrayList<>();
+                for (String var : results.getResultVars()) {
+                    values.add(solution.get(var));
+                }
+                solutions.add(values.toString());
+            }
+        }
+        Collections.sort(solutions);
+        return solutions;
+    }
+}
@@ -0,0 +1,65 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.repository;
+
+import de.tud.inf.db.sparqlytics.DummyDimension;
+import de.tud.inf.db.sparqlytics.DummyMeasure;
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the immutable repository implementation indexed by name.
+ *
+ * @author Michael Rudolf
+ */
+public class IndexedRepositoryTest {
+    @Test
+    public void testFind() {
+        Dimension dim1 = new DummyDimension("dim1");
+        Measure mes1 = new DummyMeasure("mes1");
+        IndexedRepository instance = new IndexedRepository(
+                Collections.<Cube>emptySet(),
+                Arrays.<Dimension>asList(dim1, new DummyDimension("dim2")),
+                Collections.singleton(mes1));
+        assertSame(dim1, instance.findDimension("dim1"));
+        assertSame(mes1, instance.findMeasure("mes1"));
+        assertEquals(2, instance.getDimensions().size());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testFindMissing() {
+        IndexedRepository.EMPTY.findCube("test");
+    }
+
+    @Test
+    public void testWithWithout() {
+        Dimension dim1 = new DummyDimension("dim1");
+        IndexedRepository extended = IndexedRepository.EMPTY.withDimension(dim1);
+        assertTrue(IndexedRepository.EMPTY.getDimensions().isEmpty());
+        assertEquals(Collections.singleton(dim1), extended.getDimensions());
+        assertNull(extended.withDimension(new DummyDimension("dim1")));
+        assertTrue(extended.withoutDimension(dim1).getDimensions().isEmpty());
+        assertNull(IndexedRepository.EMPTY.withoutDimension(dim1));
+        assertNull(IndexedRepository.EMPTY.withoutMeasure(null));
+    }
+}
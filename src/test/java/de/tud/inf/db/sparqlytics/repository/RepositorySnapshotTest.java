@@ -0,0 +1,173 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.repository;
+
+import de.tud.inf.db.sparqlytics.bench.LDBCBenchmark;
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Level;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.apache.jena.sparql.core.Prologue;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests writing and reading binary repository snapshots.
+ *
+ * @author Michael Rudolf
+ */
+public class RepositorySnapshotTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        Path script = copyScript();
+        try {
+            RepositorySnapshot expected = RepositorySnapshot.parse(
+                    script.toFile());
+            byte[] bytes = toBytes(expected);
+            assertArrayEquals(bytes, toBytes(expected));
+            RepositorySnapshot actual = RepositorySnapshot.read(
+                    new ByteArrayInputStream(bytes));
+            assertArrayEquals(RepositorySnapshot.hash(script.toFile()),
+                    actual.getSourceHash());
+            assertEquals(expected.getPrologue().getPrefixMapping().
+                    getNsPrefixMap(), actual.getPrologue().getPrefixMapping().
+                    getNsPrefixMap());
+            Repository repository = actual.getRepository();
+            for (Dimension dimension : expected.getRepository().getDimensions()) {
+                Dimension copy = repository.findDimension(dimension.getName());
+                assertEquals(dimension.getSeedPattern(), copy.getSeedPattern());
+                assertEquals(dimension.getLevels().size(),
+                        copy.getLevels().size());
+                for (Level level : dimension.getLevels()) {
+                    assertEquals(level.getExpression(),
+                            copy.findLevel(level.getName()).getExpression());
+                }
+            }
+            for (Measure measure : expected.getRepository().getMeasures()) {
+                Measure copy = repository.findMeasure(measure.getName());
+                assertEquals(measure.getSeedPattern(), copy.getSeedPattern());
+                assertEquals(measure.getExpression(), copy.getExpression());
+                assertEquals(measure.getAggregationFunction(),
+                        copy.getAggregationFunction());
+            }
+            for (Cube cube : expected.getRepository().getCubes()) {
+                Cube copy = repository.findCube(cube.getName());
+                assertEquals(cube.getFactPattern(), copy.getFactPattern());
+                assertEquals(cube.getDimensions(), copy.getDimensions());
+                assertEquals(cube.getMeasures(), copy.getMeasures());
+            }
+            assertEquals(expected.getRepository().getCubes(),
+                    repository.getCubes());
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    @Test
+    public void testLoadUsesUpToDateSnapshot() throws Exception {
+        Path script = copyScript();
+        File snapshot = new File(script + ".snapshot");
+        try {
+            RepositorySnapshot parsed = RepositorySnapshot.load(
+                    script.toFile(), snapshot);
+            assertTrue(snapshot.isFile());
+            assertFalse(parsed.getRepository().getCubes().isEmpty());
+
+            //Replace the snapshot with an empty repository for the same script
+            try (OutputStream out = Files.newOutputStream(snapshot.toPath())) {
+                new RepositorySnapshot(new DefaultRepository(), new Prologue(),
+                        parsed.getSourceHash()).write(out);
+            }
+            assertTrue(RepositorySnapshot.load(script.toFile(), snapshot).
+                    getRepository().getCubes().isEmpty());
+
+            //Changing the script invalidates the snapshot
+            Files.write(script, "\n# changed\n".getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+            assertEquals(parsed.getRepository().getCubes(), RepositorySnapshot.
+                    load(script.toFile(), snapshot).getRepository().getCubes());
+            assertEquals(parsed.getRepository().getCubes(), RepositorySnapshot.
+                    load(script.toFile(), snapshot).getRepository().getCubes());
+        } finally {
+            Files.deleteIfExists(snapshot.toPath());
+            Files.delete(script);
+        }
+    }
+
+    @Test
+    public void testLoadIgnoresCorruptSnapshot() throws Exception {
+        Path script = copyScript();
+        File snapshot = new File(script + ".snapshot");
+        try {
+            Files.write(snapshot.toPath(), new byte[]{1, 2, 3});
+            assertFalse(RepositorySnapshot.load(script.toFile(), snapshot).
+                    getRepository().getCubes().isEmpty());
+            try (InputStream in = Files.newInputStream(snapshot.toPath())) {
+                assertFalse(RepositorySnapshot.read(in).getRepository().
+                        getCubes().isEmpty());
+            }
+        } finally {
+            Files.deleteIfExists(snapshot.toPath());
+            Files.delete(script);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInvalid() throws IOException {
+        RepositorySnapshot.read(new ByteArrayInputStream(
+                "PREFIX".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Copies the repository script of the LDBC benchmark to a temporary file.
+     *
+     * @return the path of the copy
+     */
+    private static Path copyScript() throws IOException {
+        Path script = Files.createTempFile("sparqlytics-repository-",
+                ".sparqlytics");
+        try (InputStream in = LDBCBenchmark.class.getResourceAsStream(
+                "ldbc-snb-bi-repository.sparqlytics")) {
+            Files.copy(in, script, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return script;
+    }
+
+    /**
+     * Writes the given snapshot to a byte array.
+     *
+     * @param snapshot the snapshot to write
+     * @return the written bytes
+     */
+    private static byte[] toBytes(RepositorySnapshot snapshot)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.write(out);
+        return out.toByteArray();
+    }
+}
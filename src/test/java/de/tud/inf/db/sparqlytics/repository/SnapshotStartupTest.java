@@ -0,0 +1,100 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.repository;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.Main;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.riot.Lang;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests loading the repository from a script and its snapshot at startup.
+ *
+ * @author Michael Rudolf
+ */
+public class SnapshotStartupTest extends ITBase {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The script defining the repository of the test fixture.
+     */
+    private static Path script;
+
+    /**
+     * The cube selection prepended to every test input.
+     */
+    private static Path selection;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        endpoint = LocalEndpoint.forTestData();
+        String fixture;
+        try (InputStream in = ITBase.class.getResourceAsStream(
+                "fixture.sparqlytics")) {
+            fixture = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        script = Files.createTempFile("sparqlytics-repository-",
+                ".sparqlytics");
+        Files.write(script, fixture.substring(0, fixture.indexOf(
+                "# end of DDL part")).getBytes(StandardCharsets.UTF_8));
+        selection = Files.createTempFile("sparqlytics-selection-",
+                ".sparqlytics");
+        Files.write(selection, ("USING CUBE \"test\" OVER <" +
+                endpoint.getURL() + ">;\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        endpoint.close();
+        Files.deleteIfExists(Main.getSnapshotFile(script.toFile()).toPath());
+        Files.delete(script);
+        Files.delete(selection);
+    }
+
+    public SnapshotStartupTest() throws IOException {
+        super(selection.toUri().toURL());
+    }
+
+    @Test
+    public void testRepositoryArgument() throws Exception {
+        File snapshot = Main.getSnapshotFile(script.toFile());
+        URL testCase = ITBase.class.getResource("1measure.test.sparqlytics");
+        URL expected = ITBase.class.getResource("1measure.expected.n3");
+        testIsomorphism(Lang.N3, testCase, expected,
+                "-repository", script.toString());
+        Assert.assertTrue(snapshot.isFile());
+        long modified = snapshot.lastModified();
+        testIsomorphism(Lang.N3, testCase, expected,
+                "-repository", script.toString());
+        Assert.assertEquals(modified, snapshot.lastModified());
+    }
+}
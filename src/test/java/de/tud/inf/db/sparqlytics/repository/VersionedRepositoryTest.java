@@ -0,0 +1,144 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.repository;
+
+import de.tud.inf.db.sparqlytics.DummyDimension;
+import de.tud.inf.db.sparqlytics.DummyMeasure;
+import de.tud.inf.db.sparqlytics.model.Cube;
+import de.tud.inf.db.sparqlytics.model.Dimension;
+import de.tud.inf.db.sparqlytics.model.Measure;
+import de.tud.inf.db.sparqlytics.parser.CubeBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.sparql.core.BasicPattern;
+import org.apache.jena.sparql.syntax.ElementTriplesBlock;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the versioned repository implementation.
+ *
+ * @author Michael Rudolf
+ */
+public class VersionedRepositoryTest {
+    @Test
+    public void testAddRemoveCube() {
+        Cube cube = new CubeBuilder(new ElementTriplesBlock(
+                BasicPattern.wrap(Collections.singletonList(Triple.createMatch(
+                        NodeFactory.createVariable("test"), null, null))))).
+                addMeasure(new DummyMeasure("mes1")).
+                addDimension(new DummyDimension("dim1")).build("test");
+        VersionedRepository instance = new VersionedRepository();
+        assertTrue(instance.addCube(cube));
+        assertFalse(instance.addCube(cube));
+        assertEquals(cube, instance.findCube("test"));
+        assertEquals(Collections.singleton(cube), instance.getCubes());
+        assertTrue(instance.removeCube(cube));
+        assertFalse(instance.removeCube(cube));
+        assertTrue(instance.getCubes().isEmpty());
+        assertEquals(2, instance.getVersion());
+    }
+
+    @Test
+    public void testAddRemoveDimension() {
+        Dimension dim1 = new DummyDimension("dim1");
+        VersionedRepository instance = new VersionedRepository();
+        assertTrue(instance.addDimension(dim1));
+        assertEquals(dim1, instance.findDimension("dim1"));
+        assertEquals(Collections.singleton(dim1), instance.getDimensions());
+        assertTrue(instance.removeDimension(dim1));
+        assertTrue(instance.getDimensions().isEmpty());
+    }
+
+    @Test
+    public void testAddRemoveMeasure() {
+        Measure mes1 = new DummyMeasure("mes1");
+        VersionedRepository instance = new VersionedRepository();
+        assertTrue(instance.addMeasure(mes1));
+        assertEquals(mes1, instance.findMeasure("mes1"));
+        assertEquals(Collections.singleton(mes1), instance.getMeasures());
+        assertTrue(instance.removeMeasure(mes1));
+        assertTrue(instance.getMeasures().isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testAddDimensionNull() {
+        new VersionedRepository().addDimension(null);
+    }
+
+    @Test
+    public void testRemoveMeasureNull() {
+        assertFalse(new VersionedRepository().removeMeasure(null));
+    }
+
+    @Test
+    public void testSnapshot() {
+        Dimension dim1 = new DummyDimension("dim1");
+        VersionedRepository instance = new VersionedRepository();
+        VersionedRepository.Version snapshot = instance.snapshot();
+        assertTrue(instance.addDimension(dim1));
+        assertEquals(0, snapshot.getNumber());
+        assertTrue(snapshot.getDimensions().isEmpty());
+        try {
+            snapshot.findDimension("dim1");
+            fail("Snapshot sees later modification");
+        } catch (NoSuchElementException ex) {
+        }
+        assertEquals(dim1, instance.snapshot().findDimension("dim1"));
+        assertEquals(1, instance.snapshot().getNumber());
+    }
+
+    @Test
+    public void testConcurrentModifications() throws Exception {
+        final VersionedRepository instance = new VersionedRepository();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final int thread = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < 100; j++) {
+                            String name = "dim" + thread + "/" + j;
+                            assertTrue(instance.addDimension(
+                                    new DummyDimension(name)));
+                            assertEquals(name,
+                                    instance.findDimension(name).getName());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(400, instance.getDimensions().size());
+        assertEquals(400, instance.getVersion());
+    }
+}
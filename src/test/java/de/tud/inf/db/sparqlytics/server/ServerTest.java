@@ -0,0 +1,304 @@
+// SPARQLytics: Multidimensional Analytics for RDF Data.
+// Copyright (C) 2015  Michael Rudolf
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package de.tud.inf.db.sparqlytics.server;
+
+import de.tud.inf.db.sparqlytics.ITBase;
+import de.tud.inf.db.sparqlytics.LocalEndpoint;
+import de.tud.inf.db.sparqlytics.parser.SPARQLyticsParser;
+import de.tud.inf.db.sparqlytics.repository.RepositorySnapshot;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.apache.jena.sparql.resultset.ResultsFormat;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests running the statements of several users in a server.
+ *
+ * @author Michael Rudolf
+ */
+public class ServerTest {
+    /**
+     * Serves the test data.
+     */
+    private static LocalEndpoint endpoint;
+
+    /**
+     * The server under test.
+     */
+    private static Server server;
+
+    /**
+     * Selects the cube of the test fixture.
+     */
+    private static String selection;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        endpoint = LocalEndpoint.forTestData();
+        String fixture;
+        try (InputStream in = ITBase.class.getResourceAsStream(
+                "fixture.sparqlytics")) {
+            fixture = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        SPARQLyticsParser parser = new SPARQLyticsParser(new StringReader(
+                fixture.substring(0, fixture.indexOf("# end of DDL part"))));
+        parser.Start();
+        server = new Server(new InetSocketAddress("localhost", 0), 4);
+        server.setSnapshot(new RepositorySnapshot(parser.getRepository(),
+                parser.getSession().getQuery(), new byte[0]));
+        server.setResultsFormat(ResultsFormat.FMT_RS_CSV);
+        server.start();
+        selection = "USING CUBE \"test\" OVER <" + endpoint.getURL() + ">;\n";
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        try {
+            server.close();
+        } finally {
+            endpoint.close();
+        }
+    }
+
+    @Test
+    public void testSessionsAreIsolated() throws IOException {
+        String first = post("first", selection +
+                "COMPUTE (\"Avg. No. Languages\");\n");
+        String second = post("second", selection +
+                "ROLLUP (\"Location\", 2);\n" +
+                "COMPUTE (\"Avg. No. Languages\");\n");
+        Assert.assertNotEquals(first, second);
+        Assert.assertEquals(first, post("first",
+                "COMPUTE (\"Avg. No. Languages\");\n"));
+        Assert.assertEquals(second, post("second",
+                "COMPUTE (\"Avg. No. Languages\");\n"));
+    }
+
+    @Test
+    public void testErrorKeepsSession() throws IOException {
+        String result = post("error", selection +
+                "ROLLUP (\"Location\", 1);\n" +
+                "COMPUTE (\"Avg. No. Languages\");\n");
+        Response response = request("POST", "error",
+                "ROLLUP (\"Unknown\", 1);\n");
+        Assert.assertEquals(400, response.status);
+        Assert.assertEquals(result, post("error",
+                "COMPUTE (\"Avg. No. Languages\");\n"));
+    }
+
+    @Test
+    public void testCloseSession() throws IOException {
+        Assert.assertEquals(404, request("DELETE", "closed", null).status);
+        post("closed", selection);
+        int sessions = server.getSessionCount();
+        Assert.assertEquals(204, request("DELETE", "closed", null).status);
+        Assert.assertEquals(sessions - 1, server.getSessionCount());
+        Assert.assertEquals(404, request("GET", "", null).status);
+        Assert.assertEquals(405, request("GET", "closed", null).status);
+    }
+
+    @Test
+    public void testRepositoryIsReadOnly() throws IOException {
+        Assert.assertEquals(400, request("POST", "readonly",
+                "USING REPOSITORY \"java:comp/env/repository\";\n").status);
+        Assert.assertEquals(400, request("POST", "readonly",
+                "DELETE CUBE \"test\";\n").status);
+        post("readonly", selection);
+    }
+
+    @Test
+    public void testMaxSessions() throws IOException {
+        try (Server limited = new Server(new InetSocketAddress("localhost",
+                0), 1)) {
+            limited.setMaxSessions(1);
+            limited.start();
+            Assert.assertEquals(200, request(limited, "POST", "first",
+                    "").status);
+            Assert.assertEquals(200, request(limited, "POST", "first",
+                    "").status);
+            Assert.assertEquals(503, request(limited, "POST", "second",
+                    "").status);
+            Assert.assertEquals(204, request(limited, "DELETE", "first",
+                    null).status);
+            Assert.assertEquals(200, request(limited, "POST", "second",
+                    "").status);
+        }
+    }
+
+    @Test
+    public void testIdleSessionsExpire() throws Exception {
+        try (Server limited = new Server(new InetSocketAddress("localhost",
+                0), 1)) {
+            limited.setMaxSessions(1);
+            limited.setSessionTimeout(1, TimeUnit.MILLISECONDS);
+            limited.start();
+            Assert.assertEquals(200, request(limited, "POST", "first",
+                    "").status);
+            Thread.sleep(10);
+            Assert.assertEquals(200, request(limited, "POST", "second",
+                    "").status);
+            Assert.assertEquals(1, limited.getSessionCount());
+            Assert.assertEquals(404, request(limited, "DELETE", "first",
+                    null).status);
+        }
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        final List<String> expected = new ArrayList<>();
+        for (int level = 0; level < 3; level++) {
+            expected.add(post("sequential" + level, selection +
+                    computeAt(level)));
+        }
+        ExecutorService analysts = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                final int analyst = i;
+                futures.add(analysts.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        String id = "analyst" + analyst;
+                        post(id, selection);
+                        for (int step = 0; step < 6; step++) {
+                            int level = (analyst + step) % 3;
+                            Assert.assertEquals(expected.get(level),
+                                    post(id, computeAt(level)));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            analysts.shutdown();
+        }
+    }
+
+    /**
+     * Returns statements computing the average number of languages at the
+     * given level of the location dimension, returning to the base level
+     * afterwards.
+     *
+     * @param level the index of the level to compute at
+     * @return the statements to post
+     */
+    private static String computeAt(int level) {
+        String compute = "COMPUTE (\"Avg. No. Languages\");\n";
+        return level == 0 ? compute : "ROLLUP (\"Location\", " + level +
+                ");\n" + compute + "DRILLDOWN (\"Location\", " + level +
+                ");\n";
+    }
+
+    /**
+     * Posts the given statements to the given session and returns the sorted
+     * lines of the result.
+     *
+     * @param session    the identifier of the session
+     * @param statements the statements to run
+     * @return the sorted lines of the result
+     */
+    private static String post(String session, String statements)
+            throws IOException {
+        Response response = request("POST", session, statements);
+        Assert.assertEquals(response.body, 200, response.status);
+        String[] lines = response.body.split("\r?\n");
+        Arrays.sort(lines);
+        return Arrays.toString(lines);
+    }
+
+    /**
+     * Sends a request to the given session.
+     *
+     * @param method  the HTTP method of the request
+     * @param session the identifier of the session
+     * @param body    the body of the request or {@code null}
+     * @return the response of the server
+     */
+    private static Response request(String method, String session,
+            String body) throws IOException {
+        return request(server, method, session, body);
+    }
+
+    /**
+     * Sends a request to the given session of the given server.
+     *
+     * @param server  the server to send the request to
+     * @param method  the HTTP method of the request
+     * @param session the identifier of the session
+     * @param body    the body of the request or {@code null}
+     * @return the response of the server
+     */
+    private static Response request(Server server, String method,
+            String session, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                server.getURL() + session).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            if (body != null) {
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            Response response = new Response();
+            response.status = connection.getResponseCode();
+            InputStream in = response.status < 400 ?
+                    connection.getInputStream() : connection.getErrorStream();
+            response.body = in == null ? "" :
+                    IOUtils.toString(in, StandardCharsets.UTF_8);
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * The status and the body of a response.
+     */
+    private static class Response {
+        /**
+         * The status code.
+         */
+        int status;
+
+        /**
+         * The body.
+         */
+        String body;
+    }
+}